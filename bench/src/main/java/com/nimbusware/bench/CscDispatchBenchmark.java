@@ -0,0 +1,99 @@
+package com.nimbusware.bench;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nimbusware.android.ble.profiles.CscData;
+import com.nimbusware.android.ble.profiles.CscProfile;
+import com.nimbusware.android.ble.sensors.DataParser;
+import com.nimbusware.mypersonalbiketrainer.CadenceSensorListener;
+import com.nimbusware.mypersonalbiketrainer.SpeedSensorListener;
+import com.nimbusware.mypersonalbiketrainer.core.Clock;
+import com.nimbusware.mypersonalbiketrainer.core.CscReadingFilter;
+import com.nimbusware.mypersonalbiketrainer.core.SessionAggregator;
+
+/**
+ * What ble.CscSensor does for each CSC Measurement notification: decode
+ * it, drop spurious zero readings (CscReadingFilter) and notify speed and
+ * cadence listeners, here a SessionAggregator as during a session. The
+ * sensor itself needs Android, so its notifyListeners() is mirrored here
+ * with the same parser, filter and listener lists. One in 32 payloads
+ * repeats the previous one, i.e., a zero reading the filter drops. Run
+ * with -prof gc: nothing is expected to be allocated.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CscDispatchBenchmark {
+
+	private static final int PAYLOADS = 4096;
+	private static final int REPEAT_INTERVAL = 32;
+
+	private byte[][] mPayloads;
+	private DataParser<CscData> mParser;
+	private final CscReadingFilter mFilter = new CscReadingFilter();
+	private final List<SpeedSensorListener> mSpeedListeners = new ArrayList<SpeedSensorListener>();
+	private final List<CadenceSensorListener> mCadenceListeners = new ArrayList<CadenceSensorListener>();
+	private int mNext;
+	private long mTime;
+
+	@Setup
+	public void setUp() {
+		mPayloads = Payloads.csc(PAYLOADS);
+		for (int i = REPEAT_INTERVAL; i < PAYLOADS; i += REPEAT_INTERVAL) {
+			mPayloads[i] = mPayloads[i - 1];
+		}
+		mParser = CscProfile.newParser(2096);
+		SessionAggregator session = new SessionAggregator(1, "bench", new Date(), Clock.SYSTEM);
+		mSpeedListeners.add(session);
+		mCadenceListeners.add(session);
+	}
+
+	@Benchmark
+	public void dispatch() {
+		byte[] payload = mPayloads[mNext];
+		mNext = (mNext + 1) % PAYLOADS;
+		mTime += Payloads.INTERVAL;
+		CscData data = mParser.parse(payload, mTime);
+		if (null == data)
+			return;
+
+		double speed = data.getSpeed();
+		double cadence = data.getCadence();
+		if (mFilter.acceptSpeed(speed)) {
+			double distance = data.getDistance();
+			int wheelRevs = data.getWheelRevsSinceLastRead();
+			for (int i = 0, n = mSpeedListeners.size(); i < n; i++) {
+				SpeedSensorListener listener = mSpeedListeners.get(i);
+				listener.updateSpeed(speed);
+				listener.updateDistance(distance);
+				listener.updateWheelRevsCount(wheelRevs);
+			}
+		}
+
+		if (mFilter.acceptCadence(cadence)) {
+			int crankRevs = data.getCrankRevsSinceLastRead();
+			for (int i = 0, n = mCadenceListeners.size(); i < n; i++) {
+				CadenceSensorListener listener = mCadenceListeners.get(i);
+				listener.updateCadence(cadence);
+				listener.updateCrankRevsCount(crankRevs);
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.nimbusware.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nimbusware.android.ble.profiles.CscData;
+import com.nimbusware.android.ble.profiles.CscProfile;
+import com.nimbusware.android.ble.sensors.DataParser;
+
+/**
+ * Decoding of CSC Measurement notifications, one per operation, with
+ * their sliding window averages. Run with -prof gc: steady state
+ * decoding is expected to allocate nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CscParserBenchmark {
+
+	// about 17 minutes of notifications: counters jump back once per cycle
+	private static final int PAYLOADS = 4096;
+
+	private byte[][] mPayloads;
+	private DataParser<CscData> mParser;
+	private int mNext;
+	private long mTime;
+
+	@Setup
+	public void setUp() {
+		mPayloads = Payloads.csc(PAYLOADS);
+		mParser = CscProfile.newParser(2096);
+	}
+
+	@Benchmark
+	public CscData parse() {
+		byte[] data = mPayloads[mNext];
+		mNext = (mNext + 1) % PAYLOADS;
+		mTime += Payloads.INTERVAL;
+		return mParser.parse(data, mTime);
+	}
+}
@@ -0,0 +1,58 @@
+package com.nimbusware.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nimbusware.android.ble.profiles.HrmData;
+import com.nimbusware.android.ble.profiles.HrmProfile;
+import com.nimbusware.android.ble.sensors.DataParser;
+
+/**
+ * Decoding of Heart Rate Measurement notifications, one per operation:
+ * rate only, rate and RR intervals, or all fields. Run with -prof gc:
+ * once the RR history has reached its maximum capacity, decoding is
+ * expected to allocate nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HrmParserBenchmark {
+
+	private static final int PAYLOADS = 1024;
+
+	@Param({ "rate", "rr", "full" })
+	public String fields;
+
+	private byte[][] mPayloads;
+	private DataParser<HrmData> mParser;
+	private int mNext;
+	private long mTime;
+
+	@Setup
+	public void setUp() {
+		mPayloads = Payloads.hrm(PAYLOADS, !"rate".equals(fields), "full".equals(fields));
+		mParser = HrmProfile.newParser();
+	}
+
+	@Benchmark
+	public HrmData parse() {
+		byte[] data = mPayloads[mNext];
+		mNext = (mNext + 1) % PAYLOADS;
+		mTime += Payloads.INTERVAL;
+		return mParser.parse(data, mTime);
+	}
+}
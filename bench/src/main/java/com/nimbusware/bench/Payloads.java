@@ -0,0 +1,81 @@
+package com.nimbusware.bench;
+
+/**
+ * Synthetic notification payloads, as a sensor would send them while
+ * riding: counters advance steadily from one payload to the next.
+ * Payloads are built once, so that benchmarks measure decoding only.
+ */
+public final class Payloads {
+
+	// notification interval of a typical sensor, in milliseconds
+	public static final long INTERVAL = 250;
+
+	private Payloads() {} // static access only
+
+	/**
+	 * CSC Measurement payloads with wheel and crank data, at about
+	 * 30 Km/h (2096 mm wheel) and 90 rpm.
+	 * @param count
+	 * @return
+	 */
+	public static byte[][] csc(int count) {
+		byte[][] payloads = new byte[count][];
+		double wheelRevs = 0;
+		double crankRevs = 0;
+		for (int i = 0; i < count; i++) {
+			int time = (int) (i * INTERVAL * 1024 / 1000); // 1/1024 s
+			wheelRevs += 3.98 * INTERVAL / 1000;
+			crankRevs += 1.5 * INTERVAL / 1000;
+			byte[] data = new byte[11];
+			data[0] = 0x03;
+			putUInt32(data, 1, (int) wheelRevs);
+			putUInt16(data, 5, time);
+			putUInt16(data, 7, (int) crankRevs);
+			putUInt16(data, 9, time);
+			payloads[i] = data;
+		}
+		return payloads;
+	}
+
+	/**
+	 * Heart Rate Measurement payloads at about 140 bpm.
+	 * @param count
+	 * @param rr if true, payloads carry one or two RR intervals (flag 0x10)
+	 * @param energy if true, payloads carry a 16-bit rate and the energy expended
+	 * @return
+	 */
+	public static byte[][] hrm(int count, boolean rr, boolean energy) {
+		byte[][] payloads = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			int rate = 135 + i % 10;
+			int intervals = rr ? 1 + i % 2 : 0;
+			int flags = 0x06 | (energy ? 0x09 : 0) | (rr ? 0x10 : 0);
+			byte[] data = new byte[1 + (energy ? 4 : 1) + 2 * intervals];
+			data[0] = (byte) flags;
+			int offset = 1;
+			if (energy) {
+				putUInt16(data, offset, rate);
+				putUInt16(data, offset + 2, i / 4);
+				offset += 4;
+			} else {
+				data[offset++] = (byte) rate;
+			}
+			for (int j = 0; j < intervals; j++) {
+				putUInt16(data, offset, 60 * 1024 / rate); // 1/1024 s
+				offset += 2;
+			}
+			payloads[i] = data;
+		}
+		return payloads;
+	}
+
+	private static void putUInt16(byte[] data, int offset, int value) {
+		data[offset] = (byte) value;
+		data[offset + 1] = (byte) (value >> 8);
+	}
+
+	private static void putUInt32(byte[] data, int offset, int value) {
+		putUInt16(data, offset, value);
+		putUInt16(data, offset + 2, value >> 16);
+	}
+}
@@ -0,0 +1,65 @@
+package com.nimbusware.bench;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.nimbusware.mypersonalbiketrainer.core.Clock;
+import com.nimbusware.mypersonalbiketrainer.core.SessionAggregator;
+
+/**
+ * Updates of a SessionAggregator, as sensor callbacks make them, while
+ * other threads read it, as the cockpit and the session log do: one
+ * writer and three readers share the same session. Writers should not
+ * slow down as readers are added, and readers should not block: compare
+ * the write and read scores against those of a build with a locked
+ * aggregator to tell what the sequence counter buys.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionAggregatorBenchmark {
+
+	private SessionAggregator mSession;
+
+	@Setup
+	public void setUp() {
+		mSession = new SessionAggregator(1, "bench", new Date(), Clock.SYSTEM);
+	}
+
+	@Benchmark
+	@Group("session")
+	@GroupThreads(1)
+	public void write() {
+		// one wheel revolution (2096 mm) at about 30 Km/h, and 140 bpm
+		mSession.updateSpeed(30);
+		mSession.updateDistance(2.096);
+		mSession.updateBeatRate(140);
+	}
+
+	@Benchmark
+	@Group("session")
+	@GroupThreads(3)
+	public void read(Blackhole bh) {
+		bh.consume(mSession.getLastSpeed());
+		bh.consume(mSession.getDistanceCovered());
+		bh.consume(mSession.getAverageSpeed());
+		bh.consume(mSession.getAverageHeartCadence());
+	}
+}
@@ -0,0 +1,68 @@
+package com.nimbusware.bench;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import com.nimbusware.android.ble.profiles.CscProfile;
+import com.nimbusware.android.ble.profiles.HrmProfile;
+import com.nimbusware.android.ble.sensors.DataParser;
+
+/**
+ * Steady state decoding allocates nothing: the bytes allocated by the
+ * current thread while parsing are counted by the JVM (HotSpot only).
+ * The JVM itself may charge a few bytes to the thread now and then (JIT,
+ * TLAB accounting), so the best of a few rounds is taken, and it must stay
+ * below one byte per notification: any allocation in the parser would
+ * cost at least an object header on each call.
+ */
+public class ParserAllocationTest {
+
+	// past the maximum capacity of the RR history of HRM parsers
+	private static final int WARMUP = 4096;
+	private static final int MEASURED = 10000;
+	private static final int ROUNDS = 5;
+
+	@Test
+	public void cscParserDoesNotAllocate() {
+		assertNoAllocation(getAllocatedBytes(CscProfile.newParser(2096), Payloads.csc(WARMUP + ROUNDS * MEASURED)));
+	}
+
+	@Test
+	public void hrmParserDoesNotAllocate() {
+		assertNoAllocation(getAllocatedBytes(HrmProfile.newParser(), Payloads.hrm(WARMUP + ROUNDS * MEASURED, true, true)));
+	}
+
+	private static void assertNoAllocation(long allocatedBytes) {
+		assertTrue(allocatedBytes + " bytes allocated by " + MEASURED + " notifications", 
+				allocatedBytes < MEASURED);
+	}
+
+	// fewest bytes allocated by a round of MEASURED notifications, after warmup
+	private static long getAllocatedBytes(DataParser<?> parser, byte[][] payloads) {
+		com.sun.management.ThreadMXBean threads = 
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		long time = 0;
+		for (int i = 0; i < WARMUP; i++) {
+			time += Payloads.INTERVAL;
+			assertNotNull(parser.parse(payloads[i], time));
+		}
+
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			int from = WARMUP + round * MEASURED;
+			long before = threads.getThreadAllocatedBytes(id);
+			for (int i = from; i < from + MEASURED; i++) {
+				time += Payloads.INTERVAL;
+				parser.parse(payloads[i], time);
+			}
+			long after = threads.getThreadAllocatedBytes(id);
+			best = Math.min(best, after - before);
+		}
+		return best;
+	}
+}
@@ -29,7 +29,12 @@ public final class R {
     public static final class id {
         public static final int action_cockpit=0x7f080031;
         public static final int action_diary=0x7f08002e;
+        public static final int action_dump=0x7f080037;
+        public static final int action_export=0x7f080034;
+        public static final int action_import=0x7f080035;
+        public static final int action_metrics=0x7f080036;
         public static final int action_refresh=0x7f080030;
+        public static final int action_reset=0x7f080038;
         public static final int action_scan=0x7f080032;
         public static final int action_settings=0x7f08002f;
         public static final int action_stop=0x7f080033;
@@ -61,6 +66,7 @@ public final class R {
         public static final int lblStart=0x7f08001b;
         public static final int line_chart=0x7f080011;
         public static final int listview=0x7f080010;
+        public static final int metrics=0x7f080039;
         public static final int sensor_name=0x7f08002a;
         public static final int start=0x7f08002b;
         public static final int txtWheelSize=0x7f080018;
@@ -87,6 +93,7 @@ public final class R {
         public static final int activity_discovery=0x7f030003;
         public static final int activity_line_chart=0x7f030004;
         public static final int activity_main=0x7f030005;
+        public static final int activity_metrics=0x7f030009;
         public static final int activity_session=0x7f030006;
         public static final int listitem_sensor=0x7f030007;
         public static final int listitem_workout=0x7f030008;
@@ -96,10 +103,15 @@ public final class R {
         public static final int diary=0x7f070001;
         public static final int discovery=0x7f070002;
         public static final int line_chart=0x7f070003;
+        public static final int metrics=0x7f070006;
         public static final int session=0x7f070004;
         public static final int settings=0x7f070005;
     }
     public static final class string {
+        public static final int action_dump=0x7f050041;
+        public static final int action_export=0x7f05003e;
+        public static final int action_import=0x7f05003f;
+        public static final int action_reset=0x7f050042;
         public static final int app_name=0x7f050000;
         public static final int avg=0x7f05002e;
         public static final int bpm=0x7f050024;
@@ -142,6 +154,7 @@ public final class R {
         public static final int menu_stop=0x7f050008;
         public static final int min=0x7f05002c;
         public static final int msg_delete_dialog=0x7f050039;
+        public static final int msg_metrics_saved=0x7f050043;
         public static final int msg_no_log=0x7f05003d;
         public static final int msg_sensor_uninitialized=0x7f05003c;
         public static final int ok=0x7f050013;
@@ -166,6 +179,7 @@ public final class R {
         /**  LineChart activity items 
          */
         public static final int title_activity_line_chart=0x7f050032;
+        public static final int title_activity_metrics=0x7f050040;
         /**  Session activity items 
          */
         public static final int title_activity_session=0x7f050025;
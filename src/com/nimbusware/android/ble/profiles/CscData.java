@@ -16,4 +16,19 @@ public interface CscData {
 
 	public double getCadence();
 
-	public int getCrankRevsSinceLastRead();}
+	public int getCrankRevsSinceLastRead();
+
+	/**
+	 * Average speed over a sliding window, see CscProfile.WINDOW_*.
+	 * @param window
+	 * @return
+	 */
+	public double getSpeed(int window);
+
+	/**
+	 * Average cadence over a sliding window, see CscProfile.WINDOW_*.
+	 * @param window
+	 * @return
+	 */
+	public double getCadence(int window);
+}
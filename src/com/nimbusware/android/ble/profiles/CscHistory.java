@@ -0,0 +1,229 @@
+package com.nimbusware.android.ble.profiles;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-capacity ring buffer of recent Cycling Speed and Cadence readings.
+ * Each slot holds the arrival time of a notification and the cumulative
+ * wheel/crank revolution counts and event times reported by the sensor,
+ * unwrapped into 64-bit values so that roll-overs are handled once, on insert.
+ * <p>
+ * A set of sliding windows is given at construction time: each window keeps
+ * a cursor on the newest reading that is at least that old, and cursors only
+ * move forward, so both adding a reading and querying a window are O(1)
+ * (amortized). Memory is constant whatever the length of the session;
+ * a window longer than what the buffer can hold is measured on the
+ * oldest reading still available.
+ * <p>
+ * This class is not thread safe: it is meant to be owned by a single parser.
+ */
+public class CscHistory {
+
+	private static final double TIME_RESOLUTION = 1024d; // event times are in 1/1024s
+	private static final double SECS_IN_MINUTE = 60d;
+
+	private final int _capacity;
+	private final long[] _windows;
+	private final long[] _cursors;
+	private final long[] _arrival;
+	private final long[] _wheelRevs;
+	private final long[] _wheelTime;
+	private final long[] _crankRevs;
+	private final long[] _crankTime;
+
+	// sequence number of the newest reading (-1 if none): slot is _last % _capacity
+	private long _last = -1;
+	// raw wheel counter of the newest reading, needed to detect sensor resets
+	private int _lastRawWheelRevs;
+	private boolean _wheelSeen;
+	private boolean _crankSeen;
+
+	/**
+	 * @param capacity max number of readings retained
+	 * @param windows lengths of the sliding windows, in milliseconds
+	 */
+	public CscHistory(int capacity, long... windows) {
+		if (capacity < 2)
+			throw new IllegalArgumentException("Capacity must be at least 2");
+
+		for (long window : windows) {
+			if (window <= 0)
+				throw new IllegalArgumentException("Invalid window length: " + window);
+		}
+
+		_capacity = capacity;
+		_windows = windows.clone();
+		_cursors = new long[windows.length];
+		_arrival = new long[capacity];
+		_wheelRevs = new long[capacity];
+		_wheelTime = new long[capacity];
+		_crankRevs = new long[capacity];
+		_crankTime = new long[capacity];
+	}
+
+	/**
+	 * Number of sliding windows managed by this buffer.
+	 * @return
+	 */
+	public int getWindowCount() {
+		return _windows.length;
+	}
+
+	/**
+	 * Number of readings currently held.
+	 * @return
+	 */
+	public int size() {
+		return (int) Math.min(_last + 1, _capacity);
+	}
+
+	public void clear() {
+		_last = -1;
+		_wheelSeen = false;
+		_crankSeen = false;
+		Arrays.fill(_cursors, 0);
+	}
+
+	/**
+	 * Appends a new reading, possibly overwriting the oldest one.
+	 * Counters are passed as they come from the sensor: if a notification
+	 * does not carry wheel (or crank) data, previous values are carried over.
+	 *
+	 * @param timestamp arrival time in milliseconds, from a monotonic clock
+	 * @param hasWheel
+	 * @param wheelRevs cumulative wheel revolutions (UINT32)
+	 * @param wheelTime last wheel event time (UINT16, 1/1024s)
+	 * @param hasCrank
+	 * @param crankRevs cumulative crank revolutions (UINT16)
+	 * @param crankTime last crank event time (UINT16, 1/1024s)
+	 */
+	public void add(long timestamp, boolean hasWheel, int wheelRevs, int wheelTime,
+			boolean hasCrank, int crankRevs, int crankTime) {
+		int slot = slot(_last + 1);
+		long wr = 0;
+		long wt = 0;
+		long cr = 0;
+		long ct = 0;
+		if (_last >= 0) {
+			int prev = slot(_last);
+			wr = _wheelRevs[prev];
+			wt = _wheelTime[prev];
+			cr = _crankRevs[prev];
+			ct = _crankTime[prev];
+		}
+		// counters are unsigned and roll over: modular arithmetic on the
+		// low-order bits of the unwrapped values takes care of that; the
+		// first time a counter shows up, it only sets the baseline
+		if (hasWheel) {
+			if (_wheelSeen) {
+				int revs = wheelRevs - _lastRawWheelRevs;
+				if (revs > 0) { // negative: counter went backwards, the sensor was reset
+					wr += revs;
+				}
+				wt += (wheelTime - (int) wt) & 0xFFFF;
+			} else {
+				wt = wheelTime & 0xFFFF;
+				_wheelSeen = true;
+			}
+			_lastRawWheelRevs = wheelRevs;
+		}
+		if (hasCrank) {
+			if (_crankSeen) {
+				cr += (crankRevs - (int) cr) & 0xFFFF;
+				ct += (crankTime - (int) ct) & 0xFFFF;
+			} else {
+				cr = crankRevs & 0xFFFF;
+				ct = crankTime & 0xFFFF;
+				_crankSeen = true;
+			}
+		}
+		_wheelRevs[slot] = wr;
+		_wheelTime[slot] = wt;
+		_crankRevs[slot] = cr;
+		_crankTime[slot] = ct;
+		_arrival[slot] = timestamp;
+		_last++;
+
+		// move window cursors forward: the oldest retained reading is a
+		// lower bound, and we stop at the newest reading old enough to
+		// cover the whole window
+		long oldest = Math.max(0, _last - _capacity + 1);
+		for (int i = 0; i < _windows.length; i++) {
+			long cursor = Math.max(_cursors[i], oldest);
+			long limit = timestamp - _windows[i];
+			while (cursor < _last && _arrival[slot(cursor + 1)] <= limit) {
+				cursor++;
+			}
+			_cursors[i] = cursor;
+		}
+	}
+
+	/**
+	 * Wheel revolutions counted between the last two readings.
+	 * If no previous reading is available, returns zero.
+	 * @return
+	 */
+	public int getWheelRevsSinceLastRead() {
+		return _last > 0 ? (int) (_wheelRevs[slot(_last)] - _wheelRevs[slot(_last - 1)]) : 0;
+	}
+
+	/**
+	 * Crank revolutions counted between the last two readings.
+	 * If no previous reading is available, returns zero.
+	 * @return
+	 */
+	public int getCrankRevsSinceLastRead() {
+		return _last > 0 ? (int) (_crankRevs[slot(_last)] - _crankRevs[slot(_last - 1)]) : 0;
+	}
+
+	/**
+	 * Wheel RPMs measured between the last two readings.
+	 * If no previous reading is available, returns zero.
+	 * @return
+	 */
+	public double getWheelRPM() {
+		return _last > 0 ? getRPM(_wheelRevs, _wheelTime, _last - 1) : 0;
+	}
+
+	/**
+	 * Crank RPMs measured between the last two readings.
+	 * If no previous reading is available, returns zero.
+	 * @return
+	 */
+	public double getCrankRPM() {
+		return _last > 0 ? getRPM(_crankRevs, _crankTime, _last - 1) : 0;
+	}
+
+	/**
+	 * Average wheel RPMs over the given sliding window.
+	 * @param window index of the window, as given to the constructor
+	 * @return
+	 */
+	public double getWheelRPM(int window) {
+		return _last > 0 ? getRPM(_wheelRevs, _wheelTime, _cursors[window]) : 0;
+	}
+
+	/**
+	 * Average crank RPMs over the given sliding window.
+	 * @param window index of the window, as given to the constructor
+	 * @return
+	 */
+	public double getCrankRPM(int window) {
+		return _last > 0 ? getRPM(_crankRevs, _crankTime, _cursors[window]) : 0;
+	}
+
+	private double getRPM(long[] revs, long[] times, long from) {
+		int first = slot(from);
+		int last = slot(_last);
+		double secs = (times[last] - times[first]) / TIME_RESOLUTION;
+		if (secs > 0) {
+			return (revs[last] - revs[first]) / secs * SECS_IN_MINUTE;
+		} else {
+			return 0;
+		}
+	}
+
+	private int slot(long seq) {
+		return (int) (seq % _capacity);
+	}
+}
@@ -4,16 +4,33 @@ import java.util.Map;
 import java.util.UUID;
 
 import com.nimbusware.android.ble.sensors.DataParser;
+import com.nimbusware.android.ble.sensors.DataSampler;
 import com.nimbusware.android.ble.sensors.SensorProfile;
-
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.util.Log;
+import com.nimbusware.mypersonalbiketrainer.core.Logger;
+import com.nimbusware.mypersonalbiketrainer.core.Logging;
 
 public class CscProfile implements SensorProfile<CscData> {
 	
 	public static final String WHEEL_SIZE = "WHEEL_SIZE";
 	
+	// sliding windows for averaged speed and cadence, see CscData
+	public static final int WINDOW_3S = 0;
+	public static final int WINDOW_10S = 1;
+	public static final int WINDOW_30S = 2;
+	private static final long[] WINDOWS = { 3000, 10000, 30000 };
+	
+	// channels of the DataSampler returned by getSampler()
+	public static final int CHANNEL_SPEED = 0;
+	public static final int CHANNEL_DISTANCE = 1;
+	public static final int CHANNEL_CADENCE = 2;
+	public static final int CHANNEL_WHEEL_REVS = 3;
+	public static final int CHANNEL_CRANK_REVS = 4;
+	
+	// enough for 30s of notifications at 4Hz
+	private static final int HISTORY_CAPACITY = 128;
+	
 	private static final CscProfile INSTANCE = new CscProfile();
+	private static final DataSampler<CscData> SAMPLER = new Sampler();
 	private static final String TAG = CscProfile.class.getSimpleName();
 	
 	// constants from BT documentation
@@ -25,6 +42,24 @@ public class CscProfile implements SensorProfile<CscData> {
     	return INSTANCE;
     }
     
+    /**
+     * Sampler for DataBatchListeners: see CHANNEL_* for the meaning of each value.
+     * @return
+     */
+    public static DataSampler<CscData> getSampler() {
+    	return SAMPLER;
+    }
+    
+    /**
+     * A parser of CSC Measurement payloads, outside of any sensor
+     * (e.g., replays, benchmarks): feed it with plain byte arrays.
+     * @param wheelSize in millimeters
+     * @return
+     */
+    public static DataParser<CscData> newParser(int wheelSize) {
+    	return new Parser(wheelSize);
+    }
+    
     private CscProfile() {} // singleton: use getInstance() instead
 	
 	@Override
@@ -45,18 +80,26 @@ public class CscProfile implements SensorProfile<CscData> {
 	@Override
 	public DataParser<CscData> getParser(Map<String, String> config) {
 		// we have a runtime exception if the wheel size is not properly configured
-		return new Parser(Integer.parseInt(config.get(WHEEL_SIZE)));
+		return newParser(Integer.parseInt(config.get(WHEEL_SIZE)));
 	}
 	
+	/**
+	 * Mutable implementation of CscData: each Parser owns exactly one
+	 * instance, which is refreshed in place on every notification so that
+	 * the decoding path does not allocate. Listeners must copy any value
+	 * they wish to retain beyond the scope of DataListener.notifyNewData.
+	 */
 	private static class Data implements CscData {
 
-		private final double _speed;
-		private final double _distance;
-		private final int _wheelRevs;
-		private final double _cadence;
-		private final int _crankRevs;
+		private final double[] _speeds = new double[WINDOWS.length];
+		private final double[] _cadences = new double[WINDOWS.length];
+		private double _speed;
+		private double _distance;
+		private int _wheelRevs;
+		private double _cadence;
+		private int _crankRevs;
 		
-		private Data(double speed, double distance, int wheelRevs, double cadence, int crankRevs) {
+		private void set(double speed, double distance, int wheelRevs, double cadence, int crankRevs) {
 			_speed = speed;
 			_distance = distance;
 			_wheelRevs = wheelRevs;
@@ -88,16 +131,54 @@ public class CscProfile implements SensorProfile<CscData> {
 		public int getCrankRevsSinceLastRead() {
 			return _crankRevs;
 		}
+
+		@Override
+		public double getSpeed(int window) {
+			return _speeds[window];
+		}
+
+		@Override
+		public double getCadence(int window) {
+			return _cadences[window];
+		}
 	}
 	
+	private static class Sampler implements DataSampler<CscData> {
+
+		@Override
+		public int getChannelCount() {
+			return 5;
+		}
+
+		@Override
+		public void sample(CscData data, double[] values) {
+			values[CHANNEL_SPEED] = data.getSpeed();
+			values[CHANNEL_DISTANCE] = data.getDistance();
+			values[CHANNEL_CADENCE] = data.getCadence();
+			values[CHANNEL_WHEEL_REVS] = data.getWheelRevsSinceLastRead();
+			values[CHANNEL_CRANK_REVS] = data.getCrankRevsSinceLastRead();
+		}
+	}
+	
+	/**
+	 * Decodes CSC Measurement notifications (characteristic 0x2A5B).
+	 * Flags and counters are read straight from the payload bytes into
+	 * primitive state, and results are delivered through a single reusable
+	 * Data object: in steady state, parse() does not allocate at all
+	 * (verbose logging excluded).
+	 */
 	private static class Parser implements DataParser<CscData> {
 
 	    private final static int WHEEL_DATA_MASK = 0x01;
 	    private final static int CRANK_DATA_MASK = 0x02;
+		private static final double SPEED_CONSTANT = 60d / 1000000d;
 	    
 	    private final int _wheelSize;
+	    private final Data _data = new Data();
+	    private final CscHistory _history = new CscHistory(HISTORY_CAPACITY, WINDOWS);
     
-	    private CscReading _lastReading;
+	    private int _lastWheelRevs;
+	    private int _lastCrankRevs;
 		private double _lastSpeed;
 		private double _lastCadence;
 		
@@ -109,55 +190,54 @@ public class CscProfile implements SensorProfile<CscData> {
 		}
 		
 		@Override
-		public CscData parse(BluetoothGattCharacteristic btData) {
-			final byte[] data = btData.getValue();
+		public CscData parse(byte[] data, long timestamp) {
+			final Logger log = Logging.getLogger();
 			if (data != null && data.length > 0) {
 				int flag = data[0];
-			    boolean hasWheel = false;
-			    boolean hasCrank = false;
-			    if ((flag & WHEEL_DATA_MASK) == WHEEL_DATA_MASK) {
-			    	hasWheel = true;
-			    }
-			    if ((flag & CRANK_DATA_MASK) == CRANK_DATA_MASK) {
-			    	hasCrank = true;
+			    boolean hasWheel = (flag & WHEEL_DATA_MASK) == WHEEL_DATA_MASK;
+			    boolean hasCrank = (flag & CRANK_DATA_MASK) == CRANK_DATA_MASK;
+			    
+			    int length = 1 + (hasWheel ? 6 : 0) + (hasCrank ? 4 : 0);
+			    if (data.length < length) {
+				    log.w(TAG, "CSC notification is truncated: " + data.length + " bytes, " + length + " expected.");
+				    return null;
 			    }
 			    
-			    int wheelRevs = 0;
-			    int wheelElapsed = 0;
-			    int crankRevs = 0;
-			    int crankElapsed = 0;
-			    if (hasWheel && hasCrank) {
-			    	wheelRevs = btData.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 1);
-			    	wheelElapsed = btData.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 5);
-			    	crankRevs = btData.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 7);
-			    	crankElapsed = btData.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 9);
-			    } else if (hasWheel) {
-			    	wheelRevs = btData.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 1);
-			    	wheelElapsed = btData.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 5);
-			    } else if (hasCrank) {
-			    	crankRevs = btData.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 1);
-			    	crankElapsed = btData.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 3);
+			    int wheelCR = 0;
+			    int wheelCT = 0;
+			    int crankCR = 0;
+			    int crankCT = 0;
+			    int offset = 1;
+			    if (hasWheel) {
+			    	wheelCR = readUInt32(data, offset);
+			    	wheelCT = readUInt16(data, offset + 4);
+			    	offset += 6;
+			    }
+			    if (hasCrank) {
+			    	crankCR = readUInt16(data, offset);
+			    	crankCT = readUInt16(data, offset + 2);
 			    }
 			    
-		        StringBuffer buf = new StringBuffer();
-		        buf.append("WHEEL_REV_COUNT=").append(wheelRevs);
-		        buf.append(", WHEEL_TIME_COUNT=").append(wheelElapsed);
-		        buf.append(", CRANK_REV_COUNT=").append(crankRevs);
-		        buf.append(", CRANK_TIME_COUNT=").append(crankElapsed);
-			    Log.v(TAG, "CSC raw data: " + buf.toString());
+			    final boolean verbose = log.isVerbose(TAG);
+			    if (verbose) {
+				    log.v(TAG, "CSC raw data: WHEEL_REV_COUNT=" + wheelCR + 
+				    		", WHEEL_TIME_COUNT=" + wheelCT + 
+				    		", CRANK_REV_COUNT=" + crankCR + 
+				    		", CRANK_TIME_COUNT=" + crankCT);
+			    }
 
-			    CscReading newReading = new CscReading(wheelRevs, wheelElapsed, crankRevs, crankElapsed, _lastReading);
+			    // if no previous reading is available, all deltas are zero
+			    _history.add(timestamp, hasWheel, wheelCR, wheelCT, hasCrank, crankCR, crankCT);
+			    int wheelRevs = _history.getWheelRevsSinceLastRead();
+			    int crankRevs = _history.getCrankRevsSinceLastRead();
+			    double speed = _history.getWheelRPM() * _wheelSize * SPEED_CONSTANT;
+			    double cadence = _history.getCrankRPM();
 			    
-		    	double speed = newReading.getSpeed(_wheelSize);
-		    	double cadence = newReading.getCrankRPM();
-		    	
-		    	buf = new StringBuffer();
-		        buf.append("SPEED=").append(speed);
-		        buf.append(", CADENCE=").append(cadence);
-			    Log.v(TAG, "CSC notification data: " + buf.toString());
+			    if (verbose) {
+				    log.v(TAG, "CSC notification data: SPEED=" + speed + ", CADENCE=" + cadence);
+			    }
 			    
-			    double distance = _lastReading != null ? _lastReading.getDistance(_wheelSize) : 0;
-			    int wheelRevsSlr = _lastReading != null ? _lastReading.getWheelRevsSinceLastRead() : 0;
+			    int wheelRevsSlr = _lastWheelRevs;
 			    if (speed > 0 || _lastSpeed == 0) { // filter out spurious negative values (of unknown origin)
 		    		// current speed is either a positive value or zero: in the latter case,
 		    		// we skip notification unless the previous value was also zero, to the
@@ -165,11 +245,10 @@ public class CscProfile implements SensorProfile<CscData> {
 		    		// midst of a regular session) are filtered out; not that a zero speed
 		    		// reading also means that the wheel rev count is not changed since last
 		    		// reading, so total distance and total rev count are unaffected
-			    	distance = newReading.getDistance(_wheelSize);
-			    	wheelRevsSlr = newReading.getWheelRevsSinceLastRead();
+			    	wheelRevsSlr = wheelRevs;
 			    }
 			    
-			    int crankRevsSlr = _lastReading.getCrankRevsSinceLastRead();
+			    int crankRevsSlr = _lastCrankRevs;
 			    if (cadence > 0 || _lastCadence == 0) { // filter out spurious negative values (of unknown origin)
 		    		// current cadence is either a positive value or zero: in the latter case,
 		    		// we skip notification unless the previous value was also zero, to the
@@ -177,185 +256,35 @@ public class CscProfile implements SensorProfile<CscData> {
 		    		// midst of a regular session) are filtered out; not that a zero cadence
 		    		// reading also means that the crank rev count is not changed since last
 		    		// reading, so total total crank count is unaffected
-			    	crankRevsSlr = newReading.getCrankRevsSinceLastRead();
+			    	crankRevsSlr = crankRevs;
 			    }
 			    
-			    _lastReading = newReading;
+			    _lastWheelRevs = wheelRevs;
+			    _lastCrankRevs = crankRevs;
 			    _lastSpeed = speed;
 			    _lastCadence = cadence;
 			    
-			    return new Data(speed, distance, wheelRevsSlr, cadence, crankRevsSlr);
+			    _data.set(speed, wheelRevsSlr * _wheelSize / 1000d, wheelRevsSlr, cadence, crankRevsSlr);
+			    for (int i = 0; i < WINDOWS.length; i++) {
+			    	_data._speeds[i] = _history.getWheelRPM(i) * _wheelSize * SPEED_CONSTANT;
+			    	_data._cadences[i] = _history.getCrankRPM(i);
+			    }
+			    return _data;
 			} else {
-			    Log.w(TAG, "CSC notification contains no data.");
+			    log.w(TAG, "CSC notification contains no data.");
 			    return null;
 			}
 		}
 		
-	}
-	
-	private static class CscReading {
-		
-		private static final double TIME_RESOLUTION = 1024d;
-		private static final double SECS_IN_MINUTE = 60d;
-		private static final double SPEED_CONSTANT = 60d / 1000000d;
-
-	    private final int _wheelCR;
-	    private final int _wheelCT;
-	    private final int _crankCR;
-	    private final int _crankCT;
-		private final CscReading _previous;
-	    
-		private CscReading(int wheelRevs, int wheelTime, int crankRevs, int crankTime, CscReading previousReading) {
-			_wheelCR = wheelRevs;
-			_wheelCT = wheelTime;
-			_crankCR = crankRevs;
-			_crankCT = crankTime;
-			_previous = previousReading;
+		// little-endian, as mandated by the GATT specification
+		private static int readUInt16(byte[] data, int offset) {
+			return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
 		}
 		
-		/**
-		 * Returns the RPMs of the wheel measured starting from last reading.
-		 * If no previous reading is available, returns zero.
-		 * 
-		 * @return
-		 */
-		public double getWheelRPM() {
-			double rpm = 0;
-			int revCount = getWheelRevsSinceLastRead();
-			Log.v(TAG, "Wheel: rev count is " + revCount);
-			double secCount = getWheelSecondsSinceLastRead();
-			Log.v(TAG, "Wheel: sec count is " + secCount);
-			if (secCount > 0) {
-				rpm = revCount / secCount * 60;
-				Log.v(TAG, "Wheel: rpm is " + rpm);
-			}
-			return rpm;
-		}
-		
-		/**
-		 * Returns the RPMs of the crank measured starting from last reading.
-		 * If no previous reading is available, returns zero.
-		 * 
-		 * @return
-		 */
-		public double getCrankRPM() {
-			double rpm = 0;
-			int revCount = getCrankRevsSinceLastRead();
-			Log.v(TAG, "Crank: rev count is " + revCount);
-			double secCount = getCrankSecondsSinceLastRead();
-			Log.v(TAG, "Crank: sec count is " + secCount);
-			if (secCount > 0) {
-				rpm = revCount / secCount * SECS_IN_MINUTE;
-				Log.v(TAG, "Crank: rpm is " + rpm);
-			}
-			return rpm;
-		}
-		
-		/**
-		 * Given the wheel diameter in millimeters, returns the virtual speed measured
-		 * starting from last reading, in kilometers per hour.
-		 * If no previous reading is available, returns zero.
-		 * 
-		 * @param wheelSize
-		 * @return
-		 */
-		public double getSpeed(int wheelSize) {
-			double speed = 0;
-			double rpms = getWheelRPM();
-			if (rpms > 0) {
-				speed = rpms * wheelSize * SPEED_CONSTANT;
-				Log.v(TAG, "Wheel: speed is " + speed);
-			} else {
-				Log.v(TAG, "Wheel: speed is 0");
-			}
-			return speed;
-		}
-
-		/**
-		 * Given the wheel diameter in millimeters, returns the virtual distance
-		 * covered since last reading, expressed in meters.
-		 * If no previous reading is available, returns zero.
-		 * 
-		 * @param wheelSize
-		 * @return
-		 */
-		public double getDistance(int wheelSize) {
-			return getWheelRevsSinceLastRead() * wheelSize / 1000d;
-		}
-
-		public int getWheelCumulativeRevs() {
-			return _wheelCR;
-		}
-
-		public int getWheelCumulativeTime() {
-			return _wheelCT;
-		}
-
-		public int getCrankCumulativeRevs() {
-			return _crankCR;
-		}
-
-		public int getCrankCumulativeTime() {
-			return _crankCT;
-		}
-		
-		public int getWheelRevsSinceLastRead() {
-			int revs = 0;
-			if (null != _previous) {
-				int prevReading = _previous.getWheelCumulativeRevs();
-				int currReading = getWheelCumulativeRevs();
-				if (currReading < prevReading) {
-					// Integer overflow (wow... lots of miles!)
-					revs = (Integer.MAX_VALUE - prevReading + currReading);
-				} else {
-					revs = currReading - prevReading;
-				}
-			}
-			return revs;
-		}
-		
-		public int getCrankRevsSinceLastRead() {
-			int revs = 0;
-			if (null != _previous) {
-				int prevReading = _previous.getCrankCumulativeRevs();
-				int currReading = getCrankCumulativeRevs();
-				if (currReading < prevReading) {
-					// Short overflow
-					revs = (Short.MAX_VALUE - prevReading + currReading);
-				} else {
-					revs = currReading - prevReading;
-				}
-			}
-			return revs;
-		}
-		
-		private double getWheelSecondsSinceLastRead() {
-			if (null != _previous) {
-				int prevTime = _previous.getWheelCumulativeTime();
-				int currTime = getWheelCumulativeTime();
-				return getElapsedTimeSinceLastRead(prevTime, currTime) / TIME_RESOLUTION;
-			} else {
-				return 0d;
-			}
-		}
-		
-		private double getCrankSecondsSinceLastRead() {
-			if (null != _previous) {
-				int prevTime = _previous.getCrankCumulativeTime();
-				int currTime = getCrankCumulativeTime();
-				return getElapsedTimeSinceLastRead(prevTime, currTime) / TIME_RESOLUTION;
-			} else {
-				return 0d;
-			}
-		}
-		
-		private int getElapsedTimeSinceLastRead(int prevTime, int currTime) {
-			if (currTime > prevTime) {
-				return (currTime - prevTime);
-			} else {
-				// Short overflow occurred
-				return (Short.MAX_VALUE - prevTime + currTime);
-			}
+		// the result is unsigned modulo 2^32: only deltas are meaningful
+		private static int readUInt32(byte[] data, int offset) {
+			return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) |
+					((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
 		}
 	}
 }
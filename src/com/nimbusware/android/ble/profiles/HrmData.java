@@ -8,5 +8,58 @@ package com.nimbusware.android.ble.profiles;
  */
 public interface HrmData {
 
+	/**
+	 * RR intervals are expressed in 1/1024 of a second.
+	 */
+	public static final double RR_RESOLUTION = 1024d;
+
 	public int getHeartRate();
+
+	/**
+	 * True if the sensor is able to tell whether it has skin contact.
+	 * @return
+	 */
+	public boolean isSensorContactSupported();
+
+	/**
+	 * True if skin contact is detected, or if the sensor
+	 * does not support contact detection at all.
+	 * @return
+	 */
+	public boolean isSensorContactDetected();
+
+	/**
+	 * True if this notification carries the Energy Expended field.
+	 * @return
+	 */
+	public boolean hasEnergyExpended();
+
+	/**
+	 * Accumulated energy expended in kilojoules, as reported by the sensor;
+	 * -1 if not available (see hasEnergyExpended()).
+	 * @return
+	 */
+	public int getEnergyExpended();
+
+	/**
+	 * Number of RR intervals carried by this notification (may be zero).
+	 * @return
+	 */
+	public int getRrIntervalCount();
+
+	/**
+	 * RR interval from this notification, oldest first, in 1/1024s.
+	 * @param index
+	 * @return
+	 */
+	public int getRrInterval(int index);
+
+	/**
+	 * Recent RR intervals received by the parser across notifications,
+	 * in 1/1024s. The buffer is owned by the parser and updated in place:
+	 * read it from within DataListener.notifyNewData, or copy the values
+	 * you need (see IntRingBuffer.copySince()).
+	 * @return
+	 */
+	public IntRingBuffer getRrHistory();
 }
@@ -4,14 +4,19 @@ import java.util.Map;
 import java.util.UUID;
 
 import com.nimbusware.android.ble.sensors.DataParser;
+import com.nimbusware.android.ble.sensors.DataSampler;
 import com.nimbusware.android.ble.sensors.SensorProfile;
-
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.util.Log;
+import com.nimbusware.mypersonalbiketrainer.core.Logger;
+import com.nimbusware.mypersonalbiketrainer.core.Logging;
 
 public class HrmProfile implements SensorProfile<HrmData> {
 	
+	// channels of the DataSampler returned by getSampler()
+	public static final int CHANNEL_HEART_RATE = 0;
+	public static final int CHANNEL_ENERGY = 1;
+	
 	private static final HrmProfile INSTANCE = new HrmProfile();
+	private static final DataSampler<HrmData> SAMPLER = new Sampler();
 	private static final String TAG = HrmProfile.class.getSimpleName();
 	
 	// constants from BT documentation
@@ -23,6 +28,25 @@ public class HrmProfile implements SensorProfile<HrmData> {
     	return INSTANCE;
     }
     
+    /**
+     * Sampler for DataBatchListeners: see CHANNEL_* for the meaning of each value;
+     * energy is -1 when not reported. RR intervals are not sampled, as they come
+     * in variable numbers: use HrmData.getRrHistory() instead.
+     * @return
+     */
+    public static DataSampler<HrmData> getSampler() {
+    	return SAMPLER;
+    }
+    
+    /**
+     * A parser of Heart Rate Measurement payloads, outside of any sensor
+     * (e.g., replays, benchmarks): feed it with plain byte arrays.
+     * @return
+     */
+    public static DataParser<HrmData> newParser() {
+    	return new Parser();
+    }
+    
     private HrmProfile() {} // singleton: use getInstance() instead
 	
 	@Override
@@ -42,41 +66,172 @@ public class HrmProfile implements SensorProfile<HrmData> {
 
 	@Override
 	public DataParser<HrmData> getParser(Map<String, String> config) {
-		return new Parser();
+		return newParser();
 	}
 	
+	/**
+	 * Mutable implementation of HrmData: each Parser owns exactly one
+	 * instance, which is refreshed in place on every notification.
+	 * Listeners must copy any value they wish to retain beyond the scope
+	 * of DataListener.notifyNewData.
+	 */
 	private static class Data implements HrmData {
 
-		private final int _rate;
+		// a notification is at most 20 bytes long: flags and a UINT16 rate
+		// leave room for at most 9 RR intervals
+		private final int[] _rrIntervals = new int[9];
+		private final IntRingBuffer _rrHistory;
+		private int _rate;
+		private boolean _contactSupported;
+		private boolean _contactDetected;
+		private int _energy;
+		private int _rrCount;
 
-		private Data(int rate) {
-			_rate = rate;
+		private Data(IntRingBuffer rrHistory) {
+			_rrHistory = rrHistory;
 		}
 
 		@Override
 		public int getHeartRate() {
 			return _rate;
 		}
+
+		@Override
+		public boolean isSensorContactSupported() {
+			return _contactSupported;
+		}
+
+		@Override
+		public boolean isSensorContactDetected() {
+			return _contactDetected;
+		}
+
+		@Override
+		public boolean hasEnergyExpended() {
+			return _energy >= 0;
+		}
+
+		@Override
+		public int getEnergyExpended() {
+			return _energy;
+		}
+
+		@Override
+		public int getRrIntervalCount() {
+			return _rrCount;
+		}
+
+		@Override
+		public int getRrInterval(int index) {
+			if (index < 0 || index >= _rrCount)
+				throw new IndexOutOfBoundsException("Index: " + index + ", count: " + _rrCount);
+
+			return _rrIntervals[index];
+		}
+
+		@Override
+		public IntRingBuffer getRrHistory() {
+			return _rrHistory;
+		}
+	}
+	
+	private static class Sampler implements DataSampler<HrmData> {
+
+		@Override
+		public int getChannelCount() {
+			return 2;
+		}
+
+		@Override
+		public void sample(HrmData data, double[] values) {
+			values[CHANNEL_HEART_RATE] = data.getHeartRate();
+			values[CHANNEL_ENERGY] = data.getEnergyExpended();
+		}
 	}
 	
+	/**
+	 * Decodes Heart Rate Measurement notifications (characteristic 0x2A37).
+	 * The format of each field is given by the flags in the first byte of
+	 * the payload, which is read directly; RR intervals are also pushed
+	 * into a primitive ring buffer, so that beat-to-beat data is retained
+	 * at full resolution without allocating per beat.
+	 */
 	private static class Parser implements DataParser<HrmData> {
 
+		private static final int RATE_FORMAT_MASK = 0x01;
+		private static final int CONTACT_STATUS_MASK = 0x02;
+		private static final int CONTACT_SUPPORT_MASK = 0x04;
+		private static final int ENERGY_MASK = 0x08;
+		private static final int RR_MASK = 0x10;
+		
+		// one RR interval per beat: at most about 15 minutes of history at 70 BPM
+		private static final int RR_INITIAL_CAPACITY = 256;
+		private static final int RR_MAX_CAPACITY = 1024;
+		
+		private final Data _data = new Data(new IntRingBuffer(RR_INITIAL_CAPACITY, RR_MAX_CAPACITY));
+
 		@Override
-		public HrmData parse(BluetoothGattCharacteristic btData) {
-			int flag = btData.getProperties();
-			int format = -1;
-			if ((flag & 0x01) != 0) {
-			    format = BluetoothGattCharacteristic.FORMAT_UINT16;
+		public HrmData parse(byte[] data, long timestamp) {
+			final Logger log = Logging.getLogger();
+			if (data == null || data.length < 2) {
+			    log.w(TAG, "HRM notification is truncated.");
+				return null;
+			}
+			
+			final Data result = _data;
+			
+			int flag = data[0];
+			boolean isUInt16 = (flag & RATE_FORMAT_MASK) != 0;
+			boolean hasEnergy = (flag & ENERGY_MASK) != 0;
+			int length = 1 + (isUInt16 ? 2 : 1) + (hasEnergy ? 2 : 0);
+			if (data.length < length) {
+			    log.w(TAG, "HRM notification is truncated: " + data.length + " bytes, " + length + " expected.");
+				return null;
+			}
+			
+			int offset = 1;
+			if (isUInt16) {
+				result._rate = readUInt16(data, offset);
+				offset += 2;
 			} else {
-			    format = BluetoothGattCharacteristic.FORMAT_UINT8;
+				result._rate = data[offset] & 0xFF;
+				offset++;
 			}
 			
-			int heartRate = btData.getIntValue(format, 1);
-
-		    Log.v(TAG, "HRM notification data: HEART_RATE=" + heartRate);
-		    
-		    return new Data(heartRate);
+			result._contactSupported = (flag & CONTACT_SUPPORT_MASK) != 0;
+			result._contactDetected = !result._contactSupported || (flag & CONTACT_STATUS_MASK) != 0;
+			
+			if (hasEnergy) {
+				result._energy = readUInt16(data, offset);
+				offset += 2;
+			} else {
+				result._energy = -1;
+			}
+			
+			result._rrCount = 0;
+			if ((flag & RR_MASK) != 0) {
+				// RR intervals fill the rest of the payload, oldest first
+				while (offset + 1 < data.length && result._rrCount < result._rrIntervals.length) {
+					int rr = readUInt16(data, offset);
+					result._rrIntervals[result._rrCount++] = rr;
+					result._rrHistory.add(rr);
+					offset += 2;
+				}
+			}
+			
+			if (log.isVerbose(TAG)) {
+			    log.v(TAG, "HRM notification data: HEART_RATE=" + result._rate + 
+			    		", CONTACT=" + result._contactDetected + 
+			    		", ENERGY=" + result._energy + 
+			    		", RR_COUNT=" + result._rrCount);
+			}
+			
+		    return result;
 		}
 		
+		// little-endian, as mandated by the GATT specification
+		private static int readUInt16(byte[] data, int offset) {
+			return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+		}
 	}
 }
@@ -0,0 +1,123 @@
+package com.nimbusware.android.ble.profiles;
+
+/**
+ * Ring buffer of primitive int values. The backing array starts small and
+ * doubles as needed up to a maximum capacity; once that is reached, each
+ * new value overwrites the oldest one. No object is allocated per value.
+ * <p>
+ * Besides the values currently held, the buffer keeps a running count of
+ * all values ever added: a consumer can remember that count and later ask
+ * for the values added since then, without draining the buffer (and thus
+ * without interfering with other consumers).
+ * <p>
+ * This class is not thread safe: it is meant to be owned by a single parser.
+ */
+public class IntRingBuffer {
+
+	private final int _maxCapacity;
+	private int[] _values;
+	private int _head; // slot of the oldest value
+	private int _size;
+	private long _total;
+
+	/**
+	 * @param initialCapacity size of the backing array at start
+	 * @param maxCapacity max number of values retained
+	 */
+	public IntRingBuffer(int initialCapacity, int maxCapacity) {
+		if (initialCapacity <= 0 || maxCapacity < initialCapacity)
+			throw new IllegalArgumentException("Invalid capacity: " + initialCapacity + "/" + maxCapacity);
+
+		_maxCapacity = maxCapacity;
+		_values = new int[initialCapacity];
+	}
+
+	/**
+	 * Number of values currently held.
+	 * @return
+	 */
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * Number of values added since creation (or last clear),
+	 * including those that were overwritten.
+	 * @return
+	 */
+	public long getTotalCount() {
+		return _total;
+	}
+
+	public void clear() {
+		_head = 0;
+		_size = 0;
+		_total = 0;
+	}
+
+	public void add(int value) {
+		if (_size == _values.length && _size < _maxCapacity) {
+			grow();
+		}
+		if (_size < _values.length) {
+			_values[(_head + _size) % _values.length] = value;
+			_size++;
+		} else { // full: overwrite the oldest value
+			_values[_head] = value;
+			_head = (_head + 1) % _values.length;
+		}
+		_total++;
+	}
+
+	/**
+	 * Value at the given position, 0 being the oldest one held.
+	 * @param index
+	 * @return
+	 */
+	public int get(int index) {
+		if (index < 0 || index >= _size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + _size);
+
+		return _values[(_head + index) % _values.length];
+	}
+
+	/**
+	 * Most recent value.
+	 * @return
+	 */
+	public int getLast() {
+		return get(_size - 1);
+	}
+
+	/**
+	 * Copies into dest the values added after the given running count
+	 * (see getTotalCount()), oldest first. Values that were already
+	 * overwritten are skipped; at most dest.length values are copied,
+	 * starting from the oldest available.
+	 *
+	 * @param since a value previously returned by getTotalCount()
+	 * @param dest
+	 * @return number of values copied
+	 */
+	public int copySince(long since, int[] dest) {
+		long available = Math.min(_total - since, _size);
+		if (available <= 0)
+			return 0;
+
+		int count = (int) Math.min(available, dest.length);
+		int first = _size - (int) available;
+		for (int i = 0; i < count; i++) {
+			dest[i] = _values[(_head + first + i) % _values.length];
+		}
+		return count;
+	}
+
+	private void grow() {
+		int[] values = new int[Math.min(_values.length * 2, _maxCapacity)];
+		for (int i = 0; i < _size; i++) {
+			values[i] = _values[(_head + i) % _values.length];
+		}
+		_values = values;
+		_head = 0;
+	}
+}
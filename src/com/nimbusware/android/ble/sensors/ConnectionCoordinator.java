@@ -1,109 +1,423 @@
 package com.nimbusware.android.ble.sensors;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.nimbusware.mypersonalbiketrainer.core.MetricRegistry;
+import com.nimbusware.mypersonalbiketrainer.core.MetricRegistry.Histogram;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Opens a set of sensors concurrently, driven by their state callbacks:
+ * an attempt ends when its sensor reports Open or Closed, or when it times
+ * out, and the next sensor waiting (if any) is started right away - nothing
+ * sleeps or polls. At most a given number of attempts run at the same time:
+ * use 1 with BLE stacks that do not cope with parallel connections. A sensor
+ * which times out is reported as failed, but still counts against that limit
+ * until it reports Open or Closed: the stack is still busy connecting it.
+ * <p>
+ * The outcome of each sensor is reported by its own Connection, a Future
+ * which also tells how long the sensor took to open and to deliver its
+ * first data (both are logged as well).
+ */
 public class ConnectionCoordinator implements StateListener {
-	
+
+	private final static String TAG = ConnectionCoordinator.class.getSimpleName();
+	public final static long DEFAULT_TIMEOUT = 15000; // 15s
+
 	private final GenericSensor[] _sensors;
-	private int _current;
-	private State _state;
-	
+	private final int _parallelism;
+	private final long _timeout;
+	private final Handler _handler = new Handler(Looper.getMainLooper());
+	private final Map<GenericSensor, Runnable> _dataWatches = new IdentityHashMap<GenericSensor, Runnable>();
+	private final Histogram _timeToOpen = MetricRegistry.getDefault().histogram("sensors.time_to_open.ms", MetricRegistry.MILLIS);
+	private final Histogram _timeToFirstData = MetricRegistry.getDefault().histogram("sensors.time_to_first_data.ms", MetricRegistry.MILLIS);
+
+	// guarded by this
+	private final Map<GenericSensor, Connection> _connections = new LinkedHashMap<GenericSensor, Connection>();
+	private final LinkedList<GenericSensor> _waiting = new LinkedList<GenericSensor>();
+	private int _running;
+	private boolean _reopen;
+	private long _start;
+
+	/**
+	 * Opens all sensors at the same time.
+	 * @param sensors
+	 */
 	public ConnectionCoordinator(GenericSensor... sensors) {
-		if (sensors.length == 0)
+		this(sensors.length, DEFAULT_TIMEOUT, sensors);
+	}
+
+	/**
+	 * @param parallelism max number of sensors being opened at the same time
+	 * @param timeout max duration of each attempt, in milliseconds
+	 * @param sensors the same sensor may be given more than once, it is opened once
+	 */
+	public ConnectionCoordinator(int parallelism, long timeout, GenericSensor... sensors) {
+		if (sensors.length == 0 || parallelism <= 0 || timeout <= 0)
 			throw new IllegalArgumentException();
-		
-		_sensors = sensors;
+
+		List<GenericSensor> distinct = new ArrayList<GenericSensor>(sensors.length);
+		for (GenericSensor sensor : sensors) {
+			if (null == sensor)
+				throw new NullPointerException();
+			if (!distinct.contains(sensor)) {
+				distinct.add(sensor);
+				if (sensor instanceof Sensor) {
+					_dataWatches.put(sensor, newDataWatch((Sensor<?>) sensor));
+				}
+			}
+		}
+		_sensors = distinct.toArray(new GenericSensor[distinct.size()]);
+		_parallelism = parallelism;
+		_timeout = timeout;
 	}
-	
+
+	/**
+	 * @return true while sensors are waiting or being opened, including
+	 * those which timed out but did not report Open or Closed yet
+	 */
 	public synchronized boolean isOperationInProgress() {
-		return _state != State.Idle;
+		return _running > 0 || !_waiting.isEmpty();
 	}
 
-	public synchronized boolean open() {
-		if (_state == State.Idle) {
-			_state = State.Opening;
-			_current = 0;
-			
-			for (GenericSensor sensor : _sensors) {
-				sensor.registerStateListener(this);
-			}
-			
-			openNext();
-			
-			return true;
-		} else {
-			return false;
+	/**
+	 * Starts opening the sensors which are not open yet; returns
+	 * at once, false if an operation is already in progress.
+	 */
+	public boolean open() {
+		return start(false);
+	}
+
+	/**
+	 * Like open(), but sensors which are already open are reopened.
+	 */
+	public boolean reopen() {
+		return start(true);
+	}
+
+	/**
+	 * @param sensor
+	 * @return the outcome of the last operation for the given sensor,
+	 * null if there is none
+	 */
+	public synchronized Connection getConnection(GenericSensor sensor) {
+		return _connections.get(sensor);
+	}
+
+	/**
+	 * @return the outcome of the last operation, one per sensor
+	 */
+	public synchronized List<Connection> getConnections() {
+		return new ArrayList<Connection>(_connections.values());
+	}
+
+	/**
+	 * Records the first data of a sensor, for sensors which deliver it
+	 * through some other channel than Sensor.registerDataListener().
+	 * @param sensor
+	 */
+	public void notifyDataReceived(GenericSensor sensor) {
+		Connection connection;
+		long elapsed;
+		synchronized (this) {
+			connection = _connections.get(sensor);
+			if (null == connection || connection._firstData >= 0)
+				return;
+
+			elapsed = SystemClock.elapsedRealtime() - _start;
+			connection._firstData = elapsed;
 		}
+		_timeToFirstData.record(elapsed);
+		Log.i(TAG, "First data from " + sensor.getAddress() + " after " + elapsed + " ms");
 	}
-	
-	/*
-	 * TODO find some way of doing this!
-	public synchronized boolean reopen() {
-		if (_state == State.Idle) {
-			_state = State.Reopening;
-			_current = 0;
-			
-			for (Sensor<?> sensor : _sensors) {
-				sensor.registerStateListener(this);
+
+	public void close() {
+		List<Connection> pending = new ArrayList<Connection>();
+		synchronized (this) {
+			_waiting.clear();
+			_running = 0;
+			for (Connection connection : _connections.values()) {
+				connection._timedOut = false;
+				if (!connection.isDone()) {
+					pending.add(connection);
+				}
 			}
-			
-			reopenNext();
-			
-			return true;
-		} else {
-			return false;
 		}
-	}
-	*/
 
-	public synchronized void close() {
-		_state = State.Closing;
-		
+		// sensors are called with no lock held: they notify us while holding theirs
+		for (Connection connection : pending) {
+			if (null != connection._timeoutCheck) {
+				_handler.removeCallbacks(connection._timeoutCheck);
+			}
+			connection.complete(false, true);
+		}
 		for (GenericSensor sensor : _sensors) {
+			sensor.unregisterStateListener(this);
 			sensor.close();
 		}
-
-		_state = State.Idle;
 	}
 
 	@Override
 	public void notifyStateChange(GenericSensor source, SensorState state) {
-		if (_state == State.Opening) {
-			// we are opening the connection, attempt might succeed of fail:
-			// whatever the outcome, we skip to the next sensor, if any
-			if (state == SensorState.Open || state == SensorState.Closed) {
-				// we don't want to be notified of anything any more
-				source.unregisterStateListener(this);
-				openNext();
+		if (state == SensorState.Open || state == SensorState.Closed) {
+			// whatever the outcome, the attempt is over: skip to the next sensor, if any
+			finish(source, state == SensorState.Open, true);
+		}
+	}
+
+	private boolean start(boolean reopen) {
+		List<GenericSensor> next;
+		synchronized (this) {
+			if (isOperationInProgress())
+				return false;
+
+			_reopen = reopen;
+			_start = SystemClock.elapsedRealtime();
+			_connections.clear();
+			for (GenericSensor sensor : _sensors) {
+				Connection connection = new Connection(sensor);
+				_connections.put(sensor, connection);
+				if (!reopen && sensor.getState() == SensorState.Open) {
+					connection._timeToOpen = 0;
+					connection.complete(true, false);
+				} else {
+					_waiting.add(sensor);
+				}
 			}
-		} else if (_state == State.Reopening) {
-			// TODO find some way of doing this!
+			next = startNext();
 		}
+		attempt(next);
+		return true;
+	}
 
+	// takes as many waiting sensors as the parallelism allows
+	private List<GenericSensor> startNext() {
+		List<GenericSensor> next = new ArrayList<GenericSensor>();
+		while (_running < _parallelism && !_waiting.isEmpty()) {
+			next.add(_waiting.removeFirst());
+			_running++;
+		}
+		return next;
 	}
-	
-	private synchronized void openNext() {
-		if (_current < _sensors.length) {
-			_sensors[_current++].open();
-		} else {
-			_state = State.Idle;
-			_current = 0;
+
+	private void attempt(List<GenericSensor> sensors) {
+		for (final GenericSensor sensor : sensors) {
+			sensor.registerStateListener(this);
+			Runnable dataWatch = _dataWatches.get(sensor);
+			if (null != dataWatch) {
+				dataWatch.run();
+			}
+
+			Connection connection;
+			boolean reopen;
+			synchronized (this) {
+				connection = _connections.get(sensor);
+				reopen = _reopen;
+			}
+			if (connection.isDone())
+				continue; // closed meanwhile
+			connection._timeoutCheck = new Runnable() {
+
+				@Override
+				public void run() {
+					finish(sensor, false, false);
+				}
+			};
+			_handler.postDelayed(connection._timeoutCheck, _timeout);
+
+			Log.i(TAG, (reopen ? "Reopening " : "Opening ") + sensor.getAddress());
+			boolean started = reopen ? sensor.reopen() : sensor.open();
+
+			// callbacks received while starting (e.g., Closed on reopen) belong to
+			// the previous connection; from now on, Open or Closed end the attempt
+			synchronized (this) {
+				connection._armed = true;
+			}
+			SensorState state = sensor.getState();
+			if (!started || state == SensorState.Open || state == SensorState.Closed) {
+				finish(sensor, state == SensorState.Open, true);
+			}
 		}
 	}
-	
-	/*
-	private synchronized void reopenNext() {
-		if (_current < _sensors.length) {
-			_sensors[_current++].reopen();
+
+	private void finish(GenericSensor sensor, boolean open, boolean armedOnly) {
+		Connection connection;
+		long elapsed;
+		boolean late = false;
+		List<GenericSensor> next;
+		synchronized (this) {
+			connection = _connections.get(sensor);
+			if (null == connection || (armedOnly && !connection._armed))
+				return;
+			if (connection.isDone()) {
+				if (!armedOnly || !connection._timedOut)
+					return;
+				
+				// a timed out attempt is finally over: its slot is free
+				late = true;
+				connection._timedOut = false;
+			}
+
+			elapsed = SystemClock.elapsedRealtime() - _start;
+			if (!late) {
+				if (open) {
+					connection._timeToOpen = elapsed;
+				}
+				connection.complete(open, false);
+			}
+			if (armedOnly) {
+				_running--;
+				next = startNext();
+			} else {
+				// timed out: the sensor is left alone, as closing it would drop
+				// the listeners of its consumers, but it keeps its slot until
+				// it reports Open or Closed, or the stack would be connecting
+				// more sensors than allowed
+				connection._timedOut = true;
+				next = Collections.emptyList();
+			}
+		}
+
+		if (late) {
+			Log.i(TAG, sensor.getAddress() + (open ? " open" : " closed") + " after " + elapsed + " ms, past the timeout");
+		} else if (open) {
+			_timeToOpen.record(elapsed);
+			Log.i(TAG, sensor.getAddress() + " open after " + elapsed + " ms");
+		} else if (armedOnly) {
+			Log.w(TAG, sensor.getAddress() + " failed to open after " + elapsed + " ms");
 		} else {
-			_state = State.Idle;
-			_current = 0;
+			Log.w(TAG, sensor.getAddress() + " not open after " + elapsed + " ms, giving up");
 		}
+		_handler.removeCallbacks(connection._timeoutCheck);
+		attempt(next);
 	}
-	*/
-	
-	private enum State {
-		Idle,
-		Opening,
-		Reopening,
-		Closing
+
+	// registers, when run, a listener recording the first data of the given sensor
+	// (registration is idempotent, and needs repeating: closed sensors drop their listeners)
+	private <T> Runnable newDataWatch(final Sensor<T> sensor) {
+		final DataListener<T> listener = new DataListener<T>() {
+
+			@Override
+			public SensorProfile<T> getProfile() {
+				return sensor.getProfile();
+			}
+
+			@Override
+			public void notifyNewData(T data) {
+				notifyDataReceived(sensor);
+			}
+		};
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				sensor.registerDataListener(listener);
+			}
+		};
+	}
+
+	/**
+	 * Outcome of the attempt to open one sensor: true if it opened,
+	 * false if it failed, timed out or the coordinator was closed.
+	 */
+	public static final class Connection implements Future<Boolean> {
+
+		private final GenericSensor _sensor;
+		private final CountDownLatch _done = new CountDownLatch(1);
+
+		private volatile boolean _open;
+		private volatile boolean _cancelled;
+		private volatile long _timeToOpen = -1;
+		private volatile long _firstData = -1;
+		private volatile Runnable _timeoutCheck;
+		private boolean _armed; // guarded by the coordinator
+		private boolean _timedOut; // guarded by the coordinator, until the sensor is done
+
+		private Connection(GenericSensor sensor) {
+			_sensor = sensor;
+		}
+
+		public GenericSensor getSensor() {
+			return _sensor;
+		}
+
+		/**
+		 * @return milliseconds from the start of the operation
+		 * to the sensor being open, -1 if it did not open
+		 */
+		public long getTimeToOpen() {
+			return _timeToOpen;
+		}
+
+		/**
+		 * @return milliseconds from the start of the operation
+		 * to the first data of the sensor, -1 if none yet
+		 */
+		public long getTimeToFirstData() {
+			return _firstData;
+		}
+
+		private synchronized void complete(boolean open, boolean cancelled) {
+			if (isDone())
+				return;
+
+			_open = open;
+			_cancelled = cancelled;
+			_done.countDown();
+		}
+
+		/**
+		 * A BLE connection attempt cannot be aborted: use
+		 * ConnectionCoordinator.close() instead.
+		 */
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return _cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return _done.getCount() == 0;
+		}
+
+		@Override
+		public Boolean get() throws InterruptedException {
+			_done.await();
+			return getResult();
+		}
+
+		@Override
+		public Boolean get(long timeout, TimeUnit unit)
+				throws InterruptedException, TimeoutException {
+			if (!_done.await(timeout, unit))
+				throw new TimeoutException();
+			return getResult();
+		}
+
+		private Boolean getResult() {
+			if (_cancelled)
+				throw new CancellationException();
+			return _open;
+		}
 	}
 }
@@ -0,0 +1,94 @@
+package com.nimbusware.android.ble.sensors;
+
+import java.util.Arrays;
+
+/**
+ * Samples accumulated over a batching window (see DataBatchListener):
+ * one array of timestamps, and one array of values for each channel
+ * of the DataSampler. Arrays grow as needed and are reused from one
+ * batch to the next, so only the first size() elements are meaningful.
+ */
+public class DataBatch {
+	
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final double[] _row;
+	private long[] _timestamps = new long[INITIAL_CAPACITY];
+	private final double[][] _values;
+	private int _size;
+	
+	DataBatch(int channels) {
+		_row = new double[channels];
+		_values = new double[channels][INITIAL_CAPACITY];
+	}
+	
+	/**
+	 * Number of samples in this batch.
+	 * @return
+	 */
+	public int size() {
+		return _size;
+	}
+	
+	public int getChannelCount() {
+		return _values.length;
+	}
+	
+	/**
+	 * Arrival time of a sample, from SystemClock.elapsedRealtime().
+	 * @param index
+	 * @return
+	 */
+	public long getTimestamp(int index) {
+		checkIndex(index);
+		return _timestamps[index];
+	}
+	
+	public double getValue(int channel, int index) {
+		checkIndex(index);
+		return _values[channel][index];
+	}
+	
+	/**
+	 * Backing array of timestamps: only the first size() elements are meaningful.
+	 * @return
+	 */
+	public long[] getTimestamps() {
+		return _timestamps;
+	}
+	
+	/**
+	 * Backing array of a channel: only the first size() elements are meaningful.
+	 * @param channel
+	 * @return
+	 */
+	public double[] getValues(int channel) {
+		return _values[channel];
+	}
+	
+	<T> void add(long timestamp, DataSampler<T> sampler, T data) {
+		if (_size == _timestamps.length) {
+			int capacity = _size * 2;
+			_timestamps = Arrays.copyOf(_timestamps, capacity);
+			for (int i = 0; i < _values.length; i++) {
+				_values[i] = Arrays.copyOf(_values[i], capacity);
+			}
+		}
+		
+		sampler.sample(data, _row);
+		_timestamps[_size] = timestamp;
+		for (int i = 0; i < _row.length; i++) {
+			_values[i][_size] = _row[i];
+		}
+		_size++;
+	}
+	
+	void clear() {
+		_size = 0;
+	}
+	
+	private void checkIndex(int index) {
+		if (index < 0 || index >= _size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + _size);
+	}
+}
@@ -0,0 +1,37 @@
+package com.nimbusware.android.ble.sensors;
+
+/**
+ * Alternative to DataListener for consumers that do not need to react
+ * to each single notification: samples are accumulated over a time window
+ * and delivered all at once, as primitive arrays.
+ * 
+ * @param <T>
+ */
+public interface DataBatchListener<T> {
+	
+	public SensorProfile<T> getProfile();
+
+	/**
+	 * Extracts the values to be batched; called once, on registration.
+	 * @return
+	 */
+	public DataSampler<T> getSampler();
+
+	/**
+	 * Length of the batching window in milliseconds; called once, on registration.
+	 * A batch is delivered by the first notification received after the window
+	 * has elapsed (or when the sensor is closed), so its latency is bounded by
+	 * the window plus the notification interval of the sensor.
+	 * @return
+	 */
+	public long getBatchWindow();
+	
+	/**
+	 * Called on the Bluetooth binder thread for each batch, which is never empty;
+	 * the last one, if the sensor is closed, is delivered on the closing thread.
+	 * The batch object and its arrays are reused: implementations
+	 * must copy whatever they need to keep after returning.
+	 * @param batch
+	 */
+	public void notifyNewBatch(DataBatch batch);
+}
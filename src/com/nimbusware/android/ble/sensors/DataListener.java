@@ -4,5 +4,11 @@ public interface DataListener<T> {
 	
 	public SensorProfile<T> getProfile();
 	
+	/**
+	 * Called on the Bluetooth binder thread for each notification.
+	 * Parsers may reuse the same data object across calls: implementations
+	 * must copy whatever they need to keep after returning.
+	 * @param data
+	 */
 	public void notifyNewData(T data);
 }
@@ -1,8 +1,14 @@
 package com.nimbusware.android.ble.sensors;
 
-import android.bluetooth.BluetoothGattCharacteristic;
-
 public interface DataParser<T> {
 
-	public T parse(BluetoothGattCharacteristic data);
+	/**
+	 * Decodes the value of a characteristic. Takes plain bytes rather than
+	 * a BluetoothGattCharacteristic, so that parsers can also be driven
+	 * outside of the Bluetooth stack (e.g., replaying recorded data).
+	 * @param data the characteristic's value
+	 * @param timestamp arrival time in milliseconds, from a monotonic clock
+	 * @return decoded data, or null if data is unreadable
+	 */
+	public T parse(byte[] data, long timestamp);
 }
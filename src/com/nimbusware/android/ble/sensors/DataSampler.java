@@ -0,0 +1,24 @@
+package com.nimbusware.android.ble.sensors;
+
+/**
+ * Extracts numeric values from a data object, so that they can be
+ * accumulated into primitive arrays (see DataBatch).
+ * 
+ * @param <T>
+ */
+public interface DataSampler<T> {
+
+	/**
+	 * Number of values extracted from each data object.
+	 * @return
+	 */
+	public int getChannelCount();
+
+	/**
+	 * Copies the values of data into the given array, whose
+	 * length is getChannelCount().
+	 * @param data
+	 * @param values
+	 */
+	public void sample(T data, double[] values);
+}
@@ -0,0 +1,131 @@
+package com.nimbusware.android.ble.sensors;
+
+import java.util.UUID;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * What we learned about known sensors, by address: the GATT layout found
+ * by service discovery (target service and characteristic) and how long
+ * the last discovery took. Persisted in
+ * private SharedPreferences, which are held in memory: lookups are cheap,
+ * and updates are written in the background.
+ * <p>
+ * Android offers no public API for skipping service discovery (the stack
+ * keeps its own cache, at least for bonded devices): SimpleSensor uses
+ * this cache to shorten everything around it, see SimpleSensor.doOpen().
+ */
+public class GattLayoutCache {
+
+	private final static String TAG = GattLayoutCache.class.getSimpleName();
+	private final static String PREFS_NAME = "gatt_layout_cache";
+
+	private static GattLayoutCache INSTANCE;
+
+	public static synchronized GattLayoutCache getInstance(Context context) {
+		if (null == INSTANCE) {
+			INSTANCE = new GattLayoutCache(context.getApplicationContext());
+		}
+		return INSTANCE;
+	}
+
+	private final SharedPreferences _prefs;
+
+	private GattLayoutCache(Context context) {
+		_prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * @param address
+	 * @return null if the sensor at the given address is unknown
+	 */
+	public Entry get(String address) {
+		String value = _prefs.getString(address, null);
+		if (null == value)
+			return null;
+
+		try {
+			return Entry.decode(value);
+		} catch (IllegalArgumentException e) {
+			Log.w(TAG, "Dropping invalid cache entry of " + address + ": " + value);
+			remove(address);
+			return null;
+		}
+	}
+
+	public void put(String address, Entry entry) {
+		_prefs.edit().putString(address, entry.encode()).apply();
+	}
+
+	public void remove(String address) {
+		_prefs.edit().remove(address).apply();
+	}
+
+	/**
+	 * Layout and last successful connection of a sensor.
+	 */
+	public static final class Entry {
+
+		private final UUID _serviceId;
+		private final UUID _characteristicId;
+		private final long _discoveryTime;
+		private final int _connections;
+
+		/**
+		 * @param serviceId
+		 * @param characteristicId
+		 * @param discoveryTime duration of service discovery, in milliseconds
+		 * @param connections number of successful connections so far
+		 */
+		public Entry(UUID serviceId, UUID characteristicId, long discoveryTime, int connections) {
+			if (null == serviceId || null == characteristicId)
+				throw new NullPointerException();
+
+			_serviceId = serviceId;
+			_characteristicId = characteristicId;
+			_discoveryTime = discoveryTime;
+			_connections = connections;
+		}
+
+		public UUID getServiceId() {
+			return _serviceId;
+		}
+
+		public UUID getCharacteristicId() {
+			return _characteristicId;
+		}
+
+		public long getDiscoveryTime() {
+			return _discoveryTime;
+		}
+
+		public int getConnections() {
+			return _connections;
+		}
+
+		/**
+		 * @param profile
+		 * @return true if this layout is the one the given profile targets
+		 */
+		public boolean matches(SensorProfile<?> profile) {
+			return _serviceId.equals(profile.getServiceId()) &&
+					_characteristicId.equals(profile.getCharacteristicId());
+		}
+
+		private String encode() {
+			return _serviceId + "," + _characteristicId + "," + _discoveryTime + "," + _connections;
+		}
+
+		private static Entry decode(String value) {
+			String[] fields = value.split(",");
+			if (fields.length != 4)
+				throw new IllegalArgumentException("Invalid cache entry: " + value);
+
+			// UUID.fromString and parseXXX throw IllegalArgumentException subclasses
+			return new Entry(UUID.fromString(fields[0]), UUID.fromString(fields[1]),
+					Long.parseLong(fields[2]), Integer.parseInt(fields[3]));
+		}
+	}
+}
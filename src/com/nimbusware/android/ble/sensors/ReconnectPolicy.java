@@ -0,0 +1,87 @@
+package com.nimbusware.android.ble.sensors;
+
+import java.util.Random;
+
+/**
+ * How a sensor recovers a lost connection: attempts are spaced by an
+ * exponential backoff (initial delay, multiplied at each attempt up to a
+ * maximum delay), randomized by a jitter so that sensors dropped at the
+ * same time do not retry in lockstep, and give up after a maximum number
+ * of attempts. An attempt may start early, when the sensor is seen
+ * advertising again.
+ */
+public class ReconnectPolicy {
+
+	/**
+	 * 0.5s, 1s, 2s... up to 15s, +/-20%, 8 attempts: about 3 minutes at worst.
+	 */
+	public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(500, 15000, 2, 0.2, 8);
+
+	/**
+	 * Lost connections are simply closed.
+	 */
+	public static final ReconnectPolicy NEVER = new ReconnectPolicy(0, 0, 1, 0, 0);
+
+	private final long _initialDelay;
+	private final long _maxDelay;
+	private final double _multiplier;
+	private final double _jitter;
+	private final int _maxAttempts;
+
+	/**
+	 * @param initialDelay before the first attempt, in milliseconds
+	 * @param maxDelay cap of the delay, in milliseconds
+	 * @param multiplier of the delay at each attempt, at least 1
+	 * @param jitter fraction of the delay by which it is randomly
+	 * lengthened or shortened, from 0 to 1
+	 * @param maxAttempts 0 for no reconnection at all
+	 */
+	public ReconnectPolicy(long initialDelay, long maxDelay, double multiplier,
+			double jitter, int maxAttempts) {
+		if (initialDelay < 0 || maxDelay < initialDelay || multiplier < 1 ||
+				jitter < 0 || jitter > 1 || maxAttempts < 0)
+			throw new IllegalArgumentException();
+
+		_initialDelay = initialDelay;
+		_maxDelay = maxDelay;
+		_multiplier = multiplier;
+		_jitter = jitter;
+		_maxAttempts = maxAttempts;
+	}
+
+	public int getMaxAttempts() {
+		return _maxAttempts;
+	}
+
+	/**
+	 * @param attempt starting from 1
+	 * @param random source of the jitter
+	 * @return milliseconds to wait before the given attempt
+	 */
+	public long getDelay(int attempt, Random random) {
+		double delay = getBaseDelay(attempt);
+		delay *= 1 + _jitter * (2 * random.nextDouble() - 1);
+		return Math.round(delay);
+	}
+
+	/**
+	 * Worst case time to recover a connection, or to give up: all attempts
+	 * waiting their longest delay, and then running to their timeout.
+	 * @param attemptTimeout max duration of one attempt, in milliseconds
+	 * @return milliseconds
+	 */
+	public long getMaxRecoveryTime(long attemptTimeout) {
+		double total = 0;
+		for (int attempt = 1; attempt <= _maxAttempts; attempt++) {
+			total += getBaseDelay(attempt) * (1 + _jitter) + attemptTimeout;
+		}
+		return Math.round(total);
+	}
+
+	private double getBaseDelay(int attempt) {
+		if (attempt < 1)
+			throw new IllegalArgumentException("Invalid attempt: " + attempt);
+
+		return Math.min(_maxDelay, _initialDelay * Math.pow(_multiplier, attempt - 1));
+	}
+}
@@ -7,4 +7,8 @@ public interface Sensor<T> extends GenericSensor {
 	public void registerDataListener(DataListener<T> listener);
 	
 	public void unregisterDataListener(DataListener<T> listener);
+
+	public void registerDataBatchListener(DataBatchListener<T> listener);
+	
+	public void unregisterDataBatchListener(DataBatchListener<T> listener);
 }
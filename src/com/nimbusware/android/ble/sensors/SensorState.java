@@ -4,6 +4,9 @@ public enum SensorState {
 
 	// it is MANDATORY that this order reflects the progression of initialization
 	Closed,
+	// a lost connection is being recovered: waiting for the next attempt
+	// (see ReconnectPolicy), which then goes through the states below
+	WaitingToReconnect,
 	WaitingForConnection,
 	DiscoveringServices,
 	SettingUpService,
@@ -2,9 +2,18 @@ package com.nimbusware.android.ble.sensors;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.nimbusware.mypersonalbiketrainer.core.MetricRegistry;
+import com.nimbusware.mypersonalbiketrainer.core.MetricRegistry.Counter;
+import com.nimbusware.mypersonalbiketrainer.core.MetricRegistry.Gauge;
+import com.nimbusware.mypersonalbiketrainer.core.MetricRegistry.Histogram;
+import com.nimbusware.mypersonalbiketrainer.replay.NotificationRecorder;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
@@ -13,10 +22,15 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * Wrapper for a simple sensor having one single target service/characteristic.
+ * More characteristics (e.g., the battery level of a CSC sensor, or the
+ * other services of a smart trainer) can be subscribed to over the same
+ * GATT connection, see subscribe(): notifications are routed to the
+ * parser of their profile by characteristic UUID.
  * 
  * @author Mauro Isaja
  *
@@ -28,19 +42,84 @@ public class SimpleSensor<T> implements Sensor<T> {
 	private static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 	private final static int CONNECTION_TIMEOUT = 10000; // 10s 
 	private final static int DISCOVERY_TIMEOUT = 3000; // 3s 
+	private final static int KNOWN_DISCOVERY_TIMEOUT_MIN = 1000; // 1s
 	private final static int WRITE_TIMEOUT = 1000; // 1s 
 
 	private final Context _context;
 	private final BluetoothAdapter _adapter;
 	private final SensorProfile<T> _profile;
 	private final SensorConfig _config;
+	private final ReconnectPolicy _reconnectPolicy;
+	private final GattLayoutCache _layoutCache;
+	private final Random _random = new Random();
 	private final List<StateListener> _stateListeners = new ArrayList<StateListener>();
-	private final List<DataListener<T>> _dataListeners = new ArrayList<DataListener<T>>();
+	private final Channel<T> _primary;
 	private final Handler _handler = new Handler();
 
+	// subscribed characteristics, the primary one first: copy on write,
+	// so the binder thread can walk them freely
+	private final List<Channel<?>> _channels = new CopyOnWriteArrayList<Channel<?>>();
+
+	// CCC descriptors still to be written, one at a time: GATT allows
+	// one outstanding operation per connection
+	private final List<BluetoothGattDescriptor> _pendingWrites = new ArrayList<BluetoothGattDescriptor>();
+
+	private volatile NotificationRecorder _recorder;
 	private BluetoothGatt _gatt;
-	private DataParser<T> _parser;
-	private SensorState _state;
+	private SensorState _state = SensorState.Closed;
+	private int _attempt; // connection attempts so far: stale timeout checks are ignored
+	private int _reconnectAttempt; // 0 unless recovering a lost connection
+	private long _lostAt;
+	private long _lastRecoveryTime = -1;
+	private volatile boolean _backgroundConnect;
+
+	// current connection attempt: cached layout (null if the sensor is unknown,
+	// or its layout changed), and what will be cached if it succeeds
+	private GattLayoutCache.Entry _known;
+	private long _discoveryTime;
+
+	// next reconnection attempt, when its delay expires or the sensor is seen advertising
+	private final Runnable _reconnectTask = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized (SimpleSensor.this) {
+				if (_state == SensorState.WaitingToReconnect) {
+					stopScan();
+					Log.i(TAG, "Reconnecting to GATT server " + getAddress() + ", attempt " + _reconnectAttempt);
+					doOpen();
+				}
+			}
+		}
+	};
+
+	private final BluetoothAdapter.LeScanCallback _scanCallback = new BluetoothAdapter.LeScanCallback() {
+
+		@Override
+		public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+			if (getAddress().equals(device.getAddress())) {
+				// back in range: don't wait for the backoff to expire
+				_handler.removeCallbacks(_reconnectTask);
+				_handler.post(_reconnectTask);
+			}
+		}
+	};
+	private boolean _scanning;
+
+	// metrics, named sensor.<address>.*: time spent in each state but Closed
+	// and Open, connection and recovery times, notifications and their parsing
+	private final Histogram[] _stateTimes = new Histogram[SensorState.values().length];
+	private final Histogram _connectTime;
+	private final Histogram _recoveryTime;
+	private final Histogram _parseTime;
+	private final Counter _notifications;
+	private final Gauge _notificationRate;
+	private final Counter _timeouts;
+	private final Counter _reconnects;
+	private long _stateSince;
+	private long _connectStart;
+	private long _rateSince; // binder thread only
+	private int _rateCount; // binder thread only
 	
     // Implements callback methods for GATT events that we care about
     private final BluetoothGattCallback mCallback = new BluetoothGattCallback() {
@@ -59,33 +138,33 @@ public class SimpleSensor<T> implements Sensor<T> {
                             // eventually call the onServicesDiscovered callback (see below)
                             // when done - timing is very tight if the BLE device is responding
                             Log.i(TAG, "Connected to GATT server at " + getAddress());
-                            _state = SensorState.DiscoveringServices;
+                            enterState(SensorState.DiscoveringServices);
                             if (_gatt.discoverServices()) { 
                                 Log.i(TAG, "Discoverig services of GATT server at " + getAddress());
 
                             	// launch a delayed task for checking connection timeout:
                             	// if we get no reply from the remote server, we must close our client and move forward
-                            	_handler.postDelayed(new TimeoutCheckTask(SensorState.DiscoveringServices), DISCOVERY_TIMEOUT);
+                            	_handler.postDelayed(new TimeoutCheckTask(SensorState.DiscoveringServices), getDiscoveryTimeout());
                             } else {
-                        		doClose();
+                        		closeOrReconnect();
                                 Log.w(TAG, "Cannot start service discovery of GATT server " + getAddress());
                             }
                 		} else {
                 			// connection was successful AFTER timeout expired:
                 			// don't know if this might actually happen as we call
                 			// BluetoothGatt.close() on timeout, but better be prepared
-                    		doClose();
+                    		closeOrReconnect();
                             Log.w(TAG, "Connection to GATT server " + getAddress() + 
                             		" was successful, but was dropped due to timeout");
                 		}
                 	}
                 } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 	// apparently, this never happens when we call close()
-            		doClose();
+            		closeOrReconnect();
                     Log.i(TAG, "Disconnected from GATT server " + getAddress());
                 }
         	} else {
-        		doClose();
+        		closeOrReconnect();
                 Log.w(TAG, "Connection to GATT server " + getAddress() + 
                 		" failed: STATUS=" + status + ", STATE=" + newState);
                 
@@ -115,62 +194,71 @@ public class SimpleSensor<T> implements Sensor<T> {
 	            	synchronized (SimpleSensor.this) {
 	            		if (_state == SensorState.DiscoveringServices) {
 			                Log.i(TAG, "Service discovery successfully completed on GATT server " + getAddress());
+			                _discoveryTime = SystemClock.elapsedRealtime() - _stateSince;
 		
-			                // attempts to get a service handle from the connected device (synchronous call)
-			                _state = SensorState.SettingUpService;
-			            	BluetoothGattService srv = gatt.getService(_profile.getServiceId());
-			            	if (null != srv) {
-			                    Log.i(TAG, "Target service " + getServiceId() + 
-			                    		" successfully acquired on GATT server " + getAddress());
-		
-				                // attempts to get a characteristic handle from the service handle (synchronous call)
-			                    _state = SensorState.SettingUpCharacteristic;
-			                    BluetoothGattCharacteristic btChar = srv.getCharacteristic(_profile.getCharacteristicId());
-			            		if (null != btChar) {
-			                        Log.i(TAG, "Target characteristic " + btChar.toString() + 
-			                        		" successfully acquired on GATT server " + getAddress());
-		
-					                // attempts to set up characteristic notification (synchronous call)
-			                        _state = SensorState.SettingUpNotifications;
-			            			if (_gatt.setCharacteristicNotification(btChar, true)) {
-				            			Log.i(TAG, "Writing configuration for characteristic " + btChar.toString() + 
-				            					" on GATT server " + getAddress());
-				            			BluetoothGattDescriptor descriptor = 
-				            					btChar.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
-				            			descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-				            			
-				            			// asynchronous call: wait for onDescriptorWrite() callback
-				            			_gatt.writeDescriptor(descriptor); 
-
-		                            	// launch a delayed task for checking connection timeout:
-		                            	// if we get no reply from the remote server, we must close our client and move forward
-		                            	_handler.postDelayed(new TimeoutCheckTask(SensorState.SettingUpNotifications), WRITE_TIMEOUT);
-			            			} else {
-			                            doClose();
-			                            Log.w(TAG, "Cannot enable notifications for characteristic " + 
-			                            		getCharId() + " on GATT server " + getAddress());
-			            			}
-			            		} else {
-		                            doClose();
-			                        Log.w(TAG, "Cannot find target characteristic " + 
-			                        		getCharId() + " on GATT server " + getAddress());
-			            		}
-			            	} else {
-		                        doClose();
-			                    Log.w(TAG, "Cannot find target service " + getServiceId() + 
-			                    		" on GATT server " + getAddress());
-			            	}
+			                // attempts to get service and characteristic handles
+			                // of all subscriptions from the connected device (synchronous calls)
+			                enterState(SensorState.SettingUpService);
+			                List<Channel<?>> channels = _channels;
+			                BluetoothGattCharacteristic[] btChars = new BluetoothGattCharacteristic[channels.size()];
+			                for (int i = 0; i < btChars.length; i++) {
+			                	btChars[i] = findCharacteristic(gatt, channels.get(i)._profile);
+			                }
+			                if (null != btChars[0]) {
+				                // attempts to set up characteristic notifications (synchronous calls),
+			                	// then queues their configuration writes
+		                        enterState(SensorState.SettingUpNotifications);
+		                        _pendingWrites.clear();
+		                        boolean ready = true;
+				                for (int i = 0; i < btChars.length && ready; i++) {
+				                	if (null != btChars[i]) {
+				                		BluetoothGattDescriptor descriptor = enableNotifications(btChars[i]);
+				                		if (null != descriptor) {
+				                			_pendingWrites.add(descriptor);
+				                			channels.get(i)._active = true;
+				                			
+					            			// known sensors may start sending before the write is acknowledged:
+					            			// be ready to parse their first notification
+					            			if (null != _known) {
+					            				channels.get(i).createParser();
+					            			}
+				                		} else {
+				                			// only the primary subscription is mandatory
+				                			ready = i > 0;
+				                		}
+				                	}
+				                }
+				                
+				                if (ready) {
+	                            	// launch a delayed task for checking connection timeout:
+	                            	// if we get no reply from the remote server, we must close our client and move forward
+	                            	_handler.postDelayed(new TimeoutCheckTask(SensorState.SettingUpNotifications),
+	                            			WRITE_TIMEOUT * _pendingWrites.size());
+				                	
+			            			// asynchronous call: wait for onDescriptorWrite() callback
+	                            	writeNextDescriptor();
+				                } else {
+		                            closeOrReconnect();
+		                            Log.w(TAG, "Cannot set up notifications for characteristic " + 
+		                            		getCharId() + " on GATT server " + getAddress());
+				                }
+			                } else {
+		            			forgetLayout();
+	                            closeOrReconnect();
+		                        Log.w(TAG, "Cannot set up target characteristic " + 
+		                        		getCharId() + " on GATT server " + getAddress());
+			                }
                 		} else {
                 			// service discovery was successful AFTER timeout expired:
                 			// don't know if this might actually happen as we call
                 			// BluetoothGatt.close() on timeout, but better be prepared
-                            doClose();
+                            closeOrReconnect();
                             Log.w(TAG, "Service discovery on GATT server " + getAddress() + 
                             		" was successful, but connection was dropped due to timeout");
                 		}
 	            	}
             } else {
-        		doClose();
+        		closeOrReconnect();
                 Log.w(TAG, "Service discovery failed on GATT server " + getAddress());
             }
         }
@@ -180,12 +268,30 @@ public class SimpleSensor<T> implements Sensor<T> {
 				BluetoothGattDescriptor descriptor, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
             	synchronized (SimpleSensor.this) {
-            		if (_state == SensorState.SettingUpNotifications) {
+            		if (_state == SensorState.SettingUpNotifications && !_pendingWrites.isEmpty()) {
+            			// one more subscription to configure
+            			writeNextDescriptor();
+            		} else if (_state == SensorState.SettingUpNotifications) {
 		            	// sensor is now open for business
 		                Log.i(TAG, "Connection to GATT server " + getAddress() + " is now open");
 		                
-		            	_state = SensorState.Open;
-		            	_parser = (DataParser<T>) _profile.getParser(_config.getParams());
+		            	enterState(SensorState.Open);
+		            	_connectTime.record(_stateSince - _connectStart);
+		            	for (Channel<?> channel : _channels) {
+		            		if (channel._active && null == channel._parser) {
+		            			channel.createParser();
+		            		}
+		            	}
+		            	_layoutCache.put(getAddress(), new GattLayoutCache.Entry(
+		            			_profile.getServiceId(), _profile.getCharacteristicId(),
+		            			_discoveryTime, null == _known ? 1 : _known.getConnections() + 1));
+		            	if (_reconnectAttempt > 0) {
+		            		_lastRecoveryTime = SystemClock.elapsedRealtime() - _lostAt;
+		            		_recoveryTime.record(_lastRecoveryTime);
+		            		Log.i(TAG, "Connection to GATT server " + getAddress() + " recovered after " +
+		            				_lastRecoveryTime + " ms, " + _reconnectAttempt + " attempt(s)");
+		            		_reconnectAttempt = 0;
+		            	}
 		            	
 		            	// notify that we are done
 		            	notifyStateListeners();
@@ -193,13 +299,13 @@ public class SimpleSensor<T> implements Sensor<T> {
             			// notification setting was successful AFTER timeout expired:
             			// don't know if this might actually happen as we call
             			// BluetoothGatt.close() on timeout, but better be prepared
-                        doClose();
+                        closeOrReconnect();
                         Log.w(TAG, "Characteristic configuration on GATT server " + getAddress() + 
                         		" was successful, but connection was dropped due to timeout");
 	            	}
             	}
             } else {
-                doClose();
+                closeOrReconnect();
                 Log.w(TAG, "Configuration failed on GATT server " + getAddress());
             }
             
@@ -216,13 +322,37 @@ public class SimpleSensor<T> implements Sensor<T> {
     
 	public SimpleSensor(Context context, BluetoothAdapter adapter,
 			SensorProfile<T> profile, SensorConfig config) {
-		if (null == context || null == adapter || null == profile || null == config)
+		this(context, adapter, profile, config, ReconnectPolicy.DEFAULT);
+	}
+
+	public SimpleSensor(Context context, BluetoothAdapter adapter,
+			SensorProfile<T> profile, SensorConfig config, ReconnectPolicy reconnectPolicy) {
+		if (null == context || null == adapter || null == profile || null == config || null == reconnectPolicy)
 			throw new NullPointerException();
 		
 		_context = context;
 		_adapter = adapter;
 		_profile = profile;
 		_config = config;
+		_reconnectPolicy = reconnectPolicy;
+		_primary = new Channel<T>(profile);
+		_channels.add(_primary);
+		_layoutCache = GattLayoutCache.getInstance(context);
+
+		MetricRegistry metrics = MetricRegistry.getDefault();
+		String prefix = "sensor." + config.getAddress() + ".";
+		for (SensorState state : SensorState.values()) {
+			if (state != SensorState.Closed && state != SensorState.Open) {
+				_stateTimes[state.ordinal()] = metrics.histogram(prefix + "state." + state + ".ms", MetricRegistry.MILLIS);
+			}
+		}
+		_connectTime = metrics.histogram(prefix + "connect.ms", MetricRegistry.MILLIS);
+		_recoveryTime = metrics.histogram(prefix + "recovery.ms", MetricRegistry.MILLIS);
+		_parseTime = metrics.histogram(prefix + "parse.us", MetricRegistry.MICROS);
+		_notifications = metrics.counter(prefix + "notifications");
+		_notificationRate = metrics.gauge(prefix + "notifications.per_s");
+		_timeouts = metrics.counter(prefix + "timeouts");
+		_reconnects = metrics.counter(prefix + "reconnects");
 	}
 
 	@Override
@@ -230,18 +360,112 @@ public class SimpleSensor<T> implements Sensor<T> {
 		return _config.getAddress();
 	}
 	
-	private String getServiceId() {
-		return _profile.getServiceId().toString();
-	}
-	
 	private String getCharId() {
 		return _profile.getCharacteristicId().toString();
 	}
 	
+	/**
+	 * Records raw notifications to the given recorder, or stops
+	 * recording if null. The recorder is not closed by this sensor.
+	 * @param recorder
+	 */
+	public void setRecorder(NotificationRecorder recorder) {
+		_recorder = recorder;
+	}
+	
 	public synchronized SensorState getState() {
 		return _state;
 	}
 
+	/**
+	 * Background mode: connections are made by the stack as soon as the
+	 * sensor is in range (BluetoothDevice.connectGatt() with autoConnect),
+	 * with no connection timeout. Applies from the next connection attempt.
+	 * @param background
+	 */
+	public void setBackgroundConnect(boolean background) {
+		_backgroundConnect = background;
+	}
+
+	/**
+	 * @return the current reconnection attempt, 0 if the
+	 * sensor is not recovering a lost connection
+	 */
+	public synchronized int getReconnectAttempt() {
+		return _reconnectAttempt;
+	}
+
+	/**
+	 * @return milliseconds from the loss of the last recovered
+	 * connection to its recovery, -1 if none was ever recovered
+	 */
+	public synchronized long getLastRecoveryTime() {
+		return _lastRecoveryTime;
+	}
+
+	/**
+	 * @return the longest a lost connection may take to be recovered
+	 * (or given up) under the reconnect policy, in milliseconds
+	 */
+	public long getMaxRecoveryTime() {
+		return _reconnectPolicy.getMaxRecoveryTime(CONNECTION_TIMEOUT + DISCOVERY_TIMEOUT + WRITE_TIMEOUT);
+	}
+
+	/**
+	 * Subscribes to one more characteristic of this sensor, over the same
+	 * GATT connection: its notifications are decoded by the parser of the
+	 * given profile (configured with the parameters of this sensor) and
+	 * delivered to the listeners of the returned view. Views share the
+	 * connection and its state with this sensor: opening or closing any of
+	 * them affects all of them, and state listeners are called with this
+	 * sensor as argument. Unlike the primary profile, a characteristic the
+	 * sensor turns out not to have does not fail the connection, see
+	 * isSubscribed().
+	 * @param profile
+	 * @return the view for the given profile, the same one for each call
+	 * (this sensor, if that's the primary profile): one parser per
+	 * characteristic, however many consumers
+	 * @throws IllegalStateException unless this sensor is closed
+	 * @throws IllegalArgumentException if another profile already targets
+	 * the same characteristic
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <U> Sensor<U> subscribe(SensorProfile<U> profile) {
+		if (null == profile)
+			throw new NullPointerException();
+		
+		for (Channel<?> channel : _channels) {
+			if (channel._profile.equals(profile))
+				return (Sensor<U>) (channel == _primary ? this : channel);
+			if (channel._profile.getCharacteristicId().equals(profile.getCharacteristicId()))
+				throw new IllegalArgumentException("Characteristic " + profile.getCharacteristicId() + 
+						" is already subscribed to by " + channel._profile.getClass().getName());
+		}
+		if (_state != SensorState.Closed)
+			throw new IllegalStateException("Cannot subscribe to " + profile.getCharacteristicId() + 
+					" while connected to " + getAddress());
+		
+		Channel<U> channel = new Channel<U>(profile);
+		_channels.add(channel);
+		return channel;
+	}
+
+	/**
+	 * @param profile
+	 * @return true if the sensor is open and notifications of the given
+	 * profile's characteristic are enabled
+	 */
+	public synchronized boolean isSubscribed(SensorProfile<?> profile) {
+		if (_state != SensorState.Open)
+			return false;
+		
+		for (Channel<?> channel : _channels) {
+			if (channel._profile.equals(profile))
+				return channel._active;
+		}
+		return false;
+	}
+
 	@Override
 	public synchronized boolean open() {
 		if (_state == SensorState.Closed) {
@@ -256,18 +480,31 @@ public class SimpleSensor<T> implements Sensor<T> {
         // to be safe, cancel any BT discovery process that some other app might have launched
         _adapter.cancelDiscovery();
         
+        GattLayoutCache.Entry known = _layoutCache.get(getAddress());
+        _known = null != known && known.matches(_profile) ? known : null;
+        boolean autoConnect = _backgroundConnect;
+        if (null != _known) {
+        	Log.i(TAG, "Known GATT server at " + getAddress() + ", " + _known.getConnections() +
+        			" connection(s), last discovery " + _known.getDiscoveryTime() + " ms");
+        }
+
         Log.i(TAG, "Connecting to GATT server at " + getAddress());
-        _state = SensorState.WaitingForConnection;
-    	_gatt = _adapter.getRemoteDevice(getAddress()).connectGatt(_context, false, mCallback);
+        enterState(SensorState.WaitingForConnection);
+        _connectStart = _stateSince;
+        _attempt++;
+    	_gatt = _adapter.getRemoteDevice(getAddress()).connectGatt(_context, autoConnect, mCallback);
 
     	// launch a delayed task for checking connection timeout:
     	// if we get no reply from the remote server, we must close our client and move forward
-    	_handler.postDelayed(new TimeoutCheckTask(SensorState.WaitingForConnection), CONNECTION_TIMEOUT);
+    	// (in background mode, the stack connects whenever the sensor shows up: no timeout)
+    	if (!autoConnect) {
+    		_handler.postDelayed(new TimeoutCheckTask(SensorState.WaitingForConnection), CONNECTION_TIMEOUT);
+    	}
 	}
 
 	@Override
 	public synchronized boolean reopen() {
-		if (_state == SensorState.Open || _state == SensorState.Closed) {
+		if (_state == SensorState.Open || _state == SensorState.Closed || _state == SensorState.WaitingToReconnect) {
 			Log.i(TAG, "Reopening BLE device at " + getAddress());
 
 			doClose(); // listeners are not affected
@@ -286,7 +523,10 @@ public class SimpleSensor<T> implements Sensor<T> {
 
 	@Override
 	public synchronized void close() {
-		_dataListeners.clear();
+		// subscriptions are kept, their listeners are not
+		for (Channel<?> channel : _channels) {
+			channel.clearListeners();
+		}
 
 		doClose();
 		
@@ -296,15 +536,13 @@ public class SimpleSensor<T> implements Sensor<T> {
 	}
 	
 	private synchronized void doClose() {
-		if (null != _gatt) {
-	        Log.i(TAG, "Closing BLE device at " + getAddress());
-			_gatt.close();
-		}
+		closeGatt();
+		_handler.removeCallbacks(_reconnectTask);
+		stopScan();
+		_reconnectAttempt = 0;
 		
 		boolean notify = _state != SensorState.Closed;
-		_state = SensorState.Closed;
-		_gatt = null;
-		_parser = null;
+		enterState(SensorState.Closed);
 		
 		if (notify) {
         	// notify that we are closed
@@ -312,6 +550,156 @@ public class SimpleSensor<T> implements Sensor<T> {
 		}
 	}
 
+	// known sensors answer service discovery in about the same time as last time:
+	// if they don't while recovering a lost connection, fail early and let the
+	// reconnect policy take over; a first connection has no such recourse (a
+	// timeout closes the sensor), so it gets the full timeout
+	private synchronized long getDiscoveryTimeout() {
+		if (null == _known || 0 == _reconnectAttempt)
+			return DISCOVERY_TIMEOUT;
+		return Math.min(DISCOVERY_TIMEOUT, Math.max(KNOWN_DISCOVERY_TIMEOUT_MIN, 4 * _known.getDiscoveryTime()));
+	}
+
+	// call holding the lock
+	private BluetoothGattCharacteristic findCharacteristic(BluetoothGatt gatt, SensorProfile<?> profile) {
+    	BluetoothGattService srv = gatt.getService(profile.getServiceId());
+    	if (null == srv) {
+            Log.w(TAG, "Cannot find service " + profile.getServiceId() + 
+            		" on GATT server " + getAddress());
+            return null;
+    	}
+    	
+    	BluetoothGattCharacteristic btChar = srv.getCharacteristic(profile.getCharacteristicId());
+    	if (null == btChar) {
+            Log.w(TAG, "Cannot find characteristic " + profile.getCharacteristicId() + 
+            		" on GATT server " + getAddress());
+            return null;
+    	}
+    	
+        Log.i(TAG, "Target characteristic " + btChar.getUuid() + 
+        		" successfully acquired on GATT server " + getAddress());
+    	return btChar;
+	}
+
+	/**
+	 * Enables notifications (or indications, if the characteristic only
+	 * supports those) locally, and prepares the matching CCC descriptor.
+	 * @param btChar
+	 * @return the descriptor to be written to the remote device, null on failure
+	 */
+	// call holding the lock
+	private BluetoothGattDescriptor enableNotifications(BluetoothGattCharacteristic btChar) {
+		BluetoothGattDescriptor descriptor = btChar.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+		if (null == descriptor || !_gatt.setCharacteristicNotification(btChar, true)) {
+            Log.w(TAG, "Cannot enable notifications for characteristic " + 
+            		btChar.getUuid() + " on GATT server " + getAddress());
+			return null;
+		}
+		
+		int properties = btChar.getProperties();
+		descriptor.setValue(0 == (properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) &&
+				0 != (properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) ?
+				BluetoothGattDescriptor.ENABLE_INDICATION_VALUE :
+				BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+		return descriptor;
+	}
+
+	// call holding the lock
+	private void writeNextDescriptor() {
+		BluetoothGattDescriptor descriptor = _pendingWrites.remove(0);
+		Log.i(TAG, "Writing configuration for characteristic " + descriptor.getCharacteristic().getUuid() + 
+				" on GATT server " + getAddress());
+		if (!_gatt.writeDescriptor(descriptor)) {
+			closeOrReconnect();
+            Log.w(TAG, "Cannot write configuration for characteristic " + 
+            		descriptor.getCharacteristic().getUuid() + " on GATT server " + getAddress());
+		}
+	}
+
+	// call holding the lock
+	private void forgetLayout() {
+		if (null != _known) {
+			Log.w(TAG, "Cached GATT layout of " + getAddress() + " is stale, dropping it");
+			_layoutCache.remove(getAddress());
+			_known = null;
+		}
+	}
+
+	// call holding the lock
+	private void enterState(SensorState state) {
+		long now = SystemClock.elapsedRealtime();
+		Histogram time = _stateTimes[_state.ordinal()];
+		if (null != time) {
+			time.record(now - _stateSince);
+		}
+		_state = state;
+		_stateSince = now;
+	}
+
+	private synchronized void closeGatt() {
+		if (null != _gatt) {
+	        Log.i(TAG, "Closing BLE device at " + getAddress());
+			_gatt.close();
+		}
+		_gatt = null;
+		_pendingWrites.clear();
+		for (Channel<?> channel : _channels) {
+			channel._active = false;
+			channel._parser = null;
+		}
+	}
+
+	/**
+	 * Handles failures and disconnections: a lost connection (the sensor
+	 * was open) is recovered under the reconnect policy, and so are failed
+	 * reconnection attempts, until the policy gives up; a failed first
+	 * connection simply closes the sensor.
+	 */
+	private synchronized void closeOrReconnect() {
+		if (_state == SensorState.WaitingToReconnect)
+			return; // late callback of a connection we already dropped
+
+		boolean lost = _state == SensorState.Open;
+		if (!lost && 0 == _reconnectAttempt) {
+			doClose();
+			return;
+		}
+		if (_reconnectAttempt >= _reconnectPolicy.getMaxAttempts()) {
+			Log.w(TAG, "Cannot recover connection to GATT server " + getAddress() +
+					" after " + _reconnectAttempt + " attempt(s), closing");
+			doClose();
+			return;
+		}
+
+		if (lost) {
+			_lostAt = SystemClock.elapsedRealtime();
+			Log.w(TAG, "Connection to GATT server " + getAddress() + " lost, recovering within " +
+					getMaxRecoveryTime() + " ms");
+		}
+		closeGatt();
+		_reconnects.inc();
+		_reconnectAttempt++;
+		enterState(SensorState.WaitingToReconnect);
+		_handler.postDelayed(_reconnectTask, _reconnectPolicy.getDelay(_reconnectAttempt, _random));
+		startScan();
+		notifyStateListeners();
+	}
+
+	// some stacks refuse to scan and connect at the same time:
+	// scanning only runs while waiting to reconnect
+	private synchronized void startScan() {
+		if (!_scanning) {
+			_scanning = _adapter.startLeScan(_scanCallback);
+		}
+	}
+
+	private synchronized void stopScan() {
+		if (_scanning) {
+			_adapter.stopLeScan(_scanCallback);
+			_scanning = false;
+		}
+	}
+
 	@Override
 	public void registerStateListener(StateListener listener) {
 		if (null == listener)
@@ -343,39 +731,252 @@ public class SimpleSensor<T> implements Sensor<T> {
 
 	@Override
 	public void registerDataListener(DataListener<T> listener) {
-		if (null == listener)
-			throw new NullPointerException();
-		
-		if (!_dataListeners.contains(listener)) {
-			_dataListeners.add(listener);
-		}
+		_primary.registerDataListener(listener);
 	}
 
 	@Override
 	public void unregisterDataListener(DataListener<T> listener) {
-		if (null == listener)
-			throw new NullPointerException();
-		
-		_dataListeners.remove(listener);
+		_primary.unregisterDataListener(listener);
+	}
+	
+	@Override
+	public void registerDataBatchListener(DataBatchListener<T> listener) {
+		_primary.registerDataBatchListener(listener);
+	}
+
+	@Override
+	public void unregisterDataBatchListener(DataBatchListener<T> listener) {
+		_primary.unregisterDataBatchListener(listener);
 	}
 	
 	private void notifyDataListeners(BluetoothGattCharacteristic btChar) {
-		if (null != _parser) {
-			T data = _parser.parse(btChar);
+		// route by characteristic: the primary one comes first, so a
+		// single subscription costs one UUID comparison
+		UUID charId = btChar.getUuid();
+		for (int i = 0, n = _channels.size(); i < n; i++) {
+			Channel<?> channel = _channels.get(i);
+			if (channel._charId.equals(charId)) {
+				notifyDataListeners(channel, btChar);
+				return;
+			}
+		}
+	}
+	
+	private void notifyDataListeners(Channel<?> channel, BluetoothGattCharacteristic btChar) {
+		if (null != channel._parser) {
+			// getValue() hands out the characteristic's own buffer, no copy involved
+			long now = SystemClock.elapsedRealtime();
+			NotificationRecorder recorder = _recorder;
+			if (null != recorder) {
+				recorder.record(getAddress(), channel._charId, now, btChar.getValue());
+			}
+			_notifications.inc();
+			if (now - _rateSince >= 1000) {
+				// rate over the last second (or more) with notifications
+				_notificationRate.set(_rateCount * 1000L / (now - _rateSince));
+				_rateSince = now;
+				_rateCount = 0;
+			}
+			_rateCount++;
+
+			channel.parse(btChar.getValue(), now);
+		}
+	}
+	
+	/**
+	 * One subscribed characteristic: its parser and listeners. The view
+	 * returned by subscribe() is the channel itself; the primary one is
+	 * fronted by the sensor.
+	 */
+	private class Channel<U> implements Sensor<U> {
+		
+		private final SensorProfile<U> _profile;
+		private final UUID _charId;
+		private final List<DataListener<U>> _dataListeners = new ArrayList<DataListener<U>>();
+		private final List<BatchCollector<U>> _batchCollectors = new ArrayList<BatchCollector<U>>();
+		private DataParser<U> _parser;
+		private boolean _active; // notifications enabled on the current connection
+		
+		private Channel(SensorProfile<U> profile) {
+			_profile = profile;
+			_charId = profile.getCharacteristicId();
+		}
+		
+		private void createParser() {
+			_parser = _profile.getParser(_config.getParams());
+		}
+		
+		private void parse(byte[] value, long timestamp) {
+			long start = System.nanoTime();
+			U data = _parser.parse(value, timestamp);
+			_parseTime.record((System.nanoTime() - start) / 1000);
 			if (null != data) { // null if data is unreadable (parser should log the error)
-				for (DataListener<T> listener : _dataListeners) {
-						listener.notifyNewData(data);
+				// indexed loop: this runs for each notification, don't create an Iterator
+				for (int i = 0, n = _dataListeners.size(); i < n; i++) {
+					_dataListeners.get(i).notifyNewData(data);
+				}
+				
+				int n = _batchCollectors.size();
+				if (n > 0) {
+					for (int i = 0; i < n; i++) {
+						_batchCollectors.get(i).add(timestamp, data);
+					}
+				}
+			}
+		}
+		
+		private void clearListeners() {
+			_dataListeners.clear();
+			
+			// deliver pending samples before letting go of batch listeners
+			for (int i = 0, n = _batchCollectors.size(); i < n; i++) {
+				_batchCollectors.get(i).close();
+			}
+			_batchCollectors.clear();
+		}
+
+		@Override
+		public String getAddress() {
+			return SimpleSensor.this.getAddress();
+		}
+
+		@Override
+		public SensorState getState() {
+			return SimpleSensor.this.getState();
+		}
+
+		@Override
+		public void registerStateListener(StateListener listener) {
+			SimpleSensor.this.registerStateListener(listener);
+		}
+
+		@Override
+		public void unregisterStateListener(StateListener listener) {
+			SimpleSensor.this.unregisterStateListener(listener);
+		}
+
+		@Override
+		public boolean open() {
+			return SimpleSensor.this.open();
+		}
+
+		@Override
+		public boolean reopen() {
+			return SimpleSensor.this.reopen();
+		}
+
+		@Override
+		public void close() {
+			SimpleSensor.this.close();
+		}
+
+		@Override
+		public SensorProfile<U> getProfile() {
+			return _profile;
+		}
+
+		@Override
+		public void registerDataListener(DataListener<U> listener) {
+			if (null == listener)
+				throw new NullPointerException();
+			
+			if (!_dataListeners.contains(listener)) {
+				_dataListeners.add(listener);
+			}
+		}
+
+		@Override
+		public void unregisterDataListener(DataListener<U> listener) {
+			if (null == listener)
+				throw new NullPointerException();
+			
+			_dataListeners.remove(listener);
+		}
+
+		@Override
+		public void registerDataBatchListener(DataBatchListener<U> listener) {
+			if (null == listener)
+				throw new NullPointerException();
+			
+			for (int i = 0; i < _batchCollectors.size(); i++) {
+				if (_batchCollectors.get(i)._listener.equals(listener))
+					return;
+			}
+			_batchCollectors.add(new BatchCollector<U>(listener));
+		}
+
+		@Override
+		public void unregisterDataBatchListener(DataBatchListener<U> listener) {
+			if (null == listener)
+				throw new NullPointerException();
+			
+			for (int i = 0; i < _batchCollectors.size(); i++) {
+				if (_batchCollectors.get(i)._listener.equals(listener)) {
+					// pending samples are dropped: the listener asked to stop receiving
+					_batchCollectors.remove(i);
+					return;
 				}
 			}
 		}
 	}
 	
+	/**
+	 * Accumulates samples on behalf of a DataBatchListener. Samples are
+	 * added, and batches delivered, on the binder thread; the last batch
+	 * is delivered by close(), on the caller's thread, while the binder
+	 * thread may still be adding: the batch is guarded by the collector's
+	 * lock, uncontended but for that last flush.
+	 */
+	private static class BatchCollector<T> {
+		
+		private final DataBatchListener<T> _listener;
+		private final DataSampler<T> _sampler;
+		private final long _window;
+		private final DataBatch _batch;
+		private boolean _closed;
+		
+		private BatchCollector(DataBatchListener<T> listener) {
+			_listener = listener;
+			_sampler = listener.getSampler();
+			_window = listener.getBatchWindow();
+			_batch = new DataBatch(_sampler.getChannelCount());
+			
+			if (_window < 0)
+				throw new IllegalArgumentException("Invalid batch window: " + _window);
+		}
+		
+		private synchronized void add(long timestamp, T data) {
+			if (_closed)
+				return; // late notification, the last batch is gone
+			
+			_batch.add(timestamp, _sampler, data);
+			if (timestamp - _batch.getTimestamp(0) >= _window) {
+				flush();
+			}
+		}
+		
+		private synchronized void flush() {
+			if (_batch.size() > 0) {
+				_listener.notifyNewBatch(_batch);
+				_batch.clear();
+			}
+		}
+		
+		// delivers pending samples, and drops any later ones
+		private synchronized void close() {
+			flush();
+			_closed = true;
+		}
+	}
+	
 	private class TimeoutCheckTask implements Runnable {
 		
 		private final SensorState _pendingState;
+		private final int _attempt;
 		
 		TimeoutCheckTask(SensorState pendingState) {
 			_pendingState = pendingState;
+			_attempt = SimpleSensor.this._attempt;
 		}
 
 		@Override
@@ -384,8 +985,10 @@ public class SimpleSensor<T> implements Sensor<T> {
 				// will close the sensor if the current state is anything less or equal
 				// (with the exception of Closed, as there would be nothing to do) to the
 				// "pending state" - i.e., the was no progress since this task was scheduled
-				if (getState() != SensorState.Closed && getState().ordinal() <= _pendingState.ordinal()) {
-					doClose();
+				if (_attempt == SimpleSensor.this._attempt &&
+						getState() != SensorState.Closed && getState().ordinal() <= _pendingState.ordinal()) {
+					_timeouts.inc();
+					closeOrReconnect();
 			        Log.i(TAG, "Timeout reached for operation on GATT server " + getAddress());
 				}
 			}
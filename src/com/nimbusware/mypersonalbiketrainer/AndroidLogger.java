@@ -0,0 +1,36 @@
+package com.nimbusware.mypersonalbiketrainer;
+
+import com.nimbusware.mypersonalbiketrainer.core.Logger;
+
+import android.util.Log;
+
+/**
+ * Logger writing to the Android log, installed by Globals.onCreate.
+ */
+class AndroidLogger implements Logger {
+
+	@Override
+	public boolean isVerbose(String tag) {
+		return Log.isLoggable(tag, Log.VERBOSE);
+	}
+
+	@Override
+	public void v(String tag, String msg) {
+		Log.v(tag, msg);
+	}
+
+	@Override
+	public void i(String tag, String msg) {
+		Log.i(tag, msg);
+	}
+
+	@Override
+	public void w(String tag, String msg) {
+		Log.w(tag, msg);
+	}
+
+	@Override
+	public void w(String tag, String msg, Throwable tr) {
+		Log.w(tag, msg, tr);
+	}
+}
@@ -1,6 +1,8 @@
 package com.nimbusware.mypersonalbiketrainer;
 
-public interface BeatRateSensor extends Sensor {
+import com.nimbusware.android.ble.sensors.GenericSensor;
+
+public interface BeatRateSensor extends Sensor, GenericSensor {
 
 	public void registerListener(BeatRateSensorListener listener);
 
@@ -1,6 +1,8 @@
 package com.nimbusware.mypersonalbiketrainer;
 
-public interface CadenceSensor extends Sensor {
+import com.nimbusware.android.ble.sensors.GenericSensor;
+
+public interface CadenceSensor extends Sensor, GenericSensor {
 
 	public void registerListener(CadenceSensorListener listener);
 
@@ -1,9 +1,14 @@
 package com.nimbusware.mypersonalbiketrainer;
 
 import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
 
+import com.nimbusware.android.ble.profiles.HrmData;
+import com.nimbusware.android.ble.profiles.HrmProfile;
+import com.nimbusware.android.ble.sensors.DataBatch;
+import com.nimbusware.android.ble.sensors.DataBatchListener;
+import com.nimbusware.android.ble.sensors.DataSampler;
+import com.nimbusware.android.ble.sensors.SensorProfile;
+import com.nimbusware.mypersonalbiketrainer.core.PeriodicScheduler;
 import com.nimbusware.mypersonalbiketrainer.svc.WorkSessionService;
 
 import android.app.Activity;
@@ -35,6 +40,9 @@ public class CockpitActivity extends Activity {
 	// before we assume they are all (temporarily?) disconnected
 	private static final int SENSOR_TIMEOUT = 5000;
 	
+	// number of milliseconds of heart rate samples in each gauge update
+	private static final int HEART_BATCH_WINDOW = 1000;
+	
 	private static final String DISCONNECTED = " * ";
 	private static final String VOID = "";
 	
@@ -53,6 +61,7 @@ public class CockpitActivity extends Activity {
     		
     		// register all sensor listeners
     		mSensorService.registerSensorListeners(mHeartListener, mWheelListener, mCrankListener);
+    		mSensorService.registerHeartBatchListener(mHeartBatchListener);
     		
     		if (mSensorService.isSessionRunning()) {
     			// active session on the run: register the session listener
@@ -72,7 +81,8 @@ public class CockpitActivity extends Activity {
     		
 			// start iterative check for sensor activity
     		// (will call syncGauges every N seconds)
-			mStatusCheckTimer.schedule(new ActiveSensorsCheckTask(), CHECK_INTERVAL);
+			mStatusCheckTask = mSensorService.getScheduler().schedule(
+					new ActiveSensorsCheckTask(), CHECK_INTERVAL, CHECK_INTERVAL);
         }
 
 		@Override
@@ -177,6 +187,45 @@ public class CockpitActivity extends Activity {
 	private final BeatRateSensorListener mHeartListener = new BeatRateSensorListener() {
 		@Override
 		public void updateBeatRate(final double bpm) {
+			// nothing to do: the gauge is updated by batches (see below)
+		}
+
+		@Override
+		public void updateConnectionState(final int status, final int newState) {
+			CockpitActivity.this.runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					Toast.makeText(CockpitActivity.this, 
+							"Heart sensor connection state: " + status + " - " + newState, 
+							Toast.LENGTH_SHORT).show();
+				}
+			});
+		}
+	};
+	
+	// heart rate for the gauge: straps may notify at each beat, the gauge
+	// is updated once per batch, with the last value in it
+	private final DataBatchListener<HrmData> mHeartBatchListener = new DataBatchListener<HrmData>() {
+		@Override
+		public SensorProfile<HrmData> getProfile() {
+			return HrmProfile.getInstance();
+		}
+
+		@Override
+		public DataSampler<HrmData> getSampler() {
+			return HrmProfile.getSampler();
+		}
+
+		@Override
+		public long getBatchWindow() {
+			return HEART_BATCH_WINDOW;
+		}
+
+		@Override
+		public void notifyNewBatch(DataBatch batch) {
+			// the batch is reused once we return: take what we need now
+			final double bpm = batch.getValue(HrmProfile.CHANNEL_HEART_RATE, batch.size() - 1);
+			
 			// this is called in a system thread:
 			// need to run in the UI thread instead
 			CockpitActivity.this.runOnUiThread(new Runnable() {
@@ -192,18 +241,6 @@ public class CockpitActivity extends Activity {
 				}
 			});
 		}
-
-		@Override
-		public void updateConnectionState(final int status, final int newState) {
-			CockpitActivity.this.runOnUiThread(new Runnable() {
-				@Override
-				public void run() {
-					Toast.makeText(CockpitActivity.this, 
-							"Heart sensor connection state: " + status + " - " + newState, 
-							Toast.LENGTH_SHORT).show();
-				}
-			});
-		}
 	};
 	
 	// listener for the session time
@@ -224,6 +261,24 @@ public class CockpitActivity extends Activity {
 		}
 	};
 	
+	// launches the session viewer once a stopped session is saved
+	private final SessionStopListener mSessionStopListener = new SessionStopListener() {
+		@Override
+		public void onSessionStopped(WorkSessionInfo data, boolean saved) {
+			if (isFinishing())
+				return;
+			
+			if (!saved) {
+				// the viewer will show the last checkpoint
+				Log.w(TAG, "Session " + data.getLocalId() + " could not be saved");
+			}
+			
+	        Intent intent = new Intent(CockpitActivity.this, SessionActivity.class);
+	        intent.putExtra(Globals.WORKOUT_ID, data.getLocalId());
+	        startActivity(intent);
+		}
+	};
+	
 	// handler of the exit button
 	private final View.OnClickListener mExitListener = new View.OnClickListener() {
 		
@@ -233,7 +288,7 @@ public class CockpitActivity extends Activity {
 				
 				if (mSensorService.isSessionRunning()) {
 					// this should never happen, but just in case...
-					mSensorService.stopSession();
+					mSensorService.stopSession(null);
 				}
 
 				// signal to the onPause method to shutdown the service
@@ -254,12 +309,10 @@ public class CockpitActivity extends Activity {
 				if (mSensorService.isSessionRunning()) {
 					// processing STOP SESSION command
 					
-					// get session data _before_ stopping
-					long sessionId = mSensorService.getSessionData().getLocalId();
-					
-					// stop running session
+					// stop running session: data is saved in the background,
+					// the session viewer is launched when done
 					mSensorService.unregisterSessionListener(mSessionListener);
-					mSensorService.stopSession();
+					mSensorService.stopSession(mSessionStopListener);
 					
 					// reset all UI items to default
 			        mViewDistance.setText(VOID);
@@ -275,11 +328,6 @@ public class CockpitActivity extends Activity {
 					if (null != mMenu) {
 						enableNavigation(true);
 					}
-					
-					// launch session viewer
-			        Intent intent = new Intent(CockpitActivity.this, SessionActivity.class);
-			        intent.putExtra(Globals.WORKOUT_ID, sessionId);
-			        startActivity(intent);
 				} else if (mSensorService.hasSensors()) {
 					// processing START SESSION command
 
@@ -309,7 +357,7 @@ public class CockpitActivity extends Activity {
 		}
 	};
     
-	private final Timer mStatusCheckTimer = new Timer();
+	private PeriodicScheduler.Task mStatusCheckTask;
     private Menu mMenu;
 	private TextView mViewCardio;
 	private TextView mViewSpeed;
@@ -457,13 +505,17 @@ public class CockpitActivity extends Activity {
     
 	// called each time we Pause this activity and the user presses the Exit button 
     private void detachFromService() {
-		// stop the background thread that checks for sensor activity
-		mStatusCheckTimer.purge();
+		// stop the background task that checks for sensor activity
+		if (null != mStatusCheckTask) {
+			mStatusCheckTask.cancel();
+			mStatusCheckTask = null;
+		}
 		
 		if (null != mSensorService) {
     		// unregister all listeners and discard the service handle,
 			// so that we know we are not connected any more
     		mSensorService.unregisterSensorListeners(mHeartListener, mWheelListener, mCrankListener);
+    		mSensorService.unregisterHeartBatchListener(mHeartBatchListener);
     		if (mSensorService.isSessionRunning()) {
     			mSensorService.unregisterSessionListener(mSessionListener);
     		}
@@ -536,7 +588,7 @@ public class CockpitActivity extends Activity {
 	// this deferred task is responsible for resetting gauges to
 	// a default state if and when their corresponding sensor is
 	// disconnected
-	private class ActiveSensorsCheckTask extends TimerTask {
+	private class ActiveSensorsCheckTask implements Runnable {
 		@Override
 		public void run() {
 			// this is called in a background thread:
@@ -555,13 +607,9 @@ public class CockpitActivity extends Activity {
 						// does it make sense trying to reset the BLE connections
 						// when we detect timeouts?
 						
-						// if the sensor service is connected, the activity is currently
-						// in the foreground: we need to reschedule this task
-						// (but the task will be smart enough to detect, when run,
-						// the actual activity status at that very moment)
-						if (null != mSensorService) { 
-							mStatusCheckTimer.schedule(new ActiveSensorsCheckTask(), CHECK_INTERVAL);
-						}
+						// the task is periodic, and is cancelled when we detach
+						// from the service: a run already dispatched may still
+						// get here afterwards, but syncGauges() handles that
 					}
 				}
 			});
@@ -2,19 +2,26 @@ package com.nimbusware.mypersonalbiketrainer;
 
 import java.text.DateFormat;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Date;
 
+import com.nimbusware.mypersonalbiketrainer.svc.ExportService;
+import com.nimbusware.mypersonalbiketrainer.svc.ImportService;
+
 import android.app.Activity;
 import android.app.LoaderManager;
 import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.database.MergeCursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
@@ -29,7 +36,16 @@ public class DiaryActivity extends Activity implements LoaderManager.LoaderCallb
 		DiaryContract._ID
 	};
 
+	// the diary is loaded one page at a time, while scrolling down: 
+	// each page has its own loader, whose id is the page number
+	private static final int PAGE_SIZE = 50;
+	private static final String ARG_BEFORE_START = "before_start";
+	private static final String ARG_BEFORE_ID = "before_id";
+
 	private SimpleCursorAdapter mAdapter;
+	private final ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+	private final ArrayList<long[]> mPageKeys = new ArrayList<long[]>();
+	private boolean mLoading;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -78,8 +94,66 @@ public class DiaryActivity extends Activity implements LoaderManager.LoaderCallb
 			}
 		});
 		
+		listview.setOnScrollListener(new AbsListView.OnScrollListener() {
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+			}
+
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem,
+					int visibleItemCount, int totalItemCount) {
+				if (firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 2) {
+					loadNextPage();
+				}
+			}
+		});
+		
+		mPages.add(null);
+		mPageKeys.add(null);
+		mLoading = true;
 		getLoaderManager().initLoader(0, null, this);
 	}
+	
+	private void loadNextPage() {
+		if (mLoading || mPages.isEmpty())
+			return;
+		
+		Cursor last = mPages.get(mPages.size() - 1);
+		if (null == last || last.getCount() < PAGE_SIZE)
+			return; // no more workouts
+		
+		// next page starts right after the last workout of this one
+		long[] key = getLastKey(last);
+		Bundle args = new Bundle();
+		args.putLong(ARG_BEFORE_START, key[0]);
+		args.putLong(ARG_BEFORE_ID, key[1]);
+		mPages.add(null);
+		mPageKeys.add(key);
+		mLoading = true;
+		getLoaderManager().restartLoader(mPages.size() - 1, args, this);
+	}
+	
+	private static long[] getLastKey(Cursor page) {
+		if (!page.moveToLast())
+			return null;
+		
+		return new long[] {
+			page.getLong(page.getColumnIndex(DiaryContract.COL_START)),
+			page.getLong(page.getColumnIndex(DiaryContract._ID))
+		};
+	}
+	
+	private void showPages() {
+		Cursor[] pages = mPages.toArray(new Cursor[mPages.size()]);
+		if (pages.length == 0) {
+			mAdapter.swapCursor(null);
+		} else if (pages.length == 1) {
+			mAdapter.swapCursor(pages[0]);
+		} else {
+			// null pages (i.e., still loading) are skipped
+			mAdapter.swapCursor(new MergeCursor(pages));
+		}
+	}
 
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
@@ -95,6 +169,12 @@ public class DiaryActivity extends Activity implements LoaderManager.LoaderCallb
 				Intent intent = new Intent(this, CockpitActivity.class);
 				startActivity(intent);
 				break;
+			case R.id.action_export:
+				startService(new Intent(this, ExportService.class));
+				break;
+			case R.id.action_import:
+				startService(new Intent(this, ImportService.class));
+				break;
 			case R.id.action_settings:
 		        startActivity(new Intent(this, MainActivity.class));
 				break;
@@ -104,16 +184,49 @@ public class DiaryActivity extends Activity implements LoaderManager.LoaderCallb
 
 	@Override
 	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-		return new CursorLoader(this, DiaryContract.WORKOUTS_URI, PROJECTION, null, null, null);
+		Uri uri;
+		if (null == args) {
+			uri = DiaryContract.getWorkoutsPageUri(PAGE_SIZE);
+		} else {
+			uri = DiaryContract.getWorkoutsPageUri(
+					args.getLong(ARG_BEFORE_START), args.getLong(ARG_BEFORE_ID), PAGE_SIZE);
+		}
+		return new CursorLoader(this, uri, PROJECTION, null, null, null);
 	}
 
 	@Override
 	public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-		mAdapter.swapCursor(data);
+		int page = loader.getId();
+		mPages.set(page, data);
+		
+		// if a page was reloaded (e.g., a workout was added or deleted) and
+		// its last workout changed, the following pages no longer fit in:
+		// drop them, they will be loaded again while scrolling down
+		if (page + 1 < mPages.size()) {
+			long[] last = getLastKey(data);
+			long[] next = mPageKeys.get(page + 1);
+			if (null == last || last[0] != next[0] || last[1] != next[1]) {
+				for (int i = mPages.size() - 1; i > page; i--) {
+					getLoaderManager().destroyLoader(i);
+					mPages.remove(i);
+					mPageKeys.remove(i);
+				}
+			}
+		}
+		
+		// only the last page may be loading for the first time
+		if (page == mPages.size() - 1) {
+			mLoading = false;
+		}
+		showPages();
 	}
 
 	@Override
 	public void onLoaderReset(Loader<Cursor> loader) {
-		mAdapter.swapCursor(null);
+		int page = loader.getId();
+		if (page < mPages.size()) {
+			mPages.set(page, null);
+		}
+		showPages();
 	}
 }
@@ -1,11 +1,19 @@
 package com.nimbusware.mypersonalbiketrainer;
 
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
+
+import com.nimbusware.mypersonalbiketrainer.core.LogColumns;
+import com.nimbusware.mypersonalbiketrainer.core.SampleChunkReader;
+import com.nimbusware.mypersonalbiketrainer.core.SeriesPyramid;
+import com.nimbusware.mypersonalbiketrainer.core.SeriesWindow;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
@@ -23,6 +31,24 @@ public class DiaryContract {
 	public static final String WORKOUTS_URI_STR = "content://" + AUTHORITY + "/" + WORKOUTS;
 	public static final Uri WORKOUTS_URI = Uri.parse(WORKOUTS_URI_STR);
 
+	// a page of workouts, most recent first: see getWorkoutsPageUri()
+	public static final String PAGE = "page";
+	public static final String PARAM_LIMIT = "limit";
+	public static final String PARAM_BEFORE_START = "before_start";
+	public static final String PARAM_BEFORE_ID = "before_id";
+
+	// totals of closed workouts by period, most recent first: day, ISO week
+	// and month; see getDayKey(), getWeekKey() and getMonthKey() for _ID
+	public static final String ROLLUPS = "rollups";
+	public static final String DAY = "day";
+	public static final String WEEK = "week";
+	public static final String MONTH = "month";
+	public static final String ROLLUPS_URI_STR = "content://" + AUTHORITY + "/" + ROLLUPS;
+	public static final Uri ROLLUPS_URI = Uri.parse(ROLLUPS_URI_STR);
+	public static final Uri ROLLUPS_BY_DAY_URI = Uri.withAppendedPath(ROLLUPS_URI, DAY);
+	public static final Uri ROLLUPS_BY_WEEK_URI = Uri.withAppendedPath(ROLLUPS_URI, WEEK);
+	public static final Uri ROLLUPS_BY_MONTH_URI = Uri.withAppendedPath(ROLLUPS_URI, MONTH);
+
 	// sessions are an alias to workouts: we use a sessions content uri when
 	// we are addressing a workout by its UUID instead of its _ID
 	public static final String SESSIONS = "sessions";
@@ -31,6 +57,21 @@ public class DiaryContract {
 
 	// log entries are details records of a workout/session
 	public static final String LOG = "log";
+	
+	// since DB version 3, log entries are stored in chunks: each chunk
+	// is a blob holding about one minute of entries (see SampleChunkWriter)
+	public static final String CHUNKS = "chunks";
+	
+	// since DB version 6, log entries are also summarized by the levels
+	// of detail of SeriesPyramid: see getWorkoutSeries()
+	public static final String SUMMARY = "summary";
+	
+	// changes to the log of a workout (entries, chunks, summary) are notified
+	// here, not under WORKOUTS_URI: observers of WORKOUTS_URI (the diary) 
+	// get notified of all of its descendants, and do not care about logs
+	public static final String LOGS = "logs";
+	public static final String LOGS_URI_STR = "content://" + AUTHORITY + "/" + LOGS;
+	public static final Uri LOGS_URI = Uri.parse(LOGS_URI_STR);
 
 	public static String _ID = "_id";
 	public static String COL_UUID = "_uuid";
@@ -46,12 +87,33 @@ public class DiaryContract {
 	public static String COL_CADENCE_AVG = "cadence_avg";
 	public static String COL_GEAR = "gear_ratio_avg";
 	public static String COL_FITNESS = "fitness_factor";
+	// offset from UTC of the device's time zone at start, in milliseconds:
+	// rollups use it for period keys (see getDayKey()), so the device
+	// moving to another zone does not move the workout to another day
+	public static String COL_ZONE_OFFSET = "zone_offset";
 
 	public static String COL_WORKOUT = "workout"; // fk, references workout._id
 	public static String COL_CARDIO = "cardio";
 	public static String COL_SPEED = "speed";
 	public static String COL_CADENCE = "cadence";
 	
+	// rollup columns, besides _ID, COL_ELAPSED and COL_DISTANCE (totals):
+	// average heart rate is COL_CARDIO_BEATS / COL_CARDIO_TIME
+	public static String COL_WORKOUTS = "workouts";
+	public static String COL_CARDIO_TIME = "cardio_time";
+	public static String COL_CARDIO_BEATS = "cardio_beats";
+	
+	// chunk columns: _ID is the timestamp of the first entry, COL_END that of the last one
+	public static String COL_COUNT = "entry_count";
+	public static String COL_DATA = "data";
+	
+	// summary columns, besides COL_START (of the bucket), COL_COUNT, and
+	// max/avg of cardio, speed and cadence
+	public static String COL_LEVEL = "level"; // bucket length, in milliseconds
+	public static String COL_CARDIO_MIN = "cardio_min";
+	public static String COL_SPEED_MIN = "speed_min";
+	public static String COL_CADENCE_MIN = "cadence_min";
+	
 	public static final String[] WORKOUT_PROJECTION = {
 		_ID,
 		COL_UUID,
@@ -78,18 +140,206 @@ public class DiaryContract {
 		COL_CADENCE
 	};
 	
+	public static final String[] CHUNK_PROJECTION = {
+		_ID,
+		COL_WORKOUT,
+		COL_END,
+		COL_COUNT,
+		COL_DATA
+	};
+	
+	// min/max/avg triplets in SeriesPyramid.SERIES_* order
+	public static final String[] SUMMARY_PROJECTION = {
+		COL_START,
+		COL_CARDIO_MIN,
+		COL_CARDIO_MAX,
+		COL_CARDIO_AVG,
+		COL_SPEED_MIN,
+		COL_SPEED_MAX,
+		COL_SPEED_AVG,
+		COL_CADENCE_MIN,
+		COL_CADENCE_MAX,
+		COL_CADENCE_AVG
+	};
+	
+	public static final String[] ROLLUP_PROJECTION = {
+		_ID,
+		COL_WORKOUTS,
+		COL_ELAPSED,
+		COL_DISTANCE,
+		COL_CARDIO_TIME,
+		COL_CARDIO_BEATS
+	};
+	
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+	
+	/**
+	 * Offset from UTC of the default time zone at the given time, 
+	 * as stored in COL_ZONE_OFFSET.
+	 * @param time milliseconds since the epoch
+	 * @return
+	 */
+	public static int getZoneOffset(long time) {
+		return TimeZone.getDefault().getOffset(time);
+	}
+	
+	// calendar set to the local time of the given offset, in UTC fields
+	private static Calendar getLocalCalendar(long time, int zoneOffset) {
+		Calendar cal = Calendar.getInstance(UTC);
+		cal.setTimeInMillis(time + zoneOffset);
+		return cal;
+	}
+	
+	/**
+	 * Key of the day of the given time, in the default time zone:
+	 * yyyyMMdd, e.g. 20150412.
+	 * @param time milliseconds since the epoch
+	 * @return
+	 */
+	public static long getDayKey(long time) {
+		return getDayKey(time, getZoneOffset(time));
+	}
+	
+	/**
+	 * Key of the day of the given time, at the given offset from UTC.
+	 * @param time milliseconds since the epoch
+	 * @param zoneOffset milliseconds, see getZoneOffset()
+	 * @return
+	 */
+	public static long getDayKey(long time, int zoneOffset) {
+		Calendar cal = getLocalCalendar(time, zoneOffset);
+		return cal.get(Calendar.YEAR) * 10000L + 
+				(cal.get(Calendar.MONTH) + 1) * 100 + 
+				cal.get(Calendar.DAY_OF_MONTH);
+	}
+	
+	/**
+	 * Key of the ISO 8601 week of the given time, in the default time
+	 * zone: yyyyww, where yyyy is the week-based year, e.g. 201515.
+	 * @param time milliseconds since the epoch
+	 * @return
+	 */
+	public static long getWeekKey(long time) {
+		return getWeekKey(time, getZoneOffset(time));
+	}
+	
+	/**
+	 * Key of the ISO 8601 week of the given time, at the given offset from UTC.
+	 * @param time milliseconds since the epoch
+	 * @param zoneOffset milliseconds, see getZoneOffset()
+	 * @return
+	 */
+	public static long getWeekKey(long time, int zoneOffset) {
+		Calendar cal = getLocalCalendar(time, zoneOffset);
+		// ISO weeks start on Monday, and belong to the year of their Thursday
+		int daysFromMonday = (cal.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+		cal.add(Calendar.DAY_OF_MONTH, 3 - daysFromMonday);
+		int week = (cal.get(Calendar.DAY_OF_YEAR) - 1) / 7 + 1;
+		return cal.get(Calendar.YEAR) * 100L + week;
+	}
+	
+	/**
+	 * Key of the month of the given time, in the default time zone:
+	 * yyyyMM, e.g. 201504.
+	 * @param time milliseconds since the epoch
+	 * @return
+	 */
+	public static long getMonthKey(long time) {
+		return getMonthKey(time, getZoneOffset(time));
+	}
+	
+	/**
+	 * Key of the month of the given time, at the given offset from UTC.
+	 * @param time milliseconds since the epoch
+	 * @param zoneOffset milliseconds, see getZoneOffset()
+	 * @return
+	 */
+	public static long getMonthKey(long time, int zoneOffset) {
+		Calendar cal = getLocalCalendar(time, zoneOffset);
+		return cal.get(Calendar.YEAR) * 100L + (cal.get(Calendar.MONTH) + 1);
+	}
+	
 	public static Uri getWorkoutUri(long workoutId) {
 		return ContentUris.withAppendedId(DiaryContract.WORKOUTS_URI, workoutId);
 	}
 	
+	/**
+	 * Uri of the first page of workouts, most recent first.
+	 * @param limit max number of workouts in the page
+	 * @return
+	 */
+	public static Uri getWorkoutsPageUri(int limit) {
+		return Uri.withAppendedPath(WORKOUTS_URI, PAGE).buildUpon()
+				.appendQueryParameter(PARAM_LIMIT, String.valueOf(limit))
+				.build();
+	}
+	
+	/**
+	 * Uri of the page of workouts that follows the given one, i.e., of
+	 * those older than it (keyset pagination): pass the start time and 
+	 * _ID of the last workout of the previous page.
+	 * @param beforeStart
+	 * @param beforeId
+	 * @param limit max number of workouts in the page
+	 * @return
+	 */
+	public static Uri getWorkoutsPageUri(long beforeStart, long beforeId, int limit) {
+		return Uri.withAppendedPath(WORKOUTS_URI, PAGE).buildUpon()
+				.appendQueryParameter(PARAM_LIMIT, String.valueOf(limit))
+				.appendQueryParameter(PARAM_BEFORE_START, String.valueOf(beforeStart))
+				.appendQueryParameter(PARAM_BEFORE_ID, String.valueOf(beforeId))
+				.build();
+	}
+	
 	public static Uri getWorkoutLogContentUri(long workoutId) {
 		return Uri.withAppendedPath(getWorkoutUri(workoutId), LOG);
 	}
 	
+	public static Uri getWorkoutChunksContentUri(long workoutId) {
+		return Uri.withAppendedPath(getWorkoutUri(workoutId), CHUNKS);
+	}
+	
+	public static Uri getWorkoutSummaryContentUri(long workoutId) {
+		return Uri.withAppendedPath(getWorkoutUri(workoutId), SUMMARY);
+	}
+	
+	/**
+	 * Uri to observe for changes to the log of the given workout.
+	 * @param workoutId
+	 * @return
+	 */
+	public static Uri getWorkoutLogNotificationUri(long workoutId) {
+		return ContentUris.withAppendedId(LOGS_URI, workoutId);
+	}
+	
 	public static Uri getSessionUri(String sessionId) {
 		return Uri.withAppendedPath(SESSIONS_URI, sessionId);
 	}
 	
+	/**
+	 * Row of the summary table for the given bucket.
+	 * @param workoutId
+	 * @param bucket
+	 * @return
+	 */
+	public static ContentValues getSummaryValues(long workoutId, SeriesPyramid.Bucket bucket) {
+		ContentValues values = new ContentValues();
+		values.put(COL_WORKOUT, workoutId);
+		values.put(COL_LEVEL, bucket.getLevel());
+		values.put(COL_START, bucket.getStart());
+		values.put(COL_COUNT, bucket.getCount());
+		values.put(COL_CARDIO_MIN, bucket.getMin(SeriesPyramid.SERIES_CARDIO));
+		values.put(COL_CARDIO_MAX, bucket.getMax(SeriesPyramid.SERIES_CARDIO));
+		values.put(COL_CARDIO_AVG, bucket.getAverage(SeriesPyramid.SERIES_CARDIO));
+		values.put(COL_SPEED_MIN, bucket.getMin(SeriesPyramid.SERIES_SPEED));
+		values.put(COL_SPEED_MAX, bucket.getMax(SeriesPyramid.SERIES_SPEED));
+		values.put(COL_SPEED_AVG, bucket.getAverage(SeriesPyramid.SERIES_SPEED));
+		values.put(COL_CADENCE_MIN, bucket.getMin(SeriesPyramid.SERIES_CADENCE));
+		values.put(COL_CADENCE_MAX, bucket.getMax(SeriesPyramid.SERIES_CADENCE));
+		values.put(COL_CADENCE_AVG, bucket.getAverage(SeriesPyramid.SERIES_CADENCE));
+		return values;
+	}
+	
 	public static WorkSessionInfo getWorkoutEntry(Context ctx, long workoutId) {
 		ContentResolver cs = ctx.getContentResolver();
 		Uri uri = getWorkoutUri(workoutId);
@@ -128,23 +378,262 @@ public class DiaryContract {
 	
 	public static List<WorkSessionLogEntry> getWorkoutLogEntries(Context ctx, long workoutId) {
 		ContentResolver cs = ctx.getContentResolver();
-		Uri uri = getWorkoutLogContentUri(workoutId);
-		Cursor cursor = cs.query(uri, LOG_PROJECTION, null, null, null);
+		
+		// recent workouts are stored in chunks, older ones in plain rows
+		Uri uri = getWorkoutChunksContentUri(workoutId);
+		Cursor cursor = cs.query(uri, CHUNK_PROJECTION, null, null, null);
+		try {
+			if (cursor != null && cursor.getCount() > 0) {
+				return getWorkoutLogEntriesFromChunks(cursor);
+			}
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		
+		uri = getWorkoutLogContentUri(workoutId);
+		cursor = cs.query(uri, LOG_PROJECTION, null, null, null);
 		return getWorkoutLogEntries(cursor);
 	}
 	
+	/**
+	 * Time series of a workout between the given times, at the given level
+	 * of detail (see SeriesPyramid.pickLevel()): only the points of that
+	 * window are read. Workouts recorded before DB version 6 have no
+	 * summaries: their buckets are computed on the fly from log entries.
+	 * @param ctx
+	 * @param workoutId
+	 * @param level SeriesPyramid.RAW_LEVEL, or one of SeriesPyramid.LEVELS
+	 * @param from milliseconds since the epoch
+	 * @param to milliseconds since the epoch
+	 * @return
+	 */
+	public static SeriesWindow getWorkoutSeries(Context ctx, long workoutId, long level, long from, long to) {
+		if (SeriesPyramid.RAW_LEVEL != level) {
+			SeriesWindow series = getWorkoutSummary(ctx, workoutId, level, from, to);
+			if (series.size() > 0)
+				return series;
+		}
+		
+		SeriesPyramid pyramid = SeriesPyramid.RAW_LEVEL == level ? null : new SeriesPyramid(level);
+		SeriesWindow series = new SeriesWindow(level, getCapacity(level, from, to));
+		LogColumns log = getWorkoutLogColumns(ctx, workoutId, from, to);
+		long[] times = log.getTimes();
+		float[] heartCadences = log.getHeartCadences();
+		float[] speeds = log.getSpeeds();
+		float[] crankCadences = log.getCrankCadences();
+		for (int i = 0; i < log.size(); i++) {
+			if (null == pyramid) {
+				series.add(times[i], heartCadences[i], speeds[i], crankCadences[i]);
+			} else {
+				pyramid.add(times[i], heartCadences[i], speeds[i], crankCadences[i]);
+			}
+		}
+		if (null != pyramid) {
+			pyramid.finish();
+			for (SeriesPyramid.Bucket bucket : pyramid.getClosed()) {
+				series.add(bucket);
+			}
+		}
+		return series;
+	}
+	
+	private static SeriesWindow getWorkoutSummary(Context ctx, long workoutId, long level, long from, long to) {
+		ContentResolver cs = ctx.getContentResolver();
+		Uri uri = getWorkoutSummaryContentUri(workoutId);
+		// the bucket holding the first point starts before the window
+		String selection = COL_LEVEL + " = ? AND " + COL_START + " > ? AND " + COL_START + " <= ?";
+		String[] args = { String.valueOf(level), String.valueOf(from - level), String.valueOf(to) };
+		SeriesWindow series = new SeriesWindow(level, getCapacity(level, from, to));
+		Cursor cursor = cs.query(uri, SUMMARY_PROJECTION, selection, args, null);
+		if (null == cursor)
+			return series;
+		
+		try {
+			double[] values = new double[SUMMARY_PROJECTION.length - 1];
+			while (cursor.moveToNext()) {
+				for (int i = 0; i < values.length; i++) {
+					values[i] = cursor.getDouble(i + 1);
+				}
+				series.add(cursor.getLong(0), values);
+			}
+		} finally {
+			cursor.close();
+		}
+		return series;
+	}
+	
+	private static int getCapacity(long level, long from, long to) {
+		// arrays grow as needed: this is just a hint
+		return (int) Math.min((to - from) / level + 1, 4096);
+	}
+	
+	/**
+	 * All log entries of a workout, by column (see LogColumns): much 
+	 * cheaper than getWorkoutLogEntries(), both in time and memory.
+	 * This is a blocking call: charts load their window through a 
+	 * WorkoutSeriesLoader instead.
+	 * @param ctx
+	 * @param workoutId
+	 * @return
+	 */
+	public static LogColumns getWorkoutLogColumns(Context ctx, long workoutId) {
+		return getWorkoutLogColumns(ctx, workoutId, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Log entries of a workout between the given times, by column.
+	 * @param ctx
+	 * @param workoutId
+	 * @param from milliseconds since the epoch
+	 * @param to milliseconds since the epoch
+	 * @return
+	 */
+	public static LogColumns getWorkoutLogColumns(Context ctx, long workoutId, long from, long to) {
+		ContentResolver cs = ctx.getContentResolver();
+		LogColumns columns;
+		
+		// recent workouts are stored in chunks, older ones in plain rows
+		Uri uri = getWorkoutChunksContentUri(workoutId);
+		String selection = _ID + " <= ? AND " + COL_END + " >= ?";
+		String[] args = { String.valueOf(to), String.valueOf(from) };
+		Cursor cursor = cs.query(uri, CHUNK_PROJECTION, selection, args, null);
+		try {
+			columns = getWorkoutLogColumnsFromChunks(cursor, from, to);
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		
+		if (0 == columns.size()) {
+			uri = getWorkoutLogContentUri(workoutId);
+			selection = _ID + " >= ? AND " + _ID + " <= ?";
+			args = new String[] { String.valueOf(from), String.valueOf(to) };
+			cursor = cs.query(uri, LOG_PROJECTION, selection, args, null);
+			try {
+				columns = getWorkoutLogColumns(cursor);
+			} finally {
+				if (cursor != null) {
+					cursor.close();
+				}
+			}
+		}
+		return columns;
+	}
+	
+	/**
+	 * Decodes the log entries between the given times from a cursor on 
+	 * chunks, in cursor order: columns are sized once, from the entry 
+	 * count of each chunk.
+	 * @param cursor
+	 * @param from milliseconds since the epoch
+	 * @param to milliseconds since the epoch
+	 * @return
+	 */
+	public static LogColumns getWorkoutLogColumnsFromChunks(Cursor cursor, long from, long to) {
+		if (null == cursor)
+			return new LogColumns(0);
+		
+		int countCol = cursor.getColumnIndex(COL_COUNT);
+		int dataCol = cursor.getColumnIndex(COL_DATA);
+		int total = 0;
+		while (cursor.moveToNext()) {
+			total += cursor.getInt(countCol);
+		}
+		
+		LogColumns columns = new LogColumns(total);
+		SampleChunkReader reader = new SampleChunkReader();
+		cursor.moveToPosition(-1);
+		while (cursor.moveToNext()) {
+			reader.reset(cursor.getBlob(dataCol));
+			while (reader.next()) {
+				long time = reader.getTime();
+				// chunks at the edges of the window hold entries out of it
+				if (time >= from && time <= to) {
+					columns.add(time, reader.getDistance(), reader.getHeartCadence(), 
+							reader.getSpeed(), reader.getCrankCadence());
+				}
+			}
+		}
+		return columns;
+	}
+	
+	/**
+	 * Reads all log entries from a cursor on plain log rows (see 
+	 * LOG_PROJECTION), by column.
+	 * @param cursor
+	 * @return
+	 */
+	public static LogColumns getWorkoutLogColumns(Cursor cursor) {
+		if (null == cursor)
+			return new LogColumns(0);
+		
+		int timeCol = cursor.getColumnIndex(_ID);
+		int distanceCol = cursor.getColumnIndex(COL_DISTANCE);
+		int cardioCol = cursor.getColumnIndex(COL_CARDIO);
+		int speedCol = cursor.getColumnIndex(COL_SPEED);
+		int cadenceCol = cursor.getColumnIndex(COL_CADENCE);
+		LogColumns columns = new LogColumns(cursor.getCount());
+		while (cursor.moveToNext()) {
+			columns.add(cursor.getLong(timeCol), cursor.getDouble(distanceCol), 
+					cursor.getDouble(cardioCol), cursor.getDouble(speedCol), cursor.getDouble(cadenceCol));
+		}
+		return columns;
+	}
+	
+	/**
+	 * Decodes all log entries from a cursor on chunks, in cursor order
+	 * (chunks are sorted by time by default).
+	 * @param cursor
+	 * @return
+	 */
+	public static List<WorkSessionLogEntry> getWorkoutLogEntriesFromChunks(Cursor cursor) {
+		ArrayList<WorkSessionLogEntry> items = 
+				new ArrayList<WorkSessionLogEntry>();
+	    if (cursor != null) {
+	    	SampleChunkReader reader = new SampleChunkReader();
+	    	int workoutCol = cursor.getColumnIndex(COL_WORKOUT);
+	    	int dataCol = cursor.getColumnIndex(COL_DATA);
+	    	while (cursor.moveToNext()) {
+	    		long workoutId = cursor.getLong(workoutCol);
+	    		reader.reset(cursor.getBlob(dataCol));
+	    		items.ensureCapacity(items.size() + reader.getCount());
+	    		while (reader.next()) {
+			    	WSLogData item = new WSLogData();
+			    	item.mTime = new Date(reader.getTime());
+			    	item.mWorkoutLocalId = workoutId;
+			    	item.mPartialDistance = reader.getDistance();
+			    	item.mHeartCadence = reader.getHeartCadence();
+			    	item.mSpeed = reader.getSpeed();
+			    	item.mCrankCadence = reader.getCrankCadence();
+			    	items.add(item);
+	    		}
+	    	}
+	    } 
+	    return items;
+	}
+	
 	public static List<WorkSessionLogEntry> getWorkoutLogEntries(Cursor cursor) {
 		ArrayList<WorkSessionLogEntry> items = 
 				new ArrayList<WorkSessionLogEntry>();
 	    if (cursor != null) {
+	    	int timeCol = cursor.getColumnIndex(_ID);
+	    	int workoutCol = cursor.getColumnIndex(COL_WORKOUT);
+	    	int distanceCol = cursor.getColumnIndex(COL_DISTANCE);
+	    	int cardioCol = cursor.getColumnIndex(COL_CARDIO);
+	    	int speedCol = cursor.getColumnIndex(COL_SPEED);
+	    	int cadenceCol = cursor.getColumnIndex(COL_CADENCE);
+	    	items.ensureCapacity(cursor.getCount());
 	    	while (cursor.moveToNext()) {
 		    	WSLogData item = new WSLogData();
-		    	item.mTime = new Date(cursor.getLong(cursor.getColumnIndex(_ID)));
-		    	item.mWorkoutLocalId = cursor.getLong(cursor.getColumnIndex(COL_WORKOUT));
-		    	item.mPartialDistance = cursor.getDouble(cursor.getColumnIndex(COL_DISTANCE));
-		    	item.mHeartCadence = cursor.getDouble(cursor.getColumnIndex(COL_CARDIO));
-		    	item.mSpeed = cursor.getDouble(cursor.getColumnIndex(COL_SPEED));
-		    	item.mCrankCadence = cursor.getDouble(cursor.getColumnIndex(COL_CADENCE));
+		    	item.mTime = new Date(cursor.getLong(timeCol));
+		    	item.mWorkoutLocalId = cursor.getLong(workoutCol);
+		    	item.mPartialDistance = cursor.getDouble(distanceCol);
+		    	item.mHeartCadence = cursor.getDouble(cardioCol);
+		    	item.mSpeed = cursor.getDouble(speedCol);
+		    	item.mCrankCadence = cursor.getDouble(cadenceCol);
 		    	items.add(item);
 	    	}
 	    } 
@@ -5,6 +5,8 @@ import java.math.RoundingMode;
 import java.util.Date;
 import java.util.Locale;
 
+import com.nimbusware.mypersonalbiketrainer.core.Logging;
+
 import android.app.Application;
 import android.content.Context;
 import android.net.Uri;
@@ -131,6 +133,7 @@ public class Globals extends Application {
 	@Override
 	public void onCreate() {
 		CONTEXT = getApplicationContext();
+		Logging.setLogger(new AndroidLogger());
 		super.onCreate();
 	}
 	
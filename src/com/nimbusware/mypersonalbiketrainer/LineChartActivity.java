@@ -1,27 +1,83 @@
 package com.nimbusware.mypersonalbiketrainer;
 
 import java.util.ArrayList;
-import java.util.List;
 
 import com.github.mikephil.charting.charts.LineChart;
 import com.github.mikephil.charting.data.Entry;
 import com.github.mikephil.charting.data.LineData;
 import com.github.mikephil.charting.data.LineDataSet;
+import com.nimbusware.mypersonalbiketrainer.core.SeriesPyramid;
+import com.nimbusware.mypersonalbiketrainer.core.SeriesWindow;
 
 import android.app.Activity;
+import android.app.LoaderManager;
+import android.content.Loader;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.ViewTreeObserver;
 import android.widget.Toast;
 
-public class LineChartActivity extends Activity {
+public class LineChartActivity extends Activity implements LoaderManager.LoaderCallbacks<SeriesWindow> {
 
 	private static final String TAG = LineChartActivity.class.getSimpleName();
+	
+	// about one point every other pixel is enough for a line chart
+	private static final int PIXELS_PER_POINT = 2;
+	
+	// zooming out of a partial window widens it by this factor
+	private static final int ZOOM_OUT_FACTOR = 4;
+	
+	// the chart is refreshed once gestures are over
+	private static final long REFRESH_DELAY = 300;
+	
+	// series are read by a single loader, restarted for each window
+	private static final int SERIES_LOADER = 0;
+	private static final String ARG_FROM = "from";
+	private static final String ARG_TO = "to";
 
 	private long mWorkoutId;
     private LineChart mChart;
+    private long mWorkoutStart;
+    private long mWorkoutEnd;
+    private int mMaxPoints;
+    
+    // points currently displayed, and their time window
+    private SeriesWindow mSeries;
+    private long mWindowFrom;
+    private long mWindowTo;
+    
+    private final Handler mHandler = new Handler();
+    private int mLowestVisible;
+    private int mHighestVisible;
+    
+    private final ViewTreeObserver.OnDrawListener mDrawListener = new ViewTreeObserver.OnDrawListener() {
+		
+		@Override
+		public void onDraw() {
+			// zooming and dragging redraw the chart: 
+			// wait for the visible range to settle
+			int lowest = mChart.getLowestVisibleXIndex();
+			int highest = mChart.getHighestVisibleXIndex();
+			if (lowest != mLowestVisible || highest != mHighestVisible) {
+				mLowestVisible = lowest;
+				mHighestVisible = highest;
+				mHandler.removeCallbacks(mRefreshTask);
+				mHandler.postDelayed(mRefreshTask, REFRESH_DELAY);
+			}
+		}
+	};
+    
+    private final Runnable mRefreshTask = new Runnable() {
+		
+		@Override
+		public void run() {
+			refreshChartData();
+		}
+	};
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -35,39 +91,43 @@ public class LineChartActivity extends Activity {
 		
 		Log.i(TAG, "Getting chart data, Workout ID=" + mWorkoutId);
 		
-		LineData data = getChartData(mWorkoutId);
-		
-		if (null != data) {
-			Log.i(TAG, "Displaying chart data, Workout ID=" + mWorkoutId);
-			
-			mChart = (LineChart) findViewById(R.id.line_chart);
-			mChart.setDrawGridBackground(false);
-
-	        // set an alternative background color
-	        // mChart.setBackgroundColor(Color.GRAY);
-			
-			// no description
-	        mChart.setDescription("");
-
-	        // enable value highlighting
-	        mChart.setHighlightEnabled(true);
-
-	        // enable touch gestures
-	        mChart.setTouchEnabled(true);
-
-	        // enable scaling, dragging and pinch-zooming
-	        mChart.setDragEnabled(true);
-	        mChart.setScaleEnabled(true);
-	        mChart.setPinchZoom(true);
-	        
-	        // set data
-	        mChart.setData(data);
-		} else {
+		WorkSessionInfo info = DiaryContract.getWorkoutEntry(this, mWorkoutId);
+		if (null == info) {
 			Log.i(TAG, "No chart data exists, Workout ID=" + mWorkoutId);
 			Toast.makeText(this, R.string.msg_no_log, Toast.LENGTH_SHORT).show();
 			finish();
         	return;
 		}
+		
+		mWorkoutStart = info.getStartTime().getTime();
+		mWorkoutEnd = info.getEndTime().getTime();
+		if (mWorkoutEnd <= mWorkoutStart) { // still open
+			mWorkoutEnd = mWorkoutStart + (long) (info.getElapsedTime() * 1000);
+		}
+		mMaxPoints = getResources().getDisplayMetrics().widthPixels / PIXELS_PER_POINT;
+			
+		mChart = (LineChart) findViewById(R.id.line_chart);
+		mChart.setDrawGridBackground(false);
+
+        // set an alternative background color
+        // mChart.setBackgroundColor(Color.GRAY);
+		
+		// no description
+        mChart.setDescription("");
+
+        // enable value highlighting
+        mChart.setHighlightEnabled(true);
+
+        // enable touch gestures
+        mChart.setTouchEnabled(true);
+
+        // enable scaling, dragging and pinch-zooming
+        mChart.setDragEnabled(true);
+        mChart.setScaleEnabled(true);
+        mChart.setPinchZoom(true);
+        
+        // data is read in background, the whole workout first
+        getLoaderManager().initLoader(SERIES_LOADER, getLoaderArgs(mWorkoutStart, mWorkoutEnd), this);
 	}
 	
 	
@@ -82,6 +142,65 @@ public class LineChartActivity extends Activity {
 
 
 
+	@Override
+	protected void onDestroy() {
+		mHandler.removeCallbacks(mRefreshTask);
+		if (null != mSeries) {
+			mChart.getViewTreeObserver().removeOnDrawListener(mDrawListener);
+		}
+		super.onDestroy();
+	}
+
+	@Override
+	public Loader<SeriesWindow> onCreateLoader(int id, Bundle args) {
+		long from = args.getLong(ARG_FROM);
+		long to = args.getLong(ARG_TO);
+		long level = SeriesPyramid.pickLevel(to - from, mMaxPoints);
+		return new WorkoutSeriesLoader(this, mWorkoutId, level, from, to);
+	}
+
+	@Override
+	public void onLoadFinished(Loader<SeriesWindow> loader, SeriesWindow series) {
+		if (0 == series.size()) {
+			if (null == mSeries) {
+				Log.i(TAG, "No chart data exists, Workout ID=" + mWorkoutId);
+				Toast.makeText(this, R.string.msg_no_log, Toast.LENGTH_SHORT).show();
+				finish();
+			}
+			// else: nothing in the new window, keep the current one
+			return;
+		}
+		
+		Log.i(TAG, "Displaying chart data, Workout ID=" + mWorkoutId + 
+				", level=" + series.getLevel() + ", points=" + series.size());
+		if (null == mSeries) {
+	        // a finer level of detail is loaded when zooming in
+			mChart.getViewTreeObserver().addOnDrawListener(mDrawListener);
+		}
+		
+		WorkoutSeriesLoader seriesLoader = (WorkoutSeriesLoader) loader;
+		mSeries = series;
+		mWindowFrom = seriesLoader.getFrom();
+		mWindowTo = seriesLoader.getTo();
+		mChart.setData(getChartData(series));
+		mChart.fitScreen();
+		mLowestVisible = 0;
+		mHighestVisible = series.size() - 1;
+		mChart.invalidate();
+	}
+
+	@Override
+	public void onLoaderReset(Loader<SeriesWindow> loader) {
+		// the chart holds its own copy of the data
+	}
+	
+	private static Bundle getLoaderArgs(long from, long to) {
+		Bundle args = new Bundle();
+		args.putLong(ARG_FROM, from);
+		args.putLong(ARG_TO, to);
+		return args;
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		// Inflate the menu; this adds items to the action bar if it is present.
@@ -101,67 +220,89 @@ public class LineChartActivity extends Activity {
 		return super.onOptionsItemSelected(item);
 	}
 
-    private LineData getChartData(long workoutId) {
-    	LineData data = null;
+    /**
+     * Checks whether the visible range needs another level of detail: 
+     * a finer one when zooming in, a wider window when zooming out.
+     */
+    private void refreshChartData() {
+    	int size = mSeries.size();
+    	int lowest = Math.max(0, Math.min(mLowestVisible, size - 1));
+    	int highest = Math.max(lowest, Math.min(mHighestVisible, size - 1));
+    	long from = mSeries.getTime(lowest);
+    	long to = mSeries.getTime(highest) + mSeries.getLevel();
     	
-    	List<WorkSessionLogEntry> logEntries = 
-    			DiaryContract.getWorkoutLogEntries(this, workoutId);
-    	int size = logEntries.size();
+    	if (0 == lowest && size - 1 == highest) {
+    		// fully zoomed out: nothing to do unless we are
+    		// showing a part of the workout only
+    		if (mWindowFrom <= mWorkoutStart && mWindowTo >= mWorkoutEnd)
+    			return;
+    		
+    		long span = (mWindowTo - mWindowFrom) * ZOOM_OUT_FACTOR;
+    		long center = (mWindowFrom + mWindowTo) / 2;
+    		from = Math.max(mWorkoutStart, center - span / 2);
+    		to = Math.min(mWorkoutEnd, center + span / 2);
+    	} else if (SeriesPyramid.pickLevel(to - from, mMaxPoints) >= mSeries.getLevel()) {
+    		// current points are detailed enough
+    		return;
+    	}
     	
-    	if (size > 0) {
-            ArrayList<String> xVals = new ArrayList<String>(size);
-            ArrayList<Entry> yValsCardio = new ArrayList<Entry>(size);
-            ArrayList<Entry> yValsSpeed = new ArrayList<Entry>(size);
-        	for (int i = 0; i < size; i++) {
-        		WorkSessionLogEntry item = logEntries.get(i);
-                xVals.add((i) + "");
-                yValsCardio.add(new Entry((float)item.getHeartCadence(), i));
-                yValsSpeed.add(new Entry((float)item.getSpeed(), i));
-        	}
-
-            LineDataSet set1 = new LineDataSet(yValsCardio, "Cardio");
-            set1.setColor(Color.RED);
-
-            LineDataSet set2 = new LineDataSet(yValsSpeed, "Speed");
-            set2.setColor(Color.BLACK);
-        	
-            ArrayList<LineDataSet> dataSets = new ArrayList<LineDataSet>();
-            dataSets.add(set1);
-            dataSets.add(set2);
-
-            data = new LineData(xVals, dataSets);
+    	getLoaderManager().restartLoader(SERIES_LOADER, getLoaderArgs(from, to), this);
+    }
+
+    private LineData getChartData(SeriesWindow series) {
+    	int size = series.size();
+        ArrayList<String> xVals = new ArrayList<String>(size);
+        ArrayList<Entry> yValsCardio = new ArrayList<Entry>(size);
+        ArrayList<Entry> yValsSpeed = new ArrayList<Entry>(size);
+        ArrayList<Entry> yValsCardioMax = new ArrayList<Entry>(size);
+        ArrayList<Entry> yValsSpeedMax = new ArrayList<Entry>(size);
+    	for (int i = 0; i < size; i++) {
+            xVals.add(formatElapsedTime(series.getTime(i) - mWorkoutStart));
+            yValsCardio.add(new Entry((float) series.getAverage(SeriesPyramid.SERIES_CARDIO, i), i));
+            yValsSpeed.add(new Entry((float) series.getAverage(SeriesPyramid.SERIES_SPEED, i), i));
+            yValsCardioMax.add(new Entry((float) series.getMax(SeriesPyramid.SERIES_CARDIO, i), i));
+            yValsSpeedMax.add(new Entry((float) series.getMax(SeriesPyramid.SERIES_SPEED, i), i));
     	}
+
+        LineDataSet set1 = new LineDataSet(yValsCardio, "Cardio");
+        set1.setColor(Color.RED);
+        set1.setDrawCircles(false);
+
+        LineDataSet set2 = new LineDataSet(yValsSpeed, "Speed");
+        set2.setColor(Color.BLACK);
+        set2.setDrawCircles(false);
     	
-    	return data;
+        ArrayList<LineDataSet> dataSets = new ArrayList<LineDataSet>();
+        dataSets.add(set1);
+        dataSets.add(set2);
         
-        /*
-
-        // create a dataset and give it a type
-        LineDataSet set1 = new LineDataSet(yVals, "DataSet 1");
-        // set1.setFillAlpha(110);
-        // set1.setFillColor(Color.RED);
-
-        // set the line to be drawn like this "- - - - - -"
-        set1.enableDashedLine(10f, 5f, 0f);
-        set1.setColor(Color.BLACK);
-        set1.setCircleColor(Color.BLACK);
-        set1.setLineWidth(1f);
-        set1.setCircleSize(3f);
-        set1.setDrawCircleHole(false);
-        set1.setValueTextSize(9f);
-        set1.setFillAlpha(65);
-        set1.setFillColor(Color.BLACK);
-//        set1.setDrawFilled(true);
-        // set1.setShader(new LinearGradient(0, 0, 0, mChart.getHeight(),
-        // Color.BLACK, Color.WHITE, Shader.TileMode.MIRROR));
-
-
-        // create a data object with the datasets
-        LineData data = new LineData(xVals, dataSets);
-
-        // set data
-        mChart.setData(data);
-        */
+        if (SeriesPyramid.RAW_LEVEL != series.getLevel()) {
+        	// each point is a bucket: peaks would be flattened by averages
+            LineDataSet set3 = new LineDataSet(yValsCardioMax, "Cardio max");
+            set3.setColor(Color.rgb(255, 160, 160));
+            set3.setDrawCircles(false);
+            set3.setLineWidth(0.5f);
+
+            LineDataSet set4 = new LineDataSet(yValsSpeedMax, "Speed max");
+            set4.setColor(Color.GRAY);
+            set4.setDrawCircles(false);
+            set4.setLineWidth(0.5f);
+            
+            dataSets.add(set3);
+            dataSets.add(set4);
+        }
+
+        return new LineData(xVals, dataSets);
+    }
+    
+    private static String formatElapsedTime(long millis) {
+    	long secs = Math.max(0, millis / 1000);
+    	long hours = secs / 3600;
+    	long mins = (secs / 60) % 60;
+    	secs = secs % 60;
+    	return hours > 0 ? 
+    			String.format("%d:%02d:%02d", hours, mins, secs) :
+    			String.format("%d:%02d", mins, secs);
     }
     
 }
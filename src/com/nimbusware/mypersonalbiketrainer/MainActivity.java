@@ -164,6 +164,9 @@ public class MainActivity extends Activity {
 			case R.id.action_diary:
 		        startActivity(new Intent(this, DiaryActivity.class));
 				break;
+			case R.id.action_metrics:
+		        startActivity(new Intent(this, MetricsActivity.class));
+				break;
 		}
 		return true;
 	}
@@ -0,0 +1,112 @@
+package com.nimbusware.mypersonalbiketrainer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import com.nimbusware.mypersonalbiketrainer.core.MetricRegistry;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Debug screen: the metrics of sensors and sessions (see core.MetricRegistry),
+ * refreshed every second while visible; they can be saved to a text file in
+ * Downloads, and reset.
+ */
+public class MetricsActivity extends Activity {
+
+	private static final String TAG = MetricsActivity.class.getSimpleName();
+	private static final long REFRESH_INTERVAL = 1000;
+
+	private final Handler mHandler = new Handler();
+	private TextView mText;
+
+	private final Runnable mRefresh = new Runnable() {
+
+		@Override
+		public void run() {
+			mText.setText(MetricRegistry.getDefault().dump());
+			mHandler.postDelayed(this, REFRESH_INTERVAL);
+		}
+	};
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.activity_metrics);
+		mText = (TextView) findViewById(R.id.metrics);
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		mHandler.post(mRefresh);
+	}
+
+	@Override
+	protected void onPause() {
+		mHandler.removeCallbacks(mRefresh);
+		super.onPause();
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+	    MenuInflater inflater = getMenuInflater();
+	    inflater.inflate(R.menu.metrics, menu);
+	    return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+			case R.id.action_dump:
+				save();
+				break;
+			case R.id.action_reset:
+				MetricRegistry.getDefault().reset();
+				mHandler.removeCallbacks(mRefresh);
+				mHandler.post(mRefresh);
+				break;
+		}
+		return true;
+	}
+
+	// a few KB at most: written on the main thread
+	private void save() {
+		Date now = new Date();
+		SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
+		File dir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+		File file = new File(dir, "bike-trainer-metrics-" + formatter.format(now) + ".txt");
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Cannot create directory " + dir);
+
+			Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+			try {
+				out.write("# " + now + "\n");
+				MetricRegistry.getDefault().dump(out);
+			} finally {
+				out.close();
+			}
+			Log.i(TAG, "Metrics saved to " + file);
+			Toast.makeText(this, getString(R.string.msg_metrics_saved, file.getName()), Toast.LENGTH_SHORT).show();
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot save metrics to " + file, e);
+			Toast.makeText(this, e.getMessage(), Toast.LENGTH_SHORT).show();
+		}
+	}
+}
@@ -2,6 +2,7 @@ package com.nimbusware.mypersonalbiketrainer;
 
 import com.nimbusware.mypersonalbiketrainer.ble.CscSensor;
 import com.nimbusware.mypersonalbiketrainer.ble.HrmSensor;
+import com.nimbusware.mypersonalbiketrainer.replay.NotificationRecorder;
 
 import android.bluetooth.BluetoothAdapter;
 import android.content.Context;
@@ -10,22 +11,31 @@ import android.content.Context;
 public class SensorFactory {
 
 	public static SensorSet getSensorSet(Context context, BluetoothAdapter adapter, SensorInfo sensorInfo, int wheelSize) {
+		return getSensorSet(context, adapter, sensorInfo, wheelSize, null);
+	}
+
+	// recorder may be null: if not, all sensors record their raw notifications to it
+	public static SensorSet getSensorSet(Context context, BluetoothAdapter adapter, SensorInfo sensorInfo, int wheelSize,
+			NotificationRecorder recorder) {
 		HrmSensor heartSensor = null;
 		CscSensor wheelSensor = null;
 		CscSensor crankSensor = null;
 		String heartSensorAddr = sensorInfo.getHeartSensorAddress();
 		if (null != heartSensorAddr) {
 			heartSensor = new HrmSensor(context, adapter, heartSensorAddr);
+			heartSensor.setRecorder(recorder);
 		}
 		
 		String wheelSensorAddr = sensorInfo.getWheelSensorAddress();
 		if (null != wheelSensorAddr) {
 			wheelSensor = new CscSensor(context, adapter, wheelSensorAddr, wheelSize);
+			wheelSensor.setRecorder(recorder);
 		}
 		
 		String crankSensorAddr = sensorInfo.getCrankSensorAddress();
 		if (null != crankSensorAddr && !crankSensorAddr.equals(wheelSensorAddr)) {
 			CscSensor sensor = new CscSensor(context, adapter, crankSensorAddr, wheelSize);
+			sensor.setRecorder(recorder);
 			if (null == wheelSensor) {
 				// one single CSC sensor for both wheel and crank,
 				// saved in configuration as the "crank sensor"
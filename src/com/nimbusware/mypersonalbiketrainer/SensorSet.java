@@ -1,20 +1,124 @@
 package com.nimbusware.mypersonalbiketrainer;
 
-import android.os.AsyncTask;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.nimbusware.android.ble.profiles.HrmData;
+import com.nimbusware.android.ble.sensors.ConnectionCoordinator;
+import com.nimbusware.android.ble.sensors.ConnectionCoordinator.Connection;
+import com.nimbusware.android.ble.sensors.DataBatchListener;
+import com.nimbusware.android.ble.sensors.GenericSensor;
+import com.nimbusware.mypersonalbiketrainer.ble.HrmSensor;
 
 public class SensorSet implements Sensor {
-	
+
+	// all at once: use 1 with BLE stacks which fail on parallel connections
+	public static final int DEFAULT_PARALLELISM = 3;
+
 	private final BeatRateSensor mHeartSensor;
 	private final SpeedSensor mWheelSensor;
 	private final CadenceSensor mCrankSensor;
-	
-	private boolean mOperationPending;
-	private boolean mIsOpen;
-	
+
+	// sensors are opened concurrently, driven by their state callbacks;
+	// null if no sensor is configured at all
+	private final ConnectionCoordinator mCoordinator;
+
+	// set by the watches once the coordinator knows about the first data of
+	// their sensor, cleared on each opening: later notifications, i.e. all
+	// those of a ride, return right away instead of taking its lock
+	private volatile boolean mHeartDataSeen;
+	private volatile boolean mWheelDataSeen;
+	private volatile boolean mCrankDataSeen;
+
+	// these only tell the coordinator when the first data of each sensor comes in
+	private final BeatRateSensorListener mHeartWatch = new BeatRateSensorListener() {
+
+		@Override
+		public void updateConnectionState(int status, int newState) {
+		}
+
+		@Override
+		public void updateBeatRate(double bpm) {
+			if (!mHeartDataSeen) {
+				mHeartDataSeen = true;
+				mCoordinator.notifyDataReceived(mHeartSensor);
+			}
+		}
+	};
+
+	private final SpeedSensorListener mWheelWatch = new SpeedSensorListener() {
+
+		@Override
+		public void updateConnectionState(int status, int newState) {
+		}
+
+		@Override
+		public void updateSpeed(double kmh) {
+			if (!mWheelDataSeen) {
+				mWheelDataSeen = true;
+				mCoordinator.notifyDataReceived(mWheelSensor);
+			}
+		}
+
+		@Override
+		public void updateDistance(double meters) {
+		}
+
+		@Override
+		public void updateWheelRevsCount(int revs) {
+		}
+	};
+
+	private final CadenceSensorListener mCrankWatch = new CadenceSensorListener() {
+
+		@Override
+		public void updateConnectionState(int status, int newState) {
+		}
+
+		@Override
+		public void updateCadence(double rpm) {
+			if (!mCrankDataSeen) {
+				mCrankDataSeen = true;
+				mCoordinator.notifyDataReceived(mCrankSensor);
+			}
+		}
+
+		@Override
+		public void updateCrankRevsCount(int revs) {
+		}
+	};
+
 	public SensorSet(BeatRateSensor heartSensor, SpeedSensor wheelSensor, CadenceSensor crankSensor) {
+		this(heartSensor, wheelSensor, crankSensor, DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * @param heartSensor may be null
+	 * @param wheelSensor may be null
+	 * @param crankSensor may be null, or the same as wheelSensor
+	 * @param parallelism max number of sensors being connected at the same time
+	 */
+	public SensorSet(BeatRateSensor heartSensor, SpeedSensor wheelSensor, CadenceSensor crankSensor,
+			int parallelism) {
 		mHeartSensor = heartSensor;
 		mWheelSensor = wheelSensor;
 		mCrankSensor = crankSensor;
+
+		// wheel and crank may be (and usually are) monitored by the
+		// same sensor: the coordinator opens it only once
+		List<GenericSensor> sensors = new ArrayList<GenericSensor>(3);
+		if (null != heartSensor) {
+			sensors.add(heartSensor);
+		}
+		if (null != wheelSensor) {
+			sensors.add(wheelSensor);
+		}
+		if (null != crankSensor) {
+			sensors.add(crankSensor);
+		}
+		mCoordinator = sensors.isEmpty() ? null : new ConnectionCoordinator(parallelism,
+				ConnectionCoordinator.DEFAULT_TIMEOUT, sensors.toArray(new GenericSensor[sensors.size()]));
 	}
 
 	public void registerHeartListener(BeatRateSensorListener listener) {
@@ -28,7 +132,25 @@ public class SensorSet implements Sensor {
 			mHeartSensor.unregisterListener(listener);
 		}
 	}
-	
+
+	/**
+	 * Heart rate samples batched over the listener's window, for consumers
+	 * which don't need to react to each beat. Ignored if there is no heart
+	 * sensor, or if it cannot batch its data.
+	 * @param listener
+	 */
+	public void registerHeartBatchListener(DataBatchListener<HrmData> listener) {
+		if (mHeartSensor instanceof HrmSensor) {
+			((HrmSensor) mHeartSensor).registerDataBatchListener(listener);
+		}
+	}
+
+	public void unregisterHeartBatchListener(DataBatchListener<HrmData> listener) {
+		if (mHeartSensor instanceof HrmSensor) {
+			((HrmSensor) mHeartSensor).unregisterDataBatchListener(listener);
+		}
+	}
+
 	public void registerWheelListener(SpeedSensorListener listener) {
 		if (null != mWheelSensor) {
 			mWheelSensor.registerListener(listener);
@@ -52,106 +174,71 @@ public class SensorSet implements Sensor {
 			mCrankSensor.unregisterListener(listener);
 		}
 	}
-	
-	public synchronized boolean isOpen() {
-		return mIsOpen;
+
+	/**
+	 * @return true if at least one sensor is open
+	 */
+	public boolean isOpen() {
+		return (null != mHeartSensor && mHeartSensor.isOpen()) ||
+				(null != mWheelSensor && mWheelSensor.isOpen()) ||
+				(null != mCrankSensor && mCrankSensor.isOpen());
 	}
-	
-	public synchronized boolean isBusy() {
-		return mOperationPending;
+
+	public boolean isBusy() {
+		return null != mCoordinator && mCoordinator.isOperationInProgress();
+	}
+
+	/**
+	 * @return the outcome of the last open() or reopen(), one per sensor
+	 */
+	public List<Connection> getConnections() {
+		if (null == mCoordinator)
+			return Collections.emptyList();
+		return mCoordinator.getConnections();
 	}
 
 	@Override
-	public synchronized boolean open() {
-		if (!mOperationPending && !mIsOpen) {
-			mOperationPending = true;
-			Opener opener = new Opener();
-			opener.execute(false);
-			return true;
-		} else {
+	public boolean open() {
+		if (null == mCoordinator || isOpen())
 			return false;
-		}
+
+		registerWatches();
+		boolean result = mCoordinator.open();
+		resetWatches();
+		return result;
 	}
-	
+
 	@Override
-	public synchronized boolean reopen() {
-		mOperationPending = true;
-		Opener opener = new Opener();
-		opener.execute(true);
-		return true;
+	public boolean reopen() {
+		if (null == mCoordinator)
+			return false;
+
+		registerWatches();
+		boolean result = mCoordinator.reopen();
+		resetWatches();
+		return result;
 	}
 
 	@Override
-	public synchronized void close() {
-		if (mIsOpen) {
-			if (null != mHeartSensor) {
-				mHeartSensor.close();
-			}
-			if (null != mWheelSensor) {
-				mWheelSensor.close();
-			}
-			if (null != mCrankSensor && mCrankSensor != mWheelSensor) {
-				// wheel and crank may be served by the same sensor
-				mCrankSensor.close();
-			}
-			mIsOpen = false;
+	public void close() {
+		if (null != mCoordinator) {
+			mCoordinator.close();
 		}
-		mOperationPending = false;
 	}
-	
-	private class Opener extends AsyncTask<Boolean, Void, Void> {
 
-		@Override
-		protected Void doInBackground(Boolean... params) {
-			synchronized (SensorSet.this) {
-				boolean open = false;
-				if (null != mHeartSensor && !mHeartSensor.isOpen()) {
-					open = open || doSynchronously(mHeartSensor, params[0]);
-				}
-				if (null != mWheelSensor && !mWheelSensor.isOpen()) {
-					open = open || doSynchronously(mWheelSensor, params[0]);
-				}
-				// wheel and crank may be (and usually are) monitored by the same sensor
-				if (null != mCrankSensor && mCrankSensor != mWheelSensor && !mCrankSensor.isOpen()) {
-					open = open || doSynchronously(mCrankSensor, params[0]);
-				}
-				
-				// for us to be in "open" state, at least one sensor should be so
-				mIsOpen = open;
-				mOperationPending = false;
-			}
-			return null;
-		}
-		
-		private boolean doSynchronously(Sensor sensor, boolean isRefresh) {
-			boolean open = false;
-			
-			if (isRefresh) {
-				sensor.reopen();
-			} else {
-				sensor.open();
-			}
-			
-			// spend max 10 seconds waiting for a working device
-			// before trying to open/refresh the next one
-			for (int i = 100; i > 0; i--) {
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				if (!sensor.isBusy()) {
-					open = sensor.isOpen();
-					break;
-				}
-			}
-			
-			// TODO how can we manage a situation where we reached
-			// the timeout and still we have a connection is progress?
-			// there should be some way of aborting the system BLE
-			// threads
-			
-			return open;
-		}
+	// sensors drop their listeners when closed: register again on each opening
+	private void registerWatches() {
+		registerHeartListener(mHeartWatch);
+		registerWheelListener(mWheelWatch);
+		registerCrankListener(mCrankWatch);
+	}
+
+	// after the coordinator has made its new connections: data of the
+	// previous ones may still come in until then, and data of the new
+	// ones coming in before this is simply reported twice (a no-op)
+	private void resetWatches() {
+		mHeartDataSeen = false;
+		mWheelDataSeen = false;
+		mCrankDataSeen = false;
 	}
 }
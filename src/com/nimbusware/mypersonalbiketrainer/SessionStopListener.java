@@ -0,0 +1,11 @@
+package com.nimbusware.mypersonalbiketrainer;
+
+public interface SessionStopListener {
+
+	/**
+	 * Invoked on the main thread once a stopped session has been persisted.
+	 * @param data final data of the session
+	 * @param saved false if the session could not be persisted
+	 */
+	public void onSessionStopped(WorkSessionInfo data, boolean saved);
+}
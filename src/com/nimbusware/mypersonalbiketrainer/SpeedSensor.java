@@ -1,6 +1,8 @@
 package com.nimbusware.mypersonalbiketrainer;
 
-public interface SpeedSensor extends Sensor {
+import com.nimbusware.android.ble.sensors.GenericSensor;
+
+public interface SpeedSensor extends Sensor, GenericSensor {
 
 	public void registerListener(SpeedSensorListener listener);
 
@@ -0,0 +1,95 @@
+package com.nimbusware.mypersonalbiketrainer;
+
+import com.nimbusware.mypersonalbiketrainer.core.SeriesWindow;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+
+/**
+ * Loads the time series of a workout over a time window, at a given level
+ * of detail (see DiaryContract.getWorkoutSeries()), off the main thread.
+ * The result is kept until the loader is reset, and reloaded whenever the
+ * log changes: restart the loader to get another window.
+ */
+public class WorkoutSeriesLoader extends AsyncTaskLoader<SeriesWindow> {
+	
+	private final long mWorkoutId;
+	private final long mLevel;
+	private final long mFrom;
+	private final long mTo;
+	private SeriesWindow mData;
+	private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+	private boolean mObserving;
+
+	/**
+	 * @param context
+	 * @param workoutId
+	 * @param level see SeriesPyramid
+	 * @param from milliseconds since the epoch
+	 * @param to milliseconds since the epoch
+	 */
+	public WorkoutSeriesLoader(Context context, long workoutId, long level, long from, long to) {
+		super(context);
+		mWorkoutId = workoutId;
+		mLevel = level;
+		mFrom = from;
+		mTo = to;
+	}
+
+	public long getFrom() {
+		return mFrom;
+	}
+
+	public long getTo() {
+		return mTo;
+	}
+
+	@Override
+	public SeriesWindow loadInBackground() {
+		return DiaryContract.getWorkoutSeries(getContext(), mWorkoutId, mLevel, mFrom, mTo);
+	}
+
+	@Override
+	public void deliverResult(SeriesWindow data) {
+		if (isReset())
+			return;
+		
+		mData = data;
+		if (isStarted()) {
+			super.deliverResult(data);
+		}
+	}
+
+	@Override
+	protected void onStartLoading() {
+		if (!mObserving) {
+			getContext().getContentResolver().registerContentObserver(
+					DiaryContract.getWorkoutLogNotificationUri(mWorkoutId), false, mObserver);
+			mObserving = true;
+		}
+		
+		if (null != mData) {
+			deliverResult(mData);
+		}
+		if (takeContentChanged() || null == mData) {
+			forceLoad();
+		}
+	}
+
+	@Override
+	protected void onStopLoading() {
+		cancelLoad();
+	}
+
+	@Override
+	protected void onReset() {
+		super.onReset();
+		onStopLoading();
+		mData = null;
+		
+		if (mObserving) {
+			getContext().getContentResolver().unregisterContentObserver(mObserver);
+			mObserving = false;
+		}
+	}
+}
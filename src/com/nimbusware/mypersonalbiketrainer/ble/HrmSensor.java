@@ -3,23 +3,37 @@ package com.nimbusware.mypersonalbiketrainer.ble;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.nimbusware.android.ble.profiles.HrmData;
+import com.nimbusware.android.ble.profiles.HrmProfile;
+import com.nimbusware.android.ble.profiles.IntRingBuffer;
 import com.nimbusware.mypersonalbiketrainer.BeatRateSensor;
 import com.nimbusware.mypersonalbiketrainer.BeatRateSensorListener;
 
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Context;
 import android.util.Log;
 
-public class HrmSensor extends SingleValueSensor implements BeatRateSensor {
+public class HrmSensor extends SingleValueSensor<HrmData> implements BeatRateSensor {
     
 	private final static String TAG = HrmSensor.class.getSimpleName();
+	// one RR interval per beat: at most about 15 minutes of history at 70 BPM
+	private final static int RR_INITIAL_CAPACITY = 256;
+	private final static int RR_MAX_CAPACITY = 1024;
 
 	private final List<BeatRateSensorListener> mListeners = 
 			new ArrayList<BeatRateSensorListener>();
+	
+	// RR intervals are copied out of each notification, on the GATT callback
+	// thread, into a history of our own which outlives reconnections (the
+	// parser's is reset with each connection): additions and copies both
+	// hold this lock
+	private final Object mRrLock = new Object();
+	private final IntRingBuffer mRrHistory = new IntRingBuffer(RR_INITIAL_CAPACITY, RR_MAX_CAPACITY);
+	private boolean mContactLost;
+
     
 	public HrmSensor(Context context, BluetoothAdapter adapter, String address) {
-		super(context, adapter, address, GattNames.HRM_SERVICE, GattNames.HRM_CHARACTERISTIC);
+		super(context, adapter, address, HrmProfile.getInstance(), null);
 	}
 
 	@Override
@@ -45,29 +59,60 @@ public class HrmSensor extends SingleValueSensor implements BeatRateSensor {
 	}
 
 	@Override
-	protected void notifyListeners(BluetoothGattCharacteristic characteristic) {
-		int flag = characteristic.getProperties();
-		int format = -1;
-		if ((flag & 0x01) != 0) {
-		    format = BluetoothGattCharacteristic.FORMAT_UINT16;
-		} else {
-		    format = BluetoothGattCharacteristic.FORMAT_UINT8;
+	protected void notifyListeners(HrmData data) {
+		int heartRate = data.getHeartRate();
+		boolean contactLost = !data.isSensorContactDetected();
+		int count = data.getRrIntervalCount();
+		if (count > 0) {
+			synchronized (mRrLock) {
+				for (int i = 0; i < count; i++) {
+					mRrHistory.add(data.getRrInterval(i));
+				}
+			}
 		}
 		
-		final int heartRate = characteristic.getIntValue(format, 1);
-
-	    Log.v(TAG, "HRM notification data: HEART_RATE=" + heartRate);
+		// log contact changes only, not every notification
+		if (contactLost != mContactLost) {
+			Log.w(TAG, contactLost ? "HRM sensor lost skin contact" : "HRM sensor skin contact restored");
+			mContactLost = contactLost;
+		}
 
-	    for (BeatRateSensorListener listener : mListeners) {
-		    Log.v(TAG, "Sending HRM sensor notification");
-	    	listener.updateBeatRate(heartRate);
+	    for (int i = 0; i < mListeners.size(); i++) {
+	    	mListeners.get(i).updateBeatRate(heartRate);
 	    }
 	}
+	
+	/**
+	 * Number of RR intervals received so far, including those no longer
+	 * retained (see IntRingBuffer.getTotalCount()).
+	 * @return
+	 */
+	public long getRrCount() {
+		synchronized (mRrLock) {
+			return mRrHistory.getTotalCount();
+		}
+	}
+
+	/**
+	 * Copies the RR intervals received after the given count, in 1/1024s,
+	 * oldest first (see IntRingBuffer.copySince()). Safe from any thread.
+	 * @param since a value previously returned by getRrCount(), 0 for all
+	 * @param dest
+	 * @return number of values copied
+	 */
+	public int copyRrIntervalsSince(long since, int[] dest) {
+		synchronized (mRrLock) {
+			return mRrHistory.copySince(since, dest);
+		}
+	}
 
 	@Override
 	protected void doClose(boolean isRefresh) {
 		if (!isRefresh) {
 			mListeners.clear();
+			synchronized (mRrLock) {
+				mRrHistory.clear();
+			}
 		}
 	}
 }
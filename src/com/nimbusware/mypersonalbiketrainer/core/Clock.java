@@ -0,0 +1,22 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+/**
+ * Source of wall-clock time for session aggregation. Simulations and
+ * replays provide their own implementation to run faster than real time.
+ */
+public interface Clock {
+
+	public static final Clock SYSTEM = new Clock() {
+		
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/**
+	 * Current time, in milliseconds since the epoch.
+	 * @return
+	 */
+	public long currentTimeMillis();
+}
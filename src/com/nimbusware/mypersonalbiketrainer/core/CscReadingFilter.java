@@ -0,0 +1,48 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+/**
+ * Filters out spurious zero readings of a CSC sensor, i.e., single zero
+ * speeds (or cadences) in the midst of a regular session: a zero reading
+ * is accepted only if the previous one was also zero. A zero reading also
+ * means that the revolution count has not changed since the previous one,
+ * as far as the sensor knows, so skipping it leaves totals unaffected;
+ * passing it on instead would count the carried over revolutions twice
+ * (see CscProfile.Parser).
+ * <p>
+ * Shared by ble.CscSensor and the replay, which must send the same
+ * notifications. One instance per sensor; not thread safe, as readings
+ * of a sensor come from a single thread.
+ */
+public class CscReadingFilter {
+
+	private double mLastSpeed;
+	private double mLastCadence;
+
+	/**
+	 * @param speed current speed reading
+	 * @return true if the wheel figures of this reading are to be notified
+	 */
+	public boolean acceptSpeed(double speed) {
+		boolean accept = speed > 0 || mLastSpeed == 0;
+		mLastSpeed = speed;
+		return accept;
+	}
+
+	/**
+	 * @param cadence current cadence reading
+	 * @return true if the crank figures of this reading are to be notified
+	 */
+	public boolean acceptCadence(double cadence) {
+		boolean accept = cadence > 0 || mLastCadence == 0;
+		mLastCadence = cadence;
+		return accept;
+	}
+
+	/**
+	 * Forgets previous readings, e.g. when the sensor is closed.
+	 */
+	public void reset() {
+		mLastSpeed = 0;
+		mLastCadence = 0;
+	}
+}
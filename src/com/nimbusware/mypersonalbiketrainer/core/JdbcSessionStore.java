@@ -0,0 +1,248 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import com.nimbusware.mypersonalbiketrainer.WorkSessionInfo;
+
+/**
+ * SessionStore for plain JVMs, writing to any JDBC database - typically
+ * SQLite, using a URL like "jdbc:sqlite:/path/to/diary.db" with the
+ * sqlite-jdbc driver on the classpath. Tables have the columns of the
+ * session tables of the diary content provider (see DiaryContentProvider),
+ * but the database is not a diary: it has no schema version, rollups or
+ * indexes, so the app would not open it as one.
+ * <p>
+ * Failures are reported as RuntimeExceptions, as the content provider does.
+ * This class is not thread safe.
+ */
+public class JdbcSessionStore implements SessionStore {
+
+	private static final String CREATE_WORKOUT = "CREATE TABLE IF NOT EXISTS workout (" + 
+			"_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+			"_uuid TEXT NULL, " +
+			"start_time INTEGER NOT NULL, " +
+			"end_time INTEGER NOT NULL, " +
+			"time_elapses REAL NOT NULL, " +
+			"distance REAL NOT NULL, " +
+			"cardio_max REAL NOT NULL, " +
+			"cardio_avg REAL NOT NULL, " +
+			"speed_max REAL NOT NULL, " +
+			"speed_avg REAL NOT NULL, " +
+			"cadence_max REAL NOT NULL, " +
+			"cadence_avg REAL NOT NULL, " +
+			"gear_ratio_avg REAL NOT NULL, " +
+			"fitness_factor REAL NOT NULL, " +
+			"zone_offset INTEGER NOT NULL DEFAULT 0) ";
+
+	private static final String CREATE_WORKOUT_LOG = "CREATE TABLE IF NOT EXISTS workout_log (" + 
+			"_id INTEGER PRIMARY KEY, " +
+			"workout INTEGER NOT NULL REFERENCES workout ON DELETE CASCADE, " +
+			"distance REAL NOT NULL, " +
+			"cardio REAL NOT NULL, " +
+			"speed REAL NOT NULL, " +
+			"cadence REAL NOT NULL) ";
+
+	private static final String CREATE_WORKOUT_CHUNK = "CREATE TABLE IF NOT EXISTS workout_chunk (" + 
+			"_id INTEGER PRIMARY KEY, " +
+			"workout INTEGER NOT NULL REFERENCES workout ON DELETE CASCADE, " +
+			"end_time INTEGER NOT NULL, " +
+			"entry_count INTEGER NOT NULL, " +
+			"data BLOB NOT NULL) ";
+	
+	private static final String CREATE_WORKOUT_SUMMARY = "CREATE TABLE IF NOT EXISTS workout_summary (" + 
+			"_id INTEGER PRIMARY KEY, " +
+			"workout INTEGER NOT NULL REFERENCES workout ON DELETE CASCADE, " +
+			"level INTEGER NOT NULL, " +
+			"start_time INTEGER NOT NULL, " +
+			"entry_count INTEGER NOT NULL, " +
+			"cardio_min REAL NOT NULL, " +
+			"cardio_max REAL NOT NULL, " +
+			"cardio_avg REAL NOT NULL, " +
+			"speed_min REAL NOT NULL, " +
+			"speed_max REAL NOT NULL, " +
+			"speed_avg REAL NOT NULL, " +
+			"cadence_min REAL NOT NULL, " +
+			"cadence_max REAL NOT NULL, " +
+			"cadence_avg REAL NOT NULL) ";
+	
+	private static final String INSERT_WORKOUT = "INSERT INTO workout (" +
+			"_uuid, start_time, end_time, time_elapses, distance, cardio_max, cardio_avg, " +
+			"speed_max, speed_avg, cadence_max, cadence_avg, gear_ratio_avg, fitness_factor, zone_offset) " +
+			"VALUES (?, ?, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, ?)";
+	
+	private static final String INSERT_WORKOUT_CHUNK = "INSERT INTO workout_chunk (" +
+			"_id, workout, end_time, entry_count, data) VALUES (?, ?, ?, ?, ?)";
+	
+	private static final String INSERT_WORKOUT_SUMMARY = "INSERT INTO workout_summary (" +
+			"workout, level, start_time, entry_count, cardio_min, cardio_max, cardio_avg, " +
+			"speed_min, speed_max, speed_avg, cadence_min, cadence_max, cadence_avg) " +
+			"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	
+	private static final String UPDATE_WORKOUT = "UPDATE workout SET " +
+			"end_time = ?, time_elapses = ?, distance = ?, cardio_max = ?, cardio_avg = ?, " +
+			"speed_max = ?, speed_avg = ?, cadence_max = ?, cadence_avg = ?, " +
+			"gear_ratio_avg = ?, fitness_factor = ? WHERE _id = ?";
+
+	private static final String CLOSE_OPEN_WORKOUTS = "UPDATE workout SET " +
+			"end_time = start_time + CAST(time_elapses * 1000 AS INTEGER) " +
+			"WHERE end_time = 0 AND start_time < ?";
+
+	private final Connection mConnection;
+	private final PreparedStatement mInsertWorkout;
+	private final PreparedStatement mInsertChunk;
+	private final PreparedStatement mInsertSummary;
+	private final PreparedStatement mUpdateWorkout;
+	private final SampleChunkWriter mChunkWriter = new SampleChunkWriter();
+	
+	/**
+	 * Opens the database, creating tables if needed.
+	 * @param url JDBC connection URL
+	 */
+	public JdbcSessionStore(String url) {
+		try {
+			mConnection = DriverManager.getConnection(url);
+			Statement stmt = mConnection.createStatement();
+			try {
+				stmt.execute(CREATE_WORKOUT);
+				stmt.execute(CREATE_WORKOUT_LOG);
+				stmt.execute(CREATE_WORKOUT_CHUNK);
+				stmt.execute(CREATE_WORKOUT_SUMMARY);
+			} finally {
+				stmt.close();
+			}
+			mInsertWorkout = mConnection.prepareStatement(INSERT_WORKOUT, Statement.RETURN_GENERATED_KEYS);
+			mInsertChunk = mConnection.prepareStatement(INSERT_WORKOUT_CHUNK);
+			mInsertSummary = mConnection.prepareStatement(INSERT_WORKOUT_SUMMARY);
+			mUpdateWorkout = mConnection.prepareStatement(UPDATE_WORKOUT);
+		} catch (SQLException e) {
+			throw new RuntimeException("Cannot open session store at " + url, e);
+		}
+	}
+
+	@Override
+	public long createSession(String uniqueId, long startTime) {
+		try {
+			mInsertWorkout.setString(1, uniqueId);
+			mInsertWorkout.setLong(2, startTime);
+			mInsertWorkout.setInt(3, TimeZone.getDefault().getOffset(startTime));
+			mInsertWorkout.executeUpdate();
+			ResultSet keys = mInsertWorkout.getGeneratedKeys();
+			try {
+				return keys.next() ? keys.getLong(1) : 0;
+			} finally {
+				keys.close();
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException("Cannot insert session " + uniqueId, e);
+		}
+	}
+
+	@Override
+	public void addLogEntries(long localId, long[] times, double[] distances, 
+			double[] heartCadences, double[] speeds, double[] crankCadences, int count) {
+		try {
+			mInsertChunk.setLong(1, times[0]);
+			mInsertChunk.setLong(2, localId);
+			mInsertChunk.setLong(3, times[count - 1]);
+			mInsertChunk.setInt(4, count);
+			mInsertChunk.setBytes(5, mChunkWriter.encode(
+					times, distances, heartCadences, speeds, crankCadences, count));
+			mInsertChunk.executeUpdate();
+		} catch (SQLException e) {
+			throw new RuntimeException("Cannot insert log entries for session " + localId, e);
+		}
+	}
+
+	@Override
+	public void addSummaries(long localId, List<SeriesPyramid.Bucket> buckets) {
+		try {
+			for (SeriesPyramid.Bucket bucket : buckets) {
+				mInsertSummary.setLong(1, localId);
+				mInsertSummary.setLong(2, bucket.getLevel());
+				mInsertSummary.setLong(3, bucket.getStart());
+				mInsertSummary.setInt(4, bucket.getCount());
+				for (int s = 0; s < SeriesPyramid.SERIES; s++) {
+					mInsertSummary.setDouble(5 + s * 3, bucket.getMin(s));
+					mInsertSummary.setDouble(6 + s * 3, bucket.getMax(s));
+					mInsertSummary.setDouble(7 + s * 3, bucket.getAverage(s));
+				}
+				mInsertSummary.addBatch();
+			}
+			
+			// one transaction for the whole batch
+			boolean autoCommit = mConnection.getAutoCommit();
+			mConnection.setAutoCommit(false);
+			try {
+				mInsertSummary.executeBatch();
+				mConnection.commit();
+			} catch (SQLException e) {
+				mConnection.rollback();
+				throw e;
+			} finally {
+				mInsertSummary.clearBatch();
+				mConnection.setAutoCommit(autoCommit);
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException("Cannot insert summaries for session " + localId, e);
+		}
+	}
+
+	@Override
+	public boolean updateSession(WorkSessionInfo data) {
+		try {
+			Date endTime = data.getEndTime();
+			mUpdateWorkout.setLong(1, null == endTime ? 0 : endTime.getTime());
+			mUpdateWorkout.setDouble(2, data.getElapsedTime());
+			mUpdateWorkout.setDouble(3, data.getDistanceCovered());
+			mUpdateWorkout.setDouble(4, data.getMaxHeartCadence());
+			mUpdateWorkout.setDouble(5, data.getAverageHeartCadence());
+			mUpdateWorkout.setDouble(6, data.getMaxSpeed());
+			mUpdateWorkout.setDouble(7, data.getAverageSpeed());
+			mUpdateWorkout.setDouble(8, data.getMaxCrankCadence());
+			mUpdateWorkout.setDouble(9, data.getAverageCrankCadence());
+			mUpdateWorkout.setDouble(10, data.getAverageGearRatio());
+			mUpdateWorkout.setDouble(11, data.getCardioFitnessFactor());
+			mUpdateWorkout.setLong(12, data.getLocalId());
+			
+			// we should update exactly ONE record
+			return 1 == mUpdateWorkout.executeUpdate();
+		} catch (SQLException e) {
+			throw new RuntimeException("Cannot update session " + data.getLocalId(), e);
+		}
+	}
+	
+	@Override
+	public int closeOpenSessions(long startedBefore) {
+		try {
+			PreparedStatement stmt = mConnection.prepareStatement(CLOSE_OPEN_WORKOUTS);
+			try {
+				stmt.setLong(1, startedBefore);
+				return stmt.executeUpdate();
+			} finally {
+				stmt.close();
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException("Cannot close open sessions", e);
+		}
+	}
+	
+	public void close() {
+		try {
+			mInsertWorkout.close();
+			mInsertChunk.close();
+			mInsertSummary.close();
+			mUpdateWorkout.close();
+			mConnection.close();
+		} catch (SQLException e) {
+			Logging.getLogger().w(JdbcSessionStore.class.getSimpleName(), "Cannot close session store", e);
+		}
+	}
+}
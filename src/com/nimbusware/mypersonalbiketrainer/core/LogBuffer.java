@@ -0,0 +1,129 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+import java.util.List;
+
+import com.nimbusware.mypersonalbiketrainer.core.MetricRegistry.Counter;
+import com.nimbusware.mypersonalbiketrainer.core.MetricRegistry.Histogram;
+
+/**
+ * Write-behind buffer for the log entries of a session: samples are
+ * accumulated in primitive arrays and written to the SessionStore in
+ * one batch (i.e., one transaction) when the buffer is full, when the
+ * oldest sample gets too old, or when flush() is called explicitly.
+ * Samples also feed the levels of detail of the session (see SeriesPyramid),
+ * whose closed buckets are written along with each batch.
+ * All methods are thread safe.
+ */
+public class LogBuffer {
+	
+	private static final String TAG = LogBuffer.class.getSimpleName();
+
+	private static final Histogram WRITE_TIME = MetricRegistry.getDefault().histogram("session.log.write.ms", MetricRegistry.MILLIS);
+	private static final Counter WRITTEN = MetricRegistry.getDefault().counter("session.log.written");
+	private static final Counter LOST = MetricRegistry.getDefault().counter("session.log.lost");
+
+	private final SessionStore mStore;
+	private final long mLocalId;
+	private final long mMaxAge;
+	private final long[] mTimes;
+	private final double[] mDistances;
+	private final double[] mHeartCadences;
+	private final double[] mSpeeds;
+	private final double[] mCrankCadences;
+	private final SeriesPyramid mPyramid = new SeriesPyramid();
+	private int mSize;
+	
+	/**
+	 * @param store
+	 * @param localId local id of the session
+	 * @param capacity max number of samples held before flushing
+	 * @param maxAge max age of a sample before flushing, in milliseconds
+	 */
+	public LogBuffer(SessionStore store, long localId, int capacity, long maxAge) {
+		if (null == store)
+			throw new NullPointerException();
+		
+		if (capacity <= 0 || maxAge < 0)
+			throw new IllegalArgumentException("Invalid buffer limits: capacity=" + capacity + ", maxAge=" + maxAge);
+		
+		mStore = store;
+		mLocalId = localId;
+		mMaxAge = maxAge;
+		mTimes = new long[capacity];
+		mDistances = new double[capacity];
+		mHeartCadences = new double[capacity];
+		mSpeeds = new double[capacity];
+		mCrankCadences = new double[capacity];
+	}
+	
+	/**
+	 * Number of samples waiting to be written.
+	 * @return
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * Appends a sample, flushing the buffer if it is full or old enough.
+	 * See SessionStore.addLogEntries() for parameters.
+	 */
+	public synchronized void add(long time, double distance, 
+			double heartCadence, double speed, double crankCadence) {
+		mTimes[mSize] = time;
+		mDistances[mSize] = distance;
+		mHeartCadences[mSize] = heartCadence;
+		mSpeeds[mSize] = speed;
+		mCrankCadences[mSize] = crankCadence;
+		mSize++;
+		mPyramid.add(time, heartCadence, speed, crankCadence);
+		
+		if (mSize == mTimes.length || time - mTimes[0] >= mMaxAge) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Writes all pending samples in one batch, followed by the buckets
+	 * closed so far. If the store fails, samples (or buckets) are dropped: 
+	 * the buffer never blocks logging.
+	 */
+	public synchronized void flush() {
+		Logger log = Logging.getLogger();
+		if (mSize > 0) {
+			try {
+				log.i(TAG, "Writing " + mSize + " log entries of session " + mLocalId);
+				long start = System.nanoTime();
+				mStore.addLogEntries(mLocalId, mTimes, mDistances, 
+						mHeartCadences, mSpeeds, mCrankCadences, mSize);
+				WRITE_TIME.record((System.nanoTime() - start) / 1000000);
+				WRITTEN.add(mSize);
+			} catch (RuntimeException e) {
+				log.w(TAG, "Cannot write log entries of session " + mLocalId + ", " + mSize + " samples lost", e);
+				LOST.add(mSize);
+			} finally {
+				mSize = 0;
+			}
+		}
+		
+		List<SeriesPyramid.Bucket> buckets = mPyramid.getClosed();
+		if (!buckets.isEmpty()) {
+			try {
+				mStore.addSummaries(mLocalId, buckets);
+			} catch (RuntimeException e) {
+				log.w(TAG, "Cannot write summaries of session " + mLocalId + ", " + buckets.size() + " buckets lost", e);
+			} finally {
+				mPyramid.clearClosed();
+			}
+		}
+	}
+	
+	/**
+	 * Closes the open buckets of the levels of detail, then writes
+	 * everything: to be called when the session ends.
+	 */
+	public synchronized void close() {
+		mPyramid.finish();
+		flush();
+	}
+}
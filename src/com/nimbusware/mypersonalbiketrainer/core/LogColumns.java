@@ -0,0 +1,116 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+/**
+ * Log entries of a session, held by column in primitive arrays: one
+ * allocation per column instead of a few objects per entry. Arrays grow
+ * as entries are added, but callers should size them up front when the
+ * number of entries is known.
+ * <p>
+ * Array getters return the backing arrays: only the first size()
+ * elements are meaningful, and arrays are replaced when they grow.
+ */
+public class LogColumns {
+
+	private long[] mTimes;
+	private float[] mDistances;
+	private float[] mHeartCadences;
+	private float[] mSpeeds;
+	private float[] mCrankCadences;
+	private int mSize;
+
+	/**
+	 * @param capacity expected number of entries
+	 */
+	public LogColumns(int capacity) {
+		allocate(Math.max(capacity, 16));
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Makes room for the given number of entries in total.
+	 * @param capacity
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity > mTimes.length) {
+			allocate(capacity);
+		}
+	}
+
+	/**
+	 * Appends an entry (see SessionStore.addLogEntries() for units).
+	 */
+	public void add(long time, double distance, double heartCadence, double speed, double crankCadence) {
+		if (mSize == mTimes.length) {
+			allocate(mSize * 2);
+		}
+		mTimes[mSize] = time;
+		mDistances[mSize] = (float) distance;
+		mHeartCadences[mSize] = (float) heartCadence;
+		mSpeeds[mSize] = (float) speed;
+		mCrankCadences[mSize] = (float) crankCadence;
+		mSize++;
+	}
+
+	/**
+	 * Timestamps, in milliseconds since the epoch.
+	 * @return
+	 */
+	public long[] getTimes() {
+		return mTimes;
+	}
+
+	/**
+	 * Distance covered so far, in Km.
+	 * @return
+	 */
+	public float[] getDistances() {
+		return mDistances;
+	}
+
+	/**
+	 * Heart beat, in Bpm.
+	 * @return
+	 */
+	public float[] getHeartCadences() {
+		return mHeartCadences;
+	}
+
+	/**
+	 * Speed, in Km/h.
+	 * @return
+	 */
+	public float[] getSpeeds() {
+		return mSpeeds;
+	}
+
+	/**
+	 * Crank cadence, in Rpm.
+	 * @return
+	 */
+	public float[] getCrankCadences() {
+		return mCrankCadences;
+	}
+
+	private void allocate(int capacity) {
+		long[] times = new long[capacity];
+		float[] distances = new float[capacity];
+		float[] heartCadences = new float[capacity];
+		float[] speeds = new float[capacity];
+		float[] crankCadences = new float[capacity];
+		if (mSize > 0) {
+			System.arraycopy(mTimes, 0, times, 0, mSize);
+			System.arraycopy(mDistances, 0, distances, 0, mSize);
+			System.arraycopy(mHeartCadences, 0, heartCadences, 0, mSize);
+			System.arraycopy(mSpeeds, 0, speeds, 0, mSize);
+			System.arraycopy(mCrankCadences, 0, crankCadences, 0, mSize);
+		}
+		mTimes = times;
+		mDistances = distances;
+		mHeartCadences = heartCadences;
+		mSpeeds = speeds;
+		mCrankCadences = crankCadences;
+	}
+}
@@ -0,0 +1,25 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+/**
+ * Minimal logging interface, modeled on android.util.Log, so that
+ * code in this package does not depend on the Android runtime.
+ * See Logging for the logger in use.
+ */
+public interface Logger {
+
+	/**
+	 * Tells if verbose messages are logged for the given tag:
+	 * callers should check this before building costly messages.
+	 * @param tag
+	 * @return
+	 */
+	public boolean isVerbose(String tag);
+
+	public void v(String tag, String msg);
+
+	public void i(String tag, String msg);
+
+	public void w(String tag, String msg);
+
+	public void w(String tag, String msg, Throwable tr);
+}
@@ -0,0 +1,24 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+/**
+ * Holds the Logger used by headless code. Defaults to a StdoutLogger;
+ * the application replaces it with one writing to the Android log
+ * (see Globals.onCreate).
+ */
+public final class Logging {
+
+	private static volatile Logger LOGGER = new StdoutLogger(false);
+	
+	private Logging() {} // static access only
+
+	public static Logger getLogger() {
+		return LOGGER;
+	}
+
+	public static void setLogger(Logger logger) {
+		if (null == logger)
+			throw new NullPointerException();
+		
+		LOGGER = logger;
+	}
+}
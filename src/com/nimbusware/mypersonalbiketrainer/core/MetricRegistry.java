@@ -0,0 +1,289 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges and latency histograms, by name. Metrics are looked up
+ * (or created) once and kept by their owners in fields: updating them is
+ * lock-free and allocates nothing, cheap enough to stay on in production.
+ * dump() writes all of them as text, sorted by name.
+ * <p>
+ * Names are dotted, e.g. sensor.C4:7C:8D:6A:15:22.notifications; histograms
+ * end with their unit (.us or .ms), matching their bucket bounds.
+ */
+public class MetricRegistry {
+
+	/**
+	 * Bucket bounds in a 1-2-5 series, from 1 microsecond to 10 seconds.
+	 */
+	public static final long[] MICROS = series(10000000);
+
+	/**
+	 * Bucket bounds in a 1-2-5 series, from 1 millisecond to 500 seconds.
+	 */
+	public static final long[] MILLIS = series(500000);
+
+	private static final MetricRegistry DEFAULT = new MetricRegistry();
+
+	/**
+	 * @return the registry fed by sensors and sessions
+	 */
+	public static MetricRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	private final ConcurrentMap<String, Metric> mMetrics = new ConcurrentHashMap<String, Metric>();
+
+	public Counter counter(String name) {
+		return register(name, new Counter(), Counter.class);
+	}
+
+	public Gauge gauge(String name) {
+		return register(name, new Gauge(), Gauge.class);
+	}
+
+	/**
+	 * @param name
+	 * @param bounds inclusive upper bounds of the buckets, in ascending
+	 * order (e.g., MICROS); larger values go to an overflow bucket. Ignored
+	 * if the histogram already exists.
+	 * @return
+	 */
+	public Histogram histogram(String name, long[] bounds) {
+		return register(name, new Histogram(bounds), Histogram.class);
+	}
+
+	private <M extends Metric> M register(String name, M metric, Class<M> type) {
+		if (null == name)
+			throw new NullPointerException();
+
+		Metric existing = mMetrics.putIfAbsent(name, metric);
+		if (null == existing)
+			return metric;
+		if (!type.isInstance(existing))
+			throw new IllegalArgumentException("Metric " + name + " is not a " + type.getSimpleName());
+		return type.cast(existing);
+	}
+
+	/**
+	 * Zeroes all metrics, which stay registered.
+	 */
+	public void reset() {
+		for (Metric metric : mMetrics.values()) {
+			metric.reset();
+		}
+	}
+
+	/**
+	 * Writes one line per metric, sorted by name. Values are read one by
+	 * one while they may be changing: the dump is not an atomic snapshot.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void dump(Appendable out) throws IOException {
+		Map<String, Metric> sorted = new TreeMap<String, Metric>(mMetrics);
+		for (Map.Entry<String, Metric> entry : sorted.entrySet()) {
+			out.append(entry.getKey()).append(' ');
+			entry.getValue().dump(out);
+			out.append('\n');
+		}
+	}
+
+	public String dump() {
+		StringBuilder out = new StringBuilder();
+		try {
+			dump(out);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // StringBuilder doesn't throw
+		}
+		return out.toString();
+	}
+
+	private static long[] series(long max) {
+		List<Long> bounds = new ArrayList<Long>();
+		for (long decade = 1; decade <= max; decade *= 10) {
+			for (long step : new long[] { 1, 2, 5 }) {
+				if (decade * step <= max) {
+					bounds.add(decade * step);
+				}
+			}
+		}
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}
+
+	public static abstract class Metric {
+
+		abstract void reset();
+
+		abstract void dump(Appendable out) throws IOException;
+	}
+
+	/**
+	 * A count of events.
+	 */
+	public static final class Counter extends Metric {
+
+		private final AtomicLong mValue = new AtomicLong();
+
+		private Counter() {}
+
+		public void inc() {
+			mValue.incrementAndGet();
+		}
+
+		public void add(long delta) {
+			mValue.addAndGet(delta);
+		}
+
+		public long get() {
+			return mValue.get();
+		}
+
+		@Override
+		void reset() {
+			mValue.set(0);
+		}
+
+		@Override
+		void dump(Appendable out) throws IOException {
+			out.append(Long.toString(mValue.get()));
+		}
+	}
+
+	/**
+	 * The last value of something.
+	 */
+	public static final class Gauge extends Metric {
+
+		private final AtomicLong mValue = new AtomicLong();
+
+		private Gauge() {}
+
+		public void set(long value) {
+			mValue.set(value);
+		}
+
+		public long get() {
+			return mValue.get();
+		}
+
+		@Override
+		void reset() {
+			mValue.set(0);
+		}
+
+		@Override
+		void dump(Appendable out) throws IOException {
+			out.append(Long.toString(mValue.get()));
+		}
+	}
+
+	/**
+	 * Distribution of non negative values into fixed buckets, plus count,
+	 * sum and max: percentiles are reported as the upper bound of the
+	 * bucket they fall into.
+	 */
+	public static final class Histogram extends Metric {
+
+		private final long[] mBounds;
+		private final AtomicLongArray mCounts; // one more than bounds: overflow
+		private final AtomicLong mSum = new AtomicLong();
+		private final AtomicLong mMax = new AtomicLong();
+
+		private Histogram(long[] bounds) {
+			if (0 == bounds.length)
+				throw new IllegalArgumentException("No buckets");
+			for (int i = 1; i < bounds.length; i++) {
+				if (bounds[i] <= bounds[i - 1])
+					throw new IllegalArgumentException("Bucket bounds not ascending");
+			}
+
+			mBounds = bounds.clone();
+			mCounts = new AtomicLongArray(bounds.length + 1);
+		}
+
+		public void record(long value) {
+			if (value < 0) {
+				value = 0; // clock went backwards
+			}
+			int i = Arrays.binarySearch(mBounds, value);
+			mCounts.incrementAndGet(i < 0 ? -i - 1 : i);
+			mSum.addAndGet(value);
+			long max = mMax.get();
+			while (value > max && !mMax.compareAndSet(max, value)) {
+				max = mMax.get();
+			}
+		}
+
+		public long getCount() {
+			long count = 0;
+			for (int i = 0; i < mCounts.length(); i++) {
+				count += mCounts.get(i);
+			}
+			return count;
+		}
+
+		public long getSum() {
+			return mSum.get();
+		}
+
+		public long getMax() {
+			return mMax.get();
+		}
+
+		/**
+		 * @param fraction from 0 to 1, e.g. 0.99
+		 * @return upper bound of the bucket holding the given percentile,
+		 * or the max if that is the overflow bucket; 0 if empty
+		 */
+		public long getPercentile(double fraction) {
+			long count = getCount();
+			if (0 == count)
+				return 0;
+
+			long rank = Math.max(1, (long) Math.ceil(fraction * count));
+			long seen = 0;
+			for (int i = 0; i < mBounds.length; i++) {
+				seen += mCounts.get(i);
+				if (seen >= rank)
+					return Math.min(mBounds[i], getMax());
+			}
+			return getMax();
+		}
+
+		@Override
+		void reset() {
+			for (int i = 0; i < mCounts.length(); i++) {
+				mCounts.set(i, 0);
+			}
+			mSum.set(0);
+			mMax.set(0);
+		}
+
+		@Override
+		void dump(Appendable out) throws IOException {
+			long count = getCount();
+			out.append("count=").append(Long.toString(count));
+			if (count > 0) {
+				out.append(" mean=").append(Long.toString(getSum() / count))
+					.append(" p50=").append(Long.toString(getPercentile(0.5)))
+					.append(" p90=").append(Long.toString(getPercentile(0.9)))
+					.append(" p99=").append(Long.toString(getPercentile(0.99)))
+					.append(" max=").append(Long.toString(getMax()));
+			}
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs periodic tasks, replacing one java.util.Timer per task.
+ * <p>
+ * A single dispatcher thread sleeps until the earliest deadline, then hands
+ * the task over to a small pool of workers. Deadlines are computed from the
+ * monotonic clock at a fixed rate (start + N * period), so they do not drift
+ * however long each run takes. Tasks are isolated from each other: a slow
+ * task only holds one worker, and if it is still running when its next
+ * deadline comes, that run is skipped rather than queued - it never
+ * delays other tasks, nor does it cause a burst of catch-up runs.
+ * <p>
+ * One-shot background work can be run on the same workers, see execute().
+ */
+public class PeriodicScheduler implements Executor {
+
+	private static final String TAG = PeriodicScheduler.class.getSimpleName();
+
+	// guarded by this
+	private final PriorityQueue<Task> mQueue = new PriorityQueue<Task>();
+	private boolean mShutdown;
+	
+	private final ExecutorService mWorkers;
+	private final Thread mDispatcher;
+
+	/**
+	 * @param name prefix for thread names
+	 * @param workers number of tasks that may run at the same time
+	 */
+	public PeriodicScheduler(final String name, int workers) {
+		if (null == name)
+			throw new NullPointerException();
+		
+		if (workers <= 0)
+			throw new IllegalArgumentException("Invalid number of workers: " + workers);
+		
+		mWorkers = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+			
+			private final AtomicInteger mCount = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-worker-" + mCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		mDispatcher = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, name + "-dispatcher");
+		mDispatcher.setDaemon(true);
+		mDispatcher.start();
+	}
+
+	/**
+	 * Schedules action to run every period milliseconds, the first time
+	 * after delay milliseconds.
+	 * @param action
+	 * @param delay
+	 * @param period
+	 * @return a handle for cancelling the task
+	 */
+	public Task schedule(Runnable action, long delay, long period) {
+		if (null == action)
+			throw new NullPointerException();
+		
+		if (delay < 0 || period <= 0)
+			throw new IllegalArgumentException("Invalid timing: delay=" + delay + ", period=" + period);
+		
+		Task task = new Task(action, TimeUnit.MILLISECONDS.toNanos(period));
+		synchronized (this) {
+			if (mShutdown)
+				throw new IllegalStateException("Scheduler is shut down");
+			
+			task.mDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+			mQueue.add(task);
+			notifyAll(); // the new task may be the first one due
+		}
+		return task;
+	}
+	
+	/**
+	 * Runs action once, as soon as a worker is available.
+	 * @param action
+	 */
+	@Override
+	public void execute(final Runnable action) {
+		if (null == action)
+			throw new NullPointerException();
+		
+		try {
+			mWorkers.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						action.run();
+					} catch (RuntimeException e) {
+						Logging.getLogger().w(TAG, "Task " + action + " failed", e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			throw new IllegalStateException("Scheduler is shut down");
+		}
+	}
+	
+	/**
+	 * Cancels all tasks and stops all threads. Runs already in progress,
+	 * and one-shot actions already submitted, are allowed to complete.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			mShutdown = true;
+			mQueue.clear();
+			notifyAll();
+		}
+		mWorkers.shutdown();
+	}
+	
+	private synchronized void remove(Task task) {
+		mQueue.remove(task);
+	}
+	
+	private void dispatch() {
+		try {
+			while (true) {
+				Task task = null;
+				synchronized (this) {
+					while (null == task) {
+						if (mShutdown)
+							return;
+						
+						Task first = mQueue.peek();
+						if (null == first) {
+							wait();
+							continue;
+						}
+						
+						long now = System.nanoTime();
+						long delay = first.mDeadline - now;
+						if (delay > 0) {
+							TimeUnit.NANOSECONDS.timedWait(this, delay);
+							continue;
+						}
+						
+						// next deadline follows the original schedule: periods
+						// that were entirely missed (e.g., while the device was
+						// asleep) are skipped
+						task = mQueue.poll();
+						task.mDeadline += task.mPeriod;
+						if (task.mDeadline <= now) {
+							task.mDeadline += ((now - task.mDeadline) / task.mPeriod + 1) * task.mPeriod;
+						}
+						mQueue.add(task);
+					}
+				}
+				
+				if (task.mRunning.compareAndSet(false, true)) {
+					try {
+						mWorkers.execute(task);
+					} catch (RejectedExecutionException e) {
+						return; // shut down in the meantime
+					}
+				} else {
+					Logger log = Logging.getLogger();
+					if (log.isVerbose(TAG)) {
+						log.v(TAG, "Task " + task.mAction + " is still running, skipping this run");
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Logging.getLogger().w(TAG, "Dispatcher interrupted, no more tasks will run");
+		}
+	}
+	
+	/**
+	 * Handle of a scheduled task.
+	 */
+	public class Task implements Runnable, Comparable<Task> {
+		
+		private final Runnable mAction;
+		private final long mPeriod; // nanoseconds
+		private final AtomicBoolean mRunning = new AtomicBoolean();
+		private volatile boolean mCancelled;
+		private long mDeadline; // System.nanoTime() value, guarded by the scheduler
+		
+		private Task(Runnable action, long period) {
+			mAction = action;
+			mPeriod = period;
+		}
+		
+		/**
+		 * Stops future runs; a run already in progress is allowed to complete.
+		 */
+		public void cancel() {
+			mCancelled = true;
+			remove(this);
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (!mCancelled) {
+					mAction.run();
+				}
+			} catch (RuntimeException e) {
+				// don't let one failure kill the worker, nor stop future runs
+				Logging.getLogger().w(TAG, "Task " + mAction + " failed", e);
+			} finally {
+				mRunning.set(false);
+			}
+		}
+
+		@Override
+		public int compareTo(Task another) {
+			// deadlines are compared by difference, as nanoTime() may overflow
+			long diff = mDeadline - another.mDeadline;
+			return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+		}
+	}
+}
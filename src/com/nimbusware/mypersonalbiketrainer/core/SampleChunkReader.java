@@ -0,0 +1,146 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+/**
+ * Streaming decoder for chunks produced by SampleChunkWriter: samples
+ * are decoded one at a time, straight from the blob, with no allocation.
+ * Typical usage:
+ * <pre>
+ * reader.reset(blob);
+ * while (reader.next()) {
+ *     reader.getTime() ...
+ * }
+ * </pre>
+ * A reader can be reset() on any number of chunks; it is not thread safe.
+ */
+public class SampleChunkReader {
+	
+	private static final int COLUMNS = SampleChunkWriter.COLUMNS;
+	private static final double[] SCALES = SampleChunkWriter.SCALES;
+	
+	private final int[] mLengths = new int[COLUMNS];
+	private final int[] mPositions = new int[COLUMNS];
+	private final int[] mLimits = new int[COLUMNS];
+	private final long[] mValues = new long[COLUMNS];
+	private byte[] mData;
+	private int mCount;
+	private int mIndex;
+	
+	/**
+	 * Starts decoding a new chunk.
+	 * @param data the chunk
+	 * @throws IllegalArgumentException if data is not a valid chunk
+	 */
+	public void reset(byte[] data) {
+		if (null == data)
+			throw new NullPointerException();
+		
+		mData = data;
+		mIndex = 0;
+		mCount = 0;
+		int version = data.length > 0 ? data[0] : -1;
+		if (version != SampleChunkWriter.VERSION)
+			throw new IllegalArgumentException("Unsupported chunk version: " + version);
+		
+		// the header is decoded as if it were the first column
+		mPositions[0] = 1;
+		mLimits[0] = data.length;
+		int count = (int) readVarint(0);
+		for (int i = 0; i < COLUMNS; i++) {
+			mLengths[i] = (int) readVarint(0);
+		}
+		int offset = mPositions[0];
+		for (int i = 0; i < COLUMNS; i++) {
+			mPositions[i] = offset;
+			offset += mLengths[i];
+			mLimits[i] = offset;
+			mValues[i] = 0;
+		}
+		if (count < 0 || offset != data.length)
+			throw new IllegalArgumentException("Corrupted chunk: " + data.length + " bytes, " + offset + " expected");
+		
+		mCount = count;
+	}
+	
+	/**
+	 * Total number of samples in the current chunk.
+	 * @return
+	 */
+	public int getCount() {
+		return mCount;
+	}
+	
+	/**
+	 * Moves to the next sample.
+	 * @return false if there are no more samples
+	 */
+	public boolean next() {
+		if (mIndex == mCount)
+			return false;
+		
+		for (int i = 0; i < COLUMNS; i++) {
+			long zigzag = readVarint(i);
+			mValues[i] += (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+		mIndex++;
+		return true;
+	}
+	
+	/**
+	 * Timestamp of the current sample, in milliseconds since the epoch.
+	 * @return
+	 */
+	public long getTime() {
+		return mValues[SampleChunkWriter.COL_TIME];
+	}
+
+	/**
+	 * Distance covered so far, in Km.
+	 * @return
+	 */
+	public double getDistance() {
+		return mValues[SampleChunkWriter.COL_DISTANCE] / SCALES[SampleChunkWriter.COL_DISTANCE];
+	}
+
+	/**
+	 * Heart beat, in Bpm.
+	 * @return
+	 */
+	public double getHeartCadence() {
+		return mValues[SampleChunkWriter.COL_CARDIO] / SCALES[SampleChunkWriter.COL_CARDIO];
+	}
+
+	/**
+	 * Speed, in Km/h.
+	 * @return
+	 */
+	public double getSpeed() {
+		return mValues[SampleChunkWriter.COL_SPEED] / SCALES[SampleChunkWriter.COL_SPEED];
+	}
+
+	/**
+	 * Crank cadence, in Rpm.
+	 * @return
+	 */
+	public double getCrankCadence() {
+		return mValues[SampleChunkWriter.COL_CADENCE] / SCALES[SampleChunkWriter.COL_CADENCE];
+	}
+	
+	private long readVarint(int column) {
+		long value = 0;
+		int shift = 0;
+		int pos = mPositions[column];
+		int limit = mLimits[column];
+		while (true) {
+			if (pos >= limit || shift > 63)
+				throw new IllegalArgumentException("Corrupted chunk at byte " + pos);
+			
+			byte b = mData[pos++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				break;
+			shift += 7;
+		}
+		mPositions[column] = pos;
+		return value;
+	}
+}
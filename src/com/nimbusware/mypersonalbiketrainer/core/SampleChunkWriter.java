@@ -0,0 +1,132 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+/**
+ * Encodes a series of log entries into a compact binary chunk, stored
+ * as a blob (see DiaryContract.CHUNKS). Values are laid out by column -
+ * time, distance, heart cadence, speed, crank cadence - and each column
+ * is quantized to a fixed resolution, then delta encoded with zigzag
+ * varints: a sample logged at 1Hz takes 6-8 bytes instead of a 40+
+ * bytes row. Layout:
+ * <pre>
+ * byte    format version
+ * varint  number of samples
+ * varint  length in bytes of each column, 5 times
+ * bytes   columns: first value, then deltas from the previous value
+ * </pre>
+ * Decode chunks with SampleChunkReader. Instances are reusable, but not
+ * thread safe.
+ */
+public class SampleChunkWriter {
+	
+	public static final int VERSION = 1;
+	
+	// column order, and number of quantization steps per unit of measure
+	static final int COL_TIME = 0;
+	static final int COL_DISTANCE = 1;
+	static final int COL_CARDIO = 2;
+	static final int COL_SPEED = 3;
+	static final int COL_CADENCE = 4;
+	static final int COLUMNS = 5;
+	static final double[] SCALES = {
+		1,		// milliseconds
+		1000,	// Km to meters
+		10,		// 0.1 Bpm
+		100,	// 0.01 Km/h
+		10		// 0.1 Rpm
+	};
+	
+	private final Column[] mColumns = new Column[COLUMNS];
+	private final Column mHeader = new Column();
+	
+	public SampleChunkWriter() {
+		for (int i = 0; i < COLUMNS; i++) {
+			mColumns[i] = new Column();
+		}
+	}
+
+	/**
+	 * Encodes the first count entries of the given arrays (see 
+	 * SessionStore.addLogEntries() for their meaning).
+	 * @return the encoded chunk
+	 */
+	public byte[] encode(long[] times, double[] distances, double[] heartCadences, 
+			double[] speeds, double[] crankCadences, int count) {
+		if (count <= 0)
+			throw new IllegalArgumentException("Empty chunk");
+		
+		for (Column column : mColumns) {
+			column.reset();
+		}
+		for (int i = 0; i < count; i++) {
+			mColumns[COL_TIME].append(times[i]);
+			mColumns[COL_DISTANCE].append(quantize(distances[i], COL_DISTANCE));
+			mColumns[COL_CARDIO].append(quantize(heartCadences[i], COL_CARDIO));
+			mColumns[COL_SPEED].append(quantize(speeds[i], COL_SPEED));
+			mColumns[COL_CADENCE].append(quantize(crankCadences[i], COL_CADENCE));
+		}
+		
+		mHeader.reset();
+		mHeader.write(VERSION);
+		mHeader.writeVarint(count);
+		int length = 0;
+		for (Column column : mColumns) {
+			mHeader.writeVarint(column.mLength);
+			length += column.mLength;
+		}
+		
+		byte[] chunk = new byte[mHeader.mLength + length];
+		int offset = mHeader.copyTo(chunk, 0);
+		for (Column column : mColumns) {
+			offset = column.copyTo(chunk, offset);
+		}
+		return chunk;
+	}
+	
+	private static long quantize(double value, int column) {
+		return Math.round(value * SCALES[column]);
+	}
+
+	/**
+	 * Growable byte buffer holding one delta encoded column.
+	 */
+	private static class Column {
+		
+		private byte[] mBytes = new byte[128];
+		private int mLength;
+		private long mPrevious;
+		
+		private void reset() {
+			mLength = 0;
+			mPrevious = 0;
+		}
+		
+		private void append(long value) {
+			long delta = value - mPrevious;
+			mPrevious = value;
+			// zigzag: small negative deltas get small codes as well
+			writeVarint((delta << 1) ^ (delta >> 63));
+		}
+		
+		private void writeVarint(long value) {
+			while ((value & ~0x7FL) != 0) {
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+		
+		private void write(int b) {
+			if (mLength == mBytes.length) {
+				byte[] bytes = new byte[mBytes.length * 2];
+				System.arraycopy(mBytes, 0, bytes, 0, mLength);
+				mBytes = bytes;
+			}
+			mBytes[mLength++] = (byte) b;
+		}
+		
+		private int copyTo(byte[] dest, int offset) {
+			System.arraycopy(mBytes, 0, dest, offset, mLength);
+			return offset + mLength;
+		}
+	}
+}
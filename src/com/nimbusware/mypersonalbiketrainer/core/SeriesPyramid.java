@@ -0,0 +1,175 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Levels of detail of the time series of a session: for each level, the
+ * series are split in buckets of fixed length (aligned to multiples of that
+ * length since the epoch), holding min, max and average of heart cadence,
+ * speed and crank cadence. Buckets are built incrementally, one sample at
+ * a time: a bucket is closed as soon as a sample falls beyond its end, or
+ * when finish() is called.
+ * <p>
+ * The finest level is the log itself, written at about 1Hz (RAW_LEVEL):
+ * it is not duplicated here. Charts pick the level that gives about one
+ * point per pixel, see pickLevel().
+ * <p>
+ * This class is not thread safe.
+ */
+public class SeriesPyramid {
+
+	// bucket lengths, in milliseconds
+	public static final long RAW_LEVEL = 1000;
+	public static final long[] LEVELS = { 10000, 60000, 600000 };
+
+	public static final int SERIES_CARDIO = 0;
+	public static final int SERIES_SPEED = 1;
+	public static final int SERIES_CADENCE = 2;
+	public static final int SERIES = 3;
+
+	/**
+	 * Finest level showing the given time span in no more than the given
+	 * number of points (RAW_LEVEL included); the coarsest level if none does.
+	 * @param span in milliseconds
+	 * @param maxPoints
+	 * @return
+	 */
+	public static long pickLevel(long span, int maxPoints) {
+		if (span / RAW_LEVEL <= maxPoints)
+			return RAW_LEVEL;
+
+		for (long level : LEVELS) {
+			if (span / level <= maxPoints)
+				return level;
+		}
+		return LEVELS[LEVELS.length - 1];
+	}
+
+	private final long[] mLevels;
+	private final Bucket[] mOpen;
+	private final ArrayList<Bucket> mClosed = new ArrayList<Bucket>();
+
+	/**
+	 * Pyramid of all LEVELS.
+	 */
+	public SeriesPyramid() {
+		this(LEVELS);
+	}
+
+	/**
+	 * @param levels bucket lengths, in milliseconds
+	 */
+	public SeriesPyramid(long... levels) {
+		for (long level : levels) {
+			if (level <= 0)
+				throw new IllegalArgumentException("Invalid level: " + level);
+		}
+
+		mLevels = levels.clone();
+		mOpen = new Bucket[levels.length];
+	}
+
+	/**
+	 * Adds a sample to the open bucket of each level, closing the
+	 * previous one if the sample falls beyond its end. Samples are
+	 * expected in time order.
+	 * @param time milliseconds since the epoch
+	 * @param heartCadence in Bpm
+	 * @param speed in Km/h
+	 * @param crankCadence in Rpm
+	 */
+	public void add(long time, double heartCadence, double speed, double crankCadence) {
+		for (int i = 0; i < mLevels.length; i++) {
+			long start = time - time % mLevels[i];
+			Bucket bucket = mOpen[i];
+			if (null != bucket && bucket.mStart != start) {
+				mClosed.add(bucket);
+				bucket = null;
+			}
+			if (null == bucket) {
+				bucket = new Bucket(mLevels[i], start);
+				mOpen[i] = bucket;
+			}
+			bucket.add(SERIES_CARDIO, heartCadence);
+			bucket.add(SERIES_SPEED, speed);
+			bucket.add(SERIES_CADENCE, crankCadence);
+			bucket.mCount++;
+		}
+	}
+
+	/**
+	 * Closes the open buckets, if any: the next sample starts new ones.
+	 */
+	public void finish() {
+		for (int i = 0; i < mOpen.length; i++) {
+			if (null != mOpen[i]) {
+				mClosed.add(mOpen[i]);
+				mOpen[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Buckets closed so far, and not yet removed by clearClosed(),
+	 * in order of closing.
+	 * @return
+	 */
+	public List<Bucket> getClosed() {
+		return mClosed;
+	}
+
+	public void clearClosed() {
+		mClosed.clear();
+	}
+
+	/**
+	 * Aggregates of a time interval, for a single level.
+	 */
+	public static final class Bucket {
+
+		private final long mLevel;
+		private final long mStart;
+		private final double[] mMin = new double[SERIES];
+		private final double[] mMax = new double[SERIES];
+		private final double[] mSum = new double[SERIES];
+		private int mCount;
+
+		private Bucket(long level, long start) {
+			mLevel = level;
+			mStart = start;
+		}
+
+		private void add(int series, double value) {
+			if (0 == mCount || value < mMin[series])
+				mMin[series] = value;
+			if (0 == mCount || value > mMax[series])
+				mMax[series] = value;
+			mSum[series] += value;
+		}
+
+		public long getLevel() {
+			return mLevel;
+		}
+
+		public long getStart() {
+			return mStart;
+		}
+
+		public int getCount() {
+			return mCount;
+		}
+
+		public double getMin(int series) {
+			return mMin[series];
+		}
+
+		public double getMax(int series) {
+			return mMax[series];
+		}
+
+		public double getAverage(int series) {
+			return mSum[series] / mCount;
+		}
+	}
+}
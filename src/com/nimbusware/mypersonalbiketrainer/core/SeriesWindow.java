@@ -0,0 +1,129 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+/**
+ * Time series of a session over a time window, at a given level of
+ * detail (see SeriesPyramid): one point per bucket, in time order, with
+ * min, max and average of each series. At RAW_LEVEL, each point is a log
+ * entry, and min, max and average are the same value.
+ * Values are held in primitive arrays, which grow as points are added.
+ */
+public class SeriesWindow {
+
+	private final long mLevel;
+	private long[] mTimes;
+	private final double[][] mMin = new double[SeriesPyramid.SERIES][];
+	private final double[][] mMax = new double[SeriesPyramid.SERIES][];
+	private final double[][] mAvg = new double[SeriesPyramid.SERIES][];
+	private int mSize;
+
+	/**
+	 * @param level bucket length, in milliseconds
+	 * @param capacity expected number of points
+	 */
+	public SeriesWindow(long level, int capacity) {
+		mLevel = level;
+		allocate(Math.max(capacity, 16));
+	}
+
+	public long getLevel() {
+		return mLevel;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Start time of the given point (timestamp of the entry at RAW_LEVEL).
+	 * @param index
+	 * @return milliseconds since the epoch
+	 */
+	public long getTime(int index) {
+		return mTimes[index];
+	}
+
+	public double getMin(int series, int index) {
+		return mMin[series][index];
+	}
+
+	public double getMax(int series, int index) {
+		return mMax[series][index];
+	}
+
+	public double getAverage(int series, int index) {
+		return mAvg[series][index];
+	}
+
+	/**
+	 * Appends a log entry (RAW_LEVEL).
+	 */
+	public void add(long time, double heartCadence, double speed, double crankCadence) {
+		int i = next(time);
+		set(SeriesPyramid.SERIES_CARDIO, i, heartCadence, heartCadence, heartCadence);
+		set(SeriesPyramid.SERIES_SPEED, i, speed, speed, speed);
+		set(SeriesPyramid.SERIES_CADENCE, i, crankCadence, crankCadence, crankCadence);
+	}
+
+	/**
+	 * Appends a bucket.
+	 */
+	public void add(SeriesPyramid.Bucket bucket) {
+		int i = next(bucket.getStart());
+		for (int s = 0; s < SeriesPyramid.SERIES; s++) {
+			set(s, i, bucket.getMin(s), bucket.getMax(s), bucket.getAverage(s));
+		}
+	}
+
+	/**
+	 * Appends a point whose values come as (min, max, average) for each
+	 * series, in SERIES_* order (e.g., from a database row).
+	 */
+	public void add(long time, double... values) {
+		if (values.length != SeriesPyramid.SERIES * 3)
+			throw new IllegalArgumentException("Expected " + SeriesPyramid.SERIES * 3 + " values");
+
+		int i = next(time);
+		for (int s = 0; s < SeriesPyramid.SERIES; s++) {
+			set(s, i, values[s * 3], values[s * 3 + 1], values[s * 3 + 2]);
+		}
+	}
+
+	private int next(long time) {
+		if (mSize == mTimes.length) {
+			allocate(mSize * 2);
+		}
+		mTimes[mSize] = time;
+		return mSize++;
+	}
+
+	private void set(int series, int index, double min, double max, double avg) {
+		mMin[series][index] = min;
+		mMax[series][index] = max;
+		mAvg[series][index] = avg;
+	}
+
+	private void allocate(int capacity) {
+		mTimes = copyOf(mTimes, capacity);
+		for (int s = 0; s < SeriesPyramid.SERIES; s++) {
+			mMin[s] = copyOf(mMin[s], capacity);
+			mMax[s] = copyOf(mMax[s], capacity);
+			mAvg[s] = copyOf(mAvg[s], capacity);
+		}
+	}
+
+	private long[] copyOf(long[] values, int capacity) {
+		long[] copy = new long[capacity];
+		if (null != values) {
+			System.arraycopy(values, 0, copy, 0, mSize);
+		}
+		return copy;
+	}
+
+	private double[] copyOf(double[] values, int capacity) {
+		double[] copy = new double[capacity];
+		if (null != values) {
+			System.arraycopy(values, 0, copy, 0, mSize);
+		}
+		return copy;
+	}
+}
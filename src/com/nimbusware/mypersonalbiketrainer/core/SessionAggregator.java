@@ -0,0 +1,415 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+import java.util.Date;
+import java.util.Locale;
+
+import com.nimbusware.mypersonalbiketrainer.BeatRateSensorListener;
+import com.nimbusware.mypersonalbiketrainer.CadenceSensorListener;
+import com.nimbusware.mypersonalbiketrainer.SpeedSensorListener;
+import com.nimbusware.mypersonalbiketrainer.WorkSessionInfo;
+
+/**
+ * Aggregates sensor readings into the data of a work session.
+ * This is a sensor listener by its own account: it receives direct
+ * updates from the sensors without any involvement of the front-end UI.
+ * Time is taken from a Clock, so that sessions can be simulated.
+ * <p>
+ * Readers never block writers, and writers never wait for readers:
+ * updates are serialized among themselves by a private lock (sensor
+ * callbacks may come from different threads), and publish their results
+ * through a sequence counter, seqlock-style. Readers do not lock at all:
+ * single values are read atomically from volatile fields, and values
+ * derived from several fields are read again if an update happened
+ * in the meantime. Nothing is allocated on either path.
+ */
+public class SessionAggregator implements WorkSessionInfo,
+	BeatRateSensorListener, SpeedSensorListener, CadenceSensorListener {
+
+	private static final String TO_STRING_FORMAT = SessionAggregator.class.getName() +
+			" - LocalId=%d" + 
+			", UniqueId=%s" + 
+			", StartTime=%d" + 
+			", EndTime=%d" + 
+			", DistanceCovered=%.3f" +
+			", WheelRevs=%d" + 
+			", CrankRevs=%d" + 
+			", HeartBeats=%.0f" + 
+			", LastSpeed=%.1f" + 
+			", MaxSpeed=%.1f" + 
+			", LastCrankCadence=%.1f" + 
+			", MaxCrankCadence=%.1f" + 
+			", LastHeartCadence=%.1f" + 
+			", MaxHeartCadence=%.1f" +
+			", LastHeartCadenceReding=%d";
+
+	private final Clock mClock;
+	private final long mLocalId;
+	private final String mUniqueId;
+	private final Date mStartTime;
+	private final long mStartMillis;
+	
+	// writers only: readers never touch this
+	private final Object mWriteLock = new Object();
+	
+	// incremented before and after each update: odd while an update is in progress
+	private volatile int mSequence;
+	
+	private volatile long mEndMillis; // 0 while the session is running
+	private volatile Date mEndTime;
+	private volatile double mDistanceCovered;
+	private volatile int mWheelRevs;
+	private volatile int mCrankRevs;
+	private volatile double mHeartBeats;
+	private volatile double mLastSpeed;
+	private volatile double mMaxSpeed;
+	private volatile double mLastCrankCadence;
+	private volatile double mMaxCrankCadence;
+	private volatile double mLastHeartCadence;
+	private volatile double mMaxHeartCadence;
+	private volatile long mLastHeartCadenceReding; // 0 if never
+	
+	// TODO support for "cardio zone" . i.e., target min/max BPM values
+	// (significance of cardio fitness factor depends on this)
+	
+	public SessionAggregator(long localId, String uniqueId, Date startTime, Clock clock) {
+		if (null == uniqueId || null == startTime || null == clock)
+			throw new NullPointerException();
+		
+		mLocalId = localId;
+		mUniqueId = uniqueId;
+		mStartTime = startTime;
+		mStartMillis = startTime.getTime();
+		mClock = clock;
+	}
+	
+	// WorkSessionData impl
+	@Override
+	public long getLocalId() {
+		return mLocalId;
+	}
+	
+	@Override
+	public String getUniqueId() {
+		return mUniqueId;
+	}
+
+	@Override
+	public Date getStartTime() {
+		return mStartTime;
+	}
+	
+	@Override
+	public Date getEndTime() {
+		return mEndTime;
+	}
+	
+	@Override
+	public double getElapsedTime() {
+		return getElapsedTime(mEndMillis);
+	}
+	
+	@Override
+	public double getDistanceCovered() {
+		return mDistanceCovered / 1000d;
+	}
+	
+	@Override
+	public int getWheelRevs() {
+		return mWheelRevs;
+	}
+	
+	@Override
+	public int getCrankRevs() {
+		return mCrankRevs;
+	}
+
+	@Override
+	public double getHeartBeats() {
+		return mHeartBeats;
+	}
+
+	@Override
+	public double getMaxSpeed() {
+		return mMaxSpeed;
+	}
+	
+	@Override
+	public double getAverageSpeed() {
+		double distance;
+		long end;
+		int seq;
+		do {
+			seq = beginRead();
+			distance = mDistanceCovered;
+			end = mEndMillis;
+		} while (seq != mSequence);
+		
+		double elapsed = getElapsedTime(end);
+		if (elapsed > 0) {
+			return distance / 1000d / elapsed * 3600;
+		} else {
+			return 0;
+		}
+	}
+
+	@Override
+	public double getMaxCrankCadence() {
+		return mMaxCrankCadence;
+	}
+	
+	@Override
+	public double getAverageCrankCadence() {
+		int crankRevs;
+		long end;
+		int seq;
+		do {
+			seq = beginRead();
+			crankRevs = mCrankRevs;
+			end = mEndMillis;
+		} while (seq != mSequence);
+		
+		double elapsed = getElapsedTime(end);
+		if (elapsed > 0) {
+			return crankRevs / elapsed * 60;
+		} else {
+			return 0;
+		}
+	}
+	
+	@Override
+	public double getAverageGearRatio() {
+		int crankRevs;
+		int wheelRevs;
+		int seq;
+		do {
+			seq = beginRead();
+			crankRevs = mCrankRevs;
+			wheelRevs = mWheelRevs;
+		} while (seq != mSequence);
+		
+		if (crankRevs > 0 && wheelRevs > 0) {
+			return ((double) wheelRevs) / ((double) crankRevs);
+		} else {
+			return 0;
+		}
+	}
+
+	@Override
+	public double getMaxHeartCadence() {
+		return mMaxHeartCadence;
+	}
+	
+	@Override
+	public double getAverageHeartCadence() {
+		double heartBeats;
+		long end;
+		int seq;
+		do {
+			seq = beginRead();
+			heartBeats = mHeartBeats;
+			end = mEndMillis;
+		} while (seq != mSequence);
+		
+		double elapsed = getElapsedTime(end);
+		if (elapsed > 0) {
+			return heartBeats / elapsed * 60;
+		} else {
+			return 0;
+		}
+	}
+	
+	@Override
+	public double getCardioFitnessFactor() {
+		double distance;
+		double heartBeats;
+		int seq;
+		do {
+			seq = beginRead();
+			distance = mDistanceCovered;
+			heartBeats = mHeartBeats;
+		} while (seq != mSequence);
+		
+		// TODO also check if session was "in zone"
+		if (heartBeats > 0) {
+			return distance / heartBeats;
+		} else {
+			return 0;
+		}
+	}
+	
+	public double getLastHeartCadence() {
+		return mLastHeartCadence;
+	}
+	
+	public double getLastSpeed() {
+		return mLastSpeed;
+	}
+	
+	public double getLastCrankCadence() {
+		return mLastCrankCadence;
+	}
+
+	// BeatRateSensorListener impl
+	@Override
+	public void updateBeatRate(double bpm) {
+		synchronized (mWriteLock) {
+			if (0 != mEndMillis)
+				return; // no-op if session has been closed
+			
+			long now = mClock.currentTimeMillis();
+			beginWrite();
+			mLastHeartCadence = bpm;
+			mMaxHeartCadence = bpm > mMaxHeartCadence ? bpm : mMaxHeartCadence;
+			if (mLastHeartCadenceReding != 0) {
+				mHeartBeats += getUnitsInTimeInterval(mLastHeartCadenceReding, now, bpm);
+			}
+			mLastHeartCadenceReding = now;
+			endWrite();
+		}
+	}
+
+	// SpeedRateSensorListener impl
+	@Override
+	public void updateSpeed(double kmh) {
+		synchronized (mWriteLock) {
+			if (0 != mEndMillis)
+				return; // no-op if session has been closed
+			
+			beginWrite();
+			mLastSpeed = kmh;
+			mMaxSpeed = kmh > mMaxSpeed ? kmh : mMaxSpeed;
+			endWrite();
+		}
+	}
+	
+	@Override
+	public void updateDistance(double meters) {
+		synchronized (mWriteLock) {
+			if (0 != mEndMillis)
+				return; // no-op if session has been closed
+			
+			beginWrite();
+			mDistanceCovered += meters;
+			endWrite();
+		}
+	}
+
+	@Override
+	public void updateWheelRevsCount(int revs) {
+		synchronized (mWriteLock) {
+			if (0 != mEndMillis)
+				return; // no-op if session has been closed
+			
+			beginWrite();
+			mWheelRevs += revs;
+			endWrite();
+		}
+	}
+
+	// CadenceRateSensorListener impl
+	@Override
+	public void updateCadence(double rpm) {
+		synchronized (mWriteLock) {
+			if (0 != mEndMillis)
+				return; // no-op if session has been closed
+			
+			beginWrite();
+			mLastCrankCadence = rpm;
+			mMaxCrankCadence = rpm > mMaxCrankCadence ? rpm : mMaxCrankCadence;
+			endWrite();
+		}
+	}
+
+	@Override
+	public void updateCrankRevsCount(int revs) {
+		synchronized (mWriteLock) {
+			if (0 != mEndMillis)
+				return; // no-op if session has been closed
+			
+			beginWrite();
+			mCrankRevs += revs;
+			endWrite();
+		}
+	}
+
+	@Override
+	public void updateConnectionState(int status, int newState) {
+		// nothing to do here
+	}
+	
+	@Override
+	public String toString() {
+		// not on any hot path: a consistent view is worth a retry loop
+		String result;
+		int seq;
+		do {
+			seq = beginRead();
+			result = String.format(
+					Locale.getDefault(), 
+					TO_STRING_FORMAT,
+					mLocalId,
+					mUniqueId,
+					mStartMillis,
+					mEndMillis,
+					mDistanceCovered,
+					mWheelRevs,
+					mCrankRevs,
+					mHeartBeats,
+					mLastSpeed,
+					mMaxSpeed,
+					mLastCrankCadence,
+					mMaxCrankCadence,
+					mLastHeartCadence,
+					mMaxHeartCadence,
+					mLastHeartCadenceReding);
+		} while (seq != mSequence);
+		return result;
+	}
+
+	/**
+	 * Sets the session's closing timestamp, and disables session updates.
+	 */
+	public void end() {
+		synchronized (mWriteLock) {
+			if (0 != mEndMillis)
+				return; // already closed
+			
+			long now = mClock.currentTimeMillis();
+			beginWrite();
+			mEndTime = new Date(now);
+			mEndMillis = now;
+			endWrite();
+		}
+	}
+	
+	// writers hold mWriteLock, so there is only one at a time
+	private void beginWrite() {
+		mSequence++;
+	}
+	
+	private void endWrite() {
+		mSequence++;
+	}
+	
+	// waits for any update in progress to complete: updates are short,
+	// so this rarely spins, and never holds back the writer
+	private int beginRead() {
+		int seq = mSequence;
+		while ((seq & 1) != 0) {
+			Thread.yield();
+			seq = mSequence;
+		}
+		return seq;
+	}
+	
+	private double getElapsedTime(long end) {
+		long stopTime = 0 != end ? end : mClock.currentTimeMillis();
+		return ((double) (stopTime - mStartMillis)) / 1000;
+	}
+
+	private double getUnitsInTimeInterval(long lastReading, long now, double upm) {
+		double millisecondsElapsed = now - lastReading;
+		double minutesElapsed = millisecondsElapsed / 60000;
+		return upm * minutesElapsed;
+	}
+}
@@ -0,0 +1,254 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import com.nimbusware.mypersonalbiketrainer.core.MetricRegistry.Histogram;
+
+/**
+ * Lifecycle of a work session, independent of the Android runtime:
+ * creates the master record, writes log entries on request, and
+ * updates the master record when the session ends. Feeding the
+ * SessionAggregator with sensor data, and calling log() at regular
+ * intervals, is up to the caller.
+ * <p>
+ * While the session runs, the caller may also call checkpoint() at
+ * regular intervals, so that the master record holds recent aggregates
+ * in case the process gets killed: such a record is still open (its end
+ * time is zero), and recover() closes it on next run.
+ */
+public class SessionEngine {
+
+	private final static String TAG = SessionEngine.class.getSimpleName();
+
+	// log entries are written in batches: at most one minute's worth of
+	// entries may be waiting, and none may wait for more than one minute
+	private final static int LOG_BUFFER_CAPACITY = 60;
+	private final static long LOG_BUFFER_MAX_AGE = 60000;
+
+	private final static Histogram LOG_TIME = MetricRegistry.getDefault().histogram("session.log.us", MetricRegistry.MICROS);
+	private final static Histogram CHECKPOINT_TIME = MetricRegistry.getDefault().histogram("session.checkpoint.ms", MetricRegistry.MILLIS);
+
+	/**
+	 * Completion callback of stop(Executor, StopCallback).
+	 */
+	public interface StopCallback {
+
+		/**
+		 * Invoked on the executor's thread once the session has been persisted.
+		 * @param data the aggregator of the ended session
+		 * @param saved false if the master record could not be updated
+		 */
+		public void onSessionStopped(SessionAggregator data, boolean saved);
+	}
+
+	private final SessionStore mStore;
+	private final Clock mClock;
+	private volatile Session mSession;
+
+	public SessionEngine(SessionStore store, Clock clock) {
+		if (null == store || null == clock)
+			throw new NullPointerException();
+
+		mStore = store;
+		mClock = clock;
+	}
+
+	public SessionAggregator getData() {
+		Session session = mSession;
+		return null == session ? null : session.mData;
+	}
+
+	public boolean isActive() {
+		return null != mSession;
+	}
+
+	/**
+	 * Closes the master records left open by a previous run of the
+	 * process (i.e., sessions that were never stopped), using their last
+	 * checkpoint (a synchronous operation). Sessions started at or after
+	 * the given time are left alone, as they may belong to this run.
+	 * @param startedBefore milliseconds since the epoch
+	 * @return the number of sessions closed
+	 */
+	public int recover(long startedBefore) {
+		int count = mStore.closeOpenSessions(startedBefore);
+		if (count > 0) {
+			Logging.getLogger().i(TAG, "Closed " + count + " unfinished session(s) from their last checkpoint");
+		}
+		return count;
+	}
+
+	/**
+	 * Starts a new session, writing its master record (a synchronous operation).
+	 * @return the aggregator of the new session
+	 */
+	public SessionAggregator start() {
+		if (null != mSession) // defensive
+			throw new IllegalStateException("Work session is already running");
+
+		Logger log = Logging.getLogger();
+
+		// write placeholder record in DB and get back assigned _ID
+		// (this is a _synchronous_ operation)
+		String uniqueId = UUID.randomUUID().toString();
+		Date startTime = new Date(mClock.currentTimeMillis());
+		log.i(TAG, "Inserting session master record");
+		log.i(TAG, "UniqueId=" + uniqueId + ", StartTime=" + startTime);
+		long localId = mStore.createSession(uniqueId, startTime.getTime());
+		if (localId > 0) {
+			log.i(TAG, "Session master record inserted with Id=" + localId);
+		} else {
+			// this is impossible, afaik: no reason not to
+			// crash the entire app if I'm wrong...
+			throw new RuntimeException("Could not create session's master record");
+		}
+
+		// we successfully wrote our master record down:
+		// session can now "officially" start
+		Session session = new Session(
+				new SessionAggregator(localId, uniqueId, startTime, mClock),
+				new LogBuffer(mStore, localId, LOG_BUFFER_CAPACITY, LOG_BUFFER_MAX_AGE));
+		mSession = session;
+		return session.mData;
+	}
+
+	/**
+	 * Adds a log entry with the current values of the running session;
+	 * entries are buffered, and written in batches (see LogBuffer).
+	 * Does nothing if no session is running, or if it is being stopped:
+	 * a timer may fire while stop() is in progress.
+	 */
+	public void log() {
+		Session session = mSession;
+		if (null == session)
+			return;
+
+		long start = System.nanoTime();
+		SessionAggregator data = session.mData;
+		Logger log = Logging.getLogger();
+		if (log.isVerbose(TAG)) {
+			log.v(TAG, data.toString());
+		}
+		synchronized (session) {
+			// once the session has ended, its buffer is flushed for the last
+			// time (see persist()): an entry added after that would be lost
+			if (null == data.getEndTime()) {
+				session.mLogBuffer.add(mClock.currentTimeMillis(),
+						data.getDistanceCovered(), data.getLastHeartCadence(),
+						data.getLastSpeed(), data.getLastCrankCadence());
+			}
+		}
+		LOG_TIME.record((System.nanoTime() - start) / 1000);
+	}
+
+	/**
+	 * Writes the current aggregates of the running session to its
+	 * master record, which is left open (a single UPDATE). Does nothing
+	 * if no session is running, or if it is being stopped.
+	 */
+	public void checkpoint() {
+		Session session = mSession;
+		if (null == session)
+			return;
+
+		synchronized (session) {
+			// once the session has ended, only the final update may be written
+			if (null == session.mData.getEndTime()) {
+				long start = System.nanoTime();
+				mStore.updateSession(session.mData);
+				CHECKPOINT_TIME.record((System.nanoTime() - start) / 1000000);
+			}
+		}
+	}
+
+	/**
+	 * Ends the running session and updates its master record
+	 * (a synchronous operation).
+	 * @return the aggregator of the ended session
+	 */
+	public SessionAggregator stop() {
+		Session session = end();
+		persist(session);
+		return session.mData;
+	}
+
+	/**
+	 * Ends the running session right away, then updates its master record
+	 * on the given executor: a new session may be started in the meantime.
+	 * Use a single-threaded executor dedicated to persistence, the one log()
+	 * and checkpoint() run on if they run in the background: the final write
+	 * is then queued behind theirs, and holds no thread other work needs.
+	 * @param executor
+	 * @param callback may be null
+	 * @return the aggregator of the ended session
+	 */
+	public SessionAggregator stop(Executor executor, final StopCallback callback) {
+		if (null == executor)
+			throw new NullPointerException();
+
+		final Session session = end();
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				boolean saved = false;
+				try {
+					persist(session);
+					saved = true;
+				} catch (RuntimeException e) {
+					Logging.getLogger().w(TAG, "Could not persist session " + session.mData.getLocalId(), e);
+				} finally {
+					if (null != callback) {
+						callback.onSessionStopped(session.mData, saved);
+					}
+				}
+			}
+		});
+		return session.mData;
+	}
+
+	private Session end() {
+		Session session = mSession;
+		if (null == session)
+			throw new IllegalStateException("No work session is running");
+
+		session.mData.end();
+		mSession = null;
+		return session;
+	}
+
+	private void persist(Session session) {
+		synchronized (session) {
+			// write any buffered log entries (and summaries) before closing the session
+			session.mLogBuffer.close();
+
+			// persist all session data, updating the opening record
+			SessionAggregator data = session.mData;
+			Logger log = Logging.getLogger();
+			log.i(TAG, "Updating session master record");
+			log.i(TAG, data.toString());
+			if (!mStore.updateSession(data)) {
+				// this is impossible, afaik: no reason not to
+				// crash the entire app if I'm wrong...
+				throw new RuntimeException("Could not update session's master record");
+			}
+		}
+	}
+
+	/**
+	 * State of the running session; log entries, checkpoints and
+	 * final writes are serialized on this object.
+	 */
+	private static class Session {
+
+		private final SessionAggregator mData;
+		private final LogBuffer mLogBuffer;
+
+		private Session(SessionAggregator data, LogBuffer logBuffer) {
+			mData = data;
+			mLogBuffer = logBuffer;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+import java.util.List;
+
+import com.nimbusware.mypersonalbiketrainer.WorkSessionInfo;
+
+/**
+ * Persistence of work sessions: one master record for each session,
+ * plus a series of log entries. On a device, records go to the diary
+ * content provider (see DiaryContract); elsewhere, see JdbcSessionStore.
+ */
+public interface SessionStore {
+
+	/**
+	 * Creates the master record of a new session (a synchronous operation).
+	 * @param uniqueId
+	 * @param startTime milliseconds since the epoch
+	 * @return local id of the new record, or a value <= 0 on failure
+	 */
+	public long createSession(String uniqueId, long startTime);
+
+	/**
+	 * Appends a batch of log entries to a session, in a single transaction
+	 * (see LogBuffer); entries are stored as one chunk (see SampleChunkWriter).
+	 * Arrays are owned by the caller and reused afterwards: only the first
+	 * count elements are meaningful.
+	 * @param localId local id of the session
+	 * @param times timestamps of the entries, in milliseconds since the epoch
+	 * @param distances distance covered so far, in Km
+	 * @param heartCadences current heart beat, in Bpm
+	 * @param speeds current speed, in Km/h
+	 * @param crankCadences current crank cadence, in Rpm
+	 * @param count number of entries
+	 */
+	public void addLogEntries(long localId, long[] times, double[] distances, 
+			double[] heartCadences, double[] speeds, double[] crankCadences, int count);
+
+	/**
+	 * Appends closed buckets of the levels of detail of a session
+	 * (see SeriesPyramid), in a single transaction.
+	 * @param localId local id of the session
+	 * @param buckets owned by the caller, which clears them afterwards
+	 */
+	public void addSummaries(long localId, List<SeriesPyramid.Bucket> buckets);
+
+	/**
+	 * Updates the master record of a session with its current data.
+	 * If the session is still running (i.e., it has no end time yet), 
+	 * the end time is written as zero: the record is a checkpoint.
+	 * @param data
+	 * @return true if exactly one record was updated
+	 */
+	public boolean updateSession(WorkSessionInfo data);
+	
+	/**
+	 * Closes the master records whose end time is zero, i.e., sessions 
+	 * that were never stopped: their end time is set to their start time 
+	 * plus the elapsed time of their last checkpoint.
+	 * @param startedBefore only sessions started before this time are
+	 * closed, in milliseconds since the epoch
+	 * @return the number of records closed
+	 */
+	public int closeOpenSessions(long startedBefore);
+}
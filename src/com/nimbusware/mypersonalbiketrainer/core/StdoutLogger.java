@@ -0,0 +1,45 @@
+package com.nimbusware.mypersonalbiketrainer.core;
+
+/**
+ * Logger for plain JVMs: info messages go to standard output,
+ * warnings to standard error.
+ */
+public class StdoutLogger implements Logger {
+	
+	private final boolean mVerbose;
+
+	/**
+	 * @param verbose if true, verbose messages are also logged
+	 */
+	public StdoutLogger(boolean verbose) {
+		mVerbose = verbose;
+	}
+
+	@Override
+	public boolean isVerbose(String tag) {
+		return mVerbose;
+	}
+
+	@Override
+	public void v(String tag, String msg) {
+		if (mVerbose) {
+			System.out.println("V/" + tag + ": " + msg);
+		}
+	}
+
+	@Override
+	public void i(String tag, String msg) {
+		System.out.println("I/" + tag + ": " + msg);
+	}
+
+	@Override
+	public void w(String tag, String msg) {
+		System.err.println("W/" + tag + ": " + msg);
+	}
+
+	@Override
+	public void w(String tag, String msg, Throwable tr) {
+		w(tag, msg);
+		tr.printStackTrace();
+	}
+}
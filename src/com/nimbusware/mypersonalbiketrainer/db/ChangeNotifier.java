@@ -0,0 +1,163 @@
+package com.nimbusware.mypersonalbiketrainer.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Change notifications of the diary provider.
+ * <p>
+ * Writes run within a batch (see begin() and end()), which may be nested,
+ * e.g., inserts within applyBatch(): changed uris are collected per thread,
+ * each one once, and only sent when the outermost batch ends - after the
+ * transaction has been committed - or dropped if it failed.
+ * <p>
+ * Sent notifications are then debounced: the first one after a quiet
+ * interval goes out at once, later ones within the interval are coalesced
+ * into a single trailing notification per uri. A burst of writes (an import,
+ * a session flushing its log) makes observers requery about once per
+ * interval, rather than once per write. An interval of 0 disables this.
+ */
+class ChangeNotifier {
+
+	private final ContentResolver mResolver;
+	private final long mInterval;
+	private final Handler mHandler;
+
+	private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>() {
+		@Override
+		protected Batch initialValue() {
+			return new Batch();
+		}
+	};
+
+	// guarded by this
+	private final Set<Uri> mDeferred = new LinkedHashSet<Uri>();
+	private long mLastSent = -1;
+	private boolean mScheduled;
+
+	private final Runnable mFlush = new Runnable() {
+
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * @param resolver
+	 * @param interval in milliseconds, 0 for no debouncing
+	 */
+	ChangeNotifier(ContentResolver resolver, long interval) {
+		if (null == resolver)
+			throw new NullPointerException();
+
+		if (interval < 0)
+			throw new IllegalArgumentException("Invalid interval: " + interval);
+
+		mResolver = resolver;
+		mInterval = interval;
+		mHandler = new Handler(Looper.getMainLooper());
+	}
+
+	void begin() {
+		mBatch.get().mDepth++;
+	}
+
+	/**
+	 * Records a change, to be sent when the current batch ends;
+	 * outside of any batch, it is sent at once.
+	 * @param uri
+	 */
+	void changed(Uri uri) {
+		Batch batch = mBatch.get();
+		batch.mUris.add(uri);
+		if (0 == batch.mDepth) {
+			send(batch);
+		}
+	}
+
+	/**
+	 * Ends a batch.
+	 * @param success if false, changes of the whole batch are dropped
+	 */
+	void end(boolean success) {
+		Batch batch = mBatch.get();
+		if (batch.mDepth <= 0)
+			throw new IllegalStateException("No batch to end");
+
+		if (!success) {
+			batch.mFailed = true;
+		}
+		if (--batch.mDepth > 0)
+			return;
+
+		if (batch.mFailed) {
+			batch.mUris.clear();
+			batch.mFailed = false;
+		} else {
+			send(batch);
+		}
+	}
+
+	private void send(Batch batch) {
+		if (batch.mUris.isEmpty())
+			return;
+
+		List<Uri> uris = new ArrayList<Uri>(batch.mUris);
+		batch.mUris.clear();
+		if (0 == mInterval) {
+			notify(uris);
+			return;
+		}
+
+		synchronized (this) {
+			long now = SystemClock.elapsedRealtime();
+			if (!mScheduled && (mLastSent < 0 || now - mLastSent >= mInterval)) {
+				mLastSent = now;
+			} else {
+				mDeferred.addAll(uris);
+				if (!mScheduled) {
+					mScheduled = true;
+					mHandler.postDelayed(mFlush, mLastSent + mInterval - now);
+				}
+				return;
+			}
+		}
+		notify(uris);
+	}
+
+	private void flush() {
+		List<Uri> uris;
+		synchronized (this) {
+			uris = new ArrayList<Uri>(mDeferred);
+			mDeferred.clear();
+			mScheduled = false;
+			mLastSent = SystemClock.elapsedRealtime();
+		}
+		notify(uris);
+	}
+
+	private void notify(List<Uri> uris) {
+		for (Uri uri : uris) {
+			mResolver.notifyChange(uri, null);
+		}
+	}
+
+	/**
+	 * Changes of the current thread, not yet sent.
+	 */
+	private static final class Batch {
+
+		private final Set<Uri> mUris = new LinkedHashSet<Uri>();
+		private int mDepth;
+		private boolean mFailed;
+	}
+}
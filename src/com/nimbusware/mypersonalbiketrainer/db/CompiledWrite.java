@@ -0,0 +1,163 @@
+package com.nimbusware.mypersonalbiketrainer.db;
+
+import java.util.Arrays;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A precompiled INSERT or UPDATE statement on a fixed set of columns:
+ * SQL is parsed once, and each call only binds values. It is used when
+ * the ContentValues to be written hold exactly those columns, otherwise
+ * callers fall back to the generic SQLiteDatabase methods.
+ * <p>
+ * Timing of each call is logged at VERBOSE level, with tag "CompiledWrite".
+ * Calls on the same instance are serialized.
+ */
+class CompiledWrite {
+	
+	private static final String TAG = CompiledWrite.class.getSimpleName();
+	
+	private final String mTable;
+	private final String mSql;
+	private final String[] mColumns;
+	private SQLiteDatabase mDb;
+	private SQLiteStatement mStatement;
+	
+	/**
+	 * INSERT INTO table (columns) VALUES (...)
+	 */
+	static CompiledWrite insert(String table, String... columns) {
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+		for (int i = 0; i < columns.length; i++) {
+			sql.append(i > 0 ? ", " : "").append(columns[i]);
+		}
+		sql.append(") VALUES (");
+		for (int i = 0; i < columns.length; i++) {
+			sql.append(i > 0 ? ", ?" : "?");
+		}
+		sql.append(")");
+		return new CompiledWrite(table, sql.toString(), columns);
+	}
+	
+	/**
+	 * UPDATE table SET columns WHERE keyColumn = ?
+	 */
+	static CompiledWrite update(String table, String keyColumn, String... columns) {
+		StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+		for (int i = 0; i < columns.length; i++) {
+			sql.append(i > 0 ? ", " : "").append(columns[i]).append(" = ?");
+		}
+		sql.append(" WHERE ").append(keyColumn).append(" = ?");
+		return new CompiledWrite(table, sql.toString(), columns);
+	}
+	
+	private CompiledWrite(String table, String sql, String[] columns) {
+		mTable = table;
+		mSql = sql;
+		mColumns = columns;
+	}
+	
+	String getTable() {
+		return mTable;
+	}
+	
+	/**
+	 * True if values hold exactly the columns of this statement.
+	 */
+	boolean matches(ContentValues values) {
+		if (values.size() != mColumns.length)
+			return false;
+		
+		for (String column : mColumns) {
+			if (!values.containsKey(column))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Same as SQLiteDatabase.insert(): failures are logged and -1 is returned.
+	 */
+	synchronized long executeInsert(SQLiteDatabase db, ContentValues values) {
+		long start = SystemClock.elapsedRealtimeNanos();
+		try {
+			bind(db, values);
+			return mStatement.executeInsert();
+		} catch (SQLException e) {
+			Log.e(TAG, "Error inserting into " + mTable, e);
+			return -1;
+		} finally {
+			if (null != mStatement) {
+				mStatement.clearBindings();
+			}
+			logTiming(start);
+		}
+	}
+	
+	/**
+	 * Same as SQLiteDatabase.update() on a single key.
+	 * @return the number of rows updated
+	 */
+	synchronized int executeUpdate(SQLiteDatabase db, ContentValues values, long key) {
+		long start = SystemClock.elapsedRealtimeNanos();
+		try {
+			bind(db, values);
+			mStatement.bindLong(mColumns.length + 1, key);
+			return mStatement.executeUpdateDelete();
+		} finally {
+			if (null != mStatement) {
+				mStatement.clearBindings();
+			}
+			logTiming(start);
+		}
+	}
+	
+	synchronized void close() {
+		if (null != mStatement) {
+			mStatement.close();
+			mStatement = null;
+			mDb = null;
+		}
+	}
+	
+	private void bind(SQLiteDatabase db, ContentValues values) {
+		if (db != mDb || null == mStatement) {
+			// first call, or the database was reopened
+			close();
+			mStatement = db.compileStatement(mSql);
+			mDb = db;
+		}
+		
+		for (int i = 0; i < mColumns.length; i++) {
+			int index = i + 1;
+			Object value = values.get(mColumns[i]);
+			if (null == value) {
+				mStatement.bindNull(index);
+			} else if (value instanceof String) {
+				mStatement.bindString(index, (String) value);
+			} else if (value instanceof Double || value instanceof Float) {
+				mStatement.bindDouble(index, ((Number) value).doubleValue());
+			} else if (value instanceof Number) {
+				mStatement.bindLong(index, ((Number) value).longValue());
+			} else if (value instanceof Boolean) {
+				mStatement.bindLong(index, ((Boolean) value) ? 1 : 0);
+			} else if (value instanceof byte[]) {
+				mStatement.bindBlob(index, (byte[]) value);
+			} else {
+				throw new IllegalArgumentException("Unsupported value type for " + mColumns[i] + ": " + value.getClass());
+			}
+		}
+	}
+	
+	private void logTiming(long start) {
+		if (Log.isLoggable(TAG, Log.VERBOSE)) {
+			long micros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+			Log.v(TAG, mTable + " " + Arrays.toString(mColumns) + ": " + micros + "us");
+		}
+	}
+}
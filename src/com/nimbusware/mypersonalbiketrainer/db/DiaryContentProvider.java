@@ -1,17 +1,23 @@
 package com.nimbusware.mypersonalbiketrainer.db;
 
+import java.util.ArrayList;
+
 import com.nimbusware.mypersonalbiketrainer.DiaryContract;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.util.Log;
 
@@ -21,6 +27,12 @@ public class DiaryContentProvider extends ContentProvider {
 	private static final int ONE_WORKOUT_BY_ID = 2;
 	private static final int ONE_WORKOUT_BY_UUID = 3;
 	private static final int WORKOUT_LOG = 4;
+	private static final int WORKOUT_CHUNKS = 5;
+	private static final int WORKOUTS_PAGE = 6;
+	private static final int ROLLUPS_BY_DAY = 7;
+	private static final int ROLLUPS_BY_WEEK = 8;
+	private static final int ROLLUPS_BY_MONTH = 9;
+	private static final int WORKOUT_SUMMARY = 10;
 
 	private static final UriMatcher uriMatcher;
 	static {
@@ -47,12 +59,46 @@ public class DiaryContentProvider extends ContentProvider {
 				DiaryContract.AUTHORITY, 
 				DiaryContract.WORKOUTS + "/#/" + DiaryContract.LOG, 
 				WORKOUT_LOG);
+		
+		uriMatcher.addURI(
+				DiaryContract.AUTHORITY, 
+				DiaryContract.WORKOUTS + "/#/" + DiaryContract.CHUNKS, 
+				WORKOUT_CHUNKS);
+		
+		uriMatcher.addURI(
+				DiaryContract.AUTHORITY, 
+				DiaryContract.WORKOUTS + "/#/" + DiaryContract.SUMMARY, 
+				WORKOUT_SUMMARY);
+		
+		// keyset pagination: see DiaryContract.getWorkoutsPageUri()
+		uriMatcher.addURI(
+				DiaryContract.AUTHORITY, 
+				DiaryContract.WORKOUTS + "/" + DiaryContract.PAGE, 
+				WORKOUTS_PAGE);
+		
+		// read-only, maintained by the provider itself: see Rollups
+		uriMatcher.addURI(
+				DiaryContract.AUTHORITY, 
+				DiaryContract.ROLLUPS + "/" + DiaryContract.DAY, 
+				ROLLUPS_BY_DAY);
+		
+		uriMatcher.addURI(
+				DiaryContract.AUTHORITY, 
+				DiaryContract.ROLLUPS + "/" + DiaryContract.WEEK, 
+				ROLLUPS_BY_WEEK);
+		
+		uriMatcher.addURI(
+				DiaryContract.AUTHORITY, 
+				DiaryContract.ROLLUPS + "/" + DiaryContract.MONTH, 
+				ROLLUPS_BY_MONTH);
 	}
 	
 	private static final String DB_NAME = "mpbt";
-	private static final Integer DB_VERSION = 2;
+	private static final Integer DB_VERSION = 7;
 	private static final String TBL_NAME_WORKOUT = "workout";
 	private static final String TBL_NAME_WORKOUT_LOG = "workout_log";
+	private static final String TBL_NAME_WORKOUT_CHUNK = "workout_chunk";
+	private static final String TBL_NAME_WORKOUT_SUMMARY = "workout_summary";
 
 	private static final String CREATE_CMD_1 = "CREATE TABLE " +
 			TBL_NAME_WORKOUT + " (" + 
@@ -69,7 +115,8 @@ public class DiaryContentProvider extends ContentProvider {
 			DiaryContract.COL_CADENCE_MAX + " REAL NOT NULL, " +
 			DiaryContract.COL_CADENCE_AVG + " REAL NOT NULL, " +
 			DiaryContract.COL_GEAR + " REAL NOT NULL, " +
-			DiaryContract.COL_FITNESS + " REAL NOT NULL) ";
+			DiaryContract.COL_FITNESS + " REAL NOT NULL, " +
+			DiaryContract.COL_ZONE_OFFSET + " INTEGER NOT NULL DEFAULT 0) ";
 
 	private static final String CREATE_CMD_2 = "CREATE TABLE " +
 			TBL_NAME_WORKOUT_LOG + " (" + 
@@ -81,9 +128,74 @@ public class DiaryContentProvider extends ContentProvider {
 			DiaryContract.COL_SPEED + " REAL NOT NULL, " +
 			DiaryContract.COL_CADENCE + " REAL NOT NULL) ";
 
-	private static String DEFAULT_ORDER_WORKOUT = DiaryContract.COL_START + " DESC";
+	private static final String CREATE_CMD_3 = "CREATE TABLE " +
+			TBL_NAME_WORKOUT_CHUNK + " (" + 
+			DiaryContract._ID + " INTEGER PRIMARY KEY, " +
+			DiaryContract.COL_WORKOUT + " INTEGER NOT NULL " +
+			"REFERENCES " + TBL_NAME_WORKOUT + " ON DELETE CASCADE, " +
+			DiaryContract.COL_END + " INTEGER NOT NULL, " +
+			DiaryContract.COL_COUNT + " INTEGER NOT NULL, " +
+			DiaryContract.COL_DATA + " BLOB NOT NULL) ";
+
+	private static final String CREATE_CMD_4 = "CREATE TABLE " +
+			TBL_NAME_WORKOUT_SUMMARY + " (" + 
+			DiaryContract._ID + " INTEGER PRIMARY KEY, " +
+			DiaryContract.COL_WORKOUT + " INTEGER NOT NULL " +
+			"REFERENCES " + TBL_NAME_WORKOUT + " ON DELETE CASCADE, " +
+			DiaryContract.COL_LEVEL + " INTEGER NOT NULL, " +
+			DiaryContract.COL_START + " INTEGER NOT NULL, " +
+			DiaryContract.COL_COUNT + " INTEGER NOT NULL, " +
+			DiaryContract.COL_CARDIO_MIN + " REAL NOT NULL, " +
+			DiaryContract.COL_CARDIO_MAX + " REAL NOT NULL, " +
+			DiaryContract.COL_CARDIO_AVG + " REAL NOT NULL, " +
+			DiaryContract.COL_SPEED_MIN + " REAL NOT NULL, " +
+			DiaryContract.COL_SPEED_MAX + " REAL NOT NULL, " +
+			DiaryContract.COL_SPEED_AVG + " REAL NOT NULL, " +
+			DiaryContract.COL_CADENCE_MIN + " REAL NOT NULL, " +
+			DiaryContract.COL_CADENCE_MAX + " REAL NOT NULL, " +
+			DiaryContract.COL_CADENCE_AVG + " REAL NOT NULL) ";
+
+	// workouts are listed by start time, log entries and chunks by workout:
+	// as _ID is the rowid, it comes along with every index for free
+	private static final String[] CREATE_INDEXES = {
+		"CREATE INDEX IF NOT EXISTS " + TBL_NAME_WORKOUT + "_start ON " + 
+				TBL_NAME_WORKOUT + " (" + DiaryContract.COL_START + ")",
+		"CREATE INDEX IF NOT EXISTS " + TBL_NAME_WORKOUT + "_uuid ON " + 
+				TBL_NAME_WORKOUT + " (" + DiaryContract.COL_UUID + ")",
+		"CREATE INDEX IF NOT EXISTS " + TBL_NAME_WORKOUT_LOG + "_workout ON " + 
+				TBL_NAME_WORKOUT_LOG + " (" + DiaryContract.COL_WORKOUT + ", " + DiaryContract._ID + ")",
+		"CREATE INDEX IF NOT EXISTS " + TBL_NAME_WORKOUT_CHUNK + "_workout ON " + 
+				TBL_NAME_WORKOUT_CHUNK + " (" + DiaryContract.COL_WORKOUT + ", " + DiaryContract._ID + ")"
+	};
+
+	// created along with its table, which comes later than the other indexes
+	// on upgrade (see onUpgrade, case 3 vs. case 5)
+	private static final String CREATE_INDEX_SUMMARY = 
+		"CREATE INDEX IF NOT EXISTS " + TBL_NAME_WORKOUT_SUMMARY + "_workout ON " + 
+				TBL_NAME_WORKOUT_SUMMARY + " (" + DiaryContract.COL_WORKOUT + ", " + 
+				DiaryContract.COL_LEVEL + ", " + DiaryContract.COL_START + ")";
+
+	// _ID breaks ties, so that keyset pagination never skips a workout
+	private static String DEFAULT_ORDER_WORKOUT = 
+			DiaryContract.COL_START + " DESC, " + DiaryContract._ID + " DESC";
+	
+	private static String PAGE_WHERE = "(" + DiaryContract.COL_START + " < ? OR (" + 
+			DiaryContract.COL_START + " = ? AND " + DiaryContract._ID + " < ?))";
 
 	private static String DEFAULT_ORDER_LOG = DiaryContract._ID; // ID is a timestamp
+
+	private static String DEFAULT_ORDER_CHUNK = DiaryContract._ID; // ID is a timestamp
+
+	private static String DEFAULT_ORDER_SUMMARY = DiaryContract.COL_START;
+
+	private static String DEFAULT_ORDER_ROLLUP = DiaryContract._ID + " DESC"; // ID is a period key
+	
+	// see ChangeNotifier
+	private static final long NOTIFY_INTERVAL = 500;
+	
+	// the diary observes WORKOUTS_URI and all of its descendants: beyond
+	// a few workouts, notifying the whole table is as good, and cheaper
+	private static final int MAX_NOTIFIED_WORKOUTS = 20;
 	
 	/**
 	 * Helper class that actually creates and manages the provider's underlying data repository.
@@ -92,6 +204,10 @@ public class DiaryContentProvider extends ContentProvider {
 		
 		DatabaseHelper(Context context) {
 			super(context, DB_NAME, null, DB_VERSION);
+			
+			// write-ahead log: readers (e.g., the diary) do not block 
+			// on the writes of a running session, nor the other way round
+			setWriteAheadLoggingEnabled(true);
 		}
 
 		@Override
@@ -104,6 +220,37 @@ public class DiaryContentProvider extends ContentProvider {
 		public void onCreate(SQLiteDatabase db) {
 			db.execSQL(CREATE_CMD_1);
 			db.execSQL(CREATE_CMD_2);
+			db.execSQL(CREATE_CMD_3);
+			db.execSQL(CREATE_CMD_4);
+			createIndexes(db);
+			db.execSQL(CREATE_INDEX_SUMMARY);
+			Rollups.create(db);
+		}
+		
+		private void addZoneOffsets(SQLiteDatabase db) {
+			db.execSQL("ALTER TABLE " + TBL_NAME_WORKOUT + " ADD COLUMN " + 
+					DiaryContract.COL_ZONE_OFFSET + " INTEGER NOT NULL DEFAULT 0");
+			SQLiteStatement stmt = db.compileStatement("UPDATE " + TBL_NAME_WORKOUT + 
+					" SET " + DiaryContract.COL_ZONE_OFFSET + " = ? WHERE " + DiaryContract._ID + " = ?");
+			Cursor c = db.query(TBL_NAME_WORKOUT, 
+					new String[] { DiaryContract._ID, DiaryContract.COL_START }, 
+					null, null, null, null, null);
+			try {
+				while (c.moveToNext()) {
+					stmt.bindLong(1, DiaryContract.getZoneOffset(c.getLong(1)));
+					stmt.bindLong(2, c.getLong(0));
+					stmt.executeUpdateDelete();
+				}
+			} finally {
+				c.close();
+				stmt.close();
+			}
+		}
+		
+		private void createIndexes(SQLiteDatabase db) {
+			for (String cmd : CREATE_INDEXES) {
+				db.execSQL(cmd);
+			}
 		}
 
 		@Override
@@ -111,13 +258,42 @@ public class DiaryContentProvider extends ContentProvider {
 			Log.w(DatabaseHelper.class.getName(),
 					"Upgrading database from version " + oldVersion + " to " + newVersion);
 
-			if (oldVersion == 1 && newVersion == 2) {
-				// special case: we simply add a new table
+			switch (oldVersion) {
+			case 1:
+				// we simply add a new table
 				db.execSQL(CREATE_CMD_2);
 				db.execSQL("ALTER TABLE " + TBL_NAME_WORKOUT +
 						" ADD COLUMN " + DiaryContract.COL_UUID + " TEXT NULL");
-			} else {
+				// fall through
+			case 2:
+				// old log entries stay where they are, new ones go to chunks
+				db.execSQL(CREATE_CMD_3);
+				// fall through
+			case 3:
+				createIndexes(db);
+				// fall through
+			case 4:
+				// rollups of existing workouts are computed once, 
+				// when their zone offsets are there (see below)
+				Rollups.create(db);
+				// fall through
+			case 5:
+				// no levels of detail for existing workouts: 
+				// charts compute them from log entries
+				db.execSQL(CREATE_CMD_4);
+				db.execSQL(CREATE_INDEX_SUMMARY);
+				// fall through
+			case 6:
+				// existing rollups used the current time zone: stick to it
+				// (the rebuild needs the column, thus it comes last)
+				addZoneOffsets(db);
+				Rollups.rebuild(db);
+				break;
+			default:
 				// any other case: let's drop and recreate everything 
+				Rollups.drop(db);
+				db.execSQL("DROP TABLE IF EXISTS " + TBL_NAME_WORKOUT_SUMMARY);
+				db.execSQL("DROP TABLE IF EXISTS " + TBL_NAME_WORKOUT_CHUNK);
 				db.execSQL("DROP TABLE IF EXISTS " + TBL_NAME_WORKOUT_LOG);
 				db.execSQL("DROP TABLE IF EXISTS " + TBL_NAME_WORKOUT);
 				onCreate(db);
@@ -127,35 +303,256 @@ public class DiaryContentProvider extends ContentProvider {
 	
 
 	private DatabaseHelper mHelper;
+	private ChangeNotifier mNotifier;
+	
+	// precompiled statements for the writes of a running session
+	private final CompiledWrite mInsertWorkout = CompiledWrite.insert(TBL_NAME_WORKOUT, 
+			DiaryContract.COL_UUID,
+			DiaryContract.COL_START,
+			DiaryContract.COL_END,
+			DiaryContract.COL_ELAPSED,
+			DiaryContract.COL_DISTANCE,
+			DiaryContract.COL_CARDIO_MAX,
+			DiaryContract.COL_CARDIO_AVG,
+			DiaryContract.COL_SPEED_MAX,
+			DiaryContract.COL_SPEED_AVG,
+			DiaryContract.COL_CADENCE_MAX,
+			DiaryContract.COL_CADENCE_AVG,
+			DiaryContract.COL_GEAR,
+			DiaryContract.COL_FITNESS,
+			DiaryContract.COL_ZONE_OFFSET);
+	private final CompiledWrite mUpdateWorkout = CompiledWrite.update(TBL_NAME_WORKOUT, DiaryContract._ID, 
+			DiaryContract.COL_END,
+			DiaryContract.COL_ELAPSED,
+			DiaryContract.COL_DISTANCE,
+			DiaryContract.COL_CARDIO_MAX,
+			DiaryContract.COL_CARDIO_AVG,
+			DiaryContract.COL_SPEED_MAX,
+			DiaryContract.COL_SPEED_AVG,
+			DiaryContract.COL_CADENCE_MAX,
+			DiaryContract.COL_CADENCE_AVG,
+			DiaryContract.COL_GEAR,
+			DiaryContract.COL_FITNESS);
+	private final CompiledWrite mInsertLog = CompiledWrite.insert(TBL_NAME_WORKOUT_LOG, 
+			DiaryContract._ID,
+			DiaryContract.COL_WORKOUT,
+			DiaryContract.COL_DISTANCE,
+			DiaryContract.COL_CARDIO,
+			DiaryContract.COL_SPEED,
+			DiaryContract.COL_CADENCE);
+	private final CompiledWrite mInsertChunk = CompiledWrite.insert(TBL_NAME_WORKOUT_CHUNK, 
+			DiaryContract._ID,
+			DiaryContract.COL_WORKOUT,
+			DiaryContract.COL_END,
+			DiaryContract.COL_COUNT,
+			DiaryContract.COL_DATA);
+	private final CompiledWrite mInsertSummary = CompiledWrite.insert(TBL_NAME_WORKOUT_SUMMARY, 
+			DiaryContract.COL_WORKOUT,
+			DiaryContract.COL_LEVEL,
+			DiaryContract.COL_START,
+			DiaryContract.COL_COUNT,
+			DiaryContract.COL_CARDIO_MIN,
+			DiaryContract.COL_CARDIO_MAX,
+			DiaryContract.COL_CARDIO_AVG,
+			DiaryContract.COL_SPEED_MIN,
+			DiaryContract.COL_SPEED_MAX,
+			DiaryContract.COL_SPEED_AVG,
+			DiaryContract.COL_CADENCE_MIN,
+			DiaryContract.COL_CADENCE_MAX,
+			DiaryContract.COL_CADENCE_AVG);
 
 	@Override
 	public boolean onCreate() {
 		// Create a writable database which will trigger its creation if it doesn't already exist
 		mHelper = new DatabaseHelper(getContext());
+		mNotifier = new ChangeNotifier(getContext().getContentResolver(), NOTIFY_INTERVAL);
 		return true;
 	}
 
+	@Override
+	public void shutdown() {
+		mInsertWorkout.close();
+		mUpdateWorkout.close();
+		mInsertLog.close();
+		mInsertChunk.close();
+		mInsertSummary.close();
+		mHelper.close();
+		super.shutdown();
+	}
+
 	@Override
 	public Uri insert(Uri uri, ContentValues values) {
 		long rowID = 0;
+		boolean success = false;
+		mNotifier.begin();
+		try {
+			switch (uriMatcher.match(uri)) {
+			case ALL_WORKOUTS:
+				rowID = insertWorkout(values);
+				if (rowID > 0) {
+					mNotifier.changed(DiaryContract.getWorkoutUri(rowID));
+				}
+				break;
+			case WORKOUT_LOG:
+				rowID = insert(mInsertLog, values);
+				logChanged(values);
+				break;
+			case WORKOUT_CHUNKS:
+				rowID = insert(mInsertChunk, values);
+				logChanged(values);
+				break;
+			case WORKOUT_SUMMARY:
+				rowID = insert(mInsertSummary, values);
+				logChanged(values);
+				break;
+			default:
+				// can only insert new workouts or new workout log entries/chunks/summaries
+				throw new IllegalArgumentException("Unsupported URI for INSERT operation: " + uri);
+			}
+	
+			if (rowID <= 0)
+				throw new SQLException("INSERT operation failed: " + uri);
+			success = true;
+		} finally {
+			mNotifier.end(success);
+		}
+		return ContentUris.withAppendedId(uri, rowID);
+	}
+	
+	private long insertWorkout(ContentValues values) {
+		// new sessions are inserted open, thus with no rollup updates, 
+		// but closed workouts (e.g., imported ones) may come as well
+		if (!values.containsKey(DiaryContract.COL_ZONE_OFFSET)) {
+			// the zone of the device when the workout starts (or is imported),
+			// kept for good: rollups of the workout never move
+			Long start = values.getAsLong(DiaryContract.COL_START);
+			values = new ContentValues(values);
+			values.put(DiaryContract.COL_ZONE_OFFSET, 
+					DiaryContract.getZoneOffset(null != start ? start : System.currentTimeMillis()));
+		}
+		Long end = values.getAsLong(DiaryContract.COL_END);
+		if (null == end || 0 == end) {
+			return insert(mInsertWorkout, values);
+		}
+		
+		SQLiteDatabase db = mHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			long rowID = insert(mInsertWorkout, values);
+			if (rowID > 0 && Rollups.add(db, new long[] { rowID }) > 0) {
+				mNotifier.changed(DiaryContract.ROLLUPS_URI);
+			}
+			db.setTransactionSuccessful();
+			return rowID;
+		} finally {
+			db.endTransaction();
+		}
+	}
+	
+	private long insert(CompiledWrite stmt, ContentValues values) {
+		SQLiteDatabase db = mHelper.getWritableDatabase();
+		if (stmt.matches(values)) {
+			return stmt.executeInsert(db, values);
+		} else {
+			return db.insert(stmt.getTable(), null, values);
+		}
+	}
+	
+	/**
+	 * Inserts a batch of workout log entries (or chunks, or summaries) in a single 
+	 * transaction, notifying observers only once. If any row fails, 
+	 * nothing is written.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		CompiledWrite stmt;
 		switch (uriMatcher.match(uri)) {
-		case ALL_WORKOUTS:
-			rowID = mHelper.getWritableDatabase().insert(TBL_NAME_WORKOUT, null, values);
-			break;
 		case WORKOUT_LOG:
-			rowID = mHelper.getWritableDatabase().insert(TBL_NAME_WORKOUT_LOG, null, values);
+			stmt = mInsertLog;
+			break;
+		case WORKOUT_CHUNKS:
+			stmt = mInsertChunk;
+			break;
+		case WORKOUT_SUMMARY:
+			stmt = mInsertSummary;
 			break;
 		default:
-			// can only insert new workouts or new workout log entries
-			throw new IllegalArgumentException("Unsupported URI for INSERT operation: " + uri);
+			// workouts are inserted one at a time, but notified once
+			boolean success = false;
+			mNotifier.begin();
+			try {
+				int count = super.bulkInsert(uri, values);
+				success = true;
+				return count;
+			} finally {
+				mNotifier.end(success);
+			}
 		}
+		
+		boolean success = false;
+		SQLiteDatabase db = mHelper.getWritableDatabase();
+		mNotifier.begin();
+		db.beginTransaction();
+		try {
+			for (ContentValues row : values) {
+				if (insert(stmt, row) <= 0)
+					throw new SQLException("INSERT operation failed: " + uri);
+				logChanged(row);
+			}
+			db.setTransactionSuccessful();
+			success = true;
+		} finally {
+			db.endTransaction();
+			mNotifier.end(success);
+		}
+		return values.length;
+	}
 
-		if (rowID > 0) {
-			Uri _uri = ContentUris.withAppendedId(DiaryContract.WORKOUTS_URI, rowID);
-			getContext().getContentResolver().notifyChange(_uri, null);
-			return _uri;
-		} else {
-			throw new SQLException("INSERT operation failed: " + uri);
+	/**
+	 * Applies all operations in a single transaction: either all of
+	 * them succeed, or none does. Observers are notified once, when
+	 * all operations succeeded.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) 
+			throws OperationApplicationException {
+		boolean success = false;
+		SQLiteDatabase db = mHelper.getWritableDatabase();
+		mNotifier.begin();
+		db.beginTransaction();
+		try {
+			ContentProviderResult[] results = super.applyBatch(operations);
+			db.setTransactionSuccessful();
+			success = true;
+			return results;
+		} finally {
+			db.endTransaction();
+			mNotifier.end(success);
+		}
+	}
+	
+	// log rows, chunks and summaries all hold their workout id
+	private void logChanged(ContentValues values) {
+		Long workoutId = values.getAsLong(DiaryContract.COL_WORKOUT);
+		if (null != workoutId) {
+			mNotifier.changed(DiaryContract.getWorkoutLogNotificationUri(workoutId));
+		}
+	}
+	
+	private void workoutsChanged(long[] ids, boolean withLogs) {
+		if (ids.length > MAX_NOTIFIED_WORKOUTS) {
+			mNotifier.changed(DiaryContract.WORKOUTS_URI);
+			if (withLogs) {
+				mNotifier.changed(DiaryContract.LOGS_URI);
+			}
+			return;
+		}
+		
+		for (long id : ids) {
+			mNotifier.changed(DiaryContract.getWorkoutUri(id));
+			if (withLogs) {
+				mNotifier.changed(DiaryContract.getWorkoutLogNotificationUri(id));
+			}
 		}
 	}
 	
@@ -164,7 +561,12 @@ public class DiaryContentProvider extends ContentProvider {
 			String[] selectionArgs, String sortOrder) {
 
 		SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+		String limit = null;
+		long workoutId;
+		Uri notificationUri = uri;
 		
+		// all values are bound as parameters: those coming from the uri 
+		// go first, as the builder puts appendWhere() before selection
 		switch (uriMatcher.match(uri)) {
 		case ALL_WORKOUTS:
 			qb.setTables(TBL_NAME_WORKOUT);
@@ -173,70 +575,151 @@ public class DiaryContentProvider extends ContentProvider {
 			}
 			break;
 			
+		case WORKOUTS_PAGE:
+			qb.setTables(TBL_NAME_WORKOUT);
+			String beforeStart = uri.getQueryParameter(DiaryContract.PARAM_BEFORE_START);
+			String beforeId = uri.getQueryParameter(DiaryContract.PARAM_BEFORE_ID);
+			if (beforeStart != null && beforeId != null) {
+				beforeStart = String.valueOf(parseLong(beforeStart, uri));
+				beforeId = String.valueOf(parseLong(beforeId, uri));
+				qb.appendWhere(PAGE_WHERE);
+				selectionArgs = prependArgs(selectionArgs, beforeStart, beforeStart, beforeId);
+			}
+			limit = uri.getQueryParameter(DiaryContract.PARAM_LIMIT);
+			if (limit != null) {
+				limit = String.valueOf(parseLong(limit, uri));
+			}
+			// pages only make sense in this order
+			sortOrder = DEFAULT_ORDER_WORKOUT;
+			// a page may change whenever any workout does
+			notificationUri = DiaryContract.WORKOUTS_URI;
+			break;
+			
 		case ONE_WORKOUT_BY_ID:
 			qb.setTables(TBL_NAME_WORKOUT);
-			qb.appendWhere(DiaryContract._ID + "=" + uri.getPathSegments().get(1));
+			qb.appendWhere(DiaryContract._ID + " = ?");
+			selectionArgs = prependArgs(selectionArgs, String.valueOf(ContentUris.parseId(uri)));
 			break;
 			
 		case ONE_WORKOUT_BY_UUID:
 			qb.setTables(TBL_NAME_WORKOUT);
-			qb.appendWhere(DiaryContract.COL_UUID + "=" + uri.getPathSegments().get(1));
+			qb.appendWhere(DiaryContract.COL_UUID + " = ?");
+			selectionArgs = prependArgs(selectionArgs, uri.getPathSegments().get(1));
+			// changes are notified by _ID, which we do not know yet
+			notificationUri = DiaryContract.WORKOUTS_URI;
 			break;
 			
 		case WORKOUT_LOG:
 			qb.setTables(TBL_NAME_WORKOUT_LOG);
-			qb.appendWhere(DiaryContract.COL_WORKOUT + "=" + uri.getPathSegments().get(1));
+			qb.appendWhere(DiaryContract.COL_WORKOUT + " = ?");
+			workoutId = parseLong(uri.getPathSegments().get(1), uri);
+			selectionArgs = prependArgs(selectionArgs, String.valueOf(workoutId));
+			notificationUri = DiaryContract.getWorkoutLogNotificationUri(workoutId);
 			if (sortOrder == null || sortOrder == "") {
 				sortOrder = DEFAULT_ORDER_LOG;
 			}
 			break;
 			
+		case ROLLUPS_BY_DAY:
+		case ROLLUPS_BY_WEEK:
+		case ROLLUPS_BY_MONTH:
+			qb.setTables(getRollupTable(uri));
+			if (sortOrder == null || sortOrder == "") {
+				sortOrder = DEFAULT_ORDER_ROLLUP;
+			}
+			// rollups change along with workouts
+			notificationUri = DiaryContract.ROLLUPS_URI;
+			break;
+			
+		case WORKOUT_CHUNKS:
+			qb.setTables(TBL_NAME_WORKOUT_CHUNK);
+			qb.appendWhere(DiaryContract.COL_WORKOUT + " = ?");
+			workoutId = parseLong(uri.getPathSegments().get(1), uri);
+			selectionArgs = prependArgs(selectionArgs, String.valueOf(workoutId));
+			notificationUri = DiaryContract.getWorkoutLogNotificationUri(workoutId);
+			if (sortOrder == null || sortOrder == "") {
+				sortOrder = DEFAULT_ORDER_CHUNK;
+			}
+			break;
+			
+		case WORKOUT_SUMMARY:
+			qb.setTables(TBL_NAME_WORKOUT_SUMMARY);
+			qb.appendWhere(DiaryContract.COL_WORKOUT + " = ?");
+			workoutId = parseLong(uri.getPathSegments().get(1), uri);
+			selectionArgs = prependArgs(selectionArgs, String.valueOf(workoutId));
+			notificationUri = DiaryContract.getWorkoutLogNotificationUri(workoutId);
+			if (sortOrder == null || sortOrder == "") {
+				sortOrder = DEFAULT_ORDER_SUMMARY;
+			}
+			break;
+			
 		default:
 			throw new IllegalArgumentException("Unsupported URI for SELECT operation: " + uri);
 		}
 		
 		
 		SQLiteDatabase db = mHelper.getReadableDatabase();
-		Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+		Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder, limit);
 		
 		/**
 		 * register to watch a content URI for changes
 		 */
-		c.setNotificationUri(getContext().getContentResolver(), uri);
+		c.setNotificationUri(getContext().getContentResolver(), notificationUri);
 
 		return c;
 	}
 
 	@Override
 	public int delete(Uri uri, String selection, String[] selectionArgs) {
-		int count = 0;
-		SQLiteDatabase db = mHelper.getWritableDatabase();
+		String where;
+		String[] whereArgs;
 
 		switch (uriMatcher.match(uri)) {
 		case ALL_WORKOUTS:
-			count = db.delete(TBL_NAME_WORKOUT, selection, selectionArgs);
+			where = selection;
+			whereArgs = selectionArgs;
 			break;
 			
 		case ONE_WORKOUT_BY_ID:
 			// selection arguments, if any, are ignored
 			long id = ContentUris.parseId(uri);
-			count = db.delete(TBL_NAME_WORKOUT, 
-					DiaryContract._ID + " = " + id, null);
+			where = DiaryContract._ID + " = ?";
+			whereArgs = new String[] { String.valueOf(id) };
 			break;
 			
 		case ONE_WORKOUT_BY_UUID:
 			// selection arguments, if any, are ignored
 			String uuid = uri.getPathSegments().get(1);
-			count = db.delete(TBL_NAME_WORKOUT, 
-					DiaryContract.COL_UUID + " = " + uuid, null);
+			where = DiaryContract.COL_UUID + " = ?";
+			whereArgs = new String[] { uuid };
 			break;
 			
 		default:
-			// log delete is only supported by cascading from workout
+			// log/chunk/summary delete is only supported by cascading from workout
 			throw new IllegalArgumentException("Unsupported URI for DELETE operation: " + uri);
 		}
 
-		getContext().getContentResolver().notifyChange(uri, null);
+		int count = 0;
+		boolean success = false;
+		SQLiteDatabase db = mHelper.getWritableDatabase();
+		mNotifier.begin();
+		db.beginTransaction();
+		try {
+			long[] ids = Rollups.select(db, where, whereArgs);
+			int closed = Rollups.remove(db, ids);
+			count = db.delete(TBL_NAME_WORKOUT, where, whereArgs);
+			db.setTransactionSuccessful();
+			success = true;
+			
+			// logs are gone along with their workouts
+			workoutsChanged(ids, true);
+			if (closed > 0) {
+				mNotifier.changed(DiaryContract.ROLLUPS_URI);
+			}
+		} finally {
+			db.endTransaction();
+			mNotifier.end(success);
+		}
 		
 		return count;
 	}
@@ -244,30 +727,28 @@ public class DiaryContentProvider extends ContentProvider {
 	@Override
 	public int update(Uri uri, ContentValues values, String selection,
 			String[] selectionArgs) {
-		int count = 0;
-		SQLiteDatabase db = mHelper.getWritableDatabase();
+		String where;
+		String[] whereArgs;
+		long id = 0;
 
 		switch (uriMatcher.match(uri)) {
 		case ALL_WORKOUTS:
-			count = db.update(
-					TBL_NAME_WORKOUT, 
-					values, 
-					selection,
-					selectionArgs);
+			where = selection;
+			whereArgs = selectionArgs;
 			break;
 			
 		case ONE_WORKOUT_BY_ID:
 			// selection arguments, if any, are ignored
-			long id = ContentUris.parseId(uri);
-			count = db.update(TBL_NAME_WORKOUT, values,
-					DiaryContract._ID + " = " + id, null);
+			id = ContentUris.parseId(uri);
+			where = DiaryContract._ID + " = ?";
+			whereArgs = new String[] { String.valueOf(id) };
 			break;
 			
 		case ONE_WORKOUT_BY_UUID:
 			// selection arguments, if any, are ignored
 			String uuid = uri.getPathSegments().get(1);
-			count = db.update(TBL_NAME_WORKOUT, values,
-					DiaryContract.COL_UUID + " = " + uuid, null);
+			where = DiaryContract.COL_UUID + " = ?";
+			whereArgs = new String[] { uuid };
 			break;
 			
 		default:
@@ -275,11 +756,68 @@ public class DiaryContentProvider extends ContentProvider {
 			throw new IllegalArgumentException("Unsupported URI for UPDATE operation: " + uri);
 		}
 		
-		getContext().getContentResolver().notifyChange(uri, null);
+		int count = 0;
+		boolean success = false;
+		SQLiteDatabase db = mHelper.getWritableDatabase();
+		mNotifier.begin();
+		db.beginTransaction();
+		try {
+			// rollups: out with the old values, in with the new ones
+			// (nothing to do for checkpoints, workouts are still open)
+			long[] ids = Rollups.select(db, where, whereArgs);
+			int closed = Rollups.remove(db, ids);
+			if (id > 0 && mUpdateWorkout.matches(values)) {
+				count = mUpdateWorkout.executeUpdate(db, values, id);
+			} else {
+				count = db.update(TBL_NAME_WORKOUT, values, where, whereArgs);
+			}
+			closed += Rollups.add(db, ids);
+			db.setTransactionSuccessful();
+			success = true;
+			
+			workoutsChanged(ids, false);
+			if (closed > 0) {
+				mNotifier.changed(DiaryContract.ROLLUPS_URI);
+			}
+		} finally {
+			db.endTransaction();
+			mNotifier.end(success);
+		}
 		
 		return count;
 	}
 
+	private static String getRollupTable(Uri uri) {
+		switch (uriMatcher.match(uri)) {
+		case ROLLUPS_BY_DAY:
+			return Rollups.TBL_NAME_DAY;
+		case ROLLUPS_BY_WEEK:
+			return Rollups.TBL_NAME_WEEK;
+		case ROLLUPS_BY_MONTH:
+			return Rollups.TBL_NAME_MONTH;
+		default:
+			throw new IllegalArgumentException("Not a rollup URI: " + uri);
+		}
+	}
+	
+	private static String[] prependArgs(String[] args, String... first) {
+		if (null == args || 0 == args.length)
+			return first;
+		
+		String[] all = new String[first.length + args.length];
+		System.arraycopy(first, 0, all, 0, first.length);
+		System.arraycopy(args, 0, all, first.length, args.length);
+		return all;
+	}
+	
+	private static long parseLong(String value, Uri uri) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number " + value + " in URI: " + uri);
+		}
+	}
+
 	@Override
 	public String getType(Uri uri) {
 		switch (uriMatcher.match(uri)) {
@@ -295,6 +833,20 @@ public class DiaryContentProvider extends ContentProvider {
 		case WORKOUT_LOG: // all detail records
 			return "vnd.android.cursor.dir/log";
 			
+		case WORKOUTS_PAGE: // some records
+			return "vnd.android.cursor.dir/workout";
+			
+		case ROLLUPS_BY_DAY: // all totals by period
+		case ROLLUPS_BY_WEEK:
+		case ROLLUPS_BY_MONTH:
+			return "vnd.android.cursor.dir/rollup";
+			
+		case WORKOUT_CHUNKS: // all detail records, packed
+			return "vnd.android.cursor.dir/chunk";
+			
+		case WORKOUT_SUMMARY: // detail records, aggregated
+			return "vnd.android.cursor.dir/summary";
+			
 		default:
 			throw new IllegalArgumentException("Unsupported URI: " + uri);
 		}
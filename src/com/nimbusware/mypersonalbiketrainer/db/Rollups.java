@@ -0,0 +1,197 @@
+package com.nimbusware.mypersonalbiketrainer.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.nimbusware.mypersonalbiketrainer.DiaryContract;
+
+/**
+ * Maintains the rollup tables of the diary: totals of closed workouts
+ * by day, ISO week and month (see DiaryContract.getDayKey() and siblings
+ * for period keys). Rollups are adjusted incrementally, within the 
+ * transaction of each write on the workout table: the contribution of 
+ * the rows involved is removed before the write, and added back after it. 
+ * Open workouts (i.e., running sessions, whose end time is zero) do not
+ * contribute, so checkpoints leave rollups alone.
+ * <p>
+ * Period keys are computed with the UTC offset stored with each workout
+ * (DiaryContract.COL_ZONE_OFFSET), so that a workout removed after the
+ * device changed time zone leaves the same periods it was added to.
+ */
+class Rollups {
+	
+	static final String TBL_NAME_DAY = "rollup_day";
+	static final String TBL_NAME_WEEK = "rollup_week";
+	static final String TBL_NAME_MONTH = "rollup_month";
+	private static final String[] TABLES = { TBL_NAME_DAY, TBL_NAME_WEEK, TBL_NAME_MONTH };
+	
+	private static final String WORKOUT = "workout";
+	private static final String[] CONTRIBUTION_PROJECTION = {
+		DiaryContract.COL_START,
+		DiaryContract.COL_ELAPSED,
+		DiaryContract.COL_DISTANCE,
+		DiaryContract.COL_CARDIO_AVG,
+		DiaryContract.COL_ZONE_OFFSET
+	};
+	
+	private Rollups() {}
+	
+	static void create(SQLiteDatabase db) {
+		for (String table : TABLES) {
+			db.execSQL("CREATE TABLE " + table + " (" + 
+					DiaryContract._ID + " INTEGER PRIMARY KEY, " + // period key
+					DiaryContract.COL_WORKOUTS + " INTEGER NOT NULL, " +
+					DiaryContract.COL_ELAPSED + " REAL NOT NULL, " +
+					DiaryContract.COL_DISTANCE + " REAL NOT NULL, " +
+					DiaryContract.COL_CARDIO_TIME + " REAL NOT NULL, " +
+					DiaryContract.COL_CARDIO_BEATS + " REAL NOT NULL) ");
+		}
+	}
+	
+	static void drop(SQLiteDatabase db) {
+		for (String table : TABLES) {
+			db.execSQL("DROP TABLE IF EXISTS " + table);
+		}
+	}
+	
+	/**
+	 * Recomputes all rollups from scratch.
+	 */
+	static void rebuild(SQLiteDatabase db) {
+		for (String table : TABLES) {
+			db.delete(table, null, null);
+		}
+		apply(db, DiaryContract.COL_END + " != 0", null, 1);
+	}
+	
+	/**
+	 * Ids of the workouts matching the given selection.
+	 */
+	static long[] select(SQLiteDatabase db, String selection, String[] selectionArgs) {
+		Cursor c = db.query(WORKOUT, new String[] { DiaryContract._ID }, 
+				selection, selectionArgs, null, null, null);
+		try {
+			long[] ids = new long[c.getCount()];
+			for (int i = 0; c.moveToNext(); i++) {
+				ids[i] = c.getLong(0);
+			}
+			return ids;
+		} finally {
+			c.close();
+		}
+	}
+	
+	/**
+	 * Adds the contribution of the given workouts to the rollups.
+	 * @return the number of closed workouts, i.e., those that contributed
+	 */
+	static int add(SQLiteDatabase db, long[] ids) {
+		if (0 == ids.length)
+			return 0;
+		
+		return apply(db, inIds(ids) + " AND " + DiaryContract.COL_END + " != 0", null, 1);
+	}
+	
+	/**
+	 * Removes the contribution of the given workouts from the rollups.
+	 * @return the number of closed workouts, i.e., those that contributed
+	 */
+	static int remove(SQLiteDatabase db, long[] ids) {
+		if (0 == ids.length)
+			return 0;
+		
+		return apply(db, inIds(ids) + " AND " + DiaryContract.COL_END + " != 0", null, -1);
+	}
+	
+	private static String inIds(long[] ids) {
+		StringBuilder sb = new StringBuilder(DiaryContract._ID).append(" IN (");
+		for (int i = 0; i < ids.length; i++) {
+			sb.append(i > 0 ? "," : "").append(ids[i]);
+		}
+		return sb.append(")").toString();
+	}
+	
+	private static int apply(SQLiteDatabase db, String selection, String[] selectionArgs, int sign) {
+		Cursor c = db.query(WORKOUT, CONTRIBUTION_PROJECTION, 
+				selection, selectionArgs, null, null, null);
+		try {
+			if (c.getCount() == 0)
+				return 0;
+			
+			SQLiteStatement[] updates = new SQLiteStatement[TABLES.length];
+			SQLiteStatement[] inserts = new SQLiteStatement[TABLES.length];
+			SQLiteStatement[] deletes = new SQLiteStatement[TABLES.length];
+			for (int i = 0; i < TABLES.length; i++) {
+				updates[i] = db.compileStatement("UPDATE " + TABLES[i] + " SET " + 
+						DiaryContract.COL_WORKOUTS + " = " + DiaryContract.COL_WORKOUTS + " + ?, " +
+						DiaryContract.COL_ELAPSED + " = " + DiaryContract.COL_ELAPSED + " + ?, " +
+						DiaryContract.COL_DISTANCE + " = " + DiaryContract.COL_DISTANCE + " + ?, " +
+						DiaryContract.COL_CARDIO_TIME + " = " + DiaryContract.COL_CARDIO_TIME + " + ?, " +
+						DiaryContract.COL_CARDIO_BEATS + " = " + DiaryContract.COL_CARDIO_BEATS + " + ? " +
+						"WHERE " + DiaryContract._ID + " = ?");
+				inserts[i] = db.compileStatement("INSERT INTO " + TABLES[i] + " (" +
+						DiaryContract.COL_WORKOUTS + ", " + 
+						DiaryContract.COL_ELAPSED + ", " + 
+						DiaryContract.COL_DISTANCE + ", " + 
+						DiaryContract.COL_CARDIO_TIME + ", " + 
+						DiaryContract.COL_CARDIO_BEATS + ", " + 
+						DiaryContract._ID + ") VALUES (?, ?, ?, ?, ?, ?)");
+				deletes[i] = db.compileStatement("DELETE FROM " + TABLES[i] + 
+						" WHERE " + DiaryContract._ID + " = ? AND " + DiaryContract.COL_WORKOUTS + " <= 0");
+			}
+			
+			try {
+				while (c.moveToNext()) {
+					long start = c.getLong(0);
+					double elapsed = c.getDouble(1);
+					double distance = c.getDouble(2);
+					double cardio = c.getDouble(3);
+					int zoneOffset = c.getInt(4);
+					// average heart rate is weighted by time, and only
+					// counts workouts where it was actually measured
+					double cardioTime = cardio > 0 ? elapsed : 0;
+					long[] keys = {
+						DiaryContract.getDayKey(start, zoneOffset),
+						DiaryContract.getWeekKey(start, zoneOffset),
+						DiaryContract.getMonthKey(start, zoneOffset)
+					};
+					for (int i = 0; i < TABLES.length; i++) {
+						SQLiteStatement stmt = updates[i];
+						stmt.bindLong(1, sign);
+						stmt.bindDouble(2, sign * elapsed);
+						stmt.bindDouble(3, sign * distance);
+						stmt.bindDouble(4, sign * cardioTime);
+						stmt.bindDouble(5, sign * cardio * cardioTime);
+						stmt.bindLong(6, keys[i]);
+						if (0 == stmt.executeUpdateDelete()) {
+							if (sign > 0) {
+								stmt = inserts[i];
+								stmt.bindLong(1, 1);
+								stmt.bindDouble(2, elapsed);
+								stmt.bindDouble(3, distance);
+								stmt.bindDouble(4, cardioTime);
+								stmt.bindDouble(5, cardio * cardioTime);
+								stmt.bindLong(6, keys[i]);
+								stmt.executeInsert();
+							}
+						} else if (sign < 0) {
+							// periods with no workouts left are dropped
+							deletes[i].bindLong(1, keys[i]);
+							deletes[i].executeUpdateDelete();
+						}
+					}
+				}
+			} finally {
+				for (int i = 0; i < TABLES.length; i++) {
+					updates[i].close();
+					inserts[i].close();
+					deletes[i].close();
+				}
+			}
+			return c.getCount();
+		} finally {
+			c.close();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package com.nimbusware.mypersonalbiketrainer.export;
+
+import java.io.IOException;
+
+import com.nimbusware.mypersonalbiketrainer.WorkSessionInfo;
+
+/**
+ * Comma separated values, one line per log entry, with a header line.
+ */
+class CsvEncoder extends TextEncoder {
+	
+	private static final String HEADER = 
+			"time,elapsed_s,distance_km,heart_bpm,speed_kmh,cadence_rpm";
+	
+	private long mStartTime;
+
+	@Override
+	protected void writeHeader(WorkSessionInfo workout) throws IOException {
+		mStartTime = workout.getStartTime().getTime();
+		mLine.append(HEADER);
+		writeLine();
+	}
+
+	@Override
+	public void entry(long time, double distance, double heartCadence,
+			double speed, double crankCadence) throws IOException {
+		appendTime(time);
+		mLine.append(',');
+		appendFixed((time - mStartTime) / 1000d, 1).append(',');
+		appendFixed(distance, 3).append(',');
+		appendFixed(heartCadence, 1).append(',');
+		appendFixed(speed, 2).append(',');
+		appendFixed(crankCadence, 1);
+		writeLine();
+	}
+
+	@Override
+	protected void writeFooter() throws IOException {
+		// nothing to add
+	}
+}
@@ -0,0 +1,39 @@
+package com.nimbusware.mypersonalbiketrainer.export;
+
+/**
+ * File formats workouts can be exported to.
+ */
+public enum ExportFormat {
+	
+	FIT("fit"),
+	TCX("tcx"),
+	GPX("gpx"),
+	CSV("csv");
+	
+	private final String mExtension;
+	
+	private ExportFormat(String extension) {
+		mExtension = extension;
+	}
+	
+	public String getExtension() {
+		return mExtension;
+	}
+	
+	/**
+	 * New encoder for this format: one per workout.
+	 * @return
+	 */
+	public WorkoutEncoder newEncoder() {
+		switch (this) {
+		case FIT:
+			return new FitEncoder();
+		case TCX:
+			return new TcxEncoder();
+		case GPX:
+			return new GpxEncoder();
+		default:
+			return new CsvEncoder();
+		}
+	}
+}
@@ -0,0 +1,295 @@
+package com.nimbusware.mypersonalbiketrainer.export;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.nimbusware.mypersonalbiketrainer.WorkSessionInfo;
+
+/**
+ * Garmin FIT activity file: file_id, one record per log entry, then lap,
+ * session and activity messages built from the master record. The FIT
+ * header holds the size of the data that follows: as every message has
+ * a fixed size, it is computed up front from the number of log entries,
+ * so the file can be streamed with no seeking nor buffering.
+ * <p>
+ * Missing heart rates (zero) are written as invalid values; everything
+ * else is written as is, within the range of its FIT type.
+ */
+class FitEncoder implements WorkoutEncoder {
+
+	private static final int BUFFER_SIZE = 16384;
+
+	// 1989-12-31T00:00:00Z, in milliseconds since the Unix epoch
+	private static final long FIT_EPOCH = 631065600000L;
+
+	private static final int HEADER_SIZE = 14;
+	private static final int PROTOCOL_VERSION = 0x10; // 1.0
+	private static final int PROFILE_VERSION = 1600; // 16.00
+
+	// base types
+	private static final int ENUM = 0x00;
+	private static final int UINT8 = 0x02;
+	private static final int UINT16 = 0x84;
+	private static final int UINT32 = 0x86;
+
+	// field values
+	private static final int FILE_ACTIVITY = 4;
+	private static final int MANUFACTURER_DEVELOPMENT = 255;
+	private static final int EVENT_SESSION = 8;
+	private static final int EVENT_LAP = 9;
+	private static final int EVENT_ACTIVITY = 26;
+	private static final int EVENT_TYPE_STOP = 1;
+	private static final int SPORT_CYCLING = 2;
+	private static final int SUB_SPORT_INDOOR_CYCLING = 6;
+	private static final int ACTIVITY_MANUAL = 0;
+
+	// messages, as pairs of field number and base type
+	private static final Message FILE_ID = new Message(0, 0,
+			0, ENUM,		// type
+			1, UINT16,		// manufacturer
+			2, UINT16,		// product
+			4, UINT32);		// time_created
+	private static final Message RECORD = new Message(20, 1,
+			253, UINT32,	// timestamp
+			3, UINT8,		// heart_rate, bpm
+			4, UINT8,		// cadence, rpm
+			5, UINT32,		// distance, 1/100 m
+			6, UINT16);		// speed, 1/1000 m/s
+	private static final Message LAP = new Message(19, 2,
+			253, UINT32,	// timestamp
+			0, ENUM,		// event
+			1, ENUM,		// event_type
+			2, UINT32,		// start_time
+			7, UINT32,		// total_elapsed_time, ms
+			8, UINT32,		// total_timer_time, ms
+			9, UINT32);		// total_distance, 1/100 m
+	private static final Message SESSION = new Message(18, 3,
+			253, UINT32,	// timestamp
+			0, ENUM,		// event
+			1, ENUM,		// event_type
+			2, UINT32,		// start_time
+			7, UINT32,		// total_elapsed_time, ms
+			8, UINT32,		// total_timer_time, ms
+			9, UINT32,		// total_distance, 1/100 m
+			5, ENUM,		// sport
+			6, ENUM,		// sub_sport
+			14, UINT16,		// avg_speed, 1/1000 m/s
+			15, UINT16,		// max_speed, 1/1000 m/s
+			16, UINT8,		// avg_heart_rate
+			17, UINT8,		// max_heart_rate
+			18, UINT8,		// avg_cadence
+			19, UINT8,		// max_cadence
+			25, UINT16,		// first_lap_index
+			26, UINT16);	// num_laps
+	private static final Message ACTIVITY = new Message(34, 4,
+			253, UINT32,	// timestamp
+			0, UINT32,		// total_timer_time, ms
+			1, UINT16,		// num_sessions
+			2, ENUM,		// type
+			3, ENUM,		// event
+			4, ENUM);		// event_type
+
+	private final long[] mRecord = new long[RECORD.size()];
+	private CrcOutputStream mOut;
+	private WorkSessionInfo mWorkout;
+	private int mEntryCount;
+	private int mEntries;
+
+	@Override
+	public void begin(OutputStream out, WorkSessionInfo workout, int entryCount) throws IOException {
+		mOut = new CrcOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+		mWorkout = workout;
+		mEntryCount = entryCount;
+
+		long dataSize = 0;
+		for (Message message : new Message[] { FILE_ID, RECORD, LAP, SESSION, ACTIVITY }) {
+			dataSize += message.getDefinitionSize() + message.getDataSize();
+		}
+		dataSize += (long) (entryCount - 1) * RECORD.getDataSize();
+
+		// file header, with its own CRC
+		mOut.write(HEADER_SIZE);
+		mOut.write(PROTOCOL_VERSION);
+		mOut.writeValue(PROFILE_VERSION, 2);
+		mOut.writeValue(dataSize, 4);
+		mOut.write('.');
+		mOut.write('F');
+		mOut.write('I');
+		mOut.write('T');
+		mOut.writeValue(mOut.getCrc(), 2);
+
+		long start = toFitTime(workout.getStartTime().getTime());
+		FILE_ID.writeDefinition(mOut);
+		FILE_ID.writeData(mOut, FILE_ACTIVITY, MANUFACTURER_DEVELOPMENT, 0, start);
+		RECORD.writeDefinition(mOut);
+	}
+
+	@Override
+	public void entry(long time, double distance, double heartCadence,
+			double speed, double crankCadence) throws IOException {
+		if (mEntries == mEntryCount) // the header would be wrong
+			throw new IOException("More log entries than expected: " + mEntryCount);
+
+		mRecord[0] = toFitTime(time);
+		mRecord[1] = heartCadence >= 1 ? Math.min(Math.round(heartCadence), 254) : 0xFF;
+		mRecord[2] = Math.min(Math.round(crankCadence), 254);
+		mRecord[3] = Math.round(distance * 100000);
+		mRecord[4] = toFitSpeed(speed);
+		RECORD.writeData(mOut, mRecord);
+		mEntries++;
+	}
+
+	@Override
+	public void end() throws IOException {
+		if (mEntries != mEntryCount)
+			throw new IOException("Log entries: " + mEntries + ", expected: " + mEntryCount);
+
+		long start = toFitTime(mWorkout.getStartTime().getTime());
+		long end = toFitTime(TextEncoder.getEndTime(mWorkout));
+		long elapsed = Math.round(mWorkout.getElapsedTime() * 1000);
+		long distance = Math.round(mWorkout.getDistanceCovered() * 100000);
+
+		LAP.writeDefinition(mOut);
+		LAP.writeData(mOut, end, EVENT_LAP, EVENT_TYPE_STOP, start, elapsed, elapsed, distance);
+
+		SESSION.writeDefinition(mOut);
+		SESSION.writeData(mOut, end, EVENT_SESSION, EVENT_TYPE_STOP, start, elapsed, elapsed, distance,
+				SPORT_CYCLING, SUB_SPORT_INDOOR_CYCLING,
+				toFitSpeed(mWorkout.getAverageSpeed()),
+				toFitSpeed(mWorkout.getMaxSpeed()),
+				Math.min(Math.round(mWorkout.getAverageHeartCadence()), 254),
+				Math.min(Math.round(mWorkout.getMaxHeartCadence()), 254),
+				Math.min(Math.round(mWorkout.getAverageCrankCadence()), 254),
+				Math.min(Math.round(mWorkout.getMaxCrankCadence()), 254),
+				0, 1);
+
+		ACTIVITY.writeDefinition(mOut);
+		ACTIVITY.writeData(mOut, end, elapsed, 1, ACTIVITY_MANUAL, EVENT_ACTIVITY, EVENT_TYPE_STOP);
+
+		// file CRC, over header and data
+		mOut.writeValue(mOut.getCrc(), 2);
+		mOut.flush();
+	}
+
+	private static long toFitTime(long time) {
+		return (time - FIT_EPOCH) / 1000;
+	}
+
+	private static long toFitSpeed(double speed) {
+		// Km/h to 1/1000 m/s
+		return Math.min(Math.round(speed / 3.6 * 1000), 0xFFFE);
+	}
+
+	/**
+	 * Definition of a FIT message, and writer of its data messages.
+	 */
+	private static final class Message {
+
+		private final int mGlobal;
+		private final int mLocal;
+		private final int[] mFields;
+		private final int[] mTypes;
+
+		private Message(int global, int local, int... fieldsAndTypes) {
+			mGlobal = global;
+			mLocal = local;
+			mFields = new int[fieldsAndTypes.length / 2];
+			mTypes = new int[fieldsAndTypes.length / 2];
+			for (int i = 0; i < mFields.length; i++) {
+				mFields[i] = fieldsAndTypes[i * 2];
+				mTypes[i] = fieldsAndTypes[i * 2 + 1];
+			}
+		}
+
+		private int size() {
+			return mFields.length;
+		}
+
+		private int getDefinitionSize() {
+			return 6 + 3 * mFields.length;
+		}
+
+		private int getDataSize() {
+			int size = 1;
+			for (int type : mTypes) {
+				size += getSize(type);
+			}
+			return size;
+		}
+
+		private void writeDefinition(CrcOutputStream out) throws IOException {
+			out.write(0x40 | mLocal);
+			out.write(0); // reserved
+			out.write(0); // little endian
+			out.writeValue(mGlobal, 2);
+			out.write(mFields.length);
+			for (int i = 0; i < mFields.length; i++) {
+				out.write(mFields[i]);
+				out.write(getSize(mTypes[i]));
+				out.write(mTypes[i]);
+			}
+		}
+
+		private void writeData(CrcOutputStream out, long... values) throws IOException {
+			out.write(mLocal);
+			for (int i = 0; i < mTypes.length; i++) {
+				out.writeValue(values[i], getSize(mTypes[i]));
+			}
+		}
+
+		private static int getSize(int type) {
+			switch (type) {
+			case UINT16:
+				return 2;
+			case UINT32:
+				return 4;
+			default:
+				return 1;
+			}
+		}
+	}
+
+	/**
+	 * Keeps the FIT CRC-16 of all bytes written so far.
+	 */
+	private static final class CrcOutputStream {
+
+		private static final int[] CRC_TABLE = {
+			0x0000, 0xCC01, 0xD801, 0x1400, 0xF001, 0x3C00, 0x2800, 0xE401,
+			0xA001, 0x6C00, 0x7800, 0xB401, 0x5000, 0x9C01, 0x8801, 0x4400
+		};
+
+		private final OutputStream mOut;
+		private int mCrc;
+
+		private CrcOutputStream(OutputStream out) {
+			mOut = out;
+		}
+
+		private int getCrc() {
+			return mCrc;
+		}
+
+		private void write(int b) throws IOException {
+			int tmp = CRC_TABLE[mCrc & 0xF];
+			mCrc = (mCrc >> 4) & 0x0FFF;
+			mCrc = mCrc ^ tmp ^ CRC_TABLE[b & 0xF];
+			tmp = CRC_TABLE[mCrc & 0xF];
+			mCrc = (mCrc >> 4) & 0x0FFF;
+			mCrc = mCrc ^ tmp ^ CRC_TABLE[(b >> 4) & 0xF];
+			mOut.write(b);
+		}
+
+		// little endian
+		private void writeValue(long value, int size) throws IOException {
+			for (int i = 0; i < size; i++) {
+				write((int) (value >> (i * 8)) & 0xFF);
+			}
+		}
+
+		private void flush() throws IOException {
+			mOut.flush();
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.nimbusware.mypersonalbiketrainer.export;
+
+import java.io.IOException;
+
+import com.nimbusware.mypersonalbiketrainer.WorkSessionInfo;
+
+/**
+ * GPX 1.1 track, with heart rate and cadence in Garmin's
+ * TrackPointExtension. Workouts have no position (they are ridden on
+ * a trainer): track points carry no lat/lon attributes, which is not
+ * strictly valid GPX, but is accepted by most tools reading heart rate
+ * and cadence.
+ */
+class GpxEncoder extends TextEncoder {
+	
+	private static final String HEADER = 
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<gpx version=\"1.1\" creator=\"MyPersonalBikeTrainer\" " +
+			"xmlns=\"http://www.topografix.com/GPX/1/1\" " +
+			"xmlns:gpxtpx=\"http://www.garmin.com/xmlschemas/TrackPointExtension/v1\">";
+
+	@Override
+	protected void writeHeader(WorkSessionInfo workout) throws IOException {
+		mLine.append(HEADER);
+		writeLine();
+		mLine.append(" <metadata><time>");
+		appendTime(workout.getStartTime().getTime());
+		mLine.append("</time></metadata>");
+		writeLine();
+		mLine.append(" <trk><type>cycling</type><trkseg>");
+		writeLine();
+	}
+
+	@Override
+	public void entry(long time, double distance, double heartCadence,
+			double speed, double crankCadence) throws IOException {
+		mLine.append("  <trkpt><time>");
+		appendTime(time);
+		mLine.append("</time><extensions><gpxtpx:TrackPointExtension>");
+		if (heartCadence > 0) {
+			mLine.append("<gpxtpx:hr>");
+			appendFixed(heartCadence, 0).append("</gpxtpx:hr>");
+		}
+		mLine.append("<gpxtpx:cad>");
+		appendFixed(crankCadence, 0).append("</gpxtpx:cad>");
+		mLine.append("</gpxtpx:TrackPointExtension></extensions></trkpt>");
+		writeLine();
+	}
+
+	@Override
+	protected void writeFooter() throws IOException {
+		mLine.append(" </trkseg></trk>\n</gpx>");
+		writeLine();
+	}
+}
@@ -0,0 +1,97 @@
+package com.nimbusware.mypersonalbiketrainer.export;
+
+import java.io.IOException;
+
+import com.nimbusware.mypersonalbiketrainer.WorkSessionInfo;
+
+/**
+ * Garmin Training Center XML (TCX v2): one biking activity with a single
+ * lap, whose totals come from the master record; speed goes into the
+ * ActivityExtension of each track point.
+ */
+class TcxEncoder extends TextEncoder {
+	
+	private static final String HEADER = 
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<TrainingCenterDatabase " +
+			"xmlns=\"http://www.garmin.com/xmlschemas/TrainingCenterDatabase/v2\" " +
+			"xmlns:ns3=\"http://www.garmin.com/xmlschemas/ActivityExtension/v2\">\n" +
+			" <Activities>\n" +
+			"  <Activity Sport=\"Biking\">";
+	
+	private static final String FOOTER = 
+			"    </Track>\n" +
+			"   </Lap>\n" +
+			"  </Activity>\n" +
+			" </Activities>\n" +
+			"</TrainingCenterDatabase>";
+	
+	private static final double KMH_TO_MS = 1 / 3.6;
+
+	@Override
+	protected void writeHeader(WorkSessionInfo workout) throws IOException {
+		long start = workout.getStartTime().getTime();
+		mLine.append(HEADER);
+		writeLine();
+		mLine.append("   <Id>");
+		appendTime(start);
+		mLine.append("</Id>");
+		writeLine();
+		mLine.append("   <Lap StartTime=\"");
+		appendTime(start);
+		mLine.append("\">");
+		writeLine();
+		mLine.append("    <TotalTimeSeconds>");
+		appendFixed(workout.getElapsedTime(), 1).append("</TotalTimeSeconds>");
+		writeLine();
+		mLine.append("    <DistanceMeters>");
+		appendFixed(workout.getDistanceCovered() * 1000, 1).append("</DistanceMeters>");
+		writeLine();
+		mLine.append("    <MaximumSpeed>");
+		appendFixed(workout.getMaxSpeed() * KMH_TO_MS, 3).append("</MaximumSpeed>");
+		writeLine();
+		mLine.append("    <Calories>0</Calories>");
+		writeLine();
+		if (workout.getAverageHeartCadence() >= 1) {
+			mLine.append("    <AverageHeartRateBpm><Value>");
+			appendFixed(workout.getAverageHeartCadence(), 0).append("</Value></AverageHeartRateBpm>");
+			writeLine();
+			mLine.append("    <MaximumHeartRateBpm><Value>");
+			appendFixed(workout.getMaxHeartCadence(), 0).append("</Value></MaximumHeartRateBpm>");
+			writeLine();
+		}
+		mLine.append("    <Intensity>Active</Intensity>");
+		writeLine();
+		mLine.append("    <Cadence>");
+		appendFixed(Math.min(workout.getAverageCrankCadence(), 254), 0).append("</Cadence>");
+		writeLine();
+		mLine.append("    <TriggerMethod>Manual</TriggerMethod>");
+		writeLine();
+		mLine.append("    <Track>");
+		writeLine();
+	}
+
+	@Override
+	public void entry(long time, double distance, double heartCadence,
+			double speed, double crankCadence) throws IOException {
+		mLine.append("     <Trackpoint><Time>");
+		appendTime(time);
+		mLine.append("</Time><DistanceMeters>");
+		appendFixed(distance * 1000, 1).append("</DistanceMeters>");
+		if (heartCadence >= 1) {
+			mLine.append("<HeartRateBpm><Value>");
+			appendFixed(heartCadence, 0).append("</Value></HeartRateBpm>");
+		}
+		mLine.append("<Cadence>");
+		appendFixed(Math.min(crankCadence, 254), 0).append("</Cadence>");
+		mLine.append("<Extensions><ns3:TPX><ns3:Speed>");
+		appendFixed(speed * KMH_TO_MS, 3).append("</ns3:Speed></ns3:TPX></Extensions></Trackpoint>");
+		writeLine();
+	}
+
+	@Override
+	protected void writeFooter() throws IOException {
+		mLine.append(FOOTER);
+		writeLine();
+	}
+}
@@ -0,0 +1,104 @@
+package com.nimbusware.mypersonalbiketrainer.export;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import com.nimbusware.mypersonalbiketrainer.WorkSessionInfo;
+
+/**
+ * Base class of text encoders: output goes through a buffered UTF-8
+ * writer, and each line is built in a reusable StringBuilder. Times and
+ * numbers are formatted by hand (UTC, fixed decimals, no locale), as 
+ * java.text formatters would allocate a few objects per value.
+ */
+abstract class TextEncoder implements WorkoutEncoder {
+	
+	private static final int BUFFER_SIZE = 16384;
+	private static final long[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000 };
+
+	protected final StringBuilder mLine = new StringBuilder(256);
+	private final Calendar mCalendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+	private Writer mWriter;
+
+	@Override
+	public void begin(OutputStream out, WorkSessionInfo workout, int entryCount) throws IOException {
+		mWriter = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+		writeHeader(workout);
+	}
+
+	@Override
+	public void end() throws IOException {
+		writeFooter();
+		mWriter.flush();
+	}
+	
+	protected abstract void writeHeader(WorkSessionInfo workout) throws IOException;
+	
+	protected abstract void writeFooter() throws IOException;
+	
+	/**
+	 * Writes the current line, and clears it.
+	 * @throws IOException
+	 */
+	protected void writeLine() throws IOException {
+		mLine.append('\n');
+		mWriter.append(mLine);
+		mLine.setLength(0);
+	}
+	
+	/**
+	 * Appends an ISO 8601 UTC time, e.g. 2015-04-12T08:30:00Z.
+	 * @param time milliseconds since the epoch
+	 */
+	protected void appendTime(long time) {
+		mCalendar.setTimeInMillis(time);
+		appendPadded(mCalendar.get(Calendar.YEAR), 4).append('-');
+		appendPadded(mCalendar.get(Calendar.MONTH) + 1, 2).append('-');
+		appendPadded(mCalendar.get(Calendar.DAY_OF_MONTH), 2).append('T');
+		appendPadded(mCalendar.get(Calendar.HOUR_OF_DAY), 2).append(':');
+		appendPadded(mCalendar.get(Calendar.MINUTE), 2).append(':');
+		appendPadded(mCalendar.get(Calendar.SECOND), 2).append('Z');
+	}
+	
+	/**
+	 * Appends a number with the given decimals (at most 4).
+	 * @param value
+	 * @param decimals
+	 */
+	protected StringBuilder appendFixed(double value, int decimals) {
+		long scaled = Math.round(value * POWERS_OF_TEN[decimals]);
+		if (scaled < 0) {
+			mLine.append('-');
+			scaled = -scaled;
+		}
+		mLine.append(scaled / POWERS_OF_TEN[decimals]);
+		if (decimals > 0) {
+			mLine.append('.');
+			appendPadded(scaled % POWERS_OF_TEN[decimals], decimals);
+		}
+		return mLine;
+	}
+	
+	private StringBuilder appendPadded(long value, int digits) {
+		for (int i = digits - 1; i > 0 && value < POWERS_OF_TEN[i]; i--) {
+			mLine.append('0');
+		}
+		return mLine.append(value);
+	}
+	
+	/**
+	 * End time of a workout; open ones end after their elapsed time.
+	 * @param workout
+	 * @return milliseconds since the epoch
+	 */
+	static long getEndTime(WorkSessionInfo workout) {
+		long start = workout.getStartTime().getTime();
+		long end = null == workout.getEndTime() ? 0 : workout.getEndTime().getTime();
+		return end > start ? end : start + (long) (workout.getElapsedTime() * 1000);
+	}
+}
@@ -0,0 +1,38 @@
+package com.nimbusware.mypersonalbiketrainer.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.nimbusware.mypersonalbiketrainer.WorkSessionInfo;
+
+/**
+ * Streaming encoder of a workout into a file format: the master record
+ * comes first, then log entries one at a time, in time order, so that a
+ * workout is never held in memory as a whole. Encoders buffer their
+ * output, and flush it in end(); closing the stream is up to the caller.
+ * Instances are not thread safe, and encode a single workout.
+ */
+public interface WorkoutEncoder {
+
+	/**
+	 * Starts encoding a workout.
+	 * @param out
+	 * @param workout master record of the workout
+	 * @param entryCount number of log entries that will follow
+	 * @throws IOException
+	 */
+	public void begin(OutputStream out, WorkSessionInfo workout, int entryCount) throws IOException;
+
+	/**
+	 * Encodes a log entry (see SessionStore.addLogEntries() for units).
+	 * @throws IOException
+	 */
+	public void entry(long time, double distance, double heartCadence, 
+			double speed, double crankCadence) throws IOException;
+
+	/**
+	 * Completes the encoding, and flushes any buffered output.
+	 * @throws IOException
+	 */
+	public void end() throws IOException;
+}
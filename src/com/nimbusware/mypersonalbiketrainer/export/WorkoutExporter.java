@@ -0,0 +1,310 @@
+package com.nimbusware.mypersonalbiketrainer.export;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.nimbusware.mypersonalbiketrainer.DiaryContract;
+import com.nimbusware.mypersonalbiketrainer.WorkSessionInfo;
+import com.nimbusware.mypersonalbiketrainer.core.Logging;
+import com.nimbusware.mypersonalbiketrainer.core.SampleChunkReader;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Exports workouts into a single zip archive, one file per workout and
+ * format. Workouts are encoded in parallel on a fixed pool of workers,
+ * each streaming log entries from a provider cursor (a chunk at a time)
+ * into an encoder, which writes to a temporary file; temporary files are
+ * then appended to the archive by the calling thread, as soon as they are
+ * complete, through file channels. A blocking operation: call it from a
+ * background thread.
+ */
+public class WorkoutExporter {
+
+	private static final String TAG = WorkoutExporter.class.getSimpleName();
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private static final String[] CHUNK_PROJECTION = {
+		DiaryContract.COL_COUNT,
+		DiaryContract.COL_DATA
+	};
+
+	/**
+	 * Progress of an export, reported on the calling thread.
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * @param done number of files added to the archive so far
+		 * @param total number of files the archive will hold
+		 */
+		public void onProgress(int done, int total);
+	}
+
+	private final ContentResolver mResolver;
+	private final File mTempDir;
+	private final int mThreads;
+
+	/**
+	 * @param resolver
+	 * @param tempDir where files are encoded before being archived
+	 * @param threads number of workers
+	 */
+	public WorkoutExporter(ContentResolver resolver, File tempDir, int threads) {
+		if (null == resolver || null == tempDir)
+			throw new NullPointerException();
+
+		if (threads <= 0)
+			throw new IllegalArgumentException("Invalid number of threads: " + threads);
+
+		mResolver = resolver;
+		mTempDir = tempDir;
+		mThreads = threads;
+	}
+
+	/**
+	 * Writes the given workouts, in the given formats, to a new archive.
+	 * If anything fails, the archive is deleted.
+	 * @param workoutIds
+	 * @param formats
+	 * @param archive
+	 * @param listener may be null
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void export(long[] workoutIds, ExportFormat[] formats, File archive,
+			ProgressListener listener) throws IOException, InterruptedException {
+		if (!mTempDir.isDirectory() && !mTempDir.mkdirs())
+			throw new IOException("Cannot create directory " + mTempDir);
+
+		ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+		CompletionService<Part> parts = new ExecutorCompletionService<Part>(executor);
+		List<Future<Part>> pending = new ArrayList<Future<Part>>();
+		for (long workoutId : workoutIds) {
+			for (ExportFormat format : formats) {
+				pending.add(parts.submit(new EncodeTask(workoutId, format)));
+			}
+		}
+
+		int total = pending.size();
+		boolean success = false;
+		FileOutputStream file = new FileOutputStream(archive);
+		try {
+			ZipOutputStream zip = new ZipOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(file.getChannel()), BUFFER_SIZE));
+			WritableByteChannel target = Channels.newChannel(zip);
+			for (int done = 0; done < total; done++) {
+				Future<Part> future = parts.take();
+				pending.remove(future);
+				Part part = getPart(future);
+				try {
+					zip.putNextEntry(new ZipEntry(part.mName));
+					transfer(part.mFile, target);
+					zip.closeEntry();
+				} finally {
+					part.mFile.delete();
+				}
+				if (null != listener) {
+					listener.onProgress(done + 1, total);
+				}
+			}
+			zip.close();
+			success = true;
+		} finally {
+			if (!success) {
+				abort(executor, pending);
+				file.close();
+				archive.delete();
+			}
+			executor.shutdown();
+		}
+	}
+
+	private static Part getPart(Future<Part> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Cannot encode workout", cause);
+		}
+	}
+
+	private static void transfer(File source, WritableByteChannel target) throws IOException {
+		FileInputStream in = new FileInputStream(source);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			long position = 0;
+			while (position < size) {
+				position += channel.transferTo(position, size - position, target);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void abort(ExecutorService executor, List<Future<Part>> pending) {
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// temporary files of tasks that completed, but were never archived
+		for (Future<Part> future : pending) {
+			if (future.isDone() && !future.isCancelled()) {
+				try {
+					future.get().mFile.delete();
+				} catch (Exception e) {
+					// failed task: nothing to clean up
+				}
+			}
+		}
+	}
+
+	/**
+	 * Encodes a workout into a temporary file.
+	 */
+	private class EncodeTask implements Callable<Part> {
+
+		private final long mWorkoutId;
+		private final ExportFormat mFormat;
+
+		private EncodeTask(long workoutId, ExportFormat format) {
+			mWorkoutId = workoutId;
+			mFormat = format;
+		}
+
+		@Override
+		public Part call() throws IOException {
+			WorkSessionInfo workout = getWorkout();
+			File file = File.createTempFile("export", "." + mFormat.getExtension(), mTempDir);
+			boolean success = false;
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				encode(workout, Channels.newOutputStream(out.getChannel()));
+				success = true;
+			} finally {
+				out.close();
+				if (!success) {
+					file.delete();
+				}
+			}
+
+			Logging.getLogger().v(TAG, "Encoded workout " + mWorkoutId + " as " + mFormat);
+			SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
+			String name = formatter.format(workout.getStartTime()) + "-" + mWorkoutId + "." + mFormat.getExtension();
+			return new Part(name, file);
+		}
+
+		private WorkSessionInfo getWorkout() throws IOException {
+			Cursor cursor = mResolver.query(DiaryContract.getWorkoutUri(mWorkoutId),
+					DiaryContract.WORKOUT_PROJECTION, null, null, null);
+			try {
+				WorkSessionInfo workout = DiaryContract.getWorkoutEntry(cursor);
+				if (null == workout)
+					throw new IOException("No such workout: " + mWorkoutId);
+				return workout;
+			} finally {
+				if (null != cursor) {
+					cursor.close();
+				}
+			}
+		}
+
+		private void encode(WorkSessionInfo workout, OutputStream out) throws IOException {
+			WorkoutEncoder encoder = mFormat.newEncoder();
+
+			// recent workouts are stored in chunks, older ones in plain rows
+			Uri uri = DiaryContract.getWorkoutChunksContentUri(mWorkoutId);
+			Cursor cursor = mResolver.query(uri, CHUNK_PROJECTION, null, null, null);
+			try {
+				if (null != cursor && cursor.getCount() > 0) {
+					int count = 0;
+					while (cursor.moveToNext()) {
+						count += cursor.getInt(0);
+					}
+					encoder.begin(out, workout, count);
+					SampleChunkReader reader = new SampleChunkReader();
+					cursor.moveToPosition(-1);
+					while (cursor.moveToNext()) {
+						reader.reset(cursor.getBlob(1));
+						while (reader.next()) {
+							encoder.entry(reader.getTime(), reader.getDistance(),
+									reader.getHeartCadence(), reader.getSpeed(), reader.getCrankCadence());
+						}
+					}
+					encoder.end();
+					return;
+				}
+			} finally {
+				if (null != cursor) {
+					cursor.close();
+				}
+			}
+
+			uri = DiaryContract.getWorkoutLogContentUri(mWorkoutId);
+			cursor = mResolver.query(uri, DiaryContract.LOG_PROJECTION, null, null, null);
+			try {
+				encoder.begin(out, workout, null == cursor ? 0 : cursor.getCount());
+				if (null != cursor) {
+					int timeCol = cursor.getColumnIndex(DiaryContract._ID);
+					int distanceCol = cursor.getColumnIndex(DiaryContract.COL_DISTANCE);
+					int cardioCol = cursor.getColumnIndex(DiaryContract.COL_CARDIO);
+					int speedCol = cursor.getColumnIndex(DiaryContract.COL_SPEED);
+					int cadenceCol = cursor.getColumnIndex(DiaryContract.COL_CADENCE);
+					while (cursor.moveToNext()) {
+						encoder.entry(cursor.getLong(timeCol), cursor.getDouble(distanceCol),
+								cursor.getDouble(cardioCol), cursor.getDouble(speedCol), cursor.getDouble(cadenceCol));
+					}
+				}
+				encoder.end();
+			} finally {
+				if (null != cursor) {
+					cursor.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * An encoded file, waiting to be archived.
+	 */
+	private static class Part {
+
+		private final String mName;
+		private final File mFile;
+
+		private Part(String name, File file) {
+			mName = name;
+			mFile = file;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package com.nimbusware.mypersonalbiketrainer.importer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.nimbusware.mypersonalbiketrainer.core.LogColumns;
+
+/**
+ * Garmin FIT activity file: only record messages are read (plus the start
+ * time of sessions and the creation time of the file), everything
+ * else is skipped by size as given by its definition (developer fields
+ * included). Both normal and compressed timestamp headers are supported,
+ * as well as big endian messages. Chained files after the first one, and
+ * the file CRC, are ignored.
+ */
+class FitDecoder implements WorkoutDecoder {
+
+	private static final int BUFFER_SIZE = 16384;
+
+	// 1989-12-31T00:00:00Z, in milliseconds since the Unix epoch
+	private static final long FIT_EPOCH = 631065600000L;
+
+	private static final int MIN_HEADER_SIZE = 12;
+	private static final int LOCAL_TYPES = 16;
+
+	private static final int MESG_FILE_ID = 0;
+	private static final int MESG_SESSION = 18;
+	private static final int MESG_RECORD = 20;
+
+	// fields of record messages, and their expected size
+	private static final int FIELD_TIMESTAMP = 253;		// s since FIT_EPOCH, any message
+	private static final int FIELD_HEART_RATE = 3;		// bpm
+	private static final int FIELD_CADENCE = 4;			// rpm
+	private static final int FIELD_DISTANCE = 5;		// 1/100 m
+	private static final int FIELD_SPEED = 6;			// 1/1000 m/s
+	private static final int FIELD_ENHANCED_SPEED = 73;	// 1/1000 m/s
+	private static final int FIELD_TIME_CREATED = 4;	// s since FIT_EPOCH, file_id messages
+	private static final int FIELD_START_TIME = 2;		// s since FIT_EPOCH, session messages
+
+	private long mSessionStart = -1;
+	private long mTimeCreated = -1;
+
+	@Override
+	public long getStartTime() {
+		// the earliest session, or else the file itself
+		long start = mSessionStart >= 0 ? mSessionStart : mTimeCreated;
+		return start >= 0 ? start * 1000 + FIT_EPOCH : -1;
+	}
+
+	@Override
+	public LogColumns decode(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+
+		// header: size, protocol version, profile version, data size, ".FIT", optional CRC
+		int headerSize = data.readUnsignedByte();
+		if (headerSize < MIN_HEADER_SIZE)
+			throw new IOException("Invalid FIT header size: " + headerSize);
+		byte[] header = new byte[headerSize - 1];
+		data.readFully(header);
+		if ('.' != header[7] || 'F' != header[8] || 'I' != header[9] || 'T' != header[10])
+			throw new IOException("Not a FIT file");
+		long dataSize = (header[3] & 0xFF) | (header[4] & 0xFF) << 8 |
+				(header[5] & 0xFF) << 16 | (long) (header[6] & 0xFF) << 24;
+
+		TrackBuilder track = new TrackBuilder();
+		Definition[] definitions = new Definition[LOCAL_TYPES];
+		long timestamp = -1;
+		long read = 0;
+		while (read < dataSize) {
+			int recordHeader = data.readUnsignedByte();
+			read++;
+
+			Definition definition;
+			boolean compressed = 0 != (recordHeader & 0x80);
+			if (compressed) {
+				// data message, whose timestamp is an offset from the last one
+				definition = definitions[(recordHeader >> 5) & 0x03];
+				if (timestamp < 0)
+					throw new IOException("Compressed timestamp with no previous timestamp");
+				int offset = recordHeader & 0x1F;
+				long rolled = (timestamp & ~0x1FL) + offset;
+				timestamp = offset >= (timestamp & 0x1F) ? rolled : rolled + 0x20;
+			} else if (0 != (recordHeader & 0x40)) {
+				Definition newDefinition = new Definition(data, 0 != (recordHeader & 0x20));
+				definitions[recordHeader & 0x0F] = newDefinition;
+				read += newDefinition.mDefinitionSize;
+				continue;
+			} else {
+				definition = definitions[recordHeader & 0x0F];
+			}
+
+			if (null == definition)
+				throw new IOException("Data message with no definition, at " + read);
+			definition.read(data);
+			read += definition.mDataSize;
+
+			if (!compressed && definition.isValid(definition.mTimestamp)) {
+				timestamp = definition.get(definition.mTimestamp);
+			}
+			if (MESG_SESSION == definition.mGlobal && definition.isValid(definition.mStartTime)) {
+				long start = definition.get(definition.mStartTime);
+				mSessionStart = mSessionStart < 0 ? start : Math.min(mSessionStart, start);
+			} else if (MESG_FILE_ID == definition.mGlobal && definition.isValid(definition.mTimeCreated)) {
+				mTimeCreated = definition.get(definition.mTimeCreated);
+			} else if (MESG_RECORD == definition.mGlobal && timestamp >= 0) {
+				double speed = definition.isValid(definition.mEnhancedSpeed) ?
+						definition.get(definition.mEnhancedSpeed) * 0.0036 :
+						definition.getValue(definition.mSpeed, 0.0036);
+				track.add(timestamp * 1000 + FIT_EPOCH,
+						definition.getValue(definition.mDistance, 0.00001),
+						definition.getValue(definition.mHeartRate, 1),
+						speed,
+						definition.getValue(definition.mCadence, 1));
+			}
+		}
+
+		return track.getColumns();
+	}
+
+	/**
+	 * Definition message, and holder of the values of its last data message.
+	 * Only unsigned integer values of 1, 2 or 4 bytes are decoded: other
+	 * fields (strings, arrays) are read as invalid.
+	 */
+	private static final class Definition {
+
+		private final int mGlobal;
+		private final boolean mBigEndian;
+		private final int[] mSizes;
+		private final long[] mValues;
+		private final byte[] mDeveloperData;
+		private final int mDefinitionSize;
+		private final int mDataSize;
+
+		// indexes of the fields we are interested in, -1 if missing
+		private int mTimestamp = -1;
+		private int mHeartRate = -1;
+		private int mCadence = -1;
+		private int mDistance = -1;
+		private int mSpeed = -1;
+		private int mEnhancedSpeed = -1;
+		private int mStartTime = -1;
+		private int mTimeCreated = -1;
+
+		private Definition(DataInputStream data, boolean developerFields) throws IOException {
+			data.readUnsignedByte(); // reserved
+			mBigEndian = 1 == data.readUnsignedByte();
+			int global = data.readUnsignedShort();
+			mGlobal = mBigEndian ? global : Short.reverseBytes((short) global) & 0xFFFF;
+
+			int fields = data.readUnsignedByte();
+			int definitionSize = 5 + 3 * fields;
+			int dataSize = 0;
+			mSizes = new int[fields];
+			mValues = new long[fields];
+			for (int i = 0; i < fields; i++) {
+				int number = data.readUnsignedByte();
+				mSizes[i] = data.readUnsignedByte();
+				data.readUnsignedByte(); // base type
+				dataSize += mSizes[i];
+				setIndex(number, i, mSizes[i]);
+			}
+
+			int developerSize = 0;
+			if (developerFields) {
+				int count = data.readUnsignedByte();
+				definitionSize += 1 + 3 * count;
+				for (int i = 0; i < count; i++) {
+					data.readUnsignedByte(); // field number
+					developerSize += data.readUnsignedByte();
+					data.readUnsignedByte(); // developer data index
+				}
+			}
+			mDeveloperData = new byte[developerSize];
+			mDefinitionSize = definitionSize;
+			mDataSize = dataSize + developerSize;
+		}
+
+		private void setIndex(int number, int index, int size) {
+			if (FIELD_TIMESTAMP == number && 4 == size) {
+				mTimestamp = index;
+			} else if (MESG_SESSION == mGlobal) {
+				if (FIELD_START_TIME == number && 4 == size) {
+					mStartTime = index;
+				}
+			} else if (MESG_FILE_ID == mGlobal) {
+				if (FIELD_TIME_CREATED == number && 4 == size) {
+					mTimeCreated = index;
+				}
+			} else if (MESG_RECORD != mGlobal) {
+				return;
+			} else if (FIELD_HEART_RATE == number && 1 == size) {
+				mHeartRate = index;
+			} else if (FIELD_CADENCE == number && 1 == size) {
+				mCadence = index;
+			} else if (FIELD_DISTANCE == number && 4 == size) {
+				mDistance = index;
+			} else if (FIELD_SPEED == number && 2 == size) {
+				mSpeed = index;
+			} else if (FIELD_ENHANCED_SPEED == number && 4 == size) {
+				mEnhancedSpeed = index;
+			}
+		}
+
+		private void read(DataInputStream data) throws IOException {
+			for (int i = 0; i < mSizes.length; i++) {
+				mValues[i] = readValue(data, mSizes[i]);
+			}
+			data.readFully(mDeveloperData);
+		}
+
+		private long readValue(DataInputStream data, int size) throws IOException {
+			switch (size) {
+			case 1:
+				return data.readUnsignedByte();
+			case 2:
+				short s = data.readShort();
+				return (mBigEndian ? s : Short.reverseBytes(s)) & 0xFFFFL;
+			case 4:
+				int i = data.readInt();
+				return (mBigEndian ? i : Integer.reverseBytes(i)) & 0xFFFFFFFFL;
+			default:
+				data.readFully(new byte[size]);
+				return -1;
+			}
+		}
+
+		// invalid values have all bits set
+		private boolean isValid(int index) {
+			if (index < 0 || mValues[index] < 0)
+				return false;
+			return mValues[index] != (1L << (8 * mSizes[index])) - 1;
+		}
+
+		private long get(int index) {
+			return mValues[index];
+		}
+
+		private double getValue(int index, double scale) {
+			return isValid(index) ? mValues[index] * scale : Double.NaN;
+		}
+	}
+}
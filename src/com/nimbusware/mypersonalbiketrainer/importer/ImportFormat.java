@@ -0,0 +1,50 @@
+package com.nimbusware.mypersonalbiketrainer.importer;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * File formats workouts can be imported from.
+ */
+public enum ImportFormat {
+	
+	FIT("fit"),
+	TCX("tcx");
+	
+	private final String mExtension;
+	
+	private ImportFormat(String extension) {
+		mExtension = extension;
+	}
+	
+	public String getExtension() {
+		return mExtension;
+	}
+	
+	/**
+	 * New decoder for this format: one per file.
+	 * @return
+	 */
+	public WorkoutDecoder newDecoder() {
+		switch (this) {
+		case FIT:
+			return new FitDecoder();
+		default:
+			return new TcxDecoder();
+		}
+	}
+	
+	/**
+	 * Format of the given file, by extension.
+	 * @param file
+	 * @return null if the file cannot be imported
+	 */
+	public static ImportFormat forFile(File file) {
+		String name = file.getName().toLowerCase(Locale.US);
+		for (ImportFormat format : values()) {
+			if (name.endsWith("." + format.mExtension))
+				return format;
+		}
+		return null;
+	}
+}
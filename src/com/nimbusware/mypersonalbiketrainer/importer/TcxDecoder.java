@@ -0,0 +1,158 @@
+package com.nimbusware.mypersonalbiketrainer.importer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.nimbusware.mypersonalbiketrainer.core.LogColumns;
+
+import android.util.Xml;
+
+/**
+ * Garmin Training Center XML: the track points of all laps of all
+ * activities, in document order. Of each track point, only time,
+ * distance, heart rate, cadence and the speed extension (TPX) are read;
+ * positions, and lap totals, are ignored. The start time is the Id of
+ * the earliest activity, or else the StartTime of its first lap.
+ */
+class TcxDecoder implements WorkoutDecoder {
+
+	private static final int BUFFER_SIZE = 16384;
+
+	private final Calendar mCalendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+	private long mActivityStart = -1;
+	private long mLapStart = -1;
+
+	@Override
+	public long getStartTime() {
+		return mActivityStart >= 0 ? mActivityStart : mLapStart;
+	}
+
+	@Override
+	public LogColumns decode(InputStream in) throws IOException {
+		try {
+			XmlPullParser parser = Xml.newPullParser();
+			parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+			parser.setInput(new BufferedInputStream(in, BUFFER_SIZE), null);
+			return parse(parser);
+		} catch (XmlPullParserException e) {
+			throw new IOException("Invalid TCX file", e);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid TCX value", e);
+		}
+	}
+
+	private LogColumns parse(XmlPullParser parser) throws XmlPullParserException, IOException {
+		TrackBuilder track = new TrackBuilder();
+		boolean inActivity = false;
+		boolean inLap = false;
+		boolean inPoint = false;
+		boolean inHeartRate = false;
+		long time = -1;
+		double distance = Double.NaN;
+		double heartCadence = Double.NaN;
+		double speed = Double.NaN;
+		double crankCadence = Double.NaN;
+
+		for (int event = parser.next(); XmlPullParser.END_DOCUMENT != event; event = parser.next()) {
+			if (XmlPullParser.START_TAG == event) {
+				String name = parser.getName();
+				if ("Activity".equals(name)) {
+					inActivity = true;
+				} else if ("Id".equals(name) && inActivity && !inLap) {
+					mActivityStart = earliest(mActivityStart, parseTime(parser.nextText().trim()));
+				} else if ("Lap".equals(name)) {
+					inLap = true;
+					String start = parser.getAttributeValue(null, "StartTime");
+					if (null != start) {
+						mLapStart = earliest(mLapStart, parseTime(start.trim()));
+					}
+				} else if ("Trackpoint".equals(name)) {
+					inPoint = true;
+					time = -1;
+					distance = heartCadence = speed = crankCadence = Double.NaN;
+				} else if (!inPoint) {
+					continue;
+				} else if ("Time".equals(name)) {
+					time = parseTime(parser.nextText().trim());
+				} else if ("DistanceMeters".equals(name)) {
+					distance = Double.parseDouble(parser.nextText().trim()) / 1000;
+				} else if ("HeartRateBpm".equals(name)) {
+					inHeartRate = true;
+				} else if ("Value".equals(name) && inHeartRate) {
+					heartCadence = Double.parseDouble(parser.nextText().trim());
+				} else if ("Cadence".equals(name)) {
+					crankCadence = Double.parseDouble(parser.nextText().trim());
+				} else if ("Speed".equals(name)) {
+					// m/s to Km/h
+					speed = Double.parseDouble(parser.nextText().trim()) * 3.6;
+				}
+			} else if (XmlPullParser.END_TAG == event) {
+				String name = parser.getName();
+				if ("Activity".equals(name)) {
+					inActivity = false;
+				} else if ("Lap".equals(name)) {
+					inLap = false;
+				} else if ("HeartRateBpm".equals(name)) {
+					inHeartRate = false;
+				} else if ("Trackpoint".equals(name)) {
+					inPoint = false;
+					if (time >= 0) {
+						track.add(time, distance, heartCadence, speed, crankCadence);
+					}
+				}
+			}
+		}
+
+		return track.getColumns();
+	}
+
+	private static long earliest(long time, long other) {
+		return time < 0 ? other : Math.min(time, other);
+	}
+
+	/**
+	 * Parses an xsd:dateTime, e.g. 2014-05-13T16:53:20.125+02:00;
+	 * with no time zone, the time is taken as UTC.
+	 * @param value
+	 * @return milliseconds since the epoch
+	 */
+	private long parseTime(String value) {
+		if (value.length() < 19 || 'T' != value.charAt(10))
+			throw new NumberFormatException("Invalid time: " + value);
+
+		mCalendar.clear();
+		mCalendar.set(
+				Integer.parseInt(value.substring(0, 4)),
+				Integer.parseInt(value.substring(5, 7)) - 1,
+				Integer.parseInt(value.substring(8, 10)),
+				Integer.parseInt(value.substring(11, 13)),
+				Integer.parseInt(value.substring(14, 16)),
+				Integer.parseInt(value.substring(17, 19)));
+		long time = mCalendar.getTimeInMillis();
+
+		int i = 19;
+		if (i < value.length() && '.' == value.charAt(i)) {
+			int start = ++i;
+			while (i < value.length() && Character.isDigit(value.charAt(i))) {
+				i++;
+			}
+			String fraction = (value.substring(start, Math.min(i, start + 3)) + "00").substring(0, 3);
+			time += Integer.parseInt(fraction);
+		}
+
+		if (i < value.length() && 'Z' != value.charAt(i)) {
+			// +hh:mm or -hh:mm
+			int sign = '-' == value.charAt(i) ? -1 : 1;
+			int hours = Integer.parseInt(value.substring(i + 1, i + 3));
+			int minutes = Integer.parseInt(value.substring(i + 4, i + 6));
+			time -= sign * (hours * 60 + minutes) * 60000L;
+		}
+		return time;
+	}
+}
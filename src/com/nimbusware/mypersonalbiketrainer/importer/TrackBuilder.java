@@ -0,0 +1,40 @@
+package com.nimbusware.mypersonalbiketrainer.importer;
+
+import com.nimbusware.mypersonalbiketrainer.core.LogColumns;
+
+/**
+ * Turns the track points of a file into log entries, filling in what the
+ * file does not hold (NaN): a missing distance is integrated from speed,
+ * a missing speed is derived from distance, missing cadences are zero.
+ * Points that are not later than the previous one are dropped.
+ */
+class TrackBuilder {
+
+	private final LogColumns mColumns = new LogColumns(3600);
+	private long mLastTime;
+	private double mLastDistance;
+
+	void add(long time, double distance, double heartCadence, double speed, double crankCadence) {
+		int size = mColumns.size();
+		if (size > 0 && time <= mLastTime)
+			return;
+		
+		double hours = size > 0 ? (time - mLastTime) / 3600000.0 : 0;
+		if (Double.isNaN(distance)) {
+			distance = mLastDistance + (Double.isNaN(speed) ? 0 : speed * hours);
+		}
+		if (Double.isNaN(speed)) {
+			speed = hours > 0 ? Math.max(distance - mLastDistance, 0) / hours : 0;
+		}
+		mColumns.add(time, distance, 
+				Double.isNaN(heartCadence) ? 0 : heartCadence, 
+				speed, 
+				Double.isNaN(crankCadence) ? 0 : crankCadence);
+		mLastTime = time;
+		mLastDistance = distance;
+	}
+	
+	LogColumns getColumns() {
+		return mColumns;
+	}
+}
@@ -0,0 +1,30 @@
+package com.nimbusware.mypersonalbiketrainer.importer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.nimbusware.mypersonalbiketrainer.core.LogColumns;
+
+/**
+ * Reads the log entries of a workout file, written by some other app or
+ * device. Decoders are not thread safe: use one per file.
+ */
+public interface WorkoutDecoder {
+
+	/**
+	 * @param in the file, not closed by the decoder
+	 * @return log entries, in time order (see SessionStore.addLogEntries() 
+	 * for units); empty if the file holds none
+	 * @throws IOException if the file is not valid
+	 */
+	public LogColumns decode(InputStream in) throws IOException;
+
+	/**
+	 * Start of the activity as declared by the file, which may be earlier
+	 * than its first log entry (e.g., this app logs its first entry about
+	 * one second after the start of a session).
+	 * @return milliseconds since the epoch, -1 if the file does not say;
+	 * valid after decode()
+	 */
+	public long getStartTime();
+}
@@ -0,0 +1,400 @@
+package com.nimbusware.mypersonalbiketrainer.importer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.nimbusware.mypersonalbiketrainer.DiaryContract;
+import com.nimbusware.mypersonalbiketrainer.core.LogColumns;
+import com.nimbusware.mypersonalbiketrainer.core.Logging;
+import com.nimbusware.mypersonalbiketrainer.core.SampleChunkWriter;
+import com.nimbusware.mypersonalbiketrainer.core.SeriesPyramid;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.RemoteException;
+
+/**
+ * Imports workout files (see ImportFormat) into the diary. Files are
+ * decoded in parallel on a fixed pool of workers; each one is written
+ * as a single applyBatch() - one transaction holding the workout, its
+ * log chunks and its levels of detail - exactly as if it had been
+ * recorded by this app. A blocking operation: call it from a background
+ * thread.
+ * <p>
+ * A file is skipped as a duplicate when a workout with the same UUID
+ * (imported workouts get one derived from their start time) or starting
+ * within the same second is already in the diary, or in the same import.
+ */
+public class WorkoutImporter {
+
+	private static final String TAG = WorkoutImporter.class.getSimpleName();
+
+	// entries per chunk, as written by LogBuffer during a session at 1Hz
+	private static final int CHUNK_SIZE = 60;
+
+	private static final String[] KEY_PROJECTION = {
+		DiaryContract.COL_UUID,
+		DiaryContract.COL_START
+	};
+
+	/**
+	 * Progress of an import, reported on the calling thread.
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * @param done number of files processed so far
+		 * @param total number of files to process
+		 */
+		public void onProgress(int done, int total);
+	}
+
+	/**
+	 * Number of files imported, skipped and failed.
+	 */
+	public static final class Result {
+
+		private int mImported;
+		private int mDuplicates;
+		private int mFailed;
+
+		public int getImported() {
+			return mImported;
+		}
+
+		public int getDuplicates() {
+			return mDuplicates;
+		}
+
+		public int getFailed() {
+			return mFailed;
+		}
+	}
+
+	private enum Outcome {
+		IMPORTED,
+		DUPLICATE,
+		FAILED
+	}
+
+	private final ContentResolver mResolver;
+	private final int mWheelSize;
+	private final int mThreads;
+
+	// keys of the workouts in the diary, see claim()
+	private final Set<String> mUniqueIds = new HashSet<String>();
+	private final Set<Long> mStartSeconds = new HashSet<Long>();
+
+	/**
+	 * @param resolver
+	 * @param wheelSize in millimeters, for the gear ratio of imported workouts
+	 * @param threads number of workers
+	 */
+	public WorkoutImporter(ContentResolver resolver, int wheelSize, int threads) {
+		if (null == resolver)
+			throw new NullPointerException();
+
+		if (wheelSize <= 0)
+			throw new IllegalArgumentException("Invalid wheel size: " + wheelSize);
+
+		if (threads <= 0)
+			throw new IllegalArgumentException("Invalid number of threads: " + threads);
+
+		mResolver = resolver;
+		mWheelSize = wheelSize;
+		mThreads = threads;
+	}
+
+	/**
+	 * Imports the given files. A file that cannot be read or written is
+	 * counted as failed, and does not stop the others.
+	 * @param files
+	 * @param listener may be null
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Result importFiles(File[] files, ProgressListener listener) throws InterruptedException {
+		loadKeys();
+
+		ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+		CompletionService<Outcome> outcomes = new ExecutorCompletionService<Outcome>(executor);
+		for (File file : files) {
+			outcomes.submit(new ImportTask(file));
+		}
+
+		Result result = new Result();
+		try {
+			for (int done = 0; done < files.length; done++) {
+				switch (getOutcome(outcomes)) {
+				case IMPORTED:
+					result.mImported++;
+					break;
+				case DUPLICATE:
+					result.mDuplicates++;
+					break;
+				default:
+					result.mFailed++;
+				}
+				if (null != listener) {
+					listener.onProgress(done + 1, files.length);
+				}
+			}
+		} finally {
+			// if interrupted, no new files are started
+			executor.shutdownNow();
+		}
+		return result;
+	}
+
+	private static Outcome getOutcome(CompletionService<Outcome> outcomes) throws InterruptedException {
+		try {
+			return outcomes.take().get();
+		} catch (ExecutionException e) {
+			Logging.getLogger().w(TAG, "Import failed: " + e.getCause());
+			return Outcome.FAILED;
+		}
+	}
+
+	private void loadKeys() {
+		Cursor cursor = mResolver.query(DiaryContract.WORKOUTS_URI, KEY_PROJECTION, null, null, null);
+		if (null == cursor)
+			return;
+
+		synchronized (this) {
+			try {
+				while (cursor.moveToNext()) {
+					if (!cursor.isNull(0)) {
+						mUniqueIds.add(cursor.getString(0));
+					}
+					mStartSeconds.add(cursor.getLong(1) / 1000);
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * Reserves the keys of a workout about to be written.
+	 * @return false if the workout is a duplicate
+	 */
+	private synchronized boolean claim(String uniqueId, long start) {
+		if (mUniqueIds.contains(uniqueId) || mStartSeconds.contains(start / 1000))
+			return false;
+
+		mUniqueIds.add(uniqueId);
+		mStartSeconds.add(start / 1000);
+		return true;
+	}
+
+	private synchronized void release(String uniqueId, long start) {
+		mUniqueIds.remove(uniqueId);
+		mStartSeconds.remove(start / 1000);
+	}
+
+	/**
+	 * Same start time, same UUID: importing a file twice is detected
+	 * even if the diary was wiped in between and a backup restored.
+	 */
+	private static String getUniqueId(long start) {
+		return UUID.nameUUIDFromBytes(("import:" + start).getBytes()).toString();
+	}
+
+	/**
+	 * Decodes a file, and writes it to the diary.
+	 */
+	private class ImportTask implements Callable<Outcome> {
+
+		private final File mFile;
+
+		private ImportTask(File file) {
+			mFile = file;
+		}
+
+		@Override
+		public Outcome call() {
+			ImportFormat format = ImportFormat.forFile(mFile);
+			if (null == format) {
+				Logging.getLogger().w(TAG, "Unsupported file: " + mFile);
+				return Outcome.FAILED;
+			}
+
+			WorkoutDecoder decoder = format.newDecoder();
+			LogColumns log;
+			try {
+				FileInputStream in = new FileInputStream(mFile);
+				try {
+					log = decoder.decode(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				Logging.getLogger().w(TAG, "Cannot read " + mFile + ": " + e);
+				return Outcome.FAILED;
+			}
+
+			// entries are in strictly ascending time order (see TrackBuilder):
+			// a track of one entry has no duration, and no averages
+			if (log.size() < 2 || log.getTimes()[log.size() - 1] <= log.getTimes()[0]) {
+				Logging.getLogger().w(TAG, "No track in " + mFile);
+				return Outcome.FAILED;
+			}
+
+			// the start of the activity, as this app's own exports declare it,
+			// matches the workout they were exported from; the first entry doesn't
+			long start = decoder.getStartTime();
+			if (start < 0 || start > log.getTimes()[0]) {
+				start = log.getTimes()[0];
+			}
+			String uniqueId = getUniqueId(start);
+			if (!claim(uniqueId, start)) {
+				Logging.getLogger().v(TAG, "Skipped duplicate " + mFile);
+				return Outcome.DUPLICATE;
+			}
+
+			// all or nothing, see DiaryContentProvider.applyBatch()
+			boolean success = false;
+			try {
+				mResolver.applyBatch(DiaryContract.AUTHORITY, getOperations(uniqueId, start, log));
+				success = true;
+			} catch (RemoteException e) {
+				Logging.getLogger().w(TAG, "Cannot write " + mFile + ": " + e);
+			} catch (OperationApplicationException e) {
+				Logging.getLogger().w(TAG, "Cannot write " + mFile + ": " + e);
+			} catch (SQLException e) {
+				// e.g., log entries overlapping those of another workout
+				Logging.getLogger().w(TAG, "Cannot write " + mFile + ": " + e);
+			} finally {
+				if (!success) {
+					release(uniqueId, start);
+				}
+			}
+
+			if (!success)
+				return Outcome.FAILED;
+
+			Logging.getLogger().v(TAG, "Imported " + mFile + ", " + log.size() + " entries");
+			return Outcome.IMPORTED;
+		}
+
+		/**
+		 * Workout first, then chunks and summaries, which take the id
+		 * of the workout from the result of the first operation.
+		 */
+		private ArrayList<ContentProviderOperation> getOperations(String uniqueId, long start, LogColumns log) {
+			int size = log.size();
+			ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+			ops.add(ContentProviderOperation.newInsert(DiaryContract.WORKOUTS_URI)
+					.withValues(getWorkoutValues(uniqueId, start, log))
+					.build());
+
+			// the workout id in uris is a placeholder:
+			// the provider takes it from values
+			Uri chunks = DiaryContract.getWorkoutChunksContentUri(0);
+			Uri summary = DiaryContract.getWorkoutSummaryContentUri(0);
+			SampleChunkWriter writer = new SampleChunkWriter();
+			SeriesPyramid pyramid = new SeriesPyramid();
+			long[] times = new long[CHUNK_SIZE];
+			double[] distances = new double[CHUNK_SIZE];
+			double[] heartCadences = new double[CHUNK_SIZE];
+			double[] speeds = new double[CHUNK_SIZE];
+			double[] crankCadences = new double[CHUNK_SIZE];
+			for (int from = 0; from < size; from += CHUNK_SIZE) {
+				int count = Math.min(CHUNK_SIZE, size - from);
+				for (int i = 0; i < count; i++) {
+					times[i] = log.getTimes()[from + i];
+					distances[i] = log.getDistances()[from + i];
+					heartCadences[i] = log.getHeartCadences()[from + i];
+					speeds[i] = log.getSpeeds()[from + i];
+					crankCadences[i] = log.getCrankCadences()[from + i];
+					pyramid.add(times[i], heartCadences[i], speeds[i], crankCadences[i]);
+				}
+
+				ContentValues values = new ContentValues();
+				values.put(DiaryContract._ID, times[0]);
+				values.put(DiaryContract.COL_END, times[count - 1]);
+				values.put(DiaryContract.COL_COUNT, count);
+				values.put(DiaryContract.COL_DATA, writer.encode(
+						times, distances, heartCadences, speeds, crankCadences, count));
+				ops.add(ContentProviderOperation.newInsert(chunks)
+						.withValues(values)
+						.withValueBackReference(DiaryContract.COL_WORKOUT, 0)
+						.build());
+			}
+
+			pyramid.finish();
+			for (SeriesPyramid.Bucket bucket : pyramid.getClosed()) {
+				ops.add(ContentProviderOperation.newInsert(summary)
+						.withValues(DiaryContract.getSummaryValues(0, bucket))
+						.withValueBackReference(DiaryContract.COL_WORKOUT, 0)
+						.build());
+			}
+			return ops;
+		}
+
+		/**
+		 * Master record, computed from the log as SessionAggregator does
+		 * during a session: heart beats and crank revolutions are the
+		 * integral of their cadence over time, wheel revolutions come
+		 * from distance. Elapsed time runs from the start of the activity,
+		 * which is never later than the first entry.
+		 */
+		private ContentValues getWorkoutValues(String uniqueId, long start, LogColumns log) {
+			int size = log.size();
+			long[] times = log.getTimes();
+			float[] heartCadences = log.getHeartCadences();
+			float[] speeds = log.getSpeeds();
+			float[] crankCadences = log.getCrankCadences();
+
+			double heartBeats = 0;
+			double crankRevs = 0;
+			double maxHeartCadence = heartCadences[0];
+			double maxSpeed = speeds[0];
+			double maxCrankCadence = crankCadences[0];
+			for (int i = 1; i < size; i++) {
+				double minutes = (times[i] - times[i - 1]) / 60000.0;
+				heartBeats += heartCadences[i] * minutes;
+				crankRevs += crankCadences[i] * minutes;
+				maxHeartCadence = Math.max(maxHeartCadence, heartCadences[i]);
+				maxSpeed = Math.max(maxSpeed, speeds[i]);
+				maxCrankCadence = Math.max(maxCrankCadence, crankCadences[i]);
+			}
+
+			double elapsed = (times[size - 1] - start) / 1000.0;
+			double distance = log.getDistances()[size - 1];
+			double wheelRevs = distance * 1000000 / mWheelSize;
+
+			ContentValues values = new ContentValues();
+			values.put(DiaryContract.COL_UUID, uniqueId);
+			values.put(DiaryContract.COL_START, start);
+			values.put(DiaryContract.COL_END, times[size - 1]);
+			values.put(DiaryContract.COL_ELAPSED, elapsed);
+			values.put(DiaryContract.COL_DISTANCE, distance);
+			values.put(DiaryContract.COL_CARDIO_MAX, maxHeartCadence);
+			values.put(DiaryContract.COL_CARDIO_AVG, heartBeats / elapsed * 60);
+			values.put(DiaryContract.COL_SPEED_MAX, maxSpeed);
+			values.put(DiaryContract.COL_SPEED_AVG, distance / elapsed * 3600);
+			values.put(DiaryContract.COL_CADENCE_MAX, maxCrankCadence);
+			values.put(DiaryContract.COL_CADENCE_AVG, crankRevs / elapsed * 60);
+			values.put(DiaryContract.COL_GEAR, crankRevs > 0 ? wheelRevs / crankRevs : 0);
+			values.put(DiaryContract.COL_FITNESS, heartBeats > 0 ? distance / heartBeats : 0);
+			return values;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package com.nimbusware.mypersonalbiketrainer.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.nimbusware.mypersonalbiketrainer.core.Logging;
+
+/**
+ * Appends raw GATT notifications to a binary file, for later replay
+ * (see NotificationReplay). The file starts with a header (magic number
+ * and format version), followed by a sequence of records, each starting
+ * with a type byte:
+ * <ul>
+ * <li>CHANNEL: channel id (1 byte), sensor address (6 bytes), characteristic
+ * UUID (16 bytes) - written once, before the first notification of a
+ * characteristic of a sensor (version 1 had no address)</li>
+ * <li>NOTIFICATION: channel id (1 byte), timestamp in milliseconds from
+ * a monotonic clock (8 bytes), payload length (2 bytes), payload</li>
+ * </ul>
+ * All values are big-endian. Writes are buffered: data is guaranteed to
+ * be on disk only after close().
+ * <p>
+ * Several sensors may share the same recorder: all methods are thread safe.
+ */
+public class NotificationRecorder {
+
+	static final int MAGIC = 0x47415454; // "GATT"
+	static final short VERSION = 2;
+	static final short VERSION_NO_ADDRESS = 1;
+	static final byte TYPE_CHANNEL = 1;
+	static final byte TYPE_NOTIFICATION = 2;
+	static final int MAX_CHANNELS = 256;
+	static final int ADDRESS_LENGTH = 6;
+	
+	private static final String TAG = NotificationRecorder.class.getSimpleName();
+	private static final int BUFFER_SIZE = 8192;
+	
+	private final File mFile;
+	// channel keys, by id: sensor address and characteristic
+	private final List<String> mAddresses = new ArrayList<String>();
+	private final List<UUID> mCharacteristics = new ArrayList<UUID>();
+	private DataOutputStream mOut;
+
+	/**
+	 * Creates the file, or appends to it if it already exists.
+	 * @param file
+	 * @throws IOException
+	 */
+	public NotificationRecorder(File file) throws IOException {
+		if (null == file)
+			throw new NullPointerException();
+		
+		// channel ids are local to a header, so each recorder starts its own
+		// section: the reader accepts a new header in the middle of a file
+		mFile = file;
+		mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+		mOut.writeInt(MAGIC);
+		mOut.writeShort(VERSION);
+	}
+	
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * Appends a notification. I/O errors are logged, and disable the recorder:
+	 * recording must never interfere with the sensors.
+	 * @param address of the sensor, as in BluetoothDevice.getAddress()
+	 * @param characteristic
+	 * @param timestamp milliseconds, from a monotonic clock
+	 * @param value raw payload of the characteristic
+	 */
+	public synchronized void record(String address, UUID characteristic, long timestamp, byte[] value) {
+		if (null == mOut || null == value)
+			return;
+		
+		try {
+			int channel = indexOf(address, characteristic);
+			if (channel < 0) {
+				if (mCharacteristics.size() == MAX_CHANNELS)
+					throw new IOException("Too many characteristics");
+				
+				channel = mCharacteristics.size();
+				mAddresses.add(address);
+				mCharacteristics.add(characteristic);
+				mOut.writeByte(TYPE_CHANNEL);
+				mOut.writeByte(channel);
+				mOut.write(encodeAddress(address));
+				mOut.writeLong(characteristic.getMostSignificantBits());
+				mOut.writeLong(characteristic.getLeastSignificantBits());
+			}
+			mOut.writeByte(TYPE_NOTIFICATION);
+			mOut.writeByte(channel);
+			mOut.writeLong(timestamp);
+			mOut.writeShort(value.length);
+			mOut.write(value);
+		} catch (IOException e) {
+			Logging.getLogger().w(TAG, "Cannot write to " + mFile + ", recording disabled", e);
+			close();
+		}
+	}
+	
+	// a few channels at most: no map, and no key object for each notification
+	private int indexOf(String address, UUID characteristic) {
+		for (int i = 0, n = mCharacteristics.size(); i < n; i++) {
+			if (mCharacteristics.get(i).equals(characteristic) && mAddresses.get(i).equals(address))
+				return i;
+		}
+		return -1;
+	}
+
+	// "00:11:22:AA:BB:CC" to 6 bytes
+	static byte[] encodeAddress(String address) throws IOException {
+		String[] parts = address.split(":");
+		if (parts.length != ADDRESS_LENGTH)
+			throw new IOException("Invalid sensor address: " + address);
+		
+		byte[] bytes = new byte[ADDRESS_LENGTH];
+		try {
+			for (int i = 0; i < ADDRESS_LENGTH; i++) {
+				bytes[i] = (byte) Integer.parseInt(parts[i], 16);
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid sensor address: " + address);
+		}
+		return bytes;
+	}
+	
+	static String decodeAddress(byte[] bytes) {
+		StringBuilder address = new StringBuilder(3 * ADDRESS_LENGTH);
+		for (int i = 0; i < ADDRESS_LENGTH; i++) {
+			if (i > 0) {
+				address.append(':');
+			}
+			address.append(String.format("%02X", bytes[i] & 0xFF));
+		}
+		return address.toString();
+	}
+	
+	public synchronized void close() {
+		if (null != mOut) {
+			try {
+				mOut.close();
+			} catch (IOException e) {
+				Logging.getLogger().w(TAG, "Cannot close " + mFile, e);
+			}
+			mOut = null;
+		}
+	}
+}
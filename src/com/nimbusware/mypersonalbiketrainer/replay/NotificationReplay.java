@@ -0,0 +1,266 @@
+package com.nimbusware.mypersonalbiketrainer.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.nimbusware.android.ble.profiles.CscData;
+import com.nimbusware.android.ble.profiles.CscProfile;
+import com.nimbusware.android.ble.profiles.HrmData;
+import com.nimbusware.android.ble.profiles.HrmProfile;
+import com.nimbusware.android.ble.sensors.DataParser;
+import com.nimbusware.mypersonalbiketrainer.core.Clock;
+import com.nimbusware.mypersonalbiketrainer.core.CscReadingFilter;
+import com.nimbusware.mypersonalbiketrainer.core.Logging;
+import com.nimbusware.mypersonalbiketrainer.core.SessionAggregator;
+
+/**
+ * Replays a file written by NotificationRecorder through the CSC/HRM
+ * parsers into a SessionAggregator, at the original pace, N times faster,
+ * or as fast as possible. The file is memory-mapped and decoded in place.
+ * Each sensor characteristic gets a parser of its own, as it did on the
+ * device: separate wheel and crank sensors don't mix their revolutions.
+ * <p>
+ * Time seen by the aggregator follows the recorded timestamps: create the
+ * session with getClock() (see SessionEngine) for its figures to match the
+ * recorded ride, whatever the replay speed.
+ */
+public class NotificationReplay {
+
+	/**
+	 * Speed factor for replaying as fast as possible.
+	 */
+	public static final double UNTHROTTLED = 0;
+	
+	private static final String TAG = NotificationReplay.class.getSimpleName();
+	private static final int MAX_PAYLOAD = 512; // max length of a GATT attribute value
+
+	private final File mFile;
+	private final MappedByteBuffer mBuffer;
+	private final ReplayClock mClock;
+	
+	// payload buffers by length: parsers expect arrays of exact size
+	private final byte[][] mPayloads = new byte[MAX_PAYLOAD + 1][];
+	
+	/**
+	 * @param file a recording
+	 * @param startTime wall-clock time at the beginning of the replay,
+	 * in milliseconds since the epoch
+	 * @throws IOException
+	 */
+	public NotificationReplay(File file, long startTime) throws IOException {
+		if (null == file)
+			throw new NullPointerException();
+		
+		mFile = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			// the mapping stays valid after the channel is closed
+			mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		mClock = new ReplayClock(startTime);
+	}
+	
+	/**
+	 * Clock following the recorded timestamps.
+	 * @return
+	 */
+	public Clock getClock() {
+		return mClock;
+	}
+
+	/**
+	 * Replays the whole file, on the calling thread.
+	 * @param target receives decoded data, as it would from the sensors
+	 * @param wheelSize in millimeters, for the CSC parser
+	 * @param speed replay speed: 1 for real time, N for N times faster,
+	 * UNTHROTTLED for as fast as possible
+	 * @return number of notifications replayed
+	 * @throws IOException if the file is not a valid recording
+	 * @throws InterruptedException
+	 */
+	public long replay(SessionAggregator target, int wheelSize, double speed) 
+			throws IOException, InterruptedException {
+		if (null == target)
+			throw new NullPointerException();
+		
+		if (speed < 0)
+			throw new IllegalArgumentException("Invalid replay speed: " + speed);
+		
+		Map<String, String> config = new HashMap<String, String>();
+		config.put(CscProfile.WHEEL_SIZE, String.valueOf(wheelSize));
+		Channel[] channels = new Channel[NotificationRecorder.MAX_CHANNELS];
+		UUID cscId = CscProfile.getInstance().getCharacteristicId();
+		UUID hrmId = HrmProfile.getInstance().getCharacteristicId();
+		byte[] address = new byte[NotificationRecorder.ADDRESS_LENGTH];
+		boolean hasAddress = true;
+		
+		MappedByteBuffer buffer = mBuffer;
+		buffer.rewind();
+		long count = 0;
+		long firstTimestamp = -1;
+		long startNanos = System.nanoTime();
+		try {
+			while (buffer.hasRemaining()) {
+				if (buffer.remaining() >= 4 && buffer.getInt(buffer.position()) == NotificationRecorder.MAGIC) {
+					// beginning of a section: channel ids start over
+					buffer.getInt();
+					short version = buffer.getShort();
+					if (version != NotificationRecorder.VERSION && version != NotificationRecorder.VERSION_NO_ADDRESS)
+						throw new IOException("Unsupported recording version: " + version);
+					hasAddress = version != NotificationRecorder.VERSION_NO_ADDRESS;
+					
+					channels = new Channel[NotificationRecorder.MAX_CHANNELS];
+					continue;
+				}
+				
+				byte type = buffer.get();
+				int id = buffer.get() & 0xFF;
+				if (type == NotificationRecorder.TYPE_CHANNEL) {
+					String sensor = "unknown sensor";
+					if (hasAddress) {
+						buffer.get(address);
+						sensor = NotificationRecorder.decodeAddress(address);
+					}
+					UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+					
+					// one parser per channel: parsers keep the history of their sensor
+					if (uuid.equals(cscId)) {
+						channels[id] = new CscChannel(CscProfile.getInstance().getParser(config), target);
+					} else if (uuid.equals(hrmId)) {
+						channels[id] = new HrmChannel(HrmProfile.getInstance().getParser(config), target);
+					} else {
+						channels[id] = null;
+						Logging.getLogger().w(TAG, "No parser for characteristic " + uuid + " of " + sensor + ", skipping");
+					}
+				} else if (type == NotificationRecorder.TYPE_NOTIFICATION) {
+					long timestamp = buffer.getLong();
+					int length = buffer.getShort() & 0xFFFF;
+					byte[] payload = getPayload(length);
+					buffer.get(payload);
+					
+					if (firstTimestamp < 0) {
+						firstTimestamp = timestamp;
+					}
+					long elapsed = timestamp - firstTimestamp;
+					if (speed != UNTHROTTLED) {
+						long delay = (long) (elapsed / speed) - (System.nanoTime() - startNanos) / 1000000;
+						if (delay > 0) {
+							Thread.sleep(delay);
+						}
+					}
+					mClock.mElapsed = elapsed;
+					
+					if (null != channels[id]) {
+						channels[id].dispatch(payload, timestamp);
+						count++;
+					}
+				} else {
+					throw new IOException("Invalid record type " + type + " at offset " + (buffer.position() - 2));
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			// the recorder was not closed properly: the last record is incomplete
+			Logging.getLogger().w(TAG, "Recording " + mFile + " is truncated");
+		}
+		
+		Logging.getLogger().i(TAG, "Replayed " + count + " notifications from " + mFile + " in " + 
+				(System.nanoTime() - startNanos) / 1000000 + "ms");
+		return count;
+	}
+	
+	private byte[] getPayload(int length) {
+		if (length > MAX_PAYLOAD) {
+			return new byte[length];
+		}
+		byte[] payload = mPayloads[length];
+		if (null == payload) {
+			payload = new byte[length];
+			mPayloads[length] = payload;
+		}
+		return payload;
+	}
+	
+	private static class ReplayClock implements Clock {
+		
+		private final long mStartTime;
+		private volatile long mElapsed;
+		
+		private ReplayClock(long startTime) {
+			mStartTime = startTime;
+		}
+
+		@Override
+		public long currentTimeMillis() {
+			return mStartTime + mElapsed;
+		}
+	}
+	
+	private interface Channel {
+		public void dispatch(byte[] payload, long timestamp);
+	}
+	
+	// same notifications as ble.CscSensor sends to its listeners, spurious
+	// zero readings filtered out the same way; a sensor only drives the
+	// figures its notifications carry (see their flags), so that a wheel
+	// sensor does not zero the cadence of a crank sensor
+	private static class CscChannel implements Channel {
+		
+		private static final int WHEEL_DATA_MASK = 0x01;
+		private static final int CRANK_DATA_MASK = 0x02;
+		
+		private final DataParser<CscData> mParser;
+		private final SessionAggregator mTarget;
+		private final CscReadingFilter mFilter = new CscReadingFilter();
+		
+		private CscChannel(DataParser<CscData> parser, SessionAggregator target) {
+			mParser = parser;
+			mTarget = target;
+		}
+
+		@Override
+		public void dispatch(byte[] payload, long timestamp) {
+			CscData data = mParser.parse(payload, timestamp);
+			if (null != data) {
+				int flags = payload[0]; // not empty, or the parser would have failed
+				if (0 != (flags & WHEEL_DATA_MASK) && mFilter.acceptSpeed(data.getSpeed())) {
+					mTarget.updateSpeed(data.getSpeed());
+					mTarget.updateDistance(data.getDistance());
+					mTarget.updateWheelRevsCount(data.getWheelRevsSinceLastRead());
+				}
+				if (0 != (flags & CRANK_DATA_MASK) && mFilter.acceptCadence(data.getCadence())) {
+					mTarget.updateCadence(data.getCadence());
+					mTarget.updateCrankRevsCount(data.getCrankRevsSinceLastRead());
+				}
+			}
+		}
+	}
+	
+	// same notifications as ble.HrmSensor sends to its listeners
+	private static class HrmChannel implements Channel {
+		
+		private final DataParser<HrmData> mParser;
+		private final SessionAggregator mTarget;
+		
+		private HrmChannel(DataParser<HrmData> parser, SessionAggregator target) {
+			mParser = parser;
+			mTarget = target;
+		}
+
+		@Override
+		public void dispatch(byte[] payload, long timestamp) {
+			HrmData data = mParser.parse(payload, timestamp);
+			if (null != data) {
+				mTarget.updateBeatRate(data.getHeartRate());
+			}
+		}
+	}
+}
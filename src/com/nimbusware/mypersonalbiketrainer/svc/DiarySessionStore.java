@@ -0,0 +1,142 @@
+package com.nimbusware.mypersonalbiketrainer.svc;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+
+import com.nimbusware.mypersonalbiketrainer.DiaryContract;
+import com.nimbusware.mypersonalbiketrainer.WorkSessionInfo;
+import com.nimbusware.mypersonalbiketrainer.core.SampleChunkWriter;
+import com.nimbusware.mypersonalbiketrainer.core.SeriesPyramid;
+import com.nimbusware.mypersonalbiketrainer.core.SessionStore;
+
+/**
+ * SessionStore writing to the diary content provider. Log entries
+ * are written by the LogBuffer, which never does so concurrently.
+ */
+class DiarySessionStore implements SessionStore {
+	
+	private final ContentResolver mResolver;
+	private final SampleChunkWriter mChunkWriter = new SampleChunkWriter();
+	
+	DiarySessionStore(ContentResolver resolver) {
+		if (null == resolver)
+			throw new NullPointerException();
+		
+		mResolver = resolver;
+	}
+
+	@Override
+	public long createSession(String uniqueId, long startTime) {
+		ContentValues values = new ContentValues();
+		values.put(DiaryContract.COL_UUID, uniqueId);
+		values.put(DiaryContract.COL_START, startTime);
+		values.put(DiaryContract.COL_END, 0);
+		values.put(DiaryContract.COL_ELAPSED, 0);
+		values.put(DiaryContract.COL_DISTANCE, 0.0);
+		values.put(DiaryContract.COL_CARDIO_MAX, 0.0);
+		values.put(DiaryContract.COL_CARDIO_AVG, 0.0);
+		values.put(DiaryContract.COL_SPEED_MAX, 0.0);
+		values.put(DiaryContract.COL_SPEED_AVG, 0.0);
+		values.put(DiaryContract.COL_CADENCE_MAX, 0.0);
+		values.put(DiaryContract.COL_CADENCE_AVG, 0.0);
+		values.put(DiaryContract.COL_GEAR, 0.0);
+		values.put(DiaryContract.COL_FITNESS, 0.0);
+		Uri uri = mResolver.insert(DiaryContract.WORKOUTS_URI, values);
+		return ContentUris.parseId(uri);
+	}
+
+	@Override
+	public void addLogEntries(long localId, long[] times, double[] distances, 
+			double[] heartCadences, double[] speeds, double[] crankCadences, int count) {
+		// the whole batch goes into one chunk: LogBuffer makes
+		// sure that it holds about one minute of entries at most
+		ContentValues values = new ContentValues();
+		values.put(DiaryContract._ID, times[0]);
+		values.put(DiaryContract.COL_WORKOUT, localId);
+		values.put(DiaryContract.COL_END, times[count - 1]);
+		values.put(DiaryContract.COL_COUNT, count);
+		values.put(DiaryContract.COL_DATA, mChunkWriter.encode(
+				times, distances, heartCadences, speeds, crankCadences, count));
+		Uri uri = DiaryContract.getWorkoutChunksContentUri(localId);
+		mResolver.insert(uri, values);
+	}
+
+	@Override
+	public void addSummaries(long localId, List<SeriesPyramid.Bucket> buckets) {
+		ContentValues[] rows = new ContentValues[buckets.size()];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = DiaryContract.getSummaryValues(localId, buckets.get(i));
+		}
+		// one transaction, see DiaryContentProvider.bulkInsert()
+		mResolver.bulkInsert(DiaryContract.getWorkoutSummaryContentUri(localId), rows);
+	}
+
+	@Override
+	public boolean updateSession(WorkSessionInfo data) {
+		ContentValues values = new ContentValues();
+		Date endTime = data.getEndTime();
+		values.put(DiaryContract.COL_END, null == endTime ? 0 : endTime.getTime());
+		values.put(DiaryContract.COL_ELAPSED, data.getElapsedTime());
+		values.put(DiaryContract.COL_DISTANCE, data.getDistanceCovered());
+		values.put(DiaryContract.COL_CARDIO_MAX, data.getMaxHeartCadence());
+		values.put(DiaryContract.COL_CARDIO_AVG, data.getAverageHeartCadence());
+		values.put(DiaryContract.COL_SPEED_MAX, data.getMaxSpeed());
+		values.put(DiaryContract.COL_SPEED_AVG, data.getAverageSpeed());
+		values.put(DiaryContract.COL_CADENCE_MAX, data.getMaxCrankCadence());
+		values.put(DiaryContract.COL_CADENCE_AVG, data.getAverageCrankCadence());
+		values.put(DiaryContract.COL_GEAR, data.getAverageGearRatio());
+		values.put(DiaryContract.COL_FITNESS, data.getCardioFitnessFactor());
+		Uri uri = DiaryContract.getWorkoutUri(data.getLocalId());
+		
+		// we should update exactly ONE record, if not...
+		// we have some serious mess!
+		return (1 == mResolver.update(uri, values, null, null)); 
+	}
+
+	@Override
+	public int closeOpenSessions(long startedBefore) {
+		String[] projection = { DiaryContract._ID, DiaryContract.COL_START, DiaryContract.COL_ELAPSED };
+		String selection = DiaryContract.COL_END + " = 0 AND " + DiaryContract.COL_START + " < ?";
+		String[] args = { String.valueOf(startedBefore) };
+		ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+		Cursor cursor = mResolver.query(DiaryContract.WORKOUTS_URI, projection, selection, args, null);
+		if (null == cursor)
+			return 0;
+		
+		try {
+			while (cursor.moveToNext()) {
+				// end time is rebuilt from the elapsed time of the last checkpoint
+				long start = cursor.getLong(1);
+				long elapsed = (long) (cursor.getDouble(2) * 1000);
+				ops.add(ContentProviderOperation.newUpdate(DiaryContract.getWorkoutUri(cursor.getLong(0)))
+						.withValue(DiaryContract.COL_END, start + elapsed)
+						.build());
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		if (ops.isEmpty())
+			return 0;
+		
+		// all records are closed in one transaction
+		try {
+			mResolver.applyBatch(DiaryContract.AUTHORITY, ops);
+		} catch (RemoteException e) {
+			throw new RuntimeException("Cannot close open sessions", e);
+		} catch (OperationApplicationException e) {
+			throw new RuntimeException("Cannot close open sessions", e);
+		}
+		return ops.size();
+	}
+}
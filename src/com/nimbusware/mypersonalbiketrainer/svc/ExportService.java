@@ -0,0 +1,120 @@
+package com.nimbusware.mypersonalbiketrainer.svc;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import com.nimbusware.mypersonalbiketrainer.DiaryContract;
+import com.nimbusware.mypersonalbiketrainer.R;
+import com.nimbusware.mypersonalbiketrainer.export.ExportFormat;
+import com.nimbusware.mypersonalbiketrainer.export.WorkoutExporter;
+
+import android.app.IntentService;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * Exports workouts to an archive in the Downloads directory (see 
+ * WorkoutExporter), showing progress in a notification. By default,
+ * all closed workouts are exported in all formats: see EXTRA_*.
+ */
+public class ExportService extends IntentService {
+
+	private final static String TAG = ExportService.class.getSimpleName();
+	
+	// optional: ids of the workouts (long[]), and names of ExportFormats (String[])
+	public final static String EXTRA_WORKOUT_IDS = "WORKOUT_IDS";
+	public final static String EXTRA_FORMATS = "FORMATS";
+	
+	private final static String TEMP_DIR = "export";
+	private final static int MAX_WORKERS = 4;
+	private final static int NOTIFICATION_ID = 102;
+	
+	public ExportService() {
+		super(TAG);
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		long[] workoutIds = intent.getLongArrayExtra(EXTRA_WORKOUT_IDS);
+		if (null == workoutIds) {
+			workoutIds = getClosedWorkoutIds();
+		}
+		
+		ExportFormat[] formats = ExportFormat.values();
+		String[] formatNames = intent.getStringArrayExtra(EXTRA_FORMATS);
+		if (null != formatNames) {
+			formats = new ExportFormat[formatNames.length];
+			for (int i = 0; i < formats.length; i++) {
+				formats[i] = ExportFormat.valueOf(formatNames[i]);
+			}
+		}
+		
+		final NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+		final Notification.Builder builder = new Notification.Builder(this)
+				.setSmallIcon(R.drawable.ic_launcher)
+				.setContentTitle("Bike Trainer")
+				.setContentText("Exporting " + workoutIds.length + " workouts")
+				.setOngoing(true)
+				.setProgress(0, 0, true);
+		manager.notify(NOTIFICATION_ID, builder.build());
+		
+		File dir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+		String name = "bike-trainer-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".zip";
+		File archive = new File(dir, name);
+		int workers = Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors());
+		WorkoutExporter exporter = new WorkoutExporter(getContentResolver(), new File(getCacheDir(), TEMP_DIR), workers);
+		
+		Log.i(TAG, "Exporting " + workoutIds.length + " workouts to " + archive);
+		long start = System.currentTimeMillis();
+		try {
+			dir.mkdirs();
+			exporter.export(workoutIds, formats, archive, new WorkoutExporter.ProgressListener() {
+				
+				@Override
+				public void onProgress(int done, int total) {
+					builder.setProgress(total, done, false);
+					manager.notify(NOTIFICATION_ID, builder.build());
+				}
+			});
+			Log.i(TAG, "Export completed in " + (System.currentTimeMillis() - start) + "ms");
+			builder.setContentText("Exported to " + name);
+		} catch (IOException e) {
+			Log.w(TAG, "Export failed", e);
+			builder.setContentText("Export failed: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Log.w(TAG, "Export interrupted", e);
+			builder.setContentText("Export interrupted");
+		}
+		
+		builder.setOngoing(false)
+				.setAutoCancel(true)
+				.setProgress(0, 0, false);
+		manager.notify(NOTIFICATION_ID, builder.build());
+	}
+	
+	private long[] getClosedWorkoutIds() {
+		String[] projection = { DiaryContract._ID };
+		String selection = DiaryContract.COL_END + " != 0";
+		Cursor cursor = getContentResolver().query(DiaryContract.WORKOUTS_URI, projection, selection, null, null);
+		if (null == cursor)
+			return new long[0];
+		
+		try {
+			long[] ids = new long[cursor.getCount()];
+			for (int i = 0; cursor.moveToNext(); i++) {
+				ids[i] = cursor.getLong(0);
+			}
+			return ids;
+		} finally {
+			cursor.close();
+		}
+	}
+}
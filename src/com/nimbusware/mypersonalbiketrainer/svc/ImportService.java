@@ -0,0 +1,104 @@
+package com.nimbusware.mypersonalbiketrainer.svc;
+
+import java.io.File;
+import java.io.FileFilter;
+
+import com.nimbusware.mypersonalbiketrainer.Globals;
+import com.nimbusware.mypersonalbiketrainer.MainActivity;
+import com.nimbusware.mypersonalbiketrainer.R;
+import com.nimbusware.mypersonalbiketrainer.importer.ImportFormat;
+import com.nimbusware.mypersonalbiketrainer.importer.WorkoutImporter;
+
+import android.app.IntentService;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * Imports workout files (see WorkoutImporter) into the diary, showing
+ * progress in a notification. By default, all FIT and TCX files in the
+ * Downloads directory are imported: see EXTRA_PATHS.
+ */
+public class ImportService extends IntentService {
+
+	private final static String TAG = ImportService.class.getSimpleName();
+	
+	// optional: absolute paths of the files to import (String[])
+	public final static String EXTRA_PATHS = "PATHS";
+	
+	private final static int MAX_WORKERS = 4;
+	private final static int NOTIFICATION_ID = 103;
+	
+	public ImportService() {
+		super(TAG);
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		File[] files;
+		String[] paths = intent.getStringArrayExtra(EXTRA_PATHS);
+		if (null != paths) {
+			files = new File[paths.length];
+			for (int i = 0; i < files.length; i++) {
+				files[i] = new File(paths[i]);
+			}
+		} else {
+			files = getDownloadedFiles();
+		}
+		
+		final NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+		final Notification.Builder builder = new Notification.Builder(this)
+				.setSmallIcon(R.drawable.ic_launcher)
+				.setContentTitle("Bike Trainer")
+				.setContentText("Importing " + files.length + " workouts")
+				.setOngoing(true)
+				.setProgress(0, 0, true);
+		manager.notify(NOTIFICATION_ID, builder.build());
+		
+		SharedPreferences prefs = getSharedPreferences(MainActivity.class.getSimpleName(), MODE_PRIVATE);
+		int wheelSize = prefs.getInt(Globals.WHEEL_SIZE, Globals.WHEEL_SIZE_DEFAULT);
+		int workers = Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors());
+		WorkoutImporter importer = new WorkoutImporter(getContentResolver(), wheelSize, workers);
+		
+		Log.i(TAG, "Importing " + files.length + " files");
+		long start = System.currentTimeMillis();
+		try {
+			WorkoutImporter.Result result = importer.importFiles(files, new WorkoutImporter.ProgressListener() {
+				
+				@Override
+				public void onProgress(int done, int total) {
+					builder.setProgress(total, done, false);
+					manager.notify(NOTIFICATION_ID, builder.build());
+				}
+			});
+			Log.i(TAG, "Import completed in " + (System.currentTimeMillis() - start) + "ms");
+			builder.setContentText("Imported " + result.getImported() + 
+					", skipped " + result.getDuplicates() + 
+					", failed " + result.getFailed());
+		} catch (InterruptedException e) {
+			Log.w(TAG, "Import interrupted", e);
+			builder.setContentText("Import interrupted");
+		}
+		
+		builder.setOngoing(false)
+				.setAutoCancel(true)
+				.setProgress(0, 0, false);
+		manager.notify(NOTIFICATION_ID, builder.build());
+	}
+	
+	private File[] getDownloadedFiles() {
+		File dir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+		File[] files = dir.listFiles(new FileFilter() {
+			
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && null != ImportFormat.forFile(file);
+			}
+		});
+		return null == files ? new File[0] : files;
+	}
+}
@@ -1,40 +1,57 @@
 package com.nimbusware.mypersonalbiketrainer.svc;
 
-import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
-import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import com.nimbusware.mypersonalbiketrainer.BeatRateSensorListener;
-import com.nimbusware.mypersonalbiketrainer.CadenceSensorListener;
-import com.nimbusware.mypersonalbiketrainer.DiaryContract;
 import com.nimbusware.mypersonalbiketrainer.ElapsedTimeListener;
 import com.nimbusware.mypersonalbiketrainer.Globals;
 import com.nimbusware.mypersonalbiketrainer.SensorSet;
-import com.nimbusware.mypersonalbiketrainer.SpeedSensorListener;
+import com.nimbusware.mypersonalbiketrainer.SessionStopListener;
 import com.nimbusware.mypersonalbiketrainer.WorkSessionInfo;
+import com.nimbusware.mypersonalbiketrainer.core.Clock;
+import com.nimbusware.mypersonalbiketrainer.core.Logging;
+import com.nimbusware.mypersonalbiketrainer.core.PeriodicScheduler;
+import com.nimbusware.mypersonalbiketrainer.core.SessionAggregator;
+import com.nimbusware.mypersonalbiketrainer.core.SessionEngine;
 
 class WorkSession {
 
 	private final static String TAG = WorkSession.class.getSimpleName();
 	private final static int SESSION_TICK_TIMING = 1000;
-	private final static int SESSION_LOG_TIMING = 10000;
+	private final static int SESSION_LOG_TIMING = 1000; // entries are written in batches, see LogBuffer
+	private final static int SESSION_CHECKPOINT_TIMING = 30000;
 	
+    // walked by the tick, on a scheduler thread
     private final List<ElapsedTimeListener> mListeners = 
-    		new ArrayList<ElapsedTimeListener>();
+    		new CopyOnWriteArrayList<ElapsedTimeListener>();
+    
+    // aggregation and persistence are delegated to the headless engine:
+    // this class binds it to the sensors and drives it with timers
+    private final SessionEngine mEngine = new SessionEngine(
+    		new DiarySessionStore(Globals.getContext().getContentResolver()), Clock.SYSTEM);
+    private final PeriodicScheduler mScheduler;
+    private final PeriodicScheduler mStoreScheduler;
 	private SensorSet mSensors;
-	private Data mData; 
-	private Timer mSessionTickTimer;
-	private Timer mSessionLogTimer;
+	private SessionAggregator mData; 
+	private PeriodicScheduler.Task mSessionTickTask;
+	private PeriodicScheduler.Task mSessionLogTask;
+	private PeriodicScheduler.Task mSessionCheckpointTask;
+	
+	/**
+	 * @param scheduler runs the session tick
+	 * @param storeScheduler runs the database work of the session
+	 */
+	WorkSession(PeriodicScheduler scheduler, PeriodicScheduler storeScheduler) {
+		if (null == scheduler || null == storeScheduler)
+			throw new NullPointerException();
+		
+		mScheduler = scheduler;
+		mStoreScheduler = storeScheduler;
+	}
 	
 	WorkSessionInfo getData() {
 		return mData;
@@ -66,37 +83,27 @@ class WorkSession {
 		
 		Log.i(TAG, "Starting work session");
 		
-		// write placeholder record in DB and get back assigned _ID
-		// (this is a _synchronous_ operation)
-		String uniqueId = UUID.randomUUID().toString();
-		Date startTime = new Date();
-		long localId = createMasterRecord(uniqueId, startTime);
-		if (localId > 0) {
-			Log.i(TAG, "Session master record inserted with Id=" + localId);
-		} else {
-			// this is impossible, afaik: no reason not to
-			// crash the entire app if I'm wrong...
-			throw new RuntimeException("Could not create session's master record");
-		}
-		
-		// we successfully wrote our master record down:
-		// session can now "officially" start
-		mData = new Data(localId, uniqueId, startTime);
+		// writes the master record (a _synchronous_ operation),
+		// then the session can "officially" start
+		mData = mEngine.start();
 
 		mSensors = sensors;
 		
-		// Data is a session listener by its own account: it receives direct
+		// the aggregator is a session listener by its own account: it receives direct
 		// updates from the sensors without any involvement of the front-end UI
 		mSensors.registerWheelListener(mData);
 		mSensors.registerCrankListener(mData);
 		mSensors.registerHeartListener(mData);
 
-		mSessionTickTimer = new Timer();
-		mSessionTickTimer.schedule(new TimerTask() {
+		// the tick runs on the service-wide scheduler, log and checkpoint
+		// tasks on the store scheduler: a slow DB write cannot delay the
+		// chronometer, and writes never overlap
+		final SessionAggregator data = mData;
+		mSessionTickTask = mScheduler.schedule(new Runnable() {
 			
 			@Override
 			public void run() {
-				double elapsedTime = mData.getElapsedTime();
+				double elapsedTime = data.getElapsedTime();
 				for (ElapsedTimeListener listener : mListeners) {
 					listener.updateElapsedTime(elapsedTime);
 				}
@@ -104,415 +111,123 @@ class WorkSession {
 			
 		}, 0, SESSION_TICK_TIMING);
 		
-		mSessionLogTimer = new Timer();
-		mSessionLogTimer.schedule(new TimerTask() {
+		mSessionLogTask = mStoreScheduler.schedule(new Runnable() {
 
 			@Override
 			public void run() {
 				try {
-					createLogRecord(mData);
-				} catch (Exception e) {
-					e.printStackTrace();
+					mEngine.log();
+				} catch (RuntimeException e) {
+					Logging.getLogger().w(TAG, "Cannot log work session data", e);
 				}
 			}
 			
 		}, SESSION_LOG_TIMING, SESSION_LOG_TIMING);
 		
-		Log.i(TAG, "Work session started: localId=" + localId + 
-		", uniqueId=" + uniqueId + ", startTime=" + startTime);
+		// aggregates are saved to the master record as the session goes,
+		// so that they survive if the process gets killed (see recover())
+		mSessionCheckpointTask = mStoreScheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					mEngine.checkpoint();
+				} catch (RuntimeException e) {
+					Logging.getLogger().w(TAG, "Cannot checkpoint work session", e);
+				}
+			}
+			
+		}, SESSION_CHECKPOINT_TIMING, SESSION_CHECKPOINT_TIMING);
+		
+		Log.i(TAG, "Work session started: localId=" + mData.getLocalId() + 
+		", uniqueId=" + mData.getUniqueId() + ", startTime=" + mData.getStartTime());
 	}
 	
-	public void stop() {
-		if (null == mData)
-			throw new IllegalStateException("No work session is running");
-		
-		Log.i(TAG, "Stopping work session");
-		
-		// detach all listeners
-		mListeners.clear();
-		
-		// stop saving log entries
-		mSessionLogTimer.cancel();
-		mSessionLogTimer.purge();
-		mSessionLogTimer = null;
-		
-		// stop sending timed notifications
-		mSessionTickTimer.cancel();
-		mSessionTickTimer.purge();
-		mSessionTickTimer = null;
-
-		// set session's closing timestamp, and
-		// disable session updates
-		mData.end();
-
-		// stop listening to sensors, and disable them
-		mSensors.unregisterWheelListener(mData);
-		mSensors.unregisterCrankListener(mData);
-		mSensors.unregisterHeartListener(mData);
-		mSensors = null;
-
-		// persist all session data, updating the opening record
-		// (this is a _synchronous_ operation)
-		if (!updateMasterRecord(mData)) {
-			// this is impossible, afaik: no reason not to
-			// crash the entire app if I'm wrong...
-			throw new RuntimeException("Could not update session's master record");
+	/**
+	 * Closes sessions left open by a previous run of the process, from 
+	 * their last checkpoint (a synchronous operation).
+	 * @param startedBefore sessions started since then are left alone
+	 */
+	void recover(long startedBefore) {
+		try {
+			mEngine.recover(startedBefore);
+		} catch (Exception e) {
+			Log.w(TAG, "Could not close unfinished sessions", e);
 		}
+	}
+	
+	/**
+	 * Stops the running session right away; its data is persisted in the
+	 * background, on the single worker of the store scheduler (after any
+	 * log or checkpoint write in progress, and without taking a worker
+	 * from the tick), and the listener, if any, is notified when done.
+	 * @param listener may be null
+	 */
+	void stop(final SessionStopListener listener) {
+		detach();
+		final Handler handler = new Handler(Looper.getMainLooper());
+		mEngine.stop(mStoreScheduler, new SessionEngine.StopCallback() {
+			
+			@Override
+			public void onSessionStopped(final SessionAggregator data, final boolean saved) {
+				Log.i(TAG, "Work session persisted: localId=" + data.getLocalId() + ", saved=" + saved);
+				if (null != listener) {
+					handler.post(new Runnable() {
+						
+						@Override
+						public void run() {
+							listener.onSessionStopped(data, saved);
+						}
+					});
+				}
+			}
+		});
 		
 		// done
 		mData = null;
 		Log.i(TAG, "Work session stopped");
 	}
-    
-    // stores all session data in DB, returns entity _ID
-	private long createMasterRecord(String uniqueId, Date startTime) {
-		Log.i(TAG, "Inserting session master record");
-		Log.i(TAG, "UniqueId=" + uniqueId + ", StartTime=" + startTime);
-		ContentValues values = new ContentValues();
-		values.put(DiaryContract.COL_UUID, uniqueId);
-		values.put(DiaryContract.COL_START, startTime.getTime());
-		values.put(DiaryContract.COL_END, 0);
-		values.put(DiaryContract.COL_ELAPSED, 0);
-		values.put(DiaryContract.COL_DISTANCE, 0.0);
-		values.put(DiaryContract.COL_CARDIO_MAX, 0.0);
-		values.put(DiaryContract.COL_CARDIO_AVG, 0.0);
-		values.put(DiaryContract.COL_SPEED_MAX, 0.0);
-		values.put(DiaryContract.COL_SPEED_AVG, 0.0);
-		values.put(DiaryContract.COL_CADENCE_MAX, 0.0);
-		values.put(DiaryContract.COL_CADENCE_AVG, 0.0);
-		values.put(DiaryContract.COL_GEAR, 0.0);
-		values.put(DiaryContract.COL_FITNESS, 0.0);
-		ContentResolver cs = Globals.getContext().getContentResolver();
-		Uri uri = cs.insert(DiaryContract.WORKOUTS_URI, values);
-		return ContentUris.parseId(uri);
-	}
-    
-	private long createLogRecord(Data data) {
-		Log.i(TAG, "Inserting session log record");
-		Log.i(TAG, mData.toString());
-		ContentValues values = new ContentValues();
-		values.put(DiaryContract._ID, new Date().getTime());
-		values.put(DiaryContract.COL_WORKOUT, data.getLocalId());
-		values.put(DiaryContract.COL_DISTANCE, data.getDistanceCovered());
-		values.put(DiaryContract.COL_CARDIO, data.getLastHeartCadence());
-		values.put(DiaryContract.COL_SPEED, data.getLastSpeed());
-		values.put(DiaryContract.COL_CADENCE, data.getLastCrankCadence());
-		ContentResolver cs = Globals.getContext().getContentResolver();
-		Uri uri = DiaryContract.getWorkoutLogContentUri(data.getLocalId());
-		uri = cs.insert(uri, values);
-		return ContentUris.parseId(uri);
-	}
-
-	private boolean updateMasterRecord(Data data) {
-		Log.i(TAG, "Updating session master record");
-		Log.i(TAG, mData.toString());
-		ContentValues values = new ContentValues();
-		values.put(DiaryContract.COL_END, data.getEndTime().getTime());
-		values.put(DiaryContract.COL_ELAPSED, data.getElapsedTime());
-		values.put(DiaryContract.COL_DISTANCE, data.getDistanceCovered());
-		values.put(DiaryContract.COL_CARDIO_MAX, data.getMaxHeartCadence());
-		values.put(DiaryContract.COL_CARDIO_AVG, data.getAverageHeartCadence());
-		values.put(DiaryContract.COL_SPEED_MAX, data.getMaxSpeed());
-		values.put(DiaryContract.COL_SPEED_AVG, data.getAverageSpeed());
-		values.put(DiaryContract.COL_CADENCE_MAX, data.getMaxCrankCadence());
-		values.put(DiaryContract.COL_CADENCE_AVG, data.getAverageCrankCadence());
-		values.put(DiaryContract.COL_GEAR, data.getAverageGearRatio());
-		values.put(DiaryContract.COL_FITNESS, data.getCardioFitnessFactor());
-		Uri uri = DiaryContract.getWorkoutUri(data.getLocalId());
-		ContentResolver cs = Globals.getContext().getContentResolver();
+	
+	/**
+	 * Stops the running session, and persists its data before returning.
+	 */
+	void stop() {
+		detach();
+
+		// set session's closing timestamp, disable session updates
+		// and persist all session data, updating the opening record
+		// (this is a _synchronous_ operation)
+		mEngine.stop();
 		
-		// we should update exactly ONE record, if not...
-		// we have some serious mess!
-		return (1 == cs.update(uri, values, null, null)); 
+		// done
+		mData = null;
+		Log.i(TAG, "Work session stopped");
 	}
 	
-	static class Data implements WorkSessionInfo,
-		BeatRateSensorListener, SpeedSensorListener, CadenceSensorListener {
-
-		private static final String TO_STRING_FORMAT = Data.class.getName() +
-				" - LocalId=%d" + 
-				", UniqueId=%s" + 
-				", StartTime=%d" + 
-				", EndTime=%d" + 
-				", DistanceCovered=%.3f" +
-				", WheelRevs=%d" + 
-				", CrankRevs=%d" + 
-				", HeartBeats=%.0f" + 
-				", LastSpeed=%.1f" + 
-				", MaxSpeed=%.1f" + 
-				", LastCrankCadence=%.1f" + 
-				", MaxCrankCadence=%.1f" + 
-				", LastHeartCadence=%.1f" + 
-				", MaxHeartCadence=%.1f" +
-				", LastHeartCadenceReding=%d";
-
-		private final long mLocalId;
-		private final String mUniqueId;
-		private final Date mStartTime;
-		private Date mEndTime;
-		private double mDistanceCovered;
-		private int mWheelRevs;
-		private int mCrankRevs;
-		private double mHeartBeats;
-		private double mLastSpeed;
-		private double mMaxSpeed;
-		private double mLastCrankCadence;
-		private double mMaxCrankCadence;
-		private double mLastHeartCadence;
-		private double mMaxHeartCadence;
-		private Date mLastHeartCadenceReding = Globals.NEVER;
-		
-		// TODO support for "cardio zone" . i.e., target min/max BPM values
-		// (significance of cardio fitness factor depends on this)
-		
-		private Data(long localId, String uniqueId, Date startTime) {
-			mLocalId = localId;
-			mUniqueId = uniqueId;
-			mStartTime = startTime;
-		}
-		
-		// WorkSessionData impl
-		@Override
-		public long getLocalId() {
-			return mLocalId;
-		}
-		
-		@Override
-		public String getUniqueId() {
-			return mUniqueId;
-		}
-
-		@Override
-		public Date getStartTime() {
-			return mStartTime;
-		}
-		
-		@Override
-		public synchronized Date getEndTime() {
-			return mEndTime;
-		}
-		
-		@Override
-		public synchronized double getElapsedTime() {
-			Date stopTime = null != mEndTime ? mEndTime : new Date();
-			double elapsed = ((double) (stopTime.getTime() - mStartTime.getTime())) / 1000;
-			return elapsed;
-		}
-		
-		@Override
-		public synchronized double getDistanceCovered() {
-			return mDistanceCovered / 1000d;
-		}
-		
-		@Override
-		public int getWheelRevs() {
-			return mWheelRevs;
-		}
-		
-		@Override
-		public int getCrankRevs() {
-			return mCrankRevs;
-		}
-
-		@Override
-		public double getHeartBeats() {
-			return mHeartBeats;
-		}
-
-		@Override
-		public synchronized double getMaxSpeed() {
-			return mMaxSpeed;
-		}
-		
-		@Override
-		public synchronized double getAverageSpeed() {
-			double elapsed = getElapsedTime();
-			if (elapsed > 0) {
-				return getDistanceCovered() / elapsed * 3600;
-			} else {
-				return 0;
-			}
-		}
-
-		@Override
-		public synchronized double getMaxCrankCadence() {
-			return mMaxCrankCadence;
-		}
-		
-		@Override
-		public synchronized double getAverageCrankCadence() {
-			double elapsed = getElapsedTime();
-			if (elapsed > 0) {
-				return mCrankRevs / elapsed * 60;
-			} else {
-				return 0;
-			}
-		}
-		
-		@Override
-		public synchronized double getAverageGearRatio() {
-			if (mCrankRevs > 0 && mWheelRevs > 0) {
-				return ((double) mWheelRevs) / ((double) mCrankRevs);
-			} else {
-				return 0;
-			}
-		}
-
-		@Override
-		public synchronized double getMaxHeartCadence() {
-			return mMaxHeartCadence;
-		}
-		
-		@Override
-		public synchronized double getAverageHeartCadence() {
-			double elapsed = getElapsedTime();
-			if (elapsed > 0) {
-				return mHeartBeats / elapsed * 60;
-			} else {
-				return 0;
-			}
-		}
-		
-		@Override
-		public synchronized double getCardioFitnessFactor() {
-			// TODO also check if session was "in zone"
-			if (mHeartBeats > 0) {
-				return mDistanceCovered / mHeartBeats;
-			} else {
-				return 0;
-			}
-		}
-
-		// BeatRateSensorListener impl
-		@Override
-		public synchronized void updateBeatRate(double bpm) {
-			addHeartCadenceReading(bpm);
-		}
-
-		// SpeedRateSensorListener impl
-		@Override
-		public synchronized void updateSpeed(double kmh) {
-			addSpeedReading(kmh);
-		}
-		
-		@Override
-		public synchronized void updateDistance(double meters) {
-			addDistanceCovered(meters);
-		}
-
-		@Override
-		public synchronized void updateWheelRevsCount(int revs) {
-			addWheelRevolutions(revs);
-		}
-
-		// CadenceRateSensorListener impl
-		@Override
-		public synchronized void updateCadence(double rpm) {
-			addCrankCadenceReading(rpm);
-		}
-
-		@Override
-		public synchronized void updateCrankRevsCount(int revs) {
-			addCrankRevolutions(revs);
-		}
-		
-		@Override
-		public synchronized String toString() {
-			return String.format(
-					Locale.getDefault(), 
-					TO_STRING_FORMAT,
-					mLocalId,
-					mUniqueId,
-					null != mStartTime ? mStartTime.getTime() : 0,
-					null != mEndTime ? mEndTime.getTime() : 0,
-					mDistanceCovered,
-					mWheelRevs,
-					mCrankRevs,
-					mHeartBeats,
-					mLastSpeed,
-					mMaxSpeed,
-					mLastCrankCadence,
-					mMaxCrankCadence,
-					mLastHeartCadence,
-					mMaxHeartCadence,
-					null != mLastHeartCadenceReding ? mLastHeartCadenceReding.getTime() : 0);
-		}
-
-		private synchronized void end() {
-			mEndTime = new Date();
-		}
-		
-		private double getLastHeartCadence() {
-			return mLastHeartCadence;
-		}
-		
-		private void addHeartCadenceReading(double bpm) {
-			if (null != mEndTime)
-				return; // no-op if session has been closed
-			
-			Date now = new Date();
-			mLastHeartCadence = bpm;
-			mMaxHeartCadence = bpm > mMaxHeartCadence ? bpm : mMaxHeartCadence;
-			if (!mLastHeartCadenceReding.equals(Globals.NEVER)) {
-				mHeartBeats += getUnitsInTimeInterval(mLastHeartCadenceReding, now, bpm);
-			}
-			mLastHeartCadenceReding = now;
-		}
-		
-		private double getLastSpeed() {
-			return mLastSpeed;
-		}
-		
-		private void addSpeedReading(double kmh) {
-			if (null != mEndTime)
-				return; // no-op if session has been closed
-			
-			mLastSpeed = kmh;
-			mMaxSpeed = kmh > mMaxSpeed ? kmh : mMaxSpeed;
-		}
-		
-		private void addWheelRevolutions(int revs) {
-			if (null != mEndTime)
-				return; // no-op if session has been closed
-			
-			mWheelRevs += revs;
-		}
+	private void detach() {
+		if (null == mData)
+			throw new IllegalStateException("No work session is running");
 		
-		private void addDistanceCovered(double meters) {
-			if (null != mEndTime)
-				return; // no-op if session has been closed
-			
-			mDistanceCovered += meters;
-		}
+		Log.i(TAG, "Stopping work session");
 		
-		private double getLastCrankCadence() {
-			return mLastCrankCadence;
-		}
+		// stop saving log entries and checkpoints before the session ends
+		// (a run already in progress finds it ended, and does nothing)
+		mSessionLogTask.cancel();
+		mSessionLogTask = null;
+		mSessionCheckpointTask.cancel();
+		mSessionCheckpointTask = null;
 		
-		private void addCrankCadenceReading(double rpm) {
-			if (null != mEndTime)
-				return; // no-op if session has been closed
-			
-			mLastCrankCadence = rpm;
-			mMaxCrankCadence = rpm > mMaxCrankCadence ? rpm : mMaxCrankCadence;
-		}
+		// stop sending timed notifications
+		mSessionTickTask.cancel();
+		mSessionTickTask = null;
 		
-		private void addCrankRevolutions(int revs) {
-			if (null != mEndTime)
-				return; // no-op if session has been closed
-			
-			mCrankRevs += revs;
-		}
-
-		private double getUnitsInTimeInterval(Date lastReading, Date now, double upm) {
-			double millisecondsElapsed = now.getTime() - lastReading.getTime();
-			double minutesElapsed = millisecondsElapsed / 60000;
-			return upm * minutesElapsed;
-		}
+		// detach all listeners
+		mListeners.clear();
 
-		@Override
-		public void updateConnectionState(int status, int newState) {
-			// nothing to do here
-		}
+		// stop listening to sensors
+		mSensors.unregisterWheelListener(mData);
+		mSensors.unregisterCrankListener(mData);
+		mSensors.unregisterHeartListener(mData);
+		mSensors = null;
 	}
 }
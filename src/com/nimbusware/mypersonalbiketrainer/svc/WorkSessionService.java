@@ -1,5 +1,14 @@
 package com.nimbusware.mypersonalbiketrainer.svc;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+import com.nimbusware.android.ble.profiles.HrmData;
+import com.nimbusware.android.ble.sensors.DataBatchListener;
 import com.nimbusware.mypersonalbiketrainer.BeatRateSensorListener;
 import com.nimbusware.mypersonalbiketrainer.CadenceSensorListener;
 import com.nimbusware.mypersonalbiketrainer.CockpitActivity;
@@ -9,8 +18,11 @@ import com.nimbusware.mypersonalbiketrainer.R;
 import com.nimbusware.mypersonalbiketrainer.SensorFactory;
 import com.nimbusware.mypersonalbiketrainer.SensorInfo;
 import com.nimbusware.mypersonalbiketrainer.SensorSet;
+import com.nimbusware.mypersonalbiketrainer.SessionStopListener;
 import com.nimbusware.mypersonalbiketrainer.SpeedSensorListener;
 import com.nimbusware.mypersonalbiketrainer.WorkSessionInfo;
+import com.nimbusware.mypersonalbiketrainer.core.PeriodicScheduler;
+import com.nimbusware.mypersonalbiketrainer.replay.NotificationRecorder;
 
 import android.app.Notification;
 import android.app.PendingIntent;
@@ -26,10 +38,23 @@ import android.util.Log;
 public class WorkSessionService extends Service {
 
 	private final static String TAG = WorkSessionService.class.getSimpleName();
+	private final static String RECORDINGS_DIR = "recordings";
+	private final static String RECORDING_EXT = ".gatt";
+	private final static int RECORDINGS_KEPT = 5;
+	private final static int SCHEDULER_WORKERS = 2;
 
 	private final IBinder mBinder = new LocalBinder();
-	private final WorkSession mSession = new WorkSession();
+	// periodic work of the service and its clients (session tick, sensor
+	// checks): one dispatcher thread, plus enough workers for a slow task
+	// not to hold back the others
+	private final PeriodicScheduler mScheduler = new PeriodicScheduler(TAG, SCHEDULER_WORKERS);
+	// session database work (log batches, checkpoints, recovery) on a worker
+	// of its own: writes are serialized, and however long they take they
+	// never hold a worker the tick needs
+	private final PeriodicScheduler mStoreScheduler = new PeriodicScheduler(TAG + "-store", 1);
+	private final WorkSession mSession = new WorkSession(mScheduler, mStoreScheduler);
 	private SensorSet mSensors;
+	private NotificationRecorder mRecorder;
 	private int mWheelSize;
 	private String mHeartSensorAddr;
 	private String mWheelSensorAddr;
@@ -72,6 +97,18 @@ public class WorkSessionService extends Service {
 		}
 	}
 	
+	public void registerHeartBatchListener(DataBatchListener<HrmData> listener) {
+		if (null != mSensors) {
+			mSensors.registerHeartBatchListener(listener);
+		}
+	}
+
+	public void unregisterHeartBatchListener(DataBatchListener<HrmData> listener) {
+		if (null != mSensors) {
+			mSensors.unregisterHeartBatchListener(listener);
+		}
+	}
+	
 	public void registerSessionListener(ElapsedTimeListener listener) {
 		mSession.registerListener(listener);
 	}
@@ -80,6 +117,15 @@ public class WorkSessionService extends Service {
 		mSession.unregisterListener(listener);
 	}
 
+	/**
+	 * Service-wide scheduler, for periodic tasks of bound clients:
+	 * tasks must be cancelled when the client unbinds.
+	 * @return
+	 */
+	public PeriodicScheduler getScheduler() {
+		return mScheduler;
+	}
+
 	public boolean hasSensors() {
 		return null != mSensors;
 	}
@@ -97,11 +143,16 @@ public class WorkSessionService extends Service {
 		Log.i(TAG, "Work session started");
 	}
 
-	public void stopSession() {
+	/**
+	 * Stops the running session: returns right away, while session
+	 * data is persisted in the background.
+	 * @param listener notified when session data is persisted, may be null
+	 */
+	public void stopSession(SessionStopListener listener) {
 		Log.i(TAG, "Stopping work session");
 
 		// will throw exception if not active
-		mSession.stop();
+		mSession.stop(listener);
 
 		Log.i(TAG, "Work session stopped");
 	}
@@ -110,6 +161,23 @@ public class WorkSessionService extends Service {
 		return mSession.getData(); // returns null id not active
 	}
 
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		
+		// if the process was killed while a session was running, its
+		// master record was left open: close it from its last checkpoint
+		// (sessions started from now on are not affected)
+		final long createdAt = System.currentTimeMillis();
+		mStoreScheduler.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				mSession.recover(createdAt);
+			}
+		});
+	}
+
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		Log.i(TAG, "Processing start command");
@@ -155,12 +223,19 @@ public class WorkSessionService extends Service {
 		super.onDestroy();
 		stopForeground(true);
 		if (mSession.isActive()) {
+			// the process may be gone soon: no background work
 			mSession.stop();
 		}
 		if (null != mSensors) {
 			mSensors.close();
 			mSensors = null;
 		}
+		if (null != mRecorder) {
+			mRecorder.close();
+			mRecorder = null;
+		}
+		mScheduler.shutdown();
+		mStoreScheduler.shutdown();
 	}
 
 	public class LocalBinder extends Binder {
@@ -192,12 +267,43 @@ public class WorkSessionService extends Service {
 		Log.i(TAG, "Creating sensor set");
 		SensorInfo sensorInfo = new SensorInfo(mHeartSensorAddr,
 				mWheelSensorAddr, mCrankSensorAddr);
+		mRecorder = createRecorder();
 		mSensors = SensorFactory.getSensorSet(this, adapter, sensorInfo,
-				mWheelSize);
+				mWheelSize, mRecorder);
 
 		// this will span connection attempts in the background
 		Log.i(TAG, "Opening sensors");
 		mSensors.open();
 		Log.i(TAG, "Sensor opening requested, waiting for reply");
 	}
+	
+	// raw sensor data is always recorded, so that odd readings reported by
+	// riders can be reproduced (see NotificationReplay); one file per run
+	// of the service, only the most recent ones are kept
+	private NotificationRecorder createRecorder() {
+		File dir = new File(getFilesDir(), RECORDINGS_DIR);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			Log.w(TAG, "Cannot create directory " + dir + ", sensor data will not be recorded");
+			return null;
+		}
+		
+		// file names sort by date
+		File[] files = dir.listFiles();
+		if (null != files && files.length >= RECORDINGS_KEPT) {
+			Arrays.sort(files);
+			for (int i = 0; i <= files.length - RECORDINGS_KEPT; i++) {
+				files[i].delete();
+			}
+		}
+		
+		String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+		File file = new File(dir, name + RECORDING_EXT);
+		try {
+			Log.i(TAG, "Recording sensor data to " + file);
+			return new NotificationRecorder(file);
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot create " + file + ", sensor data will not be recorded", e);
+			return null;
+		}
+	}
 }
@@ -0,0 +1,145 @@
+package com.nimbusware.mypersonalbiketrainer.db;
+
+import java.util.Calendar;
+
+import com.nimbusware.mypersonalbiketrainer.DiaryContract;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+
+/**
+ * Opens databases left by older versions of the app through the provider,
+ * which upgrades them on first access. The provider opens its database
+ * lazily, so each test writes an old one in the isolated context first.
+ */
+public class DiaryUpgradeTest extends ProviderTestCase2<DiaryContentProvider> {
+
+	private static final String DB_NAME = "mpbt";
+
+	// schema of versions 2 to 6 (the workout table got its UUID in version 2)
+	private static final String CREATE_WORKOUT = "CREATE TABLE workout (" +
+			"_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+			"_uuid TEXT NULL, " +
+			"start_time INTEGER NOT NULL, " +
+			"end_time INTEGER NOT NULL, " +
+			"time_elapses REAL NOT NULL, " +
+			"distance REAL NOT NULL, " +
+			"cardio_max REAL NOT NULL, " +
+			"cardio_avg REAL NOT NULL, " +
+			"speed_max REAL NOT NULL, " +
+			"speed_avg REAL NOT NULL, " +
+			"cadence_max REAL NOT NULL, " +
+			"cadence_avg REAL NOT NULL, " +
+			"gear_ratio_avg REAL NOT NULL, " +
+			"fitness_factor REAL NOT NULL) ";
+
+	private static final String CREATE_WORKOUT_LOG = "CREATE TABLE workout_log (" +
+			"_id INTEGER PRIMARY KEY, " +
+			"workout INTEGER NOT NULL REFERENCES workout ON DELETE CASCADE, " +
+			"distance REAL NOT NULL, " +
+			"cardio REAL NOT NULL, " +
+			"speed REAL NOT NULL, " +
+			"cadence REAL NOT NULL) ";
+
+	// since version 3
+	private static final String CREATE_WORKOUT_CHUNK = "CREATE TABLE workout_chunk (" +
+			"_id INTEGER PRIMARY KEY, " +
+			"workout INTEGER NOT NULL REFERENCES workout ON DELETE CASCADE, " +
+			"end_time INTEGER NOT NULL, " +
+			"entry_count INTEGER NOT NULL, " +
+			"data BLOB NOT NULL) ";
+
+	private long mStart;
+
+	public DiaryUpgradeTest() {
+		super(DiaryContentProvider.class, DiaryContract.AUTHORITY);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(2015, Calendar.APRIL, 12, 10, 0);
+		mStart = cal.getTimeInMillis();
+	}
+
+	public void testUpgradeFromVersion2() {
+		createDatabase(2);
+		assertRollups();
+	}
+
+	public void testUpgradeFromVersion4() {
+		createDatabase(4);
+		assertRollups();
+	}
+
+	private void createDatabase(int version) {
+		SQLiteDatabase db = getMockContext().openOrCreateDatabase(DB_NAME, 0, null);
+		try {
+			db.execSQL(CREATE_WORKOUT);
+			db.execSQL(CREATE_WORKOUT_LOG);
+			if (version >= 3) {
+				db.execSQL(CREATE_WORKOUT_CHUNK);
+			}
+
+			// one closed workout, and one left open by a crash
+			db.insertOrThrow("workout", null, getWorkout(mStart, mStart + 3600000));
+			db.insertOrThrow("workout", null, getWorkout(mStart + 7200000, 0));
+			db.setVersion(version);
+		} finally {
+			db.close();
+		}
+	}
+
+	private static ContentValues getWorkout(long start, long end) {
+		ContentValues values = new ContentValues();
+		values.put(DiaryContract.COL_START, start);
+		values.put(DiaryContract.COL_END, end);
+		values.put(DiaryContract.COL_ELAPSED, 3600.0);
+		values.put(DiaryContract.COL_DISTANCE, 30.0);
+		values.put(DiaryContract.COL_CARDIO_MAX, 170.0);
+		values.put(DiaryContract.COL_CARDIO_AVG, 140.0);
+		values.put(DiaryContract.COL_SPEED_MAX, 45.0);
+		values.put(DiaryContract.COL_SPEED_AVG, 30.0);
+		values.put(DiaryContract.COL_CADENCE_MAX, 110.0);
+		values.put(DiaryContract.COL_CADENCE_AVG, 85.0);
+		values.put(DiaryContract.COL_GEAR, 3.0);
+		values.put(DiaryContract.COL_FITNESS, 0.0);
+		return values;
+	}
+
+	private void assertRollups() {
+		Cursor c = getMockContentResolver().query(DiaryContract.ROLLUPS_BY_DAY_URI,
+				DiaryContract.ROLLUP_PROJECTION, null, null, null);
+		try {
+			// the open workout does not count
+			assertEquals(1, c.getCount());
+			assertTrue(c.moveToFirst());
+			assertEquals(20150412L, c.getLong(0));
+			assertEquals(1, c.getInt(1));
+			assertEquals(3600.0, c.getDouble(2));
+			assertEquals(30.0, c.getDouble(3));
+		} finally {
+			c.close();
+		}
+
+		// the upgrade fills zone offsets from the current time zone
+		SQLiteDatabase db = getMockContext().openOrCreateDatabase(DB_NAME, 0, null);
+		try {
+			c = db.query("workout", new String[] { DiaryContract.COL_ZONE_OFFSET },
+					DiaryContract.COL_START + " = ?", new String[] { String.valueOf(mStart) },
+					null, null, null);
+			try {
+				assertTrue(c.moveToFirst());
+				assertEquals(DiaryContract.getZoneOffset(mStart), c.getInt(0));
+			} finally {
+				c.close();
+			}
+		} finally {
+			db.close();
+		}
+	}
+}